@@ -0,0 +1,28 @@
+SET JAVA="C:\Program Files\Java\jdk1.6.0_20\jre\bin\java"
+SET JAVA_OPT= -server -Xms512m -Xmx512m
+REM Compares row-wise evaluation (the default) with batch-wise evaluation
+REM SET FS=-f memory
+SET FS=
+
+%JAVA% %JAVA_OPT% -jar bench.jar --type jaql --benchmark ArrayAverage %FS% --postfix rows > results_batch.csv
+%JAVA% %JAVA_OPT% -Djaql.batch.size=256 -jar bench.jar --type jaql --benchmark ArrayAverage %FS% --postfix batches >> results_batch.csv
+
+%JAVA% %JAVA_OPT% -jar bench.jar --type jaql --benchmark FieldAccess %FS% --postfix rows >> results_batch.csv
+%JAVA% %JAVA_OPT% -Djaql.batch.size=256 -jar bench.jar --type jaql --benchmark FieldAccess %FS% --postfix batches >> results_batch.csv
+
+%JAVA% %JAVA_OPT% -jar bench.jar --type jaql --benchmark KeyExtract %FS% --postfix rows >> results_batch.csv
+%JAVA% %JAVA_OPT% -Djaql.batch.size=256 -jar bench.jar --type jaql --benchmark KeyExtract %FS% --postfix batches >> results_batch.csv
+
+%JAVA% %JAVA_OPT% -jar bench.jar --type jaql --benchmark Project %FS% --postfix rows >> results_batch.csv
+%JAVA% %JAVA_OPT% -Djaql.batch.size=256 -jar bench.jar --type jaql --benchmark Project %FS% --postfix batches >> results_batch.csv
+
+%JAVA% %JAVA_OPT% -jar bench.jar --type jaql --benchmark ProjectArray %FS% --postfix rows >> results_batch.csv
+%JAVA% %JAVA_OPT% -Djaql.batch.size=256 -jar bench.jar --type jaql --benchmark ProjectArray %FS% --postfix batches >> results_batch.csv
+
+%JAVA% %JAVA_OPT% -jar bench.jar --type jaql --benchmark StringConcat %FS% --postfix rows >> results_batch.csv
+%JAVA% %JAVA_OPT% -Djaql.batch.size=256 -jar bench.jar --type jaql --benchmark StringConcat %FS% --postfix batches >> results_batch.csv
+
+%JAVA% %JAVA_OPT% -jar bench.jar --type jaql --benchmark Transform %FS% --postfix rows >> results_batch.csv
+%JAVA% %JAVA_OPT% -Djaql.batch.size=256 -jar bench.jar --type jaql --benchmark Transform %FS% --postfix batches >> results_batch.csv
+
+PAUSE
\ No newline at end of file
@@ -18,19 +18,42 @@ package com.ibm.jaql.io.hadoop;
 import org.apache.hadoop.mapred.JobConf;
 
 /**
- * 
+ * Holds the configuration of the current job. Threads that run tasks of different jobs in the
+ * same JVM each hold their own, see {@link #beginTask(JobConf)}.
  */
 public class Globals
 {
 
   private static JobConf conf = null;
 
+  /** the configuration of the task that the current thread runs, if any */
+  private static final ThreadLocal<TaskConf> taskConf = new ThreadLocal<TaskConf>();
+
+  /** The configuration of a task, as returned by {@link #beginTask}. */
+  public static final class TaskConf
+  {
+    private JobConf conf;
+
+    private TaskConf(JobConf conf)
+    {
+      this.conf = conf;
+    }
+  }
+
   /**
    * @param c
    */
   public static void setJobConf(JobConf c)
   {
-    conf = c;
+    TaskConf t = taskConf.get();
+    if (t != null)
+    {
+      t.conf = c;
+    }
+    else
+    {
+      conf = c;
+    }
   }
 
   /**
@@ -38,6 +61,37 @@ public class Globals
    */
   public static JobConf getJobConf()
   {
-    return conf;
+    TaskConf t = taskConf.get();
+    return t != null ? t.conf : conf;
+  }
+
+  /**
+   * Makes the current thread hold its own configuration, initially <code>c</code>, until
+   * {@link #endTask} is called. Tasks nest: a task that runs inside another one, such as a job
+   * started by a map function, returns the configuration of the outer task.
+   * 
+   * @return the configuration to pass to {@link #endTask}
+   */
+  public static TaskConf beginTask(JobConf c)
+  {
+    TaskConf outer = taskConf.get();
+    taskConf.set(new TaskConf(c));
+    return outer;
+  }
+
+  /**
+   * Makes the current thread use the configuration that it used before the matching
+   * {@link #beginTask} again: that of the outer task, or that shared by all threads.
+   */
+  public static void endTask(TaskConf outer)
+  {
+    if (outer != null)
+    {
+      taskConf.set(outer);
+    }
+    else
+    {
+      taskConf.remove();
+    }
   }
 }
@@ -1,8 +1,12 @@
 package com.ibm.jaql.io.hadoop;
 
+import java.io.IOException;
+
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapred.JobConf;
 
 import com.ibm.jaql.io.serialization.binary.BinaryFullSerializer;
+import com.ibm.jaql.io.serialization.binary.temp.NormalizedKeySerializer;
 import com.ibm.jaql.io.serialization.binary.temp.TempBinaryFullSerializer;
 import com.ibm.jaql.json.schema.Schema;
 import com.ibm.jaql.json.schema.SchemaFactory;
@@ -31,7 +35,7 @@ public class HadoopSerializationMapOutput extends HadoopSerialization
     }
     else
     {
-      return new HadoopDeserializerMapOutputValue(valueSerializer());
+      return new HadoopDeserializerMapOutputValue(valueSerializer(), isTagged());
     }
   }
 
@@ -43,15 +47,32 @@ public class HadoopSerializationMapOutput extends HadoopSerialization
     {
       return new HadoopSerializer(keySerializer());
     }
+    else if (isTagged())
+    {
+      return new TaggedHadoopSerializer(valueSerializer());
+    }
     else 
     {
       return new HadoopSerializer(valueSerializer());
     }
   }
   
+  /** Values are tagged with the index of their input if the job has more than one input. */
+  boolean isTagged()
+  {
+    return getConf().getInt(MapReduceBaseExpr.NUM_INPUTS_NAME, 1) > 1;
+  }
+  
+  /** Keys are written in normalized form when their schema permits it, so that the sort can
+   * compare them bytewise. */
   BinaryFullSerializer keySerializer()
   {
-    return new TempBinaryFullSerializer(getSchema(true));
+    Schema schema = getSchema(true);
+    if (NormalizedKeySerializer.supports(schema))
+    {
+      return new NormalizedKeySerializer();
+    }
+    return new TempBinaryFullSerializer(schema);
   }
   
   BinaryFullSerializer valueSerializer()
@@ -103,11 +124,39 @@ public class HadoopSerializationMapOutput extends HadoopSerialization
     }
   }
 
+  /** Serializer used for the values of jobs with more than one input. Writes the tag of each
+   * value in front of it. */
+  private static class TaggedHadoopSerializer extends HadoopSerializer
+  {
+    public TaggedHadoopSerializer(BinaryFullSerializer serializer) {
+      super(serializer);
+    }
+    
+    @Override
+    public void serialize(JsonHolder t) throws IOException
+    {
+      WritableUtils.writeVInt(dataOut, ((JsonHolderMapOutputValue)t).tag);
+      super.serialize(t);
+    }
+  }
+  
   /** Deserializer used for values. */
   private static class HadoopDeserializerMapOutputValue extends AbstractHadoopDeserializer<JsonHolderMapOutputValue>
   {
-    public HadoopDeserializerMapOutputValue(BinaryFullSerializer serializer) {
+    private boolean tagged;
+    
+    public HadoopDeserializerMapOutputValue(BinaryFullSerializer serializer, boolean tagged) {
       super(serializer);
+      this.tagged = tagged;
+    }
+    
+    @Override
+    public JsonHolder deserialize(JsonHolder t) throws IOException
+    {
+      int tag = tagged ? WritableUtils.readVInt(in) : 0;
+      JsonHolderMapOutputValue v = (JsonHolderMapOutputValue)super.deserialize(t);
+      v.tag = tag;
+      return v;
     }
     
     public JsonHolderMapOutputValue newHolder()
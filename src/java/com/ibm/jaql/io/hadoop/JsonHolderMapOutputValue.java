@@ -5,6 +5,10 @@ import com.ibm.jaql.json.type.JsonValue;
 /** Used for map output values when there is an reducer. */
 public final class JsonHolderMapOutputValue extends JsonHolder
 {
+  /** The index of the input that produced the value, if the job has more than one input. It is
+   * serialized as a vint in front of the value instead of wrapping the value. */
+  public int tag;
+  
   public JsonHolderMapOutputValue()
   {
     super();
@@ -2,13 +2,18 @@ package com.ibm.jaql.io.hadoop;
 
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.WritableComparator;
 
+import com.ibm.jaql.io.serialization.binary.temp.NormalizedKeySerializer;
 import com.ibm.jaql.json.util.DefaultJsonComparator;
 
 public class MapOutputKeyComparator extends DefaultJsonComparator implements Configurable
 {
   private Configuration conf;
   
+  /** true if keys are written in normalized form and can be compared bytewise */
+  private boolean normalized;
+  
   public MapOutputKeyComparator()
   {
     super();
@@ -28,5 +33,16 @@ public class MapOutputKeyComparator extends DefaultJsonComparator implements Con
     HadoopSerializationMapOutput hs = new HadoopSerializationMapOutput();
     hs.setConf(conf);
     serializer = hs.keySerializer();
-  }  
+    normalized = serializer instanceof NormalizedKeySerializer;
+  }
+  
+  @Override
+  public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2)
+  {
+    if (normalized)
+    {
+      return WritableComparator.compareBytes(b1, s1, l1, b2, s2, l2);
+    }
+    return super.compare(b1, s1, l1, b2, s2, l2);
+  }
 }
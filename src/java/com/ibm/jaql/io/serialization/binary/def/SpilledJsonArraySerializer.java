@@ -18,15 +18,17 @@ package com.ibm.jaql.io.serialization.binary.def;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.lang.reflect.UndeclaredThrowableException;
 
 import com.ibm.jaql.io.serialization.FullSerializer;
 import com.ibm.jaql.io.serialization.binary.BinaryBasicSerializer;
 import com.ibm.jaql.io.serialization.binary.BinaryFullSerializer;
+import com.ibm.jaql.json.type.JsonArray;
 import com.ibm.jaql.json.type.JsonValue;
 import com.ibm.jaql.json.type.SpilledJsonArray;
 import com.ibm.jaql.util.BaseUtil;
 
-class SpilledJsonArraySerializer extends BinaryBasicSerializer<SpilledJsonArray>
+class SpilledJsonArraySerializer extends BinaryBasicSerializer<JsonArray>
 {
   BinaryFullSerializer fullSerializer;
 
@@ -58,10 +60,26 @@ class SpilledJsonArraySerializer extends BinaryBasicSerializer<SpilledJsonArray>
   }
 
   @Override
-  public void write(DataOutput out, SpilledJsonArray v) throws IOException
+  public void write(DataOutput out, JsonArray value) throws IOException
   {
     // update AscDescItemComparator when changing this
     
+    if (!(value instanceof SpilledJsonArray)) {
+      // other arrays that use this encoding (such as views) are written element by element
+      BaseUtil.writeVULong(out, value.count());
+      try {
+        for (JsonValue v : value.iter()) {
+          fullSerializer.write(out, v);
+        }
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new UndeclaredThrowableException(e);
+      }
+      return;
+    }
+    
+    SpilledJsonArray v = (SpilledJsonArray)value;
     v.freeze();
     BaseUtil.writeVULong(out, v.count());
     
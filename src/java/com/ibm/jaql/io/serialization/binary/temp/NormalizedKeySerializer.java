@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.io.serialization.binary.temp;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+import com.ibm.jaql.io.serialization.binary.BinaryFullSerializer;
+import com.ibm.jaql.json.schema.ArraySchema;
+import com.ibm.jaql.json.schema.OrSchema;
+import com.ibm.jaql.json.schema.RecordSchema;
+import com.ibm.jaql.json.schema.Schema;
+import com.ibm.jaql.json.schema.SchemaTransformation;
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.BufferedJsonRecord;
+import com.ibm.jaql.json.type.JsonArray;
+import com.ibm.jaql.json.type.JsonBinary;
+import com.ibm.jaql.json.type.JsonBool;
+import com.ibm.jaql.json.type.JsonDate;
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.json.type.JsonRecord;
+import com.ibm.jaql.json.type.JsonString;
+import com.ibm.jaql.json.type.JsonType;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.json.type.MutableJsonBinary;
+import com.ibm.jaql.json.type.MutableJsonDate;
+import com.ibm.jaql.json.type.MutableJsonLong;
+import com.ibm.jaql.json.type.MutableJsonString;
+import com.ibm.jaql.json.util.JsonIterator;
+
+/**
+ * Serializer that writes values in a normalized form: the unsigned lexicographic order of the
+ * encoded bytes equals the order defined by {@link com.ibm.jaql.json.type.JsonUtil#compare}.
+ * Encoded keys can thus be compared with a single <code>memcmp</code>-style loop, without
+ * decoding or dispatching on types. The encoding is as follows:
+ *
+ * <ul>
+ * <li>every value starts with a one-byte tag, the ordinal of its {@link JsonType};
+ *     <code>null</code> consists of the tag only</li>
+ * <li>booleans are written as a single byte (0 or 1)</li>
+ * <li>longs and dates are written as 8 big-endian bytes with the sign bit flipped</li>
+ * <li>strings and binaries are written byte by byte; a zero byte is escaped as <code>00 FF</code>
+ *     and the value is terminated by <code>00 00</code></li>
+ * <li>arrays are written as their elements followed by a zero byte</li>
+ * <li>records are written as their entries in sorted order, each prefixed by a one byte and
+ *     consisting of the escaped field name and the value, followed by a zero byte</li>
+ * </ul>
+ *
+ * Numbers of different types compare by value, which cannot be expressed by such an encoding.
+ * The serializer therefore only applies to schemata that do not contain doubles, decfloats, or
+ * values of unknown type; see {@link #supports(Schema)}. The file format is not stable.
+ */
+public final class NormalizedKeySerializer extends BinaryFullSerializer
+{
+  private static final int END = 0x00;
+  private static final int ESCAPE = 0xFF;
+  private static final int ENTRY = 0x01;
+
+  private static final int NULL_TAG = JsonType.NULL.ordinal();
+  private static final int ARRAY_TAG = JsonType.ARRAY.ordinal();
+  private static final int RECORD_TAG = JsonType.RECORD.ordinal();
+  private static final int BOOLEAN_TAG = JsonType.BOOLEAN.ordinal();
+  private static final int STRING_TAG = JsonType.STRING.ordinal();
+  private static final int LONG_TAG = JsonType.LONG.ordinal();
+  private static final int BINARY_TAG = JsonType.BINARY.ordinal();
+  private static final int DATE_TAG = JsonType.DATE.ordinal();
+
+  /** buffer for decoding strings and binaries */
+  private byte[] buffer = new byte[64];
+
+  // -- construction ------------------------------------------------------------------------------
+
+  public NormalizedKeySerializer()
+  {
+  }
+
+  /** Checks whether all values matched by the specified schema can be written by this
+   * serializer. */
+  public static boolean supports(Schema schema)
+  {
+    return supportsCompact(SchemaTransformation.compact(schema));
+  }
+
+  private static boolean supportsCompact(Schema schema)
+  {
+    if (schema == null)
+    {
+      return true;
+    }
+    switch (schema.getSchemaType())
+    {
+    case NULL:
+    case BOOLEAN:
+    case LONG:
+    case STRING:
+    case BINARY:
+    case DATE:
+      return true;
+    case ARRAY:
+      ArraySchema a = (ArraySchema)schema;
+      for (Schema s : a.getHeadSchemata())
+      {
+        if (!supportsCompact(s)) return false;
+      }
+      return supportsCompact(a.getRestSchema());
+    case RECORD:
+      RecordSchema r = (RecordSchema)schema;
+      for (RecordSchema.Field f : r.getFieldsByName())
+      {
+        if (!supportsCompact(f.getSchema())) return false;
+      }
+      return supportsCompact(r.getAdditionalSchema());
+    case OR:
+      for (Schema s : ((OrSchema)schema).get())
+      {
+        if (!supportsCompact(s)) return false;
+      }
+      return true;
+    default:
+      // numbers of different types compare by value; "any" may contain those
+      return false;
+    }
+  }
+
+
+  // -- serialization -----------------------------------------------------------------------------
+
+  @Override
+  public void write(DataOutput out, JsonValue value) throws IOException
+  {
+    if (value == null)
+    {
+      out.writeByte(NULL_TAG);
+      return;
+    }
+    switch (value.getType())
+    {
+    case BOOLEAN:
+      out.writeByte(BOOLEAN_TAG);
+      out.writeByte(((JsonBool)value).get() ? 1 : 0);
+      break;
+    case LONG:
+      out.writeByte(LONG_TAG);
+      out.writeLong(((JsonLong)value).get() ^ Long.MIN_VALUE);
+      break;
+    case DATE:
+      out.writeByte(DATE_TAG);
+      out.writeLong(((JsonDate)value).get() ^ Long.MIN_VALUE);
+      break;
+    case STRING:
+      out.writeByte(STRING_TAG);
+      writeBytes(out, (JsonString)value);
+      break;
+    case BINARY:
+      JsonBinary b = (JsonBinary)value;
+      out.writeByte(BINARY_TAG);
+      writeBytes(out, b.getInternalBytes(), b.bytesOffset(), b.bytesLength());
+      break;
+    case ARRAY:
+      out.writeByte(ARRAY_TAG);
+      try
+      {
+        JsonIterator it = ((JsonArray)value).iter();
+        for (JsonValue v : it)
+        {
+          write(out, v);
+        }
+      }
+      catch (IOException e)
+      {
+        throw e;
+      }
+      catch (Exception e)
+      {
+        throw new UndeclaredThrowableException(e);
+      }
+      out.writeByte(END);
+      break;
+    case RECORD:
+      out.writeByte(RECORD_TAG);
+      Iterator<Entry<JsonString, JsonValue>> it = ((JsonRecord)value).iteratorSorted();
+      while (it.hasNext())
+      {
+        Entry<JsonString, JsonValue> e = it.next();
+        out.writeByte(ENTRY);
+        writeBytes(out, e.getKey());
+        write(out, e.getValue());
+      }
+      out.writeByte(END);
+      break;
+    default:
+      throw new IllegalArgumentException("value " + value + " cannot be written in normalized form");
+    }
+  }
+
+  private static void writeBytes(DataOutput out, JsonString s) throws IOException
+  {
+    writeBytes(out, s.getInternalBytes(), s.bytesOffset(), s.bytesLength());
+  }
+
+  private static void writeBytes(DataOutput out, byte[] bytes, int offset, int length)
+  throws IOException
+  {
+    int end = offset + length;
+    int start = offset;
+    for (int i = offset; i < end; i++)
+    {
+      if (bytes[i] == END)
+      {
+        out.write(bytes, start, i + 1 - start);
+        out.writeByte(ESCAPE);
+        start = i + 1;
+      }
+    }
+    out.write(bytes, start, end - start);
+    out.writeByte(END);
+    out.writeByte(END);
+  }
+
+  @Override
+  public JsonValue read(DataInput in, JsonValue target) throws IOException
+  {
+    return read(in, in.readUnsignedByte(), target);
+  }
+
+  private JsonValue read(DataInput in, int tag, JsonValue target) throws IOException
+  {
+    if (tag == NULL_TAG)
+    {
+      return null;
+    }
+    else if (tag == BOOLEAN_TAG)
+    {
+      return JsonBool.make(in.readUnsignedByte() != 0);
+    }
+    else if (tag == LONG_TAG)
+    {
+      long value = in.readLong() ^ Long.MIN_VALUE;
+      if (target instanceof MutableJsonLong)
+      {
+        ((MutableJsonLong)target).set(value);
+        return target;
+      }
+      return new MutableJsonLong(value);
+    }
+    else if (tag == DATE_TAG)
+    {
+      long value = in.readLong() ^ Long.MIN_VALUE;
+      if (target instanceof MutableJsonDate)
+      {
+        ((MutableJsonDate)target).set(value);
+        return target;
+      }
+      return new MutableJsonDate(value);
+    }
+    else if (tag == STRING_TAG)
+    {
+      int length = readBytes(in);
+      if (target instanceof MutableJsonString)
+      {
+        ((MutableJsonString)target).setCopy(buffer, length);
+        return target;
+      }
+      return new MutableJsonString(buffer, 0, length);
+    }
+    else if (tag == BINARY_TAG)
+    {
+      int length = readBytes(in);
+      if (target instanceof MutableJsonBinary)
+      {
+        ((MutableJsonBinary)target).setCopy(buffer, length);
+        return target;
+      }
+      return new MutableJsonBinary(buffer, 0, length);
+    }
+    else if (tag == ARRAY_TAG)
+    {
+      BufferedJsonArray t;
+      if (target instanceof BufferedJsonArray)
+      {
+        t = (BufferedJsonArray)target;
+      }
+      else
+      {
+        t = new BufferedJsonArray();
+      }
+      int n = 0;
+      for (int c = in.readUnsignedByte(); c != END; c = in.readUnsignedByte(), n++)
+      {
+        if (n < t.size())
+        {
+          t.set(n, read(in, c, t.get(n)));
+        }
+        else
+        {
+          t.add(read(in, c, null));
+        }
+      }
+      t.resize(n);
+      return t;
+    }
+    else if (tag == RECORD_TAG)
+    {
+      BufferedJsonRecord t = new BufferedJsonRecord();
+      while (in.readUnsignedByte() != END)
+      {
+        int length = readBytes(in);
+        JsonString name = new JsonString(buffer, 0, length);
+        t.add(name, read(in, null));
+      }
+      return t;
+    }
+    throw new IOException("invalid normalized key encoding: " + tag);
+  }
+
+  /** Reads an escaped byte sequence into <code>buffer</code> and returns its length. */
+  private int readBytes(DataInput in) throws IOException
+  {
+    int n = 0;
+    while (true)
+    {
+      int b = in.readUnsignedByte();
+      if (b == END)
+      {
+        if (in.readUnsignedByte() == END)
+        {
+          return n;
+        }
+        // escaped zero byte
+      }
+      if (n == buffer.length)
+      {
+        byte[] newBuffer = new byte[2 * buffer.length];
+        System.arraycopy(buffer, 0, newBuffer, 0, n);
+        buffer = newBuffer;
+      }
+      buffer[n++] = (byte)b;
+    }
+  }
+
+
+  // -- comparison --------------------------------------------------------------------------------
+
+  @Override
+  public int compare(DataInput in1, DataInput in2) throws IOException
+  {
+    return compare(in1, in1.readUnsignedByte(), in2, in2.readUnsignedByte());
+  }
+
+  /** Compares two encoded values byte by byte. Equal values are read entirely. Since the
+   * byte order of the encoding is the order of the values, no value is decoded. */
+  private int compare(DataInput in1, int tag1, DataInput in2, int tag2) throws IOException
+  {
+    if (tag1 != tag2)
+    {
+      return tag1 - tag2;
+    }
+    if (tag1 == NULL_TAG)
+    {
+      return 0;
+    }
+    else if (tag1 == BOOLEAN_TAG)
+    {
+      return compareFixed(in1, in2, 1);
+    }
+    else if (tag1 == LONG_TAG || tag1 == DATE_TAG)
+    {
+      return compareFixed(in1, in2, 8);
+    }
+    else if (tag1 == STRING_TAG || tag1 == BINARY_TAG)
+    {
+      return compareEscaped(in1, in2);
+    }
+    else if (tag1 == ARRAY_TAG)
+    {
+      while (true)
+      {
+        int c1 = in1.readUnsignedByte();
+        int c2 = in2.readUnsignedByte();
+        if (c1 == END || c2 == END)
+        {
+          return c1 - c2;
+        }
+        int cmp = compare(in1, c1, in2, c2);
+        if (cmp != 0) return cmp;
+      }
+    }
+    else if (tag1 == RECORD_TAG)
+    {
+      while (true)
+      {
+        int c1 = in1.readUnsignedByte();
+        int c2 = in2.readUnsignedByte();
+        if (c1 != c2 || c1 == END)
+        {
+          return c1 - c2;
+        }
+        int cmp = compareEscaped(in1, in2);
+        if (cmp != 0) return cmp;
+        cmp = compare(in1, in2);
+        if (cmp != 0) return cmp;
+      }
+    }
+    throw new IOException("invalid normalized key encoding: " + tag1);
+  }
+
+  private static int compareFixed(DataInput in1, DataInput in2, int length) throws IOException
+  {
+    for (int i = 0; i < length; i++)
+    {
+      int c = in1.readUnsignedByte() - in2.readUnsignedByte();
+      if (c != 0) return c;
+    }
+    return 0;
+  }
+
+  private static int compareEscaped(DataInput in1, DataInput in2) throws IOException
+  {
+    while (true)
+    {
+      int b1 = in1.readUnsignedByte();
+      int b2 = in2.readUnsignedByte();
+      if (b1 != b2) return b1 - b2;
+      if (b1 == END)
+      {
+        b1 = in1.readUnsignedByte();
+        b2 = in2.readUnsignedByte();
+        if (b1 != b2) return b1 - b2;
+        if (b1 == END) return 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.job;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+import com.ibm.jaql.io.Adapter;
+import com.ibm.jaql.json.type.JsonArray;
+import com.ibm.jaql.json.type.JsonRecord;
+import com.ibm.jaql.json.type.JsonString;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.lang.core.Context;
+import com.ibm.jaql.lang.core.Var;
+import com.ibm.jaql.lang.expr.core.ArrayExpr;
+import com.ibm.jaql.lang.expr.core.BindingExpr;
+import com.ibm.jaql.lang.expr.core.ConstExpr;
+import com.ibm.jaql.lang.expr.core.DoExpr;
+import com.ibm.jaql.lang.expr.core.Expr;
+import com.ibm.jaql.lang.expr.core.ExprProperty;
+import com.ibm.jaql.lang.expr.core.RecordExpr;
+import com.ibm.jaql.lang.expr.core.VarExpr;
+import com.ibm.jaql.lang.expr.hadoop.MapReduceBaseExpr;
+import com.ibm.jaql.lang.expr.io.AbstractReadExpr;
+import com.ibm.jaql.lang.expr.io.HadoopTempExpr;
+import com.ibm.jaql.util.FastPrintBuffer;
+
+/**
+ * Runs the independent map-reduce jobs of a block at the same time, at most
+ * {@link JobGraph#MAX_CONCURRENT_JOBS} of them. The non-returned expressions of the block become
+ * the stages of a {@link JobGraph}: a stage waits for the stages that bind the variables it
+ * uses, and an expression that might interfere with another one keeps its place in the order of
+ * the block.
+ *
+ * Two expressions never interfere if both are bindings without side effects or bindings of
+ * map-reduce jobs whose arguments have no side effects and which write to a temp file or to a
+ * location that no other expression of the block reads or writes. Locations are compared after
+ * qualifying them with their file system. An expression that reads from a location that is not
+ * known at compile time might read any location, so it interferes with every job that does not
+ * write to a temp file.
+ */
+public class JobBlock
+{
+  protected Expr[] exprs;
+  /** before[i] lists the expressions that have to wait for expression i */
+  protected int[][] before;
+
+  protected JobBlock(Expr[] exprs, int[][] before)
+  {
+    this.exprs = exprs;
+    this.before = before;
+  }
+
+  /**
+   * Returns a JobBlock for the non-returned expressions of <code>block</code>, or null if they
+   * include fewer than two map-reduce jobs that can run at the same time.
+   */
+  public static JobBlock make(DoExpr block) throws Exception
+  {
+    int n = block.numChildren() - 1;
+    Expr[] exprs = new Expr[n];
+    int numJobs = 0;
+    for( int i = 0 ; i < n ; i++ )
+    {
+      exprs[i] = block.child(i);
+      if( jobOf(exprs[i]) != null )
+      {
+        numJobs++;
+      }
+    }
+    if( numJobs < 2 )
+    {
+      return null;
+    }
+
+    ArrayList<HashSet<Var>> captures = new ArrayList<HashSet<Var>>(n);
+    FastPrintBuffer exprText = new FastPrintBuffer();
+    HashSet<Var> blockVars = new HashSet<Var>();
+    for( int i = 0 ; i < n ; i++ )
+    {
+      HashSet<Var> capturedVars = new HashSet<Var>();
+      exprText.reset();
+      exprs[i].decompile(exprText, capturedVars); // TODO: separate captures from decompile
+      captures.add(capturedVars);
+      if( exprs[i] instanceof BindingExpr )
+      {
+        blockVars.add(((BindingExpr)exprs[i]).var);
+      }
+    }
+
+    ArrayList<HashSet<String>> locations = new ArrayList<HashSet<String>>(n);
+    for( int i = 0 ; i < n ; i++ )
+    {
+      HashSet<String> locs = new HashSet<String>();
+      locations.add(addLocations(exprs[i], blockVars, locs) ? locs : null);
+    }
+
+    boolean[] isolated = new boolean[n];
+    int numIsolatedJobs = 0;
+    for( int i = 0 ; i < n ; i++ )
+    {
+      MapReduceBaseExpr job = jobOf(exprs[i]);
+      if( job != null )
+      {
+        isolated[i] = isIsolated(job, locations, i);
+        if( isolated[i] )
+        {
+          numIsolatedJobs++;
+        }
+      }
+      else
+      {
+        isolated[i] = exprs[i] instanceof BindingExpr
+          && exprs[i].getProperty(ExprProperty.HAS_SIDE_EFFECTS, true).never();
+      }
+    }
+    if( numIsolatedJobs < 2 )
+    {
+      return null;
+    }
+
+    HashMap<Var,Integer> outMap = new HashMap<Var,Integer>();
+    boolean[][] edges = new boolean[n][n];
+    for( int j = 0 ; j < n ; j++ )
+    {
+      for( Var v: captures.get(j) )
+      {
+        Integer i = outMap.get(v);
+        if( i != null ) // if i is null, then v is defined outside of this block
+        {
+          edges[i][j] = true;
+        }
+      }
+      for( int i = 0 ; i < j ; i++ )
+      {
+        if( !isolated[i] || !isolated[j] )
+        {
+          edges[i][j] = true;
+        }
+      }
+      if( exprs[j] instanceof BindingExpr )
+      {
+        outMap.put(((BindingExpr)exprs[j]).var, j);
+      }
+    }
+    int[][] before = new int[n][];
+    for( int i = 0 ; i < n ; i++ )
+    {
+      int m = 0;
+      for( int j = 0 ; j < n ; j++ )
+      {
+        if( edges[i][j] ) m++;
+      }
+      before[i] = new int[m];
+      m = 0;
+      for( int j = 0 ; j < n ; j++ )
+      {
+        if( edges[i][j] ) before[i][m++] = j;
+      }
+    }
+    return new JobBlock(exprs, before);
+  }
+
+  /**
+   * Returns the map-reduce job bound by <code>expr</code>, or null if it does not bind one.
+   */
+  protected static MapReduceBaseExpr jobOf(Expr expr)
+  {
+    if( expr instanceof BindingExpr && expr.child(0) instanceof MapReduceBaseExpr )
+    {
+      return (MapReduceBaseExpr)expr.child(0);
+    }
+    return null;
+  }
+
+  /**
+   * Returns true if the arguments of <code>job</code> have no side effects, other than its
+   * output, and if the job writes to a temp file or to a location that is not in
+   * <code>locations</code> of any other expression than <code>self</code>. A null entry in
+   * <code>locations</code> stands for an expression that might access any location.
+   */
+  protected static boolean isIsolated(MapReduceBaseExpr job, 
+      ArrayList<HashSet<String>> locations, int self)
+  {
+    Expr output = job.findArgument(MapReduceBaseExpr.OUTPUT_KEY);
+    if( output == null )
+    {
+      return false;
+    }
+    if( !job.argumentsNever(ExprProperty.HAS_SIDE_EFFECTS) )
+    {
+      return false;
+    }
+
+    if( output instanceof HadoopTempExpr )
+    {
+      return true;
+    }
+    if( !(output instanceof ConstExpr) || !(((ConstExpr)output).value instanceof JsonRecord) )
+    {
+      return false;
+    }
+    String loc = resolve(((JsonRecord)((ConstExpr)output).value).get(Adapter.LOCATION_NAME));
+    if( loc == null )
+    {
+      return false;
+    }
+    for( int i = 0 ; i < locations.size() ; i++ )
+    {
+      if( i != self && (locations.get(i) == null || locations.get(i).contains(loc)) )
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds the resolved locations that <code>expr</code> reads or writes to <code>locs</code>.
+   * Returns false if some of them are not known at compile time. Temp files and the values of
+   * <code>blockVars</code> do not need to be added, because they are fresh or already ordered
+   * by the variables that expressions use.
+   */
+  protected static boolean addLocations(Expr expr, HashSet<Var> blockVars, HashSet<String> locs)
+  {
+    if( expr instanceof AbstractReadExpr )
+    {
+      if( !addDescriptor(((AbstractReadExpr)expr).descriptor(), blockVars, locs) )
+      {
+        return false;
+      }
+    }
+    else if( expr instanceof MapReduceBaseExpr )
+    {
+      MapReduceBaseExpr job = (MapReduceBaseExpr)expr;
+      if( !addDescriptor(job.findArgument(MapReduceBaseExpr.INPUT_KEY), blockVars, locs)
+          || !addDescriptor(job.findArgument(MapReduceBaseExpr.OUTPUT_KEY), blockVars, locs) )
+      {
+        return false;
+      }
+    }
+    else if( expr.getProperty(ExprProperty.READS_EXTERNAL_DATA, false).maybe() )
+    {
+      return false;
+    }
+    for( int i = 0 ; i < expr.numChildren() ; i++ )
+    {
+      if( !addLocations(expr.child(i), blockVars, locs) )
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds the resolved locations of the descriptor or array of descriptors <code>expr</code> to
+   * <code>locs</code>. Returns false if they are not known at compile time.
+   */
+  private static boolean addDescriptor(Expr expr, HashSet<Var> blockVars, HashSet<String> locs)
+  {
+    if( expr instanceof HadoopTempExpr )
+    {
+      return true;
+    }
+    if( expr instanceof VarExpr )
+    {
+      return blockVars.contains(((VarExpr)expr).var());
+    }
+    if( expr instanceof ArrayExpr )
+    {
+      for( int i = 0 ; i < expr.numChildren() ; i++ )
+      {
+        if( !addDescriptor(expr.child(i), blockVars, locs) )
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+    if( expr instanceof RecordExpr )
+    {
+      Expr loc = ((RecordExpr)expr).findStaticFieldValue(Adapter.LOCATION_NAME);
+      return loc instanceof ConstExpr && addLocation(((ConstExpr)loc).value, locs);
+    }
+    if( expr instanceof ConstExpr )
+    {
+      JsonValue value = ((ConstExpr)expr).value;
+      if( value instanceof JsonArray )
+      {
+        for( JsonValue v: (JsonArray)value )
+        {
+          if( !(v instanceof JsonRecord) 
+              || !addLocation(((JsonRecord)v).get(Adapter.LOCATION_NAME), locs) )
+          {
+            return false;
+          }
+        }
+        return true;
+      }
+      return value instanceof JsonRecord 
+        && addLocation(((JsonRecord)value).get(Adapter.LOCATION_NAME), locs);
+    }
+    return false;
+  }
+
+  private static boolean addLocation(JsonValue loc, HashSet<String> locs)
+  {
+    String resolved = resolve(loc);
+    if( resolved == null )
+    {
+      return false;
+    }
+    locs.add(resolved);
+    return true;
+  }
+
+  /**
+   * Returns the fully qualified path of the location <code>loc</code>, or null if it is not a
+   * valid path. 
+   */
+  protected static String resolve(JsonValue loc)
+  {
+    if( !(loc instanceof JsonString) )
+    {
+      return null;
+    }
+    try
+    {
+      Path path = new Path(loc.toString());
+      return path.makeQualified(path.getFileSystem(new Configuration())).toString();
+    }
+    catch( Exception e )
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Evaluates the expressions of this block, running independent ones at the same time.
+   */
+  public void run(Context context) throws Exception
+  {
+    int n = exprs.length;
+    JobGraph g = new JobGraph(JobGraph.MAX_CONCURRENT_JOBS);
+    EvalStage[] stages = new EvalStage[n];
+    for( int i = 0 ; i < n ; i++ )
+    {
+      stages[i] = new EvalStage(g, context, exprs[i]);
+    }
+    for( int i = 0 ; i < n ; i++ )
+    {
+      for( int j: before[i] )
+      {
+        stages[i].before(stages[j]);
+      }
+    }
+    // stages run in this thread when the shared pool is busy, so nested blocks cannot deadlock
+    g.run(SharedExecutor.CALLER_RUNS_WHEN_BUSY);
+  }
+
+  /**
+   * Evaluates an expression of the block, just like {@link DoExpr} does.
+   */
+  protected static class EvalStage extends Stage
+  {
+    protected Context context;
+    protected Expr expr;
+
+    protected EvalStage(JobGraph graph, Context context, Expr expr)
+    {
+      super(graph);
+      this.context = context;
+      this.expr = expr;
+    }
+
+    @Override
+    public void runStage() throws Exception
+    {
+      expr.eval(context);
+    }
+  }
+}
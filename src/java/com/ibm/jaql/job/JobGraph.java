@@ -22,8 +22,20 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 
+/**
+ * A graph of stages that runs every stage as soon as the stages it depends on are complete, but
+ * at most <code>maxRunning</code> stages at a time. If a stage fails, no more stages are started,
+ * the running stages are cancelled, and {@link #run(Executor)} throws the error.
+ */
 public class JobGraph
 {
+  /**
+   * maximum number of independent map-reduce jobs of a block that run at the same time
+   * (<code>jaql.job.concurrency</code>, default 1, i.e. the jobs run one after the other)
+   */
+  public static final int MAX_CONCURRENT_JOBS = 
+    Math.max(1, Integer.getInteger("jaql.job.concurrency", 1));
+
   protected ArrayList<Stage> stages = new ArrayList<Stage>();
   protected ArrayList<Stage> ready = new ArrayList<Stage>();
   protected HashSet<Stage> running = new HashSet<Stage>();
@@ -31,6 +43,19 @@ public class JobGraph
   protected Throwable error = null;
   protected boolean compiled = false;
   protected int numComplete;
+  protected final int maxRunning;
+
+  /** A graph that runs all ready stages at once. */
+  public JobGraph()
+  {
+    this(Integer.MAX_VALUE);
+  }
+
+  /** A graph that runs at most <code>maxRunning</code> stages at a time. */
+  public JobGraph(int maxRunning)
+  {
+    this.maxRunning = Math.max(1, maxRunning);
+  }
 
   /**
    * return true if x is a predecessor of y in the graph.
@@ -136,12 +161,8 @@ public class JobGraph
     reset();
     while( true )
     {
-      if( error != null )
-      {
-        ready.clear();
-        // TODO: kill running jobs? cleanup unused results?
-      }
-      else if( ! ready.isEmpty() )
+      // after an error, ready is empty and the running stages have been cancelled
+      if( ! ready.isEmpty() && running.size() < maxRunning )
       {
         Stage x = ready.remove(0);
         running.add(x);
@@ -151,7 +172,8 @@ public class JobGraph
         }
         catch( Throwable t )
         {
-          this.error = t;
+          running.remove(x);
+          fail(t);
         }
       }
       else if( ! running.isEmpty() )
@@ -186,8 +208,11 @@ public class JobGraph
     }
     if( error != null )
     {
-      System.err.println("stage completed with error: "+error);
-      this.error = error;
+      if( this.error == null )
+      {
+        System.err.println("stage completed with error: "+error);
+        fail(error);
+      }
     }
     else if( this.error == null ) // Don't schedule more if we hit an error
     {
@@ -213,6 +238,23 @@ public class JobGraph
     }
   }
   
+  /**
+   * Records the first error and cancels all running stages.
+   */
+  protected synchronized void fail(Throwable t)
+  {
+    if( error != null )
+    {
+      return;
+    }
+    error = t;
+    ready.clear();
+    for( Stage x: running )
+    {
+      x.cancel();
+    }
+  }
+  
   private static class DumbStage extends Stage
   {
     private String id;
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.job;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The executor shared by all parallel blocks and timeouts of this JVM. It runs at most
+ * <code>jaql.executor.threads</code> tasks at a time (default 64) and never queues a task: when
+ * all threads are busy, the task is run by the thread that submits it. Nested parallel blocks
+ * therefore cannot deadlock waiting for each other, and simply run sequentially once the pool is
+ * saturated.
+ *
+ * If <code>jaql.executor.virtual</code> is true and the JVM supports virtual threads, the pool
+ * uses virtual threads instead of platform threads.
+ */
+public final class SharedExecutor
+{
+  private static final Logger LOG = Logger.getLogger(SharedExecutor.class.getName());
+
+  /** maximum number of tasks run by the pool at the same time */
+  public static final int MAX_THREADS = Math.max(1, Integer.getInteger("jaql.executor.threads", 64));
+
+  /** use virtual threads if the JVM has them */
+  public static final boolean VIRTUAL = Boolean.getBoolean("jaql.executor.virtual");
+
+  private static ThreadPoolExecutor pool;
+
+  /** Runs tasks on the pool if a thread is available, otherwise in the calling thread. */
+  public static final Executor CALLER_RUNS_WHEN_BUSY = new Executor() {
+    public void execute(Runnable r)
+    {
+      try
+      {
+        getPool().execute(r);
+      }
+      catch( RejectedExecutionException e )
+      {
+        r.run();
+      }
+    }
+  };
+
+  private SharedExecutor()
+  {
+  }
+
+  /** Returns the pool, creating it on first use. */
+  public static synchronized ThreadPoolExecutor getPool()
+  {
+    if( pool == null )
+    {
+      pool = new ThreadPoolExecutor(0, MAX_THREADS, 60, TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>(), makeThreadFactory());
+    }
+    return pool;
+  }
+
+  /**
+   * Runs <code>r</code> on a thread other than the calling thread: on the pool if a thread is
+   * available, otherwise on a new thread. Use this instead of {@link #CALLER_RUNS_WHEN_BUSY} when
+   * the caller needs to stay in control, e.g. to enforce a timeout.
+   */
+  public static void start(Runnable r)
+  {
+    try
+    {
+      getPool().execute(r);
+    }
+    catch( RejectedExecutionException e )
+    {
+      Thread t = new Thread(r, "jaql-executor-overflow");
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  private static ThreadFactory makeThreadFactory()
+  {
+    if( VIRTUAL )
+    {
+      try
+      {
+        // Thread.ofVirtual().factory(), via reflection to run on older JVMs
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+        return (ThreadFactory)factory.invoke(builder);
+      }
+      catch( Exception e )
+      {
+        LOG.info("virtual threads are not supported by this JVM, using platform threads");
+      }
+    }
+    return new ThreadFactory() {
+      private int n = 0;
+
+      public synchronized Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r, "jaql-executor-" + (++n));
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+}
@@ -26,6 +26,11 @@ public abstract class Stage implements Runnable
   protected int clock = 0;
   protected boolean complete = false;
   protected int waitCount;
+  protected long startTime;
+  protected long endTime;
+  /** the thread running this stage, if it is running */
+  private Thread thread;
+  private boolean cancelled;
   
   protected Stage(JobGraph graph)
   {
@@ -37,6 +42,8 @@ public abstract class Stage implements Runnable
   {
     waitCount = 0;
     complete = false;
+    cancelled = false;
+    startTime = endTime = 0;
   }
 
   public void compile() throws Exception
@@ -50,21 +57,51 @@ public abstract class Stage implements Runnable
   
   public void run()
   {
+    startTime = System.nanoTime();
+    synchronized( this )
+    {
+      thread = Thread.currentThread();
+    }
+    Throwable error = null;
     try
     {
       runStage();
-      graph.complete(this, null);
-      return;
     }
     catch(Throwable t)
     {
-      t.printStackTrace(); // TODO: log
-      graph.complete(this, t);
-      return;
+      error = t;
+    }
+    endTime = System.nanoTime();
+    synchronized( this )
+    {
+      thread = null;
+      if( cancelled )
+      {
+        // don't leave the interrupt of cancel() to whatever runs next on this thread
+        Thread.interrupted();
+      }
     }
+    if( error != null && !cancelled )
+    {
+      error.printStackTrace(); // TODO: log
+    }
+    graph.complete(this, error);
     // graph.complete(this, new RuntimeException("we somehow missed the error..."));
   }
 
+  /**
+   * Stops this stage early because another stage of the graph failed. The thread running the
+   * stage is interrupted; map-reduce jobs waiting for completion are killed.
+   */
+  public synchronized void cancel()
+  {
+    cancelled = true;
+    if( thread != null )
+    {
+      thread.interrupt();
+    }
+  }
+
   public void before(Stage ab)
   {
     if( ! next.contains(ab) )
@@ -73,6 +110,14 @@ public abstract class Stage implements Runnable
     }
   }
 
+  /**
+   * Returns the time spent in the last run of this stage, in nanoseconds.
+   */
+  public long getElapsedNanos()
+  {
+    return endTime - startTime;
+  }
+
   public abstract void runStage() throws Exception;
 
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.json.util;
+
+import com.ibm.jaql.json.type.JsonValue;
+
+/**
+ * Base class for iterators that natively produce batches of values. Subclasses implement
+ * {@link #fillBatch(JsonValue[])}; {@link #moveNext()} hands out the values of an internal batch
+ * one at a time, so that row-wise consumers still benefit from batch-wise evaluation below them.
+ *
+ * Consumers that process batches themselves read them via {@link #nextBatch(JsonValue[])}:
+ *
+ * JsonValue[] batch = new JsonValue[BatchedJsonIterator.BATCH_SIZE];
+ * int n;
+ * while( (n = iter.nextBatch(batch)) > 0 )
+ * {
+ *   for( int i=0; i<n; i++ )
+ *   {
+ *      ... batch[i] ...
+ *   }
+ * }
+ */
+public abstract class BatchedJsonIterator extends JsonIterator
+{
+  /** Number of values per batch; set via the <code>jaql.batch.size</code> system property.
+   * Operators evaluate value by value when it is 1 or less, which is the default: once the JIT
+   * has inlined a row-wise pipeline, batches mainly pay off when many different operators share
+   * the same call sites. */
+  public static final int BATCH_SIZE = Integer.getInteger("jaql.batch.size", 1);
+
+  /** batch used by moveNext() */
+  private JsonValue[] batch;
+  private int pos;
+  private int count;
+
+  /** Returns whether operators should produce and consume batches. */
+  public static boolean enabled()
+  {
+    return BATCH_SIZE > 1;
+  }
+
+  /** Stores the next values in <code>out</code>, starting at index 0, and returns their number.
+   * Returns 0 if and only if there are no more values, also on repeated calls. The values must
+   * remain valid until the next call. */
+  protected abstract int fillBatch(JsonValue[] out) throws Exception;
+
+  @Override
+  public final boolean moveNext() throws Exception
+  {
+    if (pos == count)
+    {
+      if (batch == null)
+      {
+        batch = new JsonValue[BATCH_SIZE > 1 ? BATCH_SIZE : 1];
+      }
+      pos = 0;
+      count = fillBatch(batch);
+      if (count == 0)
+      {
+        return false;
+      }
+    }
+    currentValue = batch[pos++];
+    return true;
+  }
+
+  @Override
+  public final int nextBatch(JsonValue[] out) throws Exception
+  {
+    if (pos < count)
+    {
+      // hand out what is left over from moveNext() first
+      int n = Math.min(count - pos, out.length);
+      System.arraycopy(batch, pos, out, 0, n);
+      pos += n;
+      return n;
+    }
+    return fillBatch(out);
+  }
+}
@@ -1,11 +1,15 @@
 package com.ibm.jaql.json.util;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.ibm.jaql.json.type.JsonString;
 
+/*
+ * The cache is shared by all threads, e.g., by the tasks of the local map-reduce
+ * runner and the workers of parallel pipelines, which compile functions concurrently.
+ */
 public class FieldNameCache {
-	private static final HashMap<JsonString, JsonString> cache = new HashMap<JsonString, JsonString>();
+	private static final ConcurrentHashMap<JsonString, JsonString> cache = new ConcurrentHashMap<JsonString, JsonString>();
 	
 	/*
 	 * Returns the cached field name. If the name is not already cached
@@ -18,7 +22,7 @@ public class FieldNameCache {
 	    return c;
 	  }
 	  c = s.getImmutableCopy();
-	  cache.put(c, c);
-	  return c;
+	  JsonString old = cache.putIfAbsent(c, c);
+	  return old != null ? old : c;
 	}
 }
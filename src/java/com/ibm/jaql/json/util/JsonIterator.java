@@ -124,6 +124,29 @@ public abstract class JsonIterator implements Iterator<JsonValue>, Iterable<Json
     return true;
   }
   
+  /** Moves to the next batch of values and stores them in <code>out</code>, starting at index 0.
+   * The values of a batch remain valid until the next call to this method or to 
+   * {@link #moveNext()}. Returns the number of values stored, which is 0 if and only if there are 
+   * no more values. 
+   * 
+   * The standard implementation moves to a single value because many iterators reuse the value 
+   * returned by {@link #current()}. Iterators that produce distinct values, for example by using 
+   * one buffer per batch position, override this method; see {@link BatchedJsonIterator}.
+   * 
+   * @param out array to store the batch, must not be empty
+   * @return number of values stored in <code>out</code>
+   * @throws Exception
+   */
+  public int nextBatch(JsonValue[] out) throws Exception
+  {
+    if (moveNext())
+    {
+      out[0] = currentValue;
+      return 1;
+    }
+    return 0;
+  }
+  
   /** 
    * Returns <code>true</code> when this iterator is <code>null</code>. If this iterator is null,
    * it will not produce any values. This is a convenience method that avoids checks 
@@ -47,6 +47,7 @@ import com.ibm.jaql.lang.core.Env;
 import com.ibm.jaql.lang.core.Var;
 import com.ibm.jaql.lang.expr.core.ConstExpr;
 import com.ibm.jaql.lang.expr.core.Expr;
+import com.ibm.jaql.lang.expr.core.ExprCompiler;
 import com.ibm.jaql.lang.expr.core.VarExpr;
 import com.ibm.jaql.lang.expr.function.Function;
 import com.ibm.jaql.lang.expr.function.FunctionCallExpr;
@@ -319,6 +320,7 @@ public class Jaql implements CoreJaql
         {
           e = rewriter.run(e);
         }
+        ExprCompiler.compileAll(e);
         e.eval(context);
       }
       catch( Throwable error )
@@ -474,6 +476,7 @@ public class Jaql implements CoreJaql
         }
 
         VarTagger.tag(expr);
+        ExprCompiler.compileAll(expr);
 
         if( explainOnly || expr instanceof ExplainExpr )
         {
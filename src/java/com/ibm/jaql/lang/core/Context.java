@@ -70,7 +70,7 @@ public class Context
   /** 
    * Clears the context.
    */
-  public void reset()
+  public synchronized void reset()
   {
     fnMap.clear(); 
     exprFnPair.a = null;
@@ -90,7 +90,7 @@ public class Context
   }
 
 
-  public void doAtReset(Runnable task)
+  public synchronized void doAtReset(Runnable task)
   {
     resetTasks.add(task);
   }
@@ -130,7 +130,7 @@ public class Context
     });
   }
 
-  public Function getCallable(Expr callSite, Function fn) throws Exception
+  public synchronized Function getCallable(Expr callSite, Function fn) throws Exception
   {
     exprFnPair.a = callSite;
     exprFnPair.b = fn.getText();
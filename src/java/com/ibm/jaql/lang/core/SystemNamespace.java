@@ -91,6 +91,7 @@ import com.ibm.jaql.lang.expr.core.ListVariablesFn;
 import com.ibm.jaql.lang.expr.core.MergeContainersFn;
 import com.ibm.jaql.lang.expr.core.PerPartitionFn;
 import com.ibm.jaql.lang.expr.core.PerfFn;
+import com.ibm.jaql.lang.expr.core.ParallelMapExpr;
 import com.ibm.jaql.lang.expr.core.RangeExpr;
 import com.ibm.jaql.lang.expr.core.RegisterExceptionHandler;
 import com.ibm.jaql.lang.expr.core.RetagFn;
@@ -122,6 +123,7 @@ import com.ibm.jaql.lang.expr.hadoop.LoadJobConfExpr;
 import com.ibm.jaql.lang.expr.hadoop.MRAggregate;
 import com.ibm.jaql.lang.expr.hadoop.MapReduceFn;
 import com.ibm.jaql.lang.expr.hadoop.NativeMapReduceExpr;
+import com.ibm.jaql.lang.expr.hadoop.PooledConstExpr;
 import com.ibm.jaql.lang.expr.hadoop.ReadConfExpr;
 import com.ibm.jaql.lang.expr.index.BuildJIndexFn;
 import com.ibm.jaql.lang.expr.index.KeyLookupFn;
@@ -129,8 +131,10 @@ import com.ibm.jaql.lang.expr.index.KeyMergeFn;
 import com.ibm.jaql.lang.expr.index.ProbeJIndexFn;
 import com.ibm.jaql.lang.expr.index.ProbeLongListFn;
 import com.ibm.jaql.lang.expr.index.SharedHashtableNFn;
+import com.ibm.jaql.lang.expr.internal.BloomFilterFn;
 import com.ibm.jaql.lang.expr.internal.ExprTreeExpr;
 import com.ibm.jaql.lang.expr.internal.HashExpr;
+import com.ibm.jaql.lang.expr.internal.InBloomFilterFn;
 import com.ibm.jaql.lang.expr.internal.LongHashExpr;
 import com.ibm.jaql.lang.expr.io.ArrayReadExpr;
 import com.ibm.jaql.lang.expr.io.DelFn;
@@ -472,6 +476,7 @@ public final class SystemNamespace extends Module {
     register(new ToArrayFn.Descriptor());
     register(new EnumerateExpr.Descriptor());
     register(new RangeExpr.Descriptor());
+    register(new ParallelMapExpr.Descriptor());
     // register(new CombinerExpr.Descriptor());
     register(new MergeFn.Descriptor());
     register(new UnionFn.Descriptor());
@@ -523,6 +528,7 @@ public final class SystemNamespace extends Module {
     register(new SampleRNGExpr.Descriptor());
     register(new Sample01RNGExpr.Descriptor());
     register(new ReadConfExpr.Descriptor());
+    register(new PooledConstExpr.Descriptor());
     register(new LoadJobConfExpr.Descriptor());
     // lower level shell access
     register(new LsFn.Descriptor());
@@ -542,6 +548,8 @@ public final class SystemNamespace extends Module {
     register(new ExprTreeExpr.Descriptor());
     register(new HashExpr.Descriptor());
     register(new LongHashExpr.Descriptor());
+    register(new BloomFilterFn.Descriptor());
+    register(new InBloomFilterFn.Descriptor());
     register(new DataGuideFn.Descriptor());
     register(new JavaUdfExpr.Descriptor());
     register(new AddClassPathFn.Descriptor());
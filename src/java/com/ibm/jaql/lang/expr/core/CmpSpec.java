@@ -70,6 +70,14 @@ public class CmpSpec extends Expr
   {
     return exprs[0];
   }
+
+  /**
+   * @return
+   */
+  public Order getOrder()
+  {
+    return order;
+  }
   
   /*
    * (non-Javadoc)
@@ -119,7 +119,13 @@ public class CompareExpr extends Expr
       return null;
     }
     JsonValue value2 = exprs[1].eval(context);
-    if (value2 == null)
+    return eval(value1, value2, op);
+  }
+
+  /** Compares the specified values using comparison operator <code>op</code>. */
+  static JsonBool eval(JsonValue value1, JsonValue value2, int op)
+  {
+    if (value1 == null || value2 == null)
     {
       return null;
     }
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.core;
+
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.lang.core.Context;
+
+/**
+ * An expression that has been compiled by the {@link ExprCompiler} for repeated evaluation over 
+ * the values of a single variable, such as the projection of a {@link TransformExpr}.
+ */
+public abstract class CompiledExpr
+{
+  /** Evaluates this expression for the value <code>in</code> of the compiled variable. Like 
+   * {@link Expr#eval(Context)}, the result may be reused by subsequent calls. */
+  public abstract JsonValue eval(Context context, JsonValue in) throws Exception;
+}
@@ -20,6 +20,8 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
 
+import com.ibm.jaql.job.JobBlock;
+import com.ibm.jaql.job.JobGraph;
 import com.ibm.jaql.json.schema.Schema;
 import com.ibm.jaql.json.type.JsonValue;
 import com.ibm.jaql.json.util.JsonIterator;
@@ -34,6 +36,10 @@ import com.ibm.jaql.util.FastPrinter;
  */
 public class DoExpr extends Expr
 {
+  /** the independent map-reduce jobs of this block; computed on first evaluation */
+  private JobBlock jobBlock;
+  private boolean jobBlockChecked;
+
   /**
    * If the last expression is a BindingExpr, add a ConstExpr(null) for the return expr.
    * A DoExpr should never end with a BindingExpr, even after rewrites.
@@ -125,27 +131,44 @@ public class DoExpr extends Expr
     }
   }
 
-  @Override
-  public JsonValue eval(Context context) throws Exception
+  /**
+   * Evaluates all but the last expression. If {@link JobGraph#MAX_CONCURRENT_JOBS} is larger
+   * than one, independent map-reduce jobs among them run at the same time (see {@link JobBlock}).
+   */
+  public void runNonReturned(Context context) throws Exception
   {
+    if( JobGraph.MAX_CONCURRENT_JOBS > 1 )
+    {
+      if( !jobBlockChecked )
+      {
+        jobBlock = JobBlock.make(this);
+        jobBlockChecked = true;
+      }
+      if( jobBlock != null )
+      {
+        jobBlock.run(context);
+        return;
+      }
+    }
     int n = exprs.length - 1;
     for(int i = 0 ; i < n ; i++)
     {
       // Item item = // TODO: expr.invoke()
       exprs[i].eval(context);
     }
-    return exprs[n].eval(context);
+  }
+
+  @Override
+  public JsonValue eval(Context context) throws Exception
+  {
+    runNonReturned(context);
+    return exprs[exprs.length-1].eval(context);
   }
 
   @Override
   public JsonIterator iter(Context context) throws Exception
   {
-    int n = exprs.length - 1;
-    for(int i = 0 ; i < n ; i++)
-    {
-      // Item item = // TODO: expr.invoke()
-      exprs[i].eval(context);
-    }
-    return exprs[n].iter(context);
+    runNonReturned(context);
+    return exprs[exprs.length-1].iter(context);
   }
 }
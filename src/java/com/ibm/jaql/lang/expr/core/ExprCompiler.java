@@ -0,0 +1,661 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.core;
+
+import java.util.ArrayList;
+
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.BufferedJsonRecord;
+import com.ibm.jaql.json.type.JsonArray;
+import com.ibm.jaql.json.type.JsonBool;
+import com.ibm.jaql.json.type.JsonRecord;
+import com.ibm.jaql.json.type.JsonString;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.json.util.BatchedJsonIterator;
+import com.ibm.jaql.lang.core.Context;
+import com.ibm.jaql.lang.core.Var;
+import com.ibm.jaql.lang.expr.function.JaqlFunction;
+import com.ibm.jaql.lang.expr.path.PathExpr;
+import com.ibm.jaql.lang.expr.path.PathFieldValue;
+import com.ibm.jaql.lang.expr.path.PathReturn;
+import com.ibm.jaql.lang.expr.path.PathStep;
+import com.ibm.jaql.lang.util.JaqlUtil;
+
+/**
+ * Compiles the per-record expressions of {@link TransformExpr}s and {@link FilterExpr}s into
+ * trees of {@link CompiledExpr}s.
+ *
+ * The compiled form receives the value of the iteration variable as an argument instead of
+ * reading it from the variable, reads fields with constant names directly, and constructs
+ * records and arrays without evaluating constant field names. Only the common subset of
+ * constants, variables, field accesses, record and array construction, arithmetic, comparisons,
+ * and boolean logic is compiled. All other expressions are evaluated by the interpreter; the
+ * iteration variable is only set when one of those expressions refers to it.
+ *
+ * Compilation happens once the expression tree is final, i.e., after rewriting, and has to be
+ * repeated if the tree is modified afterwards.
+ */
+public final class ExprCompiler
+{
+  /** the iteration variable */
+  private Var var;
+
+  /** whether an interpreted subexpression refers to <code>var</code> */
+  private boolean usesVar;
+
+  /** whether at least one subexpression has been compiled */
+  private boolean compiledAny;
+
+  /** whether at least one subexpression is interpreted */
+  private boolean interpretedAny;
+
+  private ExprCompiler(Var var)
+  {
+    this.var = var;
+  }
+
+  // -- entry points ------------------------------------------------------------------------------
+
+  /** Compiles all transforms and filters in the specified expression tree. */
+  public static void compileAll(Expr expr)
+  {
+    if (expr instanceof TransformExpr)
+    {
+      TransformExpr t = (TransformExpr)expr;
+      t.compiledProjection = compile(t.projection(), t.var());
+      t.compiledBatch = BatchedJsonIterator.enabled()
+          ? compileBatch(t.projection(), t.var(), BatchedJsonIterator.BATCH_SIZE)
+          : null;
+    }
+    else if (expr instanceof FilterExpr)
+    {
+      FilterExpr f = (FilterExpr)expr;
+      int n = f.conjunctivePred_count();
+      CompiledExpr[] preds = new CompiledExpr[n];
+      for (int i = 0; i < n; i++)
+      {
+        preds[i] = compile(f.conjunctivePred(i), f.var());
+        if (preds[i] == null)
+        {
+          preds = null;
+          break;
+        }
+      }
+      f.compiledPredicates = preds;
+    }
+    else if (expr instanceof ConstExpr)
+    {
+      JsonValue value = ((ConstExpr)expr).value;
+      if (value instanceof JaqlFunction)
+      {
+        compileAll(((JaqlFunction)value).body());
+      }
+    }
+
+    for (int i = 0; i < expr.numChildren(); i++)
+    {
+      compileAll(expr.child(i));
+    }
+  }
+
+  /** Compiles <code>expr</code> for evaluation over the values of <code>var</code>. Returns
+   * <code>null</code> if no part of <code>expr</code> can be compiled. */
+  public static CompiledExpr compile(Expr expr, Var var)
+  {
+    ExprCompiler compiler = new ExprCompiler(var);
+    CompiledExpr body = compiler.compile(expr);
+    if (!compiler.compiledAny)
+    {
+      return null;
+    }
+    return compiler.usesVar ? new SetVar(var, body) : body;
+  }
+
+  /** Compiles <code>n</code> copies of <code>expr</code>, one for each position of a batch, so
+   * that the values computed for a batch do not share buffers. Returns <code>null</code> unless
+   * all of <code>expr</code> can be compiled, because interpreted expressions may reuse the
+   * values they return. */
+  public static CompiledExpr[] compileBatch(Expr expr, Var var, int n)
+  {
+    CompiledExpr[] result = new CompiledExpr[n];
+    for (int i = 0; i < n; i++)
+    {
+      ExprCompiler compiler = new ExprCompiler(var);
+      result[i] = compiler.compile(expr);
+      if (compiler.interpretedAny)
+      {
+        return null;
+      }
+    }
+    return result;
+  }
+
+  // -- compilation -------------------------------------------------------------------------------
+
+  private CompiledExpr compile(Expr expr)
+  {
+    CompiledExpr result = compileSupported(expr);
+    if (result != null)
+    {
+      compiledAny = true;
+      return result;
+    }
+
+    // fall back to the interpreter
+    ArrayList<Expr> uses = new ArrayList<Expr>();
+    expr.getVarUses(var, uses);
+    if (!uses.isEmpty())
+    {
+      usesVar = true;
+    }
+    interpretedAny = true;
+    return new Interpreted(expr);
+  }
+
+  /** Returns the compiled form of <code>expr</code> or <code>null</code> if the root of
+   * <code>expr</code> is not supported. */
+  private CompiledExpr compileSupported(Expr expr)
+  {
+    if (expr instanceof ConstExpr)
+    {
+      return new Const(((ConstExpr)expr).value);
+    }
+    else if (expr instanceof VarExpr)
+    {
+      return ((VarExpr)expr).var() == var ? new Input() : null;
+    }
+    else if (expr instanceof PathExpr)
+    {
+      return compilePath((PathExpr)expr);
+    }
+    else if (expr instanceof RecordExpr)
+    {
+      return compileRecord((RecordExpr)expr);
+    }
+    else if (expr instanceof ArrayExpr)
+    {
+      if (expr.numChildren() == 0)
+      {
+        return new Const(JsonArray.EMPTY);
+      }
+      return new MakeArray(compileChildren(expr));
+    }
+    else if (expr instanceof MathExpr)
+    {
+      return new Arithmetic(compile(expr.child(0)), compile(expr.child(1)), ((MathExpr)expr).op);
+    }
+    else if (expr instanceof CompareExpr)
+    {
+      return new Compare(compile(expr.child(0)), compile(expr.child(1)), ((CompareExpr)expr).op);
+    }
+    else if (expr instanceof AndExpr)
+    {
+      return new And(compile(expr.child(0)), compile(expr.child(1)));
+    }
+    else if (expr instanceof OrExpr)
+    {
+      return new Or(compile(expr.child(0)), compile(expr.child(1)));
+    }
+    else if (expr instanceof NotExpr)
+    {
+      return new Not(compile(expr.child(0)));
+    }
+    else if (expr instanceof IfExpr)
+    {
+      IfExpr e = (IfExpr)expr;
+      return new If(compile(e.testExpr()), compile(e.trueExpr()), compile(e.falseExpr()));
+    }
+    return null;
+  }
+
+  private CompiledExpr[] compileChildren(Expr expr)
+  {
+    CompiledExpr[] result = new CompiledExpr[expr.numChildren()];
+    for (int i = 0; i < result.length; i++)
+    {
+      result[i] = compile(expr.child(i));
+    }
+    return result;
+  }
+
+  /** Compiles paths of field accesses with constant names, such as <code>$.a.b</code>. */
+  private CompiledExpr compilePath(PathExpr expr)
+  {
+    ArrayList<JsonString> names = new ArrayList<JsonString>();
+    PathStep step = expr.firstStep();
+    while (step instanceof PathFieldValue)
+    {
+      Expr name = ((PathFieldValue)step).nameExpr();
+      if (!(name instanceof ConstExpr) || !(((ConstExpr)name).value instanceof JsonString))
+      {
+        return null;
+      }
+      names.add((JsonString)((ConstExpr)name).value);
+      step = step.nextStep();
+    }
+    if (!(step instanceof PathReturn) || names.isEmpty())
+    {
+      return null;
+    }
+    return new GetFields(compile(expr.input()), names.toArray(new JsonString[names.size()]));
+  }
+
+  /** Compiles record construction; fields with constant names are compiled, all other fields are
+   * interpreted. */
+  private CompiledExpr compileRecord(RecordExpr expr)
+  {
+    int n = expr.numChildren();
+    JsonString[] names = new JsonString[n];
+    CompiledExpr[] values = new CompiledExpr[n];
+    boolean[] required = new boolean[n];
+    FieldExpr[] interpreted = new FieldExpr[n];
+    boolean fixed = true;
+    for (int i = 0; i < n; i++)
+    {
+      Expr e = expr.child(i);
+      if (e instanceof NameValueBinding)
+      {
+        NameValueBinding f = (NameValueBinding)e;
+        Expr name = f.nameExpr();
+        if (name instanceof ConstExpr && ((ConstExpr)name).value instanceof JsonString)
+        {
+          names[i] = (JsonString)((ConstExpr)name).value;
+          values[i] = compile(f.valueExpr());
+          required[i] = f.isRequired();
+          for (int j = 0; j < i; j++)
+          {
+            fixed = fixed && !names[i].equals(names[j]);
+          }
+          fixed = fixed && required[i];
+          continue;
+        }
+      }
+
+      // fall back to the interpreter
+      ArrayList<Expr> uses = new ArrayList<Expr>();
+      e.getVarUses(var, uses);
+      if (!uses.isEmpty())
+      {
+        usesVar = true;
+      }
+      interpreted[i] = (FieldExpr)e;
+      interpretedAny = true;
+      fixed = false;
+    }
+    if (fixed)
+    {
+      return new MakeFixedRecord(names, values);
+    }
+    return new MakeRecord(names, values, required, interpreted);
+  }
+
+  // -- compiled expressions ----------------------------------------------------------------------
+
+  /** Sets the iteration variable for interpreted subexpressions. */
+  private static final class SetVar extends CompiledExpr
+  {
+    private final Var var;
+    private final CompiledExpr body;
+
+    SetVar(Var var, CompiledExpr body)
+    {
+      this.var = var;
+      this.body = body;
+    }
+
+    @Override
+    public JsonValue eval(Context context, JsonValue in) throws Exception
+    {
+      var.setValue(in);
+      return body.eval(context, in);
+    }
+  }
+
+  private static final class Interpreted extends CompiledExpr
+  {
+    private final Expr expr;
+
+    Interpreted(Expr expr)
+    {
+      this.expr = expr;
+    }
+
+    @Override
+    public JsonValue eval(Context context, JsonValue in) throws Exception
+    {
+      return expr.eval(context);
+    }
+  }
+
+  private static final class Const extends CompiledExpr
+  {
+    private final JsonValue value;
+
+    Const(JsonValue value)
+    {
+      this.value = value;
+    }
+
+    @Override
+    public JsonValue eval(Context context, JsonValue in)
+    {
+      return value;
+    }
+  }
+
+  private static final class Input extends CompiledExpr
+  {
+    @Override
+    public JsonValue eval(Context context, JsonValue in)
+    {
+      return in;
+    }
+  }
+
+  /** Reads fields. Records produced by the same expression usually store a field at the same
+   * position, so the position found last is tried first. */
+  private static final class GetFields extends CompiledExpr
+  {
+    private final CompiledExpr input;
+    private final JsonString[] names;
+    private final int[] positions;
+
+    GetFields(CompiledExpr input, JsonString[] names)
+    {
+      this.input = input;
+      this.names = names;
+      this.positions = new int[names.length];
+    }
+
+    @Override
+    public JsonValue eval(Context context, JsonValue in) throws Exception
+    {
+      JsonValue value = input.eval(context, in);
+      for (int i = 0; i < names.length && value != null; i++)
+      {
+        JsonRecord rec = (JsonRecord)value;
+        if (rec instanceof BufferedJsonRecord)
+        {
+          BufferedJsonRecord r = (BufferedJsonRecord)rec;
+          int p = positions[i];
+          if (p >= r.size() || !names[i].equals(r.getName(p)))
+          {
+            p = r.indexOf(names[i]);
+            if (p < 0)
+            {
+              return null;
+            }
+            positions[i] = p;
+          }
+          value = r.get(p);
+        }
+        else
+        {
+          value = rec.get(names[i]);
+        }
+      }
+      return value;
+    }
+  }
+
+  private static final class MakeRecord extends CompiledExpr
+  {
+    private final JsonString[] names;
+    private final CompiledExpr[] values;
+    private final boolean[] required;
+    private final FieldExpr[] interpreted;
+    private final BufferedJsonRecord record = new BufferedJsonRecord();
+
+    MakeRecord(JsonString[] names, CompiledExpr[] values, boolean[] required,
+        FieldExpr[] interpreted)
+    {
+      this.names = names;
+      this.values = values;
+      this.required = required;
+      this.interpreted = interpreted;
+    }
+
+    @Override
+    public JsonValue eval(Context context, JsonValue in) throws Exception
+    {
+      record.clear();
+      for (int i = 0; i < names.length; i++)
+      {
+        if (interpreted[i] != null)
+        {
+          interpreted[i].eval(context, record);
+        }
+        else
+        {
+          JsonValue value = values[i].eval(context, in);
+          if (required[i] || value != null)
+          {
+            record.add(names[i], value);
+          }
+        }
+      }
+      return record;
+    }
+  }
+
+  /** Constructs records with a fixed set of fields; see {@link FixedRecordExpr}. */
+  private static final class MakeFixedRecord extends CompiledExpr
+  {
+    private final CompiledExpr[] exprs;
+    private final JsonValue[] values;
+    private final BufferedJsonRecord record = new BufferedJsonRecord();
+
+    MakeFixedRecord(JsonString[] names, CompiledExpr[] exprs)
+    {
+      this.exprs = exprs;
+      this.values = new JsonValue[exprs.length];
+      boolean sorted = true;
+      for (int i = 1; i < names.length; i++)
+      {
+        sorted = sorted && names[i-1].compareTo(names[i]) < 0;
+      }
+      record.set(names, values, names.length, sorted);
+    }
+
+    @Override
+    public JsonValue eval(Context context, JsonValue in) throws Exception
+    {
+      for (int i = 0; i < exprs.length; i++)
+      {
+        values[i] = exprs[i].eval(context, in);
+      }
+      return record;
+    }
+  }
+
+  private static final class MakeArray extends CompiledExpr
+  {
+    private final CompiledExpr[] values;
+    private final BufferedJsonArray array;
+
+    MakeArray(CompiledExpr[] values)
+    {
+      this.values = values;
+      this.array = new BufferedJsonArray(values.length);
+    }
+
+    @Override
+    public JsonValue eval(Context context, JsonValue in) throws Exception
+    {
+      for (int i = 0; i < values.length; i++)
+      {
+        array.set(i, values[i].eval(context, in));
+      }
+      return array;
+    }
+  }
+
+  private static final class Arithmetic extends CompiledExpr
+  {
+    private final CompiledExpr left;
+    private final CompiledExpr right;
+    private final int op;
+
+    Arithmetic(CompiledExpr left, CompiledExpr right, int op)
+    {
+      this.left = left;
+      this.right = right;
+      this.op = op;
+    }
+
+    @Override
+    public JsonValue eval(Context context, JsonValue in) throws Exception
+    {
+      JsonValue value1 = left.eval(context, in);
+      JsonValue value2 = right.eval(context, in);
+      return MathExpr.eval(value1, value2, op);
+    }
+  }
+
+  private static final class Compare extends CompiledExpr
+  {
+    private final CompiledExpr left;
+    private final CompiledExpr right;
+    private final int op;
+
+    Compare(CompiledExpr left, CompiledExpr right, int op)
+    {
+      this.left = left;
+      this.right = right;
+      this.op = op;
+    }
+
+    @Override
+    public JsonValue eval(Context context, JsonValue in) throws Exception
+    {
+      JsonValue value1 = left.eval(context, in);
+      if (value1 == null)
+      {
+        return null;
+      }
+      return CompareExpr.eval(value1, right.eval(context, in), op);
+    }
+  }
+
+  private static final class And extends CompiledExpr
+  {
+    private final CompiledExpr left;
+    private final CompiledExpr right;
+
+    And(CompiledExpr left, CompiledExpr right)
+    {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    public JsonValue eval(Context context, JsonValue in) throws Exception
+    {
+      JsonBool b1 = (JsonBool)left.eval(context, in);
+      if (b1 != null && !b1.get())
+      {
+        return JsonBool.FALSE;
+      }
+      JsonBool b2 = (JsonBool)right.eval(context, in);
+      if (b2 == null)
+      {
+        return null;
+      }
+      if (!b2.get())
+      {
+        return JsonBool.FALSE;
+      }
+      return b1;
+    }
+  }
+
+  private static final class Or extends CompiledExpr
+  {
+    private final CompiledExpr left;
+    private final CompiledExpr right;
+
+    Or(CompiledExpr left, CompiledExpr right)
+    {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    public JsonValue eval(Context context, JsonValue in) throws Exception
+    {
+      JsonBool b1 = (JsonBool)left.eval(context, in);
+      if (b1 != null && b1.get())
+      {
+        return JsonBool.TRUE;
+      }
+      JsonBool b2 = (JsonBool)right.eval(context, in);
+      if (b2 == null)
+      {
+        return null;
+      }
+      if (b2.get())
+      {
+        return JsonBool.TRUE;
+      }
+      return b1;
+    }
+  }
+
+  private static final class Not extends CompiledExpr
+  {
+    private final CompiledExpr input;
+
+    Not(CompiledExpr input)
+    {
+      this.input = input;
+    }
+
+    @Override
+    public JsonValue eval(Context context, JsonValue in) throws Exception
+    {
+      JsonBool b = (JsonBool)input.eval(context, in);
+      if (b == null)
+      {
+        return null;
+      }
+      return JsonBool.make(!b.get());
+    }
+  }
+
+  private static final class If extends CompiledExpr
+  {
+    private final CompiledExpr test;
+    private final CompiledExpr whenTrue;
+    private final CompiledExpr whenFalse;
+
+    If(CompiledExpr test, CompiledExpr whenTrue, CompiledExpr whenFalse)
+    {
+      this.test = test;
+      this.whenTrue = whenTrue;
+      this.whenFalse = whenFalse;
+    }
+
+    @Override
+    public JsonValue eval(Context context, JsonValue in) throws Exception
+    {
+      if (JaqlUtil.ebv(test.eval(context, in)))
+      {
+        return whenTrue.eval(context, in);
+      }
+      return whenFalse.eval(context, in);
+    }
+  }
+}
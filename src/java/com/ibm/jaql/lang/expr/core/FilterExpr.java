@@ -23,6 +23,7 @@ import com.ibm.jaql.json.schema.Schema;
 import static com.ibm.jaql.json.type.JsonType.*;
 import com.ibm.jaql.json.schema.SchemaFactory;
 import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.json.util.BatchedJsonIterator;
 import com.ibm.jaql.json.util.JsonIterator;
 import com.ibm.jaql.lang.core.Context;
 import com.ibm.jaql.lang.core.Var;
@@ -35,6 +36,9 @@ import com.ibm.jaql.util.FastPrinter;
 
 public final class FilterExpr extends IterExpr
 {
+  /** compiled predicates; set by the {@link ExprCompiler} */
+  CompiledExpr[] compiledPredicates;
+  
   /**
    * BindingExpr inExpr, Expr predicate
    * 
@@ -303,6 +307,15 @@ public final class FilterExpr extends IterExpr
   public JsonIterator iter(final Context context) throws Exception 
   { 
     final BindingExpr inBinding = binding(); 
+    if (BatchedJsonIterator.enabled())
+    {
+      return batchIter(context);
+    }
+    if (compiledPredicates != null)
+    {
+      return compiledIter(context, inBinding.inExpr().iter(context), compiledPredicates);
+    }
+    
     final FilterExpr  filter = this; 
     final JsonIterator inIter = inBinding.iter(context); 
  
@@ -339,4 +352,86 @@ public final class FilterExpr extends IterExpr
       } 
     }; 
   } 
+
+  private static JsonIterator compiledIter(final Context context, final JsonIterator inIter,
+      final CompiledExpr[] preds)
+  {
+    return new JsonIterator() {
+      public boolean moveNext() throws Exception
+      {
+        while (inIter.moveNext()) {
+          JsonValue v = inIter.current();
+          try {
+            boolean match = true;
+            for (int i = 0; match && i < preds.length; i++) {
+              match = JaqlUtil.ebv(preds[i].eval(context, v));
+            }
+            if (match) {
+              currentValue = v;
+              return true;
+            }
+          } catch(Throwable t) {
+            JaqlUtil.getExceptionHandler().handleException(t, v);
+            return false;
+          }
+        }
+        return false;
+      }
+    };
+  }
+
+  /** Filters batches of input values in place. */
+  private JsonIterator batchIter(final Context context) throws Exception
+  {
+    final FilterExpr filter = this;
+    final Var var = var();
+    final CompiledExpr[] preds = compiledPredicates;
+    var.undefine();
+    final JsonIterator inIter = binding().inExpr().iter(context);
+
+    return new BatchedJsonIterator() {
+      boolean failed;
+
+      protected int fillBatch(JsonValue[] out) throws Exception
+      {
+        int n;
+        while (!failed && (n = inIter.nextBatch(out)) > 0) {
+          int k = 0;
+          for (int i = 0; i < n; i++) {
+            JsonValue v = out[i];
+            try {
+              if (matches(v)) {
+                out[k++] = v;
+              }
+            } catch(Throwable t) {
+              JaqlUtil.getExceptionHandler().handleException(t, v);
+              failed = true;
+              break;
+            }
+          }
+          if (k > 0) {
+            return k;
+          }
+        }
+        var.undefine();
+        return 0;
+      }
+
+      private boolean matches(JsonValue v) throws Exception
+      {
+        boolean match = true;
+        if (preds != null) {
+          for (int i = 0; match && i < preds.length; i++) {
+            match = JaqlUtil.ebv(preds[i].eval(context, v));
+          }
+        } else {
+          var.setValue(v);
+          for (int i = 0; match && i < filter.conjunctivePred_count(); i++) {
+            match = JaqlUtil.ebv(filter.conjunctivePred(i).eval(context));
+          }
+        }
+        return match;
+      }
+    };
+  }
 }
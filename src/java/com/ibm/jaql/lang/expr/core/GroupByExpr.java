@@ -31,6 +31,7 @@ import com.ibm.jaql.lang.expr.metadata.MappingTable;
 import com.ibm.jaql.lang.util.JsonHashTable;
 import com.ibm.jaql.util.Bool3;
 import com.ibm.jaql.util.FastPrinter;
+import com.ibm.jaql.util.PagedFile;
 
 import static com.ibm.jaql.json.type.JsonType.*;
 
@@ -523,13 +524,12 @@ public class GroupByExpr extends IterExpr
    */
   public JsonIterator iter(final Context context) throws Exception
   {
-    // TODO: the ItemHashtable is a real quick and dirty prototype.  We need to spill to disk, etc...
     final int n = numInputs();
     final BindingExpr in = inBinding();
     final BindingExpr by = byBinding();
 
     // usingExpr().eval(context); // TODO: comparator NYI
-    JsonHashTable temp = new JsonHashTable(n); // TODO: add comparator support to ItemHashtable
+    JsonHashTable temp = new JsonHashTable(n, JsonHashTable.DEFAULT_MEMORY_LIMIT, PagedFile.get()); // TODO: add comparator support to JsonHashTable
 
     for (int i = 0; i < n; i++)
     {
@@ -540,6 +540,11 @@ public class GroupByExpr extends IterExpr
         temp.add(i, byValue, value);
       }
     }
+    if( temp.isSpilled() )
+    {
+      // release the partitions even if the groups are not read to the end
+      context.closeAtQueryEnd(temp);
+    }
 
     final JsonHashTable.Iterator tempIter = temp.iter();
 
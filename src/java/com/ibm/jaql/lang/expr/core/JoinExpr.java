@@ -21,6 +21,10 @@ import java.util.ArrayList;
 import java.util.HashSet;
 
 import com.ibm.jaql.json.type.JsonArray;
+import com.ibm.jaql.json.type.JsonBool;
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.json.type.JsonRecord;
+import com.ibm.jaql.json.type.JsonString;
 import com.ibm.jaql.json.type.JsonValue;
 import com.ibm.jaql.json.type.SpilledJsonArray;
 import com.ibm.jaql.json.util.JsonIterator;
@@ -28,15 +32,21 @@ import com.ibm.jaql.json.util.SingleJsonValueIterator;
 import com.ibm.jaql.lang.core.Context;
 import com.ibm.jaql.lang.core.Var;
 import com.ibm.jaql.lang.expr.metadata.MappingTable;
+import com.ibm.jaql.lang.util.JsonBloomFilter;
 import com.ibm.jaql.lang.util.JsonHashTable;
 import com.ibm.jaql.util.Bool3;
 import com.ibm.jaql.util.FastPrinter;
+import com.ibm.jaql.util.PagedFile;
 
 /**
  * 
  */
 public class JoinExpr extends IterExpr // TODO: rename to equijoin
 {
+  /** join option that broadcasts the second input of a two-way join to every partition of the 
+   * first one, set by {@link com.ibm.jaql.lang.rewrite.JoinToBroadcast} */
+  public static final JsonString BROADCAST_OPTION = new JsonString("broadcast");
+  
   /**
    * @param bindingOns: [BindingExpr, OnExpr, BindingExpr, OnExpr, ...]
    * @param collectExpr
@@ -118,6 +128,51 @@ public class JoinExpr extends IterExpr // TODO: rename to equijoin
     return exprs[exprs.length - 2];
   }
 
+  /**
+   * Returns the value of the given option if it is known at compile time, or null.
+   */
+  public JsonValue option(JsonString name)
+  {
+    Expr opts = optionsExpr();
+    if( opts instanceof ConstExpr )
+    {
+      JsonValue rec = ((ConstExpr)opts).value;
+      if( rec instanceof JsonRecord )
+      {
+        return ((JsonRecord)rec).get(name);
+      }
+    }
+    else if( opts instanceof RecordExpr )
+    {
+      Expr e = ((RecordExpr)opts).findStaticFieldValue(name);
+      if( e instanceof ConstExpr )
+      {
+        return ((ConstExpr)e).value;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns true if this is a two-way join whose second input is broadcast, i.e., it has the 
+   * option <code>broadcast: true</code> and does not preserve its second input.
+   */
+  public boolean isBroadcast()
+  {
+    JsonValue val = option(BROADCAST_OPTION);
+    return numBindings() == 2 && !binding(1).preserve 
+      && val instanceof JsonBool && ((JsonBool)val).get();
+  }
+
+  /**
+   * A broadcast join can be applied in parallel per partition of its first input.
+   */
+  @Override
+  public boolean isMappable(int i)
+  {
+    return i == 0 && isBroadcast();
+  }
+
   /**
    * @return
    */
@@ -263,50 +318,232 @@ public class JoinExpr extends IterExpr // TODO: rename to equijoin
    */
   public JsonIterator iter(final Context context) throws Exception
   {
-    // TODO: the ItemHashtable is a real quick and dirty prototype.  We need to spill to disk, etc...
     final int n = numBindings();
     final int lastPreserved = putPreservedFirst() - 1; // TODO: this should be compile time.
     
-    JsonHashTable temp = new JsonHashTable(n);
-    final SingleJsonValueIterator[] nilIters = new SingleJsonValueIterator[n];
-
-    final SpilledJsonArray nullKeyResults = new SpilledJsonArray();
-
     for (int i = 0; i < n; i++ )
     {
       binding(i).var.setValue(null);
     }
 
+    if( n == 2 )
+    {
+      return hashJoin(context, lastPreserved);
+    }
+    
+    JsonHashTable temp = new JsonHashTable(n, JsonHashTable.DEFAULT_MEMORY_LIMIT, PagedFile.get());
+    SpilledJsonArray nullKeyResults = new SpilledJsonArray();
     for (int i = 0; i < n; i++ )
     {
-      BindingExpr b = binding(i);
-      Expr on = onExpr(i);
-      JsonIterator iter = b.inExpr().iter(context);
-      for (JsonValue value : iter)
+      addInput(context, temp, i, i <= lastPreserved, nullKeyResults, null, null);
+    }
+    return groupJoin(context, temp, nullKeyResults, lastPreserved);
+  }
+  
+  /**
+   * Returns the input to build the hash table on for a two-way join: the input with the 
+   * smaller maximum number of elements according to its schema, or the second input if 
+   * this cannot be decided. The second input is usually the smaller one, e.g., in the 
+   * chains of two-way joins produced by {@link MultiJoinExpr}. A broadcast input is always 
+   * the build input.
+   * 
+   * @return
+   */
+  public int buildInput()
+  {
+    if( isBroadcast() )
+    {
+      return 1;
+    }
+    long[] size = new long[2];
+    for( int i = 0 ; i < 2 ; i++ )
+    {
+      JsonLong max = binding(i).inExpr().getSchema().maxElements();
+      size[i] = max == null ? Long.MAX_VALUE : max.get();
+    }
+    return size[0] < size[1] ? 0 : 1;
+  }
+  
+  /**
+   * Adds the items of input i to the table. If the input is preserved, the results for 
+   * items with a null key are added to nullKeyResults. 
+   * 
+   * If <code>keys</code> is not null, the hash codes of the keys are recorded in it. If 
+   * <code>filter</code> is not null, items whose key is not in the filter cannot match and are
+   * not added to the table; for a preserved input, their results are added to nullKeyResults.
+   * 
+   * @throws Exception
+   */
+  private void addInput(
+      Context context, 
+      JsonHashTable table, 
+      int i, 
+      boolean preserved,
+      SpilledJsonArray nullKeyResults,
+      JsonBloomFilter.Scalable keys,
+      JsonBloomFilter.Scalable filter) throws Exception
+  {
+    BindingExpr b = binding(i);
+    Expr on = onExpr(i);
+    JsonIterator iter = b.inExpr().iter(context);
+    for (JsonValue value : iter)
+    {
+      b.var.setValue(value);
+      JsonValue key = on.eval(context);
+      int h = JsonHashTable.hash(key);
+      if( key != null && (filter == null || filter.mightContainHash(h)) )
       {
-        b.var.setValue(value);
-        JsonValue key = on.eval(context);
-        if( key != null  )
+        if( keys != null )
         {
-          temp.add(i, key, value);
+          keys.addHash(h);
         }
-        else if( i <= lastPreserved )
+        table.add(i, h, key, value);
+      }
+      else if( preserved )
+      {
+        b.var.setValue(value);
+        nullKeyResults.addCopyAll(collectExpr().iter(context));
+      }
+    }
+    b.var.setValue(null);
+  }
+  
+  /**
+   * Hybrid hash join of two inputs. The smaller input is loaded into a hash table and the 
+   * other input is streamed against it; probe items whose key is not in the Bloom filter 
+   * built from the table's keys are not looked up. If the build input does not fit into 
+   * memory, the probe input is partitioned as well and the join is processed one partition 
+   * at a time. In that case, the hash codes of the build keys recorded while loading the 
+   * table keep probe items that cannot match out of the partitions, so they are never 
+   * serialized.
+   * 
+   * @param context
+   * @param lastPreserved
+   * @return
+   * @throws Exception
+   */
+  private JsonIterator hashJoin(final Context context, int lastPreserved) throws Exception
+  {
+    final int build = buildInput();
+    final int probe = 1 - build;
+    final boolean buildPreserved = build <= lastPreserved;
+    final boolean probePreserved = probe <= lastPreserved;
+    
+    final long memoryLimit = JsonHashTable.DEFAULT_MEMORY_LIMIT;
+    final JsonHashTable table = new JsonHashTable(2, memoryLimit, PagedFile.get());
+    final SpilledJsonArray nullKeyResults = new SpilledJsonArray();
+    JsonBloomFilter.Scalable buildKeys = new JsonBloomFilter.Scalable(1024, memoryLimit / 4);
+    addInput(context, table, build, buildPreserved, nullKeyResults, buildKeys, null);
+    if( table.isSpilled() )
+    {
+      JsonBloomFilter.Scalable filter = buildKeys.isUseful() ? buildKeys : null;
+      addInput(context, table, probe, probePreserved, nullKeyResults, null, filter);
+      return groupJoin(context, table, nullKeyResults, lastPreserved);
+    }
+    
+    final JsonBloomFilter filter = new JsonBloomFilter(table.numKeys());
+    table.addKeysTo(filter);
+    
+    final BindingExpr buildBinding = binding(build);
+    final BindingExpr probeBinding = binding(probe);
+    final Expr probeOn = onExpr(probe);
+    final JsonIterator probeIter = probeBinding.inExpr().iter(context);
+
+    return new JsonIterator() {
+      JsonIterator collectIter = nullKeyResults.iter();
+      JsonIterator buildIter = JsonIterator.EMPTY;   // build items matching the probe item
+      JsonHashTable.ValueArray group = new JsonHashTable.ValueArray();
+      JsonHashTable.Iterator unmatchedIter = null;   // set once the probe input is exhausted
+
+      public boolean moveNext() throws Exception
+      {
+        while( true )
         {
-          b.var.setValue(value);
-          nullKeyResults.addCopyAll(collectExpr().iter(context));
+          if( collectIter.moveNext() ) 
+          {
+            currentValue = collectIter.current();
+            return true;
+          }
+          
+          if( buildIter.moveNext() )
+          {
+            buildBinding.var.setValue(buildIter.current());
+            collectIter = collectExpr().iter(context);
+          }
+          else if( unmatchedIter == null )
+          {
+            if( !probeIter.moveNext() )
+            {
+              if( !buildPreserved )
+              {
+                return false;
+              }
+              probeBinding.var.setValue(null);
+              unmatchedIter = table.unmatchedIter();
+              continue;
+            }
+            
+            buildBinding.var.setValue(null);
+            probeBinding.var.setValue(probeIter.current());
+            JsonValue key = probeOn.eval(context);
+            int h = JsonHashTable.hash(key); // hashed once for the filter and the table
+            if( key != null && filter.mightContainHash(h) 
+                && table.find(build, h, key, group) != null )
+            {
+              buildIter = group.iter();
+            }
+            else if( probePreserved )
+            {
+              collectIter = collectExpr().iter(context);
+            }
+          }
+          else if( unmatchedIter.next() )
+          {
+            buildIter = ((JsonArray)unmatchedIter.values(build)).iter();
+          }
+          else
+          {
+            return false;
+          }
         }
       }
-      b.var.setValue(null);
-
-      // If more than one is preserved, we do the outer-cross product of matching items,
-      //   and filter the where at least one preserved input is non-null.
-      // If exactly one is preserved, we avoid the null case on the preserved one and the filter.
-      if( lastPreserved >= 0 ) 
+    };
+  }
+  
+  /**
+   * Joins the inputs one key at a time, after all of them have been added to the table.
+   * 
+   * @param context
+   * @param temp
+   * @param nullKeyResults
+   * @param lastPreserved
+   * @return
+   */
+  private JsonIterator groupJoin(
+      final Context context, 
+      JsonHashTable temp,
+      final SpilledJsonArray nullKeyResults,
+      final int lastPreserved) throws Exception
+  {
+    final int n = numBindings();
+    
+    // If more than one is preserved, we do the outer-cross product of matching items,
+    //   and filter the where at least one preserved input is non-null.
+    // If exactly one is preserved, we avoid the null case on the preserved one and the filter.
+    final SingleJsonValueIterator[] nilIters = new SingleJsonValueIterator[n];
+    if( lastPreserved >= 0 ) 
+    {
+      for (int i = 0; i < n; i++ )
       {
         nilIters[i] = new SingleJsonValueIterator(null);
       }
     }
 
+    if( temp.isSpilled() )
+    {
+      // release the partitions even if the result is not read to the end
+      context.closeAtQueryEnd(temp);
+    }
     final JsonHashTable.Iterator tempIter = temp.iter();
     final JsonIterator[] groupIters = new JsonIterator[n];
 
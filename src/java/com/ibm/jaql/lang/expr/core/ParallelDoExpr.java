@@ -18,11 +18,12 @@ package com.ibm.jaql.lang.expr.core;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
 
 import com.ibm.jaql.job.JaqlStage;
 import com.ibm.jaql.job.JobGraph;
+import com.ibm.jaql.job.SharedExecutor;
 import com.ibm.jaql.json.type.JsonValue;
 import com.ibm.jaql.json.util.JsonIterator;
 import com.ibm.jaql.lang.core.Context;
@@ -31,10 +32,13 @@ import com.ibm.jaql.util.FastPrintBuffer;
 
 /**
  * Run a list of pipes, perserving order as required.  Return the last pipe.
- *
+ * 
+ * The pipes run on the {@link SharedExecutor}; the time spent in each of them is logged at
+ * debug level.
  */
 public class ParallelDoExpr extends DoExpr
 {
+  private static final Logger LOG = Logger.getLogger(ParallelDoExpr.class.getName());
 
   public ParallelDoExpr(Expr[] exprs)
   {
@@ -61,6 +65,7 @@ public class ParallelDoExpr extends DoExpr
     super(exprs);
   }
 
+  @Override
   public void runNonReturned(Context context) throws Exception
   {
     // TODO: most of this should be in a compile stage before eval
@@ -69,9 +74,10 @@ public class ParallelDoExpr extends DoExpr
     FastPrintBuffer exprText = new FastPrintBuffer();
     HashSet<Var> capturedVars = new HashSet<Var>();
     int n = exprs.length - 1;
+    JaqlStage[] stages = new JaqlStage[n];
     for(int i = 0 ; i < n ; i++)
     {
-      JaqlStage s = new JaqlStage(g, context, exprs[i]);
+      JaqlStage s = stages[i] = new JaqlStage(g, context, exprs[i]);
       exprText.reset();
       capturedVars.clear();
       exprs[i].decompile(exprText, capturedVars); // TODO: separate captures from decompile
@@ -89,16 +95,20 @@ public class ParallelDoExpr extends DoExpr
         outMap.put(b.var, s);
       }
     }
-    //Executor executor = new Executor() { public void execute(Runnable r) { r.run(); } };
-    //ExecutorService executor = Executors.newFixedThreadPool(10);
-    ExecutorService executor = Executors.newCachedThreadPool();
     try
     {
-      g.run(executor);
+      // stages run in this thread when the shared pool is busy, so nested blocks cannot deadlock
+      g.run(SharedExecutor.CALLER_RUNS_WHEN_BUSY);
     }
     finally
     {
-      executor.shutdown();
+      if( LOG.isDebugEnabled() )
+      {
+        for(int i = 0 ; i < n ; i++)
+        {
+          LOG.debug("parallel branch " + i + " took " + stages[i].getElapsedNanos() / 1000000 + " ms");
+        }
+      }
     }
   }
 
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.core;
+
+import java.io.Closeable;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+import com.ibm.jaql.io.Adapter;
+import com.ibm.jaql.io.hadoop.HadoopInputAdapter;
+import com.ibm.jaql.io.hadoop.JsonHolder;
+import com.ibm.jaql.json.schema.Schema;
+import com.ibm.jaql.json.schema.SchemaFactory;
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.JsonBool;
+import com.ibm.jaql.json.type.JsonUtil;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.json.type.SpilledJsonArray;
+import com.ibm.jaql.json.util.JsonIterator;
+import com.ibm.jaql.lang.core.Context;
+import com.ibm.jaql.lang.expr.function.DefaultBuiltInFunctionDescriptor;
+import com.ibm.jaql.lang.expr.function.DefineJaqlFunctionExpr;
+import com.ibm.jaql.lang.expr.function.Function;
+import com.ibm.jaql.lang.expr.function.JaqlFunction;
+import com.ibm.jaql.lang.expr.function.JsonValueParameter;
+import com.ibm.jaql.lang.expr.function.JsonValueParameters;
+import com.ibm.jaql.lang.expr.hadoop.RecordReaderValueIter;
+import com.ibm.jaql.lang.expr.io.ReadFn;
+import com.ibm.jaql.lang.util.JaqlUtil;
+
+/**
+ * parallelMap(input, fn, ordered=true)
+ *
+ * Evaluates <code>fn(input)</code> on several threads, where <code>fn</code> maps each value of
+ * its input independently, such as a pipeline of for, filter and transform expressions. The
+ * input is divided into morsels, either the input splits of a Hadoop input adapter or chunks of
+ * consecutive values, and each morsel is evaluated by a copy of <code>fn</code> with its own
+ * {@link Context}. Results are returned in input order unless <code>ordered</code> is false.
+ *
+ * The number of threads is set via the <code>jaql.local.threads</code> system property; with a
+ * single thread, or when called from one of the threads, <code>fn</code> is simply applied to
+ * the input. It does not affect map-reduce jobs, which run on several local threads only if
+ * {@link com.ibm.jaql.lang.expr.hadoop.ThreadedJobRunner#THREADS_NAME} is set.
+ */
+@SuppressWarnings("deprecation") // the mapred API is deprecated in Hadoop 0.20 only
+public class ParallelMapExpr extends IterExpr
+{
+  public static class Descriptor extends DefaultBuiltInFunctionDescriptor
+  {
+    public Descriptor()
+    {
+      super("parallelMap",
+            ParallelMapExpr.class,
+            new JsonValueParameters(
+                new JsonValueParameter("input", SchemaFactory.arrayOrNullSchema()),
+                new JsonValueParameter("fn", SchemaFactory.functionSchema()),
+                new JsonValueParameter("ordered", SchemaFactory.booleanSchema(), JsonBool.TRUE)),
+            SchemaFactory.arraySchema());
+    }
+  }
+
+  /** number of threads used to evaluate morsels */
+  public static final int THREADS = Integer.getInteger("jaql.local.threads", 1);
+
+  /** number of values per morsel when the input is not divided into splits */
+  public static final int MORSEL_SIZE = Integer.getInteger("jaql.local.morsel.size", 1024);
+
+  private static ExecutorService executor;
+
+  /** contexts not currently used by a morsel */
+  private static final ConcurrentLinkedQueue<Context> contexts = new ConcurrentLinkedQueue<Context>();
+
+  public ParallelMapExpr(Expr[] exprs)
+  {
+    super(exprs);
+  }
+
+  public ParallelMapExpr(Expr input, Expr fn, Expr ordered)
+  {
+    super(input, fn, ordered);
+  }
+
+  @Override
+  public Schema getSchema()
+  {
+    if( exprs[1] instanceof DefineJaqlFunctionExpr )
+    {
+      return ((DefineJaqlFunctionExpr)exprs[1]).body().getSchema();
+    }
+    return SchemaFactory.arraySchema();
+  }
+
+  private static synchronized ExecutorService getExecutor()
+  {
+    if( executor == null )
+    {
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS,
+          10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactory() {
+            int n = 0;
+            public synchronized Thread newThread(Runnable r)
+            {
+              Thread t = new WorkerThread(r, "jaql-parallelMap-" + (++n));
+              t.setDaemon(true);
+              return t;
+            }
+          });
+      pool.allowCoreThreadTimeOut(true);
+      executor = pool;
+    }
+    return executor;
+  }
+
+  /** Marks the threads that evaluate morsels. */
+  private static final class WorkerThread extends Thread
+  {
+    WorkerThread(Runnable r, String name)
+    {
+      super(r, name);
+    }
+  }
+
+  @Override
+  public JsonIterator iter(Context context) throws Exception
+  {
+    Function fn = (Function)exprs[1].eval(context);
+    JsonBool jordered = (JsonBool)exprs[2].eval(context);
+    boolean ordered = jordered == null || jordered.get();
+
+    if( THREADS <= 1 ||
+        Thread.currentThread() instanceof WorkerThread ||
+        !(fn instanceof JaqlFunction) )
+    {
+      fn = context.getCallable(this, fn);
+      fn.setArguments(exprs[0].iter(context));
+      return fn.iter(context);
+    }
+
+    // divide a Hadoop input into its splits
+    if( exprs[0] instanceof ReadFn )
+    {
+      JsonValue args = ((ReadFn)exprs[0]).descriptor().eval(context);
+      Adapter adapter = JaqlUtil.getAdapterStore().input.getAdapter(args);
+      if( adapter instanceof HadoopInputAdapter )
+      {
+        HadoopInputAdapter hia = (HadoopInputAdapter)adapter;
+        JobConf conf = new JobConf();
+        hia.setParallel(conf);
+        hia.configure(conf);
+        InputSplit[] splits = hia.getSplits(conf, THREADS);
+        if( splits.length > 1 )
+        {
+          MorselIterator iter = new MorselIterator((JaqlFunction)fn, ordered, null, args, splits);
+          context.closeAtQueryEnd(iter);
+          return iter;
+        }
+      }
+    }
+
+    MorselIterator iter = 
+      new MorselIterator((JaqlFunction)fn, ordered, exprs[0].iter(context), null, null);
+    context.closeAtQueryEnd(iter);
+    return iter;
+  }
+
+  /**
+   * Hands out morsels to the executor and returns their results. At most two morsels per thread
+   * are in flight at any time. When a morsel fails or the iterator is closed before it is read 
+   * to the end, the morsels in flight are cancelled. Morsels that already started are not 
+   * interrupted, because an interrupt closes the channel of a spill file they might be using; 
+   * their results are dropped.
+   */
+  private static final class MorselIterator extends JsonIterator implements Closeable
+  {
+    private final JaqlFunction fn;
+    private final boolean ordered;
+    private final JsonIterator input;
+    private final JsonValue splitArgs;
+    private final InputSplit[] splits;
+    private int nextSplit;
+    private boolean inputDone;
+
+    /** copies of fn not currently used by a morsel */
+    private final ConcurrentLinkedQueue<JaqlFunction> fns = new ConcurrentLinkedQueue<JaqlFunction>();
+    /** morsels in flight, in submission order */
+    private final LinkedList<Future<SpilledJsonArray>> running = new LinkedList<Future<SpilledJsonArray>>();
+    private final CompletionService<SpilledJsonArray> completed;
+    private JsonIterator results = JsonIterator.EMPTY;
+    private boolean closed;
+
+    MorselIterator(JaqlFunction fn, boolean ordered, JsonIterator input,
+        JsonValue splitArgs, InputSplit[] splits)
+    {
+      this.fn = fn;
+      this.ordered = ordered;
+      this.input = input;
+      this.splitArgs = splitArgs;
+      this.splits = splits;
+      this.completed = ordered ? null : new ExecutorCompletionService<SpilledJsonArray>(getExecutor());
+    }
+
+    @Override
+    public boolean moveNext() throws Exception
+    {
+      if( closed )
+      {
+        return false;
+      }
+      try
+      {
+        while( !results.moveNext() )
+        {
+          while( running.size() < 2 * THREADS )
+          {
+            Morsel m = nextMorsel();
+            if( m == null )
+            {
+              break;
+            }
+            m.f = takeFn();
+            running.add(ordered ? getExecutor().submit(m) : completed.submit(m));
+          }
+          if( running.isEmpty() )
+          {
+            close();
+            return false;
+          }
+          Future<SpilledJsonArray> f;
+          if( ordered )
+          {
+            f = running.removeFirst();
+          }
+          else
+          {
+            f = completed.take();
+            running.remove(f);
+          }
+          results = get(f).iter();
+        }
+      }
+      catch( Exception e )
+      {
+        close();
+        throw e;
+      }
+      catch( Error e )
+      {
+        close();
+        throw e;
+      }
+      currentValue = results.current();
+      return true;
+    }
+
+    /** Returns the result of a morsel, rethrowing its exception. */
+    private SpilledJsonArray get(Future<SpilledJsonArray> f) throws Exception
+    {
+      try
+      {
+        return f.get();
+      }
+      catch( ExecutionException e )
+      {
+        Throwable t = e.getCause();
+        if( t instanceof Exception )
+        {
+          throw (Exception)t;
+        }
+        if( t instanceof Error )
+        {
+          throw (Error)t;
+        }
+        throw new UndeclaredThrowableException(t);
+      }
+    }
+
+    /** Cancels the morsels in flight and drops the results. */
+    public void close()
+    {
+      closed = true;
+      for( Future<SpilledJsonArray> f: running )
+      {
+        f.cancel(false);
+      }
+      running.clear();
+      results = JsonIterator.EMPTY;
+    }
+
+    /** 
+     * Returns an unused copy of fn. Copies are made and compiled on the calling thread, 
+     * because the function is shared with it and compiling touches shared state.
+     */
+    private JaqlFunction takeFn()
+    {
+      JaqlFunction f = fns.poll();
+      if( f == null )
+      {
+        f = fn.getCopy(null);
+        ExprCompiler.compileAll(f.body());
+      }
+      return f;
+    }
+
+    /** Returns the next morsel or <code>null</code> if the input is exhausted. */
+    private Morsel nextMorsel() throws Exception
+    {
+      if( splits != null )
+      {
+        return nextSplit < splits.length ? new Morsel(splits[nextSplit++], null) : null;
+      }
+      if( inputDone )
+      {
+        return null;
+      }
+      JsonValue[] values = new JsonValue[MORSEL_SIZE];
+      int n = 0;
+      while( n < MORSEL_SIZE && input.moveNext() )
+      {
+        values[n++] = JsonUtil.getCopy(input.current(), null);
+      }
+      if( n < MORSEL_SIZE )
+      {
+        inputDone = true;
+        if( n == 0 )
+        {
+          return null;
+        }
+      }
+      return new Morsel(null, new BufferedJsonArray(values, n, false));
+    }
+
+    /** Evaluates fn over one split or a chunk of values. */
+    private final class Morsel implements Callable<SpilledJsonArray>
+    {
+      private final InputSplit split;
+      private final BufferedJsonArray values;
+      /** the copy of fn used by this morsel; set before it is submitted */
+      JaqlFunction f;
+
+      Morsel(InputSplit split, BufferedJsonArray values)
+      {
+        this.split = split;
+        this.values = values;
+      }
+
+      public SpilledJsonArray call() throws Exception
+      {
+        Context context = contexts.poll();
+        if( context == null )
+        {
+          context = new Context();
+        }
+        RecordReader<JsonHolder, JsonHolder> reader = null;
+        try
+        {
+          JsonIterator in;
+          if( split != null )
+          {
+            HadoopInputAdapter hia =
+              (HadoopInputAdapter)JaqlUtil.getAdapterStore().input.getAdapter(splitArgs);
+            JobConf conf = new JobConf();
+            hia.setParallel(conf);
+            @SuppressWarnings("unchecked")
+            RecordReader<JsonHolder, JsonHolder> r = hia.getRecordReader(split, conf, Reporter.NULL);
+            reader = r;
+            in = new RecordReaderValueIter(reader);
+          }
+          else
+          {
+            in = values.iter();
+          }
+          f.setArguments(in);
+          SpilledJsonArray result = new SpilledJsonArray();
+          JsonIterator iter = f.iter(context);
+          while( iter.moveNext() )
+          {
+            result.addCopy(iter.current());
+          }
+          result.freeze();
+          return result;
+        }
+        finally
+        {
+          if( reader != null )
+          {
+            reader.close();
+          }
+          context.reset();
+          contexts.add(context);
+          fns.add(f);
+        }
+      }
+    }
+  }
+}
@@ -20,7 +20,9 @@ import com.ibm.jaql.json.schema.Schema;
 import com.ibm.jaql.json.schema.SchemaFactory;
 import com.ibm.jaql.json.type.JsonLong;
 import com.ibm.jaql.json.type.JsonNumber;
+import com.ibm.jaql.json.type.JsonValue;
 import com.ibm.jaql.json.type.MutableJsonLong;
+import com.ibm.jaql.json.util.BatchedJsonIterator;
 import com.ibm.jaql.json.util.JsonIterator;
 import com.ibm.jaql.lang.core.Context;
 import com.ibm.jaql.lang.expr.function.BuiltInFunctionDescriptor;
@@ -158,6 +160,36 @@ public class RangeExpr extends IterExpr // TODO: rename to RangeFn
     {
       throw new IllegalArgumentException("skip must be > 0");
     }
+    if( BatchedJsonIterator.enabled() )
+    {
+      return new BatchedJsonIterator()
+      {
+        long next = start;
+        MutableJsonLong[] results = new MutableJsonLong[0];
+        
+        protected int fillBatch(JsonValue[] out)
+        {
+          if( results.length < out.length )
+          {
+            results = new MutableJsonLong[out.length];
+            for( int i = 0 ; i < out.length ; i++ )
+            {
+              results[i] = new MutableJsonLong();
+            }
+          }
+          int n = 0;
+          while( n < out.length && next <= end )
+          {
+            results[n].set(next);
+            out[n] = results[n];
+            n++;
+            next += skip;
+          }
+          return n;
+        }
+      };
+    }
+    
     final MutableJsonLong result = new MutableJsonLong(start - 1);
 
     result.set(start - skip);
@@ -144,6 +144,11 @@ public class SortExpr extends IterExpr
     }
     
     temp.sort();
+    if( temp.isSpilled() )
+    {
+      // release the runs even if the result is not read to the end
+      context.closeAtQueryEnd(temp);
+    }
 
     return temp.iter();
   }
@@ -15,6 +15,12 @@
  */
 package com.ibm.jaql.lang.expr.core;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.ibm.jaql.job.SharedExecutor;
 import com.ibm.jaql.json.schema.Schema;
 import com.ibm.jaql.json.type.JsonNumber;
 import com.ibm.jaql.json.type.JsonValue;
@@ -69,20 +75,29 @@ public class TimeoutExpr extends Expr {
       }
     }
     
-    // 1. create an evaluator thread t
+    if(timeOut < 0) {
+      throw new IllegalArgumentException("timeout value is negative");
+    }
+    
+    // 1. run an evaluator on another thread
     ExprEvaluator evaluator = new ExprEvaluator(expr, context);
-    Thread t = new Thread(evaluator);
-    t.start();
+    FutureTask<Object> task = new FutureTask<Object>(evaluator, null);
+    SharedExecutor.start(task);
     try {
-      // 2. let the spawned thread go for no more than timeOut
-      t.join(timeOut);
+      // 2. let the evaluator go for no more than timeOut; 0 means no limit
+      if(timeOut == 0) {
+        task.get();
+      } else {
+        task.get(timeOut, TimeUnit.MILLISECONDS);
+      }
     } catch(InterruptedException e) {
       throw new RuntimeException(e);
-    }
-    // 3. if t is not done, kill it
-    if(t.isAlive()) {
-	t.interrupt();
-	throw new Exception("task took longer than: " + timeOut + " millis");
+    } catch(ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } catch(TimeoutException e) {
+      // 3. if the evaluator is not done, kill it
+      task.cancel(true);
+      throw new Exception("task took longer than: " + timeOut + " millis");
     }
     
     // 4. t completed so get its value
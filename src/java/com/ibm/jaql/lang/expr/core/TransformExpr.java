@@ -21,6 +21,7 @@ import com.ibm.jaql.json.schema.ArraySchema;
 import com.ibm.jaql.json.schema.Schema;
 import com.ibm.jaql.json.schema.SchemaFactory;
 import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.json.util.BatchedJsonIterator;
 import com.ibm.jaql.json.util.JsonIterator;
 import com.ibm.jaql.lang.core.Context;
 import com.ibm.jaql.lang.core.Var;
@@ -34,6 +35,12 @@ import static com.ibm.jaql.json.type.JsonType.*;
 
 public final class TransformExpr extends IterExpr
 {
+  /** compiled projection; set by the {@link ExprCompiler} */
+  CompiledExpr compiledProjection;
+  
+  /** compiled projection for each position of a batch; set by the {@link ExprCompiler} */
+  CompiledExpr[] compiledBatch;
+  
   /**
    * BindingExpr inExpr, Expr projection
    * 
@@ -185,6 +192,15 @@ public final class TransformExpr extends IterExpr
   public JsonIterator iter(final Context context) throws Exception
   {
     final BindingExpr inBinding = binding();
+    if (BatchedJsonIterator.enabled())
+    {
+      return batchIter(context);
+    }
+    if (compiledProjection != null)
+    {
+      return compiledIter(context, inBinding.inExpr().iter(context), compiledProjection);
+    }
+    
     final Expr proj = projection();
     final JsonIterator inIter = inBinding.iter(context);
 
@@ -208,4 +224,92 @@ public final class TransformExpr extends IterExpr
     };
   }
 
+  private static JsonIterator compiledIter(final Context context, final JsonIterator inIter,
+      final CompiledExpr proj)
+  {
+    return new JsonIterator() {
+      public boolean moveNext() throws Exception
+      {
+        while (inIter.moveNext()) {
+          JsonValue v = inIter.current();
+          try {
+            currentValue = proj.eval(context, v);
+            return true;
+          } catch(Throwable t) {
+            JaqlUtil.getExceptionHandler().handleException(t, v);
+          }
+        }
+        return false;
+      }
+    };
+  }
+
+  /** Reads the input in batches. If the projection has been compiled for each position of a
+   * batch, whole batches are produced; otherwise, the projected values are produced one at a
+   * time because the projection may reuse the values it returns. */
+  private JsonIterator batchIter(final Context context) throws Exception
+  {
+    final Var var = var();
+    final Expr proj = projection();
+    final CompiledExpr compiled = compiledProjection;
+    final CompiledExpr[] slots = compiledBatch;
+    var.undefine();
+    final JsonIterator inIter = binding().inExpr().iter(context);
+
+    return new BatchedJsonIterator() {
+      JsonValue[] in;
+      int pos;
+      int count;
+
+      protected int fillBatch(JsonValue[] out) throws Exception
+      {
+        if (slots != null && out.length <= slots.length && pos == count) {
+          int n;
+          while ((n = inIter.nextBatch(out)) > 0) {
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+              JsonValue v = out[i];
+              try {
+                out[k] = slots[k].eval(context, v);
+                k++;
+              } catch(Throwable t) {
+                JaqlUtil.getExceptionHandler().handleException(t, v);
+              }
+            }
+            if (k > 0) {
+              return k;
+            }
+          }
+          return 0;
+        }
+
+        if (in == null) {
+          in = new JsonValue[BATCH_SIZE];
+        }
+        while (true) {
+          if (pos == count) {
+            pos = 0;
+            count = inIter.nextBatch(in);
+            if (count == 0) {
+              var.undefine();
+              return 0;
+            }
+          }
+          JsonValue v = in[pos++];
+          try {
+            if (compiled != null) {
+              out[0] = compiled.eval(context, v);
+            } else {
+              var.setValue(v);
+              out[0] = proj.eval(context);
+            }
+            return 1;
+          } catch(Throwable t) {
+            JaqlUtil.getExceptionHandler().handleException(t, v);
+          }
+        }
+      }
+    };
+  }
+
 }
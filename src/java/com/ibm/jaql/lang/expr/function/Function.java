@@ -284,6 +284,30 @@ public abstract class Function extends JsonAtom
     }
   }
   
+  /** Sets the arguments for evaluation/inlining.
+   * 
+   * @param arg0 argument
+   * @param args iterators; function argument <code>i+1</code> is array of values produced by 
+   *        <code>args[i]</code>
+   */
+  public void setArguments(JsonValue arg0, JsonIterator[] args)
+  {
+    if (!canBeCalledWith(args.length + 1))    {
+      throw new IllegalArgumentException(formatError("invalid number of arguments provided"));
+    }
+    int n = getNumPassedArguments(args.length + 1);
+    prepare(n);
+    setArgument(0, arg0);
+    for (int i=0; i<args.length; i++)
+    {
+      setArgument(i + 1, args[i]);
+    }
+    for (int i=args.length + 1; i<n; i++)
+    {
+      setDefault(i);
+    }
+  }
+  
   /** Prepares this function for evaluation/inlining for the specified positional arguments. */
   private void preparePositional(Expr[] args, int argsStart, int numArgs)
   {
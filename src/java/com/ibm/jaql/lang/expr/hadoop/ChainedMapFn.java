@@ -137,7 +137,14 @@ public class ChainedMapFn extends MapReduceBaseExpr
 
       try
       {
-        JobClient.runJob(conf);
+        if (ThreadedJobRunner.accepts(conf))
+        {
+          ThreadedJobRunner.run(conf);
+        }
+        else
+        {
+          JobClient.runJob(conf);
+        }
       }
       catch( EOFException ex )
       {
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.hadoop.mapred.JobConf;
+
+import com.ibm.jaql.io.serialization.binary.def.DefaultBinaryFullSerializer;
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.json.type.JsonNumber;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.lang.expr.core.ConstExpr;
+import com.ibm.jaql.lang.expr.core.Expr;
+import com.ibm.jaql.lang.expr.function.Function;
+import com.ibm.jaql.lang.expr.function.JaqlFunction;
+import com.ibm.jaql.lang.expr.function.VarParameter;
+import com.ibm.jaql.lang.expr.function.VarParameters;
+import com.ibm.jaql.lang.walk.PostOrderExprWalker;
+
+/**
+ * The large constants of the functions of a map-reduce job. They are written to the job conf
+ * once, in binary form, and the functions refer to them via {@link PooledConstExpr}s. Tasks
+ * thus decode the constants instead of lexing and parsing their text.
+ */
+public class ConstantPool
+{
+  /** constants whose binary encoding is smaller than this stay in the function text */
+  public static final int MIN_POOLED_BYTES = 256;
+
+  private final ArrayList<JsonValue> values = new ArrayList<JsonValue>();
+  private final IdentityHashMap<JsonValue, Integer> indexes = new IdentityHashMap<JsonValue, Integer>();
+  private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+  private final DataOutputStream out = new DataOutputStream(bytes);
+  private int numRefs;
+
+  /**
+   * Returns a copy of <code>fn</code> whose local bindings are inlined and whose large constants
+   * are replaced by references into this pool, or <code>fn</code> itself if it has no large
+   * constants.
+   */
+  public JaqlFunction externalize(JaqlFunction fn) throws IOException
+  {
+    int mark = numRefs;
+    JaqlFunction f = fn.inlineLocalBindings();
+    VarParameters params = f.getParameters();
+    VarParameter[] newParams = new VarParameter[params.numParameters()];
+    boolean newDefault = false;
+    for (int i = 0; i < newParams.length; i++)
+    {
+      VarParameter p = params.get(i);
+      newParams[i] = p;
+      if (p.isOptional())
+      {
+        Expr value = externalize(p.getDefaultValue());
+        if (value != p.getDefaultValue())
+        {
+          // the default value itself is pooled
+          newParams[i] = new VarParameter(p.getVar(), value);
+          newDefault = true;
+        }
+      }
+    }
+    Expr body = externalize(f.body());
+    if (numRefs == mark)
+    {
+      return fn;
+    }
+    if (newDefault || body != f.body())
+    {
+      f = new JaqlFunction(newDefault ? new VarParameters(newParams) : params, body);
+    }
+    f.tagVars(); // the copy has lost the tags of the original
+    return f;
+  }
+
+  /** Replaces the large constants in <code>root</code> and returns the new root. */
+  private Expr externalize(Expr root) throws IOException
+  {
+    PostOrderExprWalker walker = new PostOrderExprWalker(root);
+    Expr e;
+    while ((e = walker.next()) != null)
+    {
+      if (e instanceof ConstExpr)
+      {
+        Integer i = add(((ConstExpr)e).value);
+        if (i != null)
+        {
+          Expr ref = new PooledConstExpr(new ConstExpr(i.longValue()));
+          numRefs++;
+          if (e == root)
+          {
+            return ref;
+          }
+          e.replaceInParent(ref);
+        }
+      }
+    }
+    return root;
+  }
+
+  /** Adds <code>value</code> to this pool if it is large, and returns its index or
+   * <code>null</code>. */
+  private Integer add(JsonValue value) throws IOException
+  {
+    if (value == null || value instanceof Function)
+    {
+      return null;
+    }
+    Integer i = indexes.get(value);
+    if (i != null)
+    {
+      return i;
+    }
+    int mark = bytes.size();
+    DefaultBinaryFullSerializer.getInstance().write(out, value);
+    out.flush();
+    if (bytes.size() - mark < MIN_POOLED_BYTES)
+    {
+      // small constants are cheap to parse; drop the encoding again
+      byte[] b = bytes.toByteArray();
+      bytes.reset();
+      bytes.write(b, 0, mark);
+      return null;
+    }
+    i = values.size();
+    values.add(value);
+    indexes.put(value, i);
+    return i;
+  }
+
+  /** Returns the number of constants in this pool. */
+  public int size()
+  {
+    return values.size();
+  }
+
+  /** Writes this pool to the job conf under <code>name</code>, if it is not empty. */
+  public void writeConf(JobConf conf, String name)
+  {
+    if (values.isEmpty())
+    {
+      return;
+    }
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    try
+    {
+      new DataOutputStream(header).writeInt(values.size());
+      header.write(bytes.toByteArray());
+      conf.set(name, new String(Base64.encodeBase64(header.toByteArray()), "US-ASCII"));
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e); // cannot happen with byte arrays
+    }
+  }
+
+  /** Reads the pool stored in the job conf under <code>name</code>, or returns
+   * <code>null</code> if there is none. */
+  public static ConstantPool readConf(JobConf conf, String name) throws IOException
+  {
+    String s = conf.get(name);
+    if (s == null)
+    {
+      return null;
+    }
+    DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(Base64.decodeBase64(s.getBytes("US-ASCII"))));
+    ConstantPool pool = new ConstantPool();
+    int n = in.readInt();
+    for (int i = 0; i < n; i++)
+    {
+      pool.values.add(DefaultBinaryFullSerializer.getInstance().read(in, null));
+    }
+    return pool;
+  }
+
+  /**
+   * Replaces all references into this pool in <code>fn</code> by the constants they refer to.
+   */
+  public JaqlFunction internalize(JaqlFunction fn)
+  {
+    VarParameters params = fn.getParameters();
+    VarParameter[] newParams = new VarParameter[params.numParameters()];
+    boolean newDefault = false;
+    for (int i = 0; i < newParams.length; i++)
+    {
+      VarParameter p = params.get(i);
+      newParams[i] = p;
+      if (p.isOptional())
+      {
+        Expr value = internalize(p.getDefaultValue());
+        if (value != p.getDefaultValue())
+        {
+          newParams[i] = new VarParameter(p.getVar(), value);
+          newDefault = true;
+        }
+      }
+    }
+    Expr body = internalize(fn.body());
+    if (!newDefault && body == fn.body())
+    {
+      return fn;
+    }
+    return new JaqlFunction(newDefault ? new VarParameters(newParams) : params, body);
+  }
+
+  /** Replaces the references in <code>root</code> and returns the new root. */
+  private Expr internalize(Expr root)
+  {
+    PostOrderExprWalker walker = new PostOrderExprWalker(root);
+    Expr e;
+    while ((e = walker.next()) != null)
+    {
+      if (e instanceof PooledConstExpr)
+      {
+        JsonNumber i = (JsonNumber)((ConstExpr)e.child(0)).value;
+        Expr c = new ConstExpr(values.get(i.intValueExact()));
+        if (e == root)
+        {
+          return c;
+        }
+        e.replaceInParent(c);
+      }
+    }
+    return root;
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.mapred.JobConf;
+
+import com.ibm.jaql.io.serialization.binary.BinaryFullSerializer;
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.JsonUtil;
+import com.ibm.jaql.json.type.JsonValue;
+
+/**
+ * Groups the output of a map task by key in memory and combines the values of each key before
+ * they are collected, so that low-cardinality keys are serialized and sorted once per flush
+ * instead of once per record. Subclasses define how a value is folded into the state of its
+ * group and what is emitted for a group.
+ *
+ * The table is flushed when the estimated size of its groups exceeds
+ * <code>com.ibm.jaql.mapred.inMapperCombine.memory</code> bytes (default 16 MB), when the heap is
+ * short, and at the end of the task. If the first {@link #SAMPLE_SIZE} values fall into more than
+ * {@link #MAX_GROUP_RATIO} groups per value, combining does not pay off and the table stops
+ * accepting values. Setting <code>com.ibm.jaql.mapred.inMapperCombine</code> to false disables
+ * in-mapper combining.
+ */
+public abstract class InMapperCombiner
+{
+  public static final String ENABLED_NAME = MapReduceBaseExpr.BASE_NAME + ".inMapperCombine";
+  public static final String MEMORY_NAME  = ENABLED_NAME + ".memory";
+  public static final long   DEFAULT_MEMORY = 16L << 20;
+
+  /** estimated bytes used by a group besides its key and state */
+  static final int ENTRY_OVERHEAD = 96;
+
+  /** number of added values between two checks of the free heap */
+  static final int HEAP_CHECK_INTERVAL = 4096;
+
+  /** fraction of the maximum heap that may be used before the table is flushed */
+  static final double MAX_HEAP_USE = 0.8;
+
+  /** number of values after which the table checks whether combining pays off */
+  static final long SAMPLE_SIZE = 1 << 16;
+
+  /** maximum ratio of groups to values for which combining pays off */
+  static final double MAX_GROUP_RATIO = 0.5;
+
+  private static final BinaryFullSerializer SERIALIZER = BinaryFullSerializer.getDefault();
+
+  /** The state of one key. */
+  protected static final class Group
+  {
+    public final JsonValue key;
+    public BufferedJsonArray state = new BufferedJsonArray();
+    /** estimated size of state in bytes, maintained by subclasses */
+    public long bytes;
+    /** for use by subclasses */
+    public int limit;
+    /** for use by subclasses */
+    public Object data;
+
+    Group(JsonValue key)
+    {
+      this.key = key;
+    }
+  }
+
+  private final HashMap<JsonValue, Group> groups = new HashMap<JsonValue, Group>();
+  private final DataOutputBuffer buffer = new DataOutputBuffer();
+  private final long memoryLimit;
+  private long memoryUsed;
+  private int sinceHeapCheck;
+  private long numValues;
+  private long numGroups;
+  private boolean stopped;
+
+  /** Returns whether in-mapper combining is enabled for the job of <code>conf</code>. */
+  public static boolean isEnabled(JobConf conf)
+  {
+    return conf.getBoolean(ENABLED_NAME, true);
+  }
+
+  /**
+   * @param conf the job conf that holds the memory limit
+   */
+  protected InMapperCombiner(JobConf conf)
+  {
+    memoryLimit = conf.getLong(MEMORY_NAME, DEFAULT_MEMORY);
+  }
+
+  /** Folds <code>value</code> into the group of <code>key</code>, and flushes the table if
+   * memory is short. Returns false if the table has stopped combining; the caller then emits
+   * the value itself. */
+  public boolean add(JsonValue key, JsonValue value) throws Exception
+  {
+    if (stopped)
+    {
+      return false;
+    }
+    if (++numValues == SAMPLE_SIZE && numGroups > MAX_GROUP_RATIO * SAMPLE_SIZE)
+    {
+      flush();
+      stopped = true;
+      return false;
+    }
+    Group g = groups.get(key);
+    long before;
+    if (g == null)
+    {
+      g = new Group(JsonUtil.getCopy(key, null));
+      groups.put(g.key, g);
+      memoryUsed += ENTRY_OVERHEAD + sizeOf(g.key);
+      numGroups++;
+      before = 0;
+    }
+    else
+    {
+      before = g.bytes;
+    }
+    accumulate(g, value);
+    memoryUsed += g.bytes - before;
+
+    if (memoryUsed > memoryLimit)
+    {
+      flush();
+    }
+    else if (++sinceHeapCheck >= HEAP_CHECK_INTERVAL)
+    {
+      sinceHeapCheck = 0;
+      Runtime rt = Runtime.getRuntime();
+      if (rt.totalMemory() - rt.freeMemory() > MAX_HEAP_USE * rt.maxMemory())
+      {
+        flush();
+      }
+    }
+    return true;
+  }
+
+  /** Emits all groups and empties the table. */
+  public void flush() throws Exception
+  {
+    for (Map.Entry<JsonValue, Group> e : groups.entrySet())
+    {
+      emit(e.getValue());
+    }
+    groups.clear();
+    memoryUsed = 0;
+    sinceHeapCheck = 0;
+  }
+
+  /** Returns the size of the binary encoding of <code>value</code>. */
+  protected long sizeOf(JsonValue value) throws IOException
+  {
+    buffer.reset();
+    SERIALIZER.write(buffer, value);
+    return buffer.getLength();
+  }
+
+  /** Folds <code>value</code> into <code>g.state</code> and updates <code>g.bytes</code>. The
+   * state is empty for new groups. */
+  protected abstract void accumulate(Group g, JsonValue value) throws Exception;
+
+  /** Emits the map output for <code>g</code>. */
+  protected abstract void emit(Group g) throws Exception;
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.log4j.Logger;
+
+import com.ibm.jaql.io.Adapter;
+import com.ibm.jaql.json.type.BufferedJsonRecord;
+import com.ibm.jaql.json.type.JsonRecord;
+import com.ibm.jaql.json.type.JsonString;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.lang.core.Context;
+import com.ibm.jaql.lang.expr.core.ConstExpr;
+import com.ibm.jaql.lang.expr.core.Expr;
+import com.ibm.jaql.lang.expr.core.ExprProperty;
+import com.ibm.jaql.lang.expr.io.ReadFn;
+import com.ibm.jaql.util.DeleteFileTask;
+
+/**
+ * Keeps the temp outputs of map-reduce jobs so that later runs of the same job over unchanged
+ * inputs can reuse them instead of running the job again. The cache is disabled unless
+ * <code>com.ibm.jaql.mapred.cache.dir</code> names a directory for it; it holds up to
+ * <code>com.ibm.jaql.mapred.cache.size</code> bytes (default 10 GB) and evicts the least
+ * recently used outputs beyond that.
+ *
+ * A job is identified by a hash of its configuration, which includes the texts of its
+ * functions, and of the paths, lengths and modification times of its input files. The files
+ * that its functions read, e.g., the small input of a broadcast join, are side inputs of the job
+ * (see {@link #addSideInputs(JobConf, Expr)}) and part of the hash as well. Only jobs that write
+ * to a temp file, read file inputs, and whose arguments are deterministic and free of side
+ * effects are cached.
+ *
+ * A query pins the entries it uses until it ends, so that eviction by another query does not
+ * remove them while they are read. Pins older than a day are considered left over from queries
+ * that did not end cleanly.
+ */
+public class JobCache
+{
+  public static final String CACHE_NAME = MapReduceBaseExpr.BASE_NAME + ".cache";
+  public static final String DIR_NAME   = CACHE_NAME + ".dir";
+  public static final String SIZE_NAME  = CACHE_NAME + ".size";
+  /** the files read by the functions of a job, e.g., by a broadcast join */
+  public static final String SIDE_INPUTS_NAME = CACHE_NAME + ".sideInputs";
+  /** set if the functions of a job read data other than files */
+  public static final String UNCACHEABLE_NAME = CACHE_NAME + ".uncacheable";
+
+  /** touched whenever an entry is used; hidden from readers of the entry by its name */
+  static final String USED_FILE = "_jaql_used";
+  /** prefix of the files that pin an entry while a query uses it */
+  static final String PIN_PREFIX = "_jaql_pin_";
+  /** age in milliseconds after which a pin no longer protects its entry */
+  static final long PIN_TIMEOUT = 24L * 60 * 60 * 1000;
+
+  private static final Logger LOG = Logger.getLogger(JobCache.class.getName());
+
+  protected Context context;
+  protected JobConf conf;
+  protected JsonRecord outArgs;
+  protected FileSystem fs;
+  protected Path dir;
+  protected Path entry;
+
+  protected JobCache(Context context, JobConf conf, JsonRecord outArgs, FileSystem fs, Path dir,
+      Path entry)
+  {
+    this.context = context;
+    this.conf = conf;
+    this.outArgs = outArgs;
+    this.fs = fs;
+    this.dir = dir;
+    this.entry = entry;
+  }
+
+  /**
+   * Returns the cache entry of the job of <code>conf</code>, or null if the cache is disabled or
+   * the job cannot be cached. Must be called once the job is completely configured.
+   *
+   * @param context the context of the query, which releases the entry when the query ends
+   * @param job the expression of the job
+   * @param outArgs the output descriptor of the job
+   */
+  public static JobCache open(Context context, JsonString submitClassName, JobConf conf,
+      MapReduceBaseExpr job, JsonValue outArgs) throws Exception
+  {
+    String dirName = conf.get(DIR_NAME);
+    if (dirName == null || conf.getBoolean(UNCACHEABLE_NAME, false)
+        || !(outArgs instanceof JsonRecord)
+        || !job.argumentsNever(ExprProperty.HAS_SIDE_EFFECTS)
+        || !job.argumentsNever(ExprProperty.IS_NONDETERMINISTIC))
+    {
+      return null;
+    }
+    JsonRecord out = (JsonRecord)outArgs;
+    JsonValue type = out.get(Adapter.TYPE_NAME);
+    JsonValue location = out.get(Adapter.LOCATION_NAME);
+    if (type == null || !"jaqltemp".equals(type.toString()) || !(location instanceof JsonString))
+    {
+      return null;
+    }
+    Path[] inputs = FileInputFormat.getInputPaths(conf);
+    if (inputs.length == 0)
+    {
+      return null;
+    }
+    String[] sideInputs = conf.getStrings(SIDE_INPUTS_NAME);
+    if (sideInputs != null)
+    {
+      ArrayList<Path> paths = new ArrayList<Path>(Arrays.asList(inputs));
+      for (String s : sideInputs)
+      {
+        paths.add(new Path(s));
+      }
+      inputs = paths.toArray(new Path[paths.size()]);
+    }
+
+    MessageDigest md = MessageDigest.getInstance("SHA-1");
+    update(md, submitClassName.toString());
+    // the name of the temp output is different in every run
+    String tempName = location.toString();
+    TreeMap<String, String> entries = new TreeMap<String, String>();
+    for (Map.Entry<String, String> e : conf)
+    {
+      entries.put(e.getKey(), e.getValue().replace(tempName, ""));
+    }
+    for (Map.Entry<String, String> e : entries.entrySet())
+    {
+      update(md, e.getKey());
+      update(md, e.getValue());
+    }
+    for (Path p : inputs)
+    {
+      FileSystem inFs = p.getFileSystem(conf);
+      FileStatus[] stats = inFs.globStatus(p);
+      if (stats == null || stats.length == 0)
+      {
+        return null; // let the job report the missing input
+      }
+      for (FileStatus s : stats)
+      {
+        updateFiles(md, inFs, s);
+      }
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : md.digest())
+    {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+      hex.append(Character.forDigit(b & 0xf, 16));
+    }
+    Path dir = new Path(dirName);
+    FileSystem fs = dir.getFileSystem(conf);
+    return new JobCache(context, conf, out, fs, dir, new Path(dir, hex.toString()));
+  }
+
+  /**
+   * Records the files read by <code>expr</code>, a function body of the job, as side inputs of
+   * the job, so that a change to them invalidates the cached output. If it might read any other
+   * external data, the job is not cached. Called for every function of a job while it is
+   * configured.
+   */
+  public static void addSideInputs(JobConf conf, Expr expr)
+  {
+    if (expr.getProperty(ExprProperty.READS_EXTERNAL_DATA, false).maybe())
+    {
+      JsonValue location = null;
+      if (expr instanceof ReadFn && ((ReadFn)expr).descriptor() instanceof ConstExpr)
+      {
+        JsonValue desc = ((ConstExpr)((ReadFn)expr).descriptor()).value;
+        if (desc instanceof JsonRecord)
+        {
+          location = ((JsonRecord)desc).get(Adapter.LOCATION_NAME);
+        }
+      }
+      if (location instanceof JsonString)
+      {
+        String[] old = conf.getStrings(SIDE_INPUTS_NAME);
+        String[] names = old == null ? new String[1] : Arrays.copyOf(old, old.length + 1);
+        names[names.length - 1] = location.toString();
+        conf.setStrings(SIDE_INPUTS_NAME, names);
+      }
+      else
+      {
+        conf.setBoolean(UNCACHEABLE_NAME, true);
+      }
+    }
+    for (Expr e : expr.children())
+    {
+      addSideInputs(conf, e);
+    }
+  }
+
+  private static void update(MessageDigest md, String s) throws IOException
+  {
+    md.update(s.getBytes("UTF-8"));
+    md.update((byte)0);
+  }
+
+  private static void updateFiles(MessageDigest md, FileSystem fs, FileStatus s)
+    throws IOException
+  {
+    if (s.isDir())
+    {
+      FileStatus[] children = fs.listStatus(s.getPath());
+      Arrays.sort(children);
+      for (FileStatus c : children)
+      {
+        updateFiles(md, fs, c);
+      }
+    }
+    else
+    {
+      update(md, s.getPath().toString());
+      update(md, s.getLen() + "/" + s.getModificationTime());
+    }
+  }
+
+  /**
+   * Returns the cached output of the job, or null if there is none.
+   */
+  public JsonRecord lookup() throws Exception
+  {
+    if (!fs.exists(entry))
+    {
+      return null;
+    }
+    pin();
+    // the entry might have been evicted before it was pinned, which left just the pin
+    if (fs.listStatus(entry, VISIBLE).length == 0)
+    {
+      fs.delete(entry, true);
+      return null;
+    }
+    touch();
+    LOG.info("reusing cached output " + entry + " of job " + conf.getJobName());
+    return output();
+  }
+
+  /**
+   * Moves the output of the job, which has just completed, into the cache and returns its new
+   * output descriptor. The original descriptor is returned if the output cannot be cached.
+   */
+  public JsonRecord store() throws Exception
+  {
+    Path temp = new Path(outArgs.get(Adapter.LOCATION_NAME).toString());
+    FileSystem tempFs = temp.getFileSystem(conf);
+    if (!tempFs.getUri().equals(fs.getUri()))
+    {
+      return outArgs;
+    }
+    fs.mkdirs(dir);
+    // rename would move the output into an existing entry
+    if (fs.exists(entry) || !fs.rename(temp, entry))
+    {
+      return outArgs; // most likely, someone else has stored the same output
+    }
+    pin();
+    touch();
+    evict();
+    return output();
+  }
+
+  /** Returns the output descriptor of the job with the location of its cache entry. */
+  protected JsonRecord output() throws Exception
+  {
+    BufferedJsonRecord r = new BufferedJsonRecord();
+    r.setCopy(outArgs);
+    r.set(Adapter.LOCATION_NAME, new JsonString(fs.makeQualified(entry).toString()));
+    return r;
+  }
+
+  protected void touch() throws IOException
+  {
+    fs.create(new Path(entry, USED_FILE), true).close();
+  }
+
+  /** Pins the entry until the query ends. */
+  protected void pin() throws IOException
+  {
+    Path pin = new Path(entry, PIN_PREFIX + UUID.randomUUID());
+    fs.create(pin, true).close();
+    context.doAtReset(new DeleteFileTask(fs, pin));
+  }
+
+  /** Returns true if a query that is still running uses the entry at <code>path</code>. */
+  protected boolean isPinned(Path path) throws IOException
+  {
+    FileStatus[] pins = fs.listStatus(path, new PathFilter() {
+      public boolean accept(Path p)
+      {
+        return p.getName().startsWith(PIN_PREFIX);
+      }
+    });
+    long now = System.currentTimeMillis();
+    for (FileStatus p : pins)
+    {
+      if (now - p.getModificationTime() < PIN_TIMEOUT)
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Removes the least recently used entries that are not pinned while the cache exceeds its
+   * size.
+   */
+  protected void evict() throws IOException
+  {
+    long maxSize = conf.getLong(SIZE_NAME, 10L << 30);
+    FileStatus[] stats = fs.listStatus(dir);
+    Entry[] entries = new Entry[stats.length];
+    long size = 0;
+    for (int i = 0; i < stats.length; i++)
+    {
+      Entry e = entries[i] = new Entry();
+      e.path = stats[i].getPath();
+      e.size = fs.getContentSummary(e.path).getLength();
+      e.lastUse = stats[i].getModificationTime();
+      Path used = new Path(e.path, USED_FILE);
+      if (fs.exists(used))
+      {
+        e.lastUse = fs.getFileStatus(used).getModificationTime();
+      }
+      size += e.size;
+    }
+    Arrays.sort(entries, new Comparator<Entry>() {
+      public int compare(Entry x, Entry y)
+      {
+        return x.lastUse < y.lastUse ? -1 : (x.lastUse == y.lastUse ? 0 : 1);
+      }
+    });
+    for (int i = 0; i < entries.length && size > maxSize; i++)
+    {
+      if (!isPinned(entries[i].path))
+      {
+        LOG.info("evicting cached output " + entries[i].path);
+        fs.delete(entries[i].path, true);
+        size -= entries[i].size;
+      }
+    }
+  }
+
+  /** accepts the files of an entry that readers see */
+  private static final PathFilter VISIBLE = new PathFilter() {
+    public boolean accept(Path p)
+    {
+      String name = p.getName();
+      return !name.startsWith("_") && !name.startsWith(".");
+    }
+  };
+
+  private static class Entry
+  {
+    Path path;
+    long size;
+    long lastUse;
+  }
+}
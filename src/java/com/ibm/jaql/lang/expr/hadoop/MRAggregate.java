@@ -17,6 +17,7 @@ package com.ibm.jaql.lang.expr.hadoop;
 
 import java.io.IOException;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
 import java.util.Iterator;
 
 import org.apache.hadoop.mapred.JobClient;
@@ -33,12 +34,15 @@ import com.ibm.jaql.json.schema.Schema;
 import com.ibm.jaql.json.schema.SchemaFactory;
 import com.ibm.jaql.json.type.BufferedJsonArray;
 import com.ibm.jaql.json.type.JsonArray;
+import com.ibm.jaql.json.type.JsonNumber;
 import com.ibm.jaql.json.type.JsonRecord;
 import com.ibm.jaql.json.type.JsonString;
 import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.json.type.SpilledJsonArray;
 import com.ibm.jaql.json.util.JsonIterator;
 import com.ibm.jaql.lang.core.Context;
 import com.ibm.jaql.lang.core.Var;
+import com.ibm.jaql.lang.core.VarMap;
 import com.ibm.jaql.lang.expr.agg.AlgebraicAggregate;
 import com.ibm.jaql.lang.expr.core.ArrayExpr;
 import com.ibm.jaql.lang.expr.core.Expr;
@@ -55,6 +59,10 @@ public class MRAggregate extends MapReduceBaseExpr
 {
   public final static JsonString AGGREGATE_KEY = new JsonString("aggregate");
   public final static JsonString FINAL_KEY = new JsonString("final");
+  public final static JsonString TAGS_KEY = new JsonString("tags");
+
+  /** the number of aggregates of each tag, if the keys are tagged */
+  public final static String TAGS_NAME = BASE_NAME + ".tags";
   
   public static class Descriptor extends DefaultBuiltInFunctionDescriptor.Par11
   {
@@ -67,6 +75,11 @@ public class MRAggregate extends MapReduceBaseExpr
   /**
    * mrAggregate( record args ) { input, output, init, combine, final }
    * 
+   * The optional tags argument is an array that lists the number of aggregates of each tag.
+   * If it is given, each key is tagged, i.e., a pair [tag, key], the aggregates of each tag
+   * follow those of the tags before, and only the aggregates of the tag of a key are evaluated
+   * for the key. The final function only receives their values.
+   * 
    * @param exprs
    */
   public MRAggregate(Expr[] exprs)
@@ -114,6 +127,16 @@ public class MRAggregate extends MapReduceBaseExpr
     if (schema != null) {
       conf.set(SCHEMA_NAME, schema.toString());
     }
+    JsonArray tags = (JsonArray)args.get(TAGS_KEY);
+    if (tags != null)
+    {
+      String[] counts = new String[(int)tags.count()];
+      for (int i = 0; i < counts.length; i++)
+      {
+        counts[i] = tags.get(i).toString();
+      }
+      conf.setStrings(TAGS_NAME, counts);
+    }
     
     Function mapFn = JaqlUtil.enforceNonNull((Function) map);
     prepareFunction("map", 1, mapFn, 0);
@@ -122,10 +145,34 @@ public class MRAggregate extends MapReduceBaseExpr
     JaqlFunction finalFn = JaqlUtil.enforceNonNull((JaqlFunction) finl);
     prepareFunction("final", 2, finalFn, 0);
 
+    JsonString submitClassName = new JsonString(MRAggregate.class.getName());
+    JobCache cache = JobCache.open(context, submitClassName, conf, this, outArgs);
+    if (cache != null)
+    {
+      JsonRecord cached = cache.lookup();
+      if (cached != null)
+      {
+        return cached;
+      }
+    }
+
     //JobClient.runJob(conf);
-    Util.submitJob(new JsonString(MRAggregate.class.getName()), conf);
+    JsonArray hotKeys = SkewSampler.findHotKeys(conf, mapFn, context);
+    if (hotKeys == null)
+    {
+      Util.submitJob(submitClassName, conf);
+    }
+    else
+    {
+      SaltedJob.submit(submitClassName, conf, hotKeys);
+    }
 
-    return outArgs;
+    if (hotKeys == null)
+    {
+      MergeJoin.record(conf, outArgs, finalFn);
+    }
+
+    return cache == null ? outArgs : cache.store();
   }
 
   protected static AlgebraicAggregate[] makeAggs(JaqlFunction aggFn)
@@ -157,6 +204,33 @@ public class MRAggregate extends MapReduceBaseExpr
     }
     return aggs;
   }
+
+  /**
+   * Returns the position of the first aggregate of each tag followed by the number of
+   * aggregates, or null if the keys are not tagged.
+   */
+  protected static int[] readTagOffsets(JobConf job)
+  {
+    String[] counts = job.getStrings(TAGS_NAME);
+    if (counts == null)
+    {
+      return null;
+    }
+    int[] offsets = new int[counts.length + 1];
+    for (int t = 0; t < counts.length; t++)
+    {
+      offsets[t + 1] = offsets[t] + Integer.parseInt(counts[t]);
+    }
+    return offsets;
+  }
+
+  /**
+   * Returns the tag of a tagged <code>key</code>.
+   */
+  protected static int tagOf(JsonValue key) throws Exception
+  {
+    return ((JsonNumber)((JsonArray)key).get(0)).intValueExact();
+  }
   
   /**
    * Used for both map and init functions
@@ -166,8 +240,12 @@ public class MRAggregate extends MapReduceBaseExpr
   {
     protected Function mapFn;
     protected JaqlFunction aggFn;
+    protected int[] tagOffsets;
     JsonHolder aggArrayHolder;
     JsonHolder keyHolder;
+    PartialAggregates combiner;
+    OutputCollector<JsonHolder, JsonHolder> output;
+
     /*
      * (non-Javadoc)
      * 
@@ -182,6 +260,11 @@ public class MRAggregate extends MapReduceBaseExpr
       aggFn = aggFn.inlineLocalBindings();
       keyHolder = (JsonHolder)ReflectionUtils.newInstance(job.getMapOutputKeyClass(), job);
       aggArrayHolder = (JsonHolder)ReflectionUtils.newInstance(job.getMapOutputValueClass(), job);
+      tagOffsets = readTagOffsets(job);
+      if( InMapperCombiner.isEnabled(job) )
+      {
+        combiner = new PartialAggregates(job);
+      }
     }
 
     /**
@@ -205,6 +288,7 @@ public class MRAggregate extends MapReduceBaseExpr
         JsonValue[] mappedKeyValue = new JsonValue[2];
         BufferedJsonArray aggArray = new BufferedJsonArray(aggs.length);
         aggArrayHolder.value = aggArray;
+        this.output = output;
         mapFn.setArguments(new RecordReaderValueIter(input));
         JsonIterator iter = mapFn.iter(context);
         BufferedJsonArray tmpArray = new BufferedJsonArray(1);
@@ -214,21 +298,38 @@ public class MRAggregate extends MapReduceBaseExpr
           if (pair != null)
           {
             pair.getAll(mappedKeyValue);
+            if (combiner != null && combiner.add(mappedKeyValue[0], mappedKeyValue[1]))
+            {
+              continue;
+            }
             keyVar.setValue(mappedKeyValue[0]);
             tmpArray.set(0, mappedKeyValue[1]);
             valVar.setValue(tmpArray);
-            for( int i = 0 ; i < aggs.length ; i++ )
+            int lo = 0;
+            int hi = aggs.length;
+            if( tagOffsets != null )
+            {
+              int t = tagOf(mappedKeyValue[0]);
+              lo = tagOffsets[t];
+              hi = tagOffsets[t + 1];
+            }
+            aggArray.resize(hi - lo);
+            for( int i = lo ; i < hi ; i++ )
             {
               AlgebraicAggregate agg = aggs[i];
               agg.init(context);
               aggs[i].evalInitialized(context);
               JsonValue part = agg.getPartial();
-              aggArray.set(i, part);
+              aggArray.set(i - lo, part);
             }
             keyHolder.value = mappedKeyValue[0]; 
             output.collect(keyHolder, aggArrayHolder);
           }
         }
+        if (combiner != null)
+        {
+          combiner.flush();
+        }
       }
       catch (IOException ex)
       {
@@ -243,6 +344,130 @@ public class MRAggregate extends MapReduceBaseExpr
         this.close();
       }
     }
+    /**
+     * Keeps the partial aggregates of each key seen by the map task. Every group owns a copy of
+     * the aggregates, and each value is accumulated into them directly. The copies are reused
+     * for new groups once their group has been emitted. If the keys are tagged, a group only
+     * owns the aggregates of its tag.
+     */
+    class PartialAggregates extends InMapperCombiner
+    {
+      /** estimated bytes used by one copy of an aggregate besides its partial */
+      static final int AGG_OVERHEAD = 256;
+
+      private final AlgebraicAggregate[] aggs = makeAggs(aggFn);
+      private final Var keyVar = aggFn.getParameters().get(0).getVar();
+      private final Var valVar = aggFn.getParameters().get(1).getVar();
+      private final BufferedJsonArray valArray = new BufferedJsonArray(1);
+      private final ArrayList<ArrayList<Partials>> free = new ArrayList<ArrayList<Partials>>();
+
+      PartialAggregates(JobConf job)
+      {
+        super(job);
+        int numTags = tagOffsets == null ? 1 : tagOffsets.length - 1;
+        for (int t = 0; t < numTags; t++)
+        {
+          free.add(new ArrayList<Partials>());
+        }
+      }
+
+      @Override
+      protected void accumulate(Group g, JsonValue value) throws Exception
+      {
+        Partials p = (Partials)g.data;
+        if (p == null)
+        {
+          int t = tagOffsets == null ? 0 : tagOf(g.key);
+          ArrayList<Partials> f = free.get(t);
+          p = f.isEmpty() ? new Partials(t) : f.remove(f.size() - 1);
+          for (AlgebraicAggregate agg : p.aggs)
+          {
+            agg.init(context);
+          }
+          g.data = p;
+        }
+        keyVar.setValue(g.key);
+        valArray.set(0, value);
+        valVar.setValue(valArray);
+        for (AlgebraicAggregate agg : p.aggs)
+        {
+          agg.evalInitialized(context);
+        }
+
+        // Measuring the partials costs as much as serializing them, so they are only measured
+        // again once they might have doubled. Until then, each value is assumed to grow them by
+        // its own size.
+        p.pending += sizeOf(value);
+        if (p.pending > p.measured)
+        {
+          p.measured = 0;
+          for (AlgebraicAggregate agg : p.aggs)
+          {
+            p.measured += memoryOf(agg.getPartial());
+          }
+          p.pending = 0;
+        }
+        g.bytes = AGG_OVERHEAD * p.aggs.length + p.measured + p.pending;
+      }
+
+      @Override
+      protected void emit(Group g) throws Exception
+      {
+        Partials p = (Partials)g.data;
+        g.state.clear();
+        for (AlgebraicAggregate agg : p.aggs)
+        {
+          g.state.add(agg.getPartial());
+        }
+        keyHolder.value = g.key;
+        aggArrayHolder.value = g.state;
+        output.collect(keyHolder, aggArrayHolder);
+        g.state.clear();
+        p.measured = p.pending = 0;
+        free.get(p.tag).add(p);
+      }
+
+      /** Returns the estimated heap used by <code>partial</code>. Only the cached elements of a
+       * spilled array are in memory, and the array must not be serialized while it grows
+       * because that freezes it. */
+      private long memoryOf(JsonValue partial) throws IOException
+      {
+        if (!(partial instanceof SpilledJsonArray))
+        {
+          return sizeOf(partial);
+        }
+        SpilledJsonArray array = (SpilledJsonArray)partial;
+        JsonValue[] cache = array.getInternalCache();
+        long m = Math.min(array.count(), array.getCacheSize());
+        long bytes = 0;
+        for (int i = 0; i < m; i++)
+        {
+          bytes += sizeOf(cache[i]);
+        }
+        return bytes;
+      }
+
+      /** The aggregates of one group. */
+      final class Partials
+      {
+        final int tag;
+        final AlgebraicAggregate[] aggs;
+        long measured;
+        long pending;
+
+        Partials(int tag)
+        {
+          this.tag = tag;
+          int lo = tagOffsets == null ? 0 : tagOffsets[tag];
+          int hi = tagOffsets == null ? PartialAggregates.this.aggs.length : tagOffsets[tag + 1];
+          aggs = new AlgebraicAggregate[hi - lo];
+          for (int i = 0; i < aggs.length; i++)
+          {
+            aggs[i] = (AlgebraicAggregate)PartialAggregates.this.aggs[lo + i].clone(new VarMap());
+          }
+        }
+      }
+    }
   }
 
   /**
@@ -255,6 +480,9 @@ public class MRAggregate extends MapReduceBaseExpr
     protected JaqlFunction aggFn;
     protected Var keyVar;
     protected AlgebraicAggregate[] aggs;
+    protected int[] tagOffsets;
+    protected int lo;                      // the aggregates of the current key
+    protected int hi;
     protected BufferedJsonArray aggArray;
     protected JsonHolder keyHolder;
     protected JsonHolder aggArrayHolder;
@@ -277,6 +505,7 @@ public class MRAggregate extends MapReduceBaseExpr
       keyHolder = (JsonHolder)ReflectionUtils.newInstance(job.getMapOutputKeyClass(), job);
       keyVar = aggFn.getParameters().get(0).getVar();
       aggs = makeAggs(aggFn);
+      tagOffsets = readTagOffsets(job);
       aggArray = new BufferedJsonArray(aggs.length);      
       aggArrayHolder = (JsonHolder)ReflectionUtils.newInstance(job.getMapOutputValueClass(), job);
       aggArrayHolder.value = aggArray;
@@ -295,7 +524,15 @@ public class MRAggregate extends MapReduceBaseExpr
     {
       try
       {
-        for(int i = 0 ; i < aggs.length ; i++)
+        lo = 0;
+        hi = aggs.length;
+        if( tagOffsets != null )
+        {
+          int t = tagOf(key.value);
+          lo = tagOffsets[t];
+          hi = tagOffsets[t + 1];
+        }
+        for(int i = lo ; i < hi ; i++)
         {
           aggs[i].init(context);
         }
@@ -306,9 +543,9 @@ public class MRAggregate extends MapReduceBaseExpr
         while( values.hasNext() )
         {
           JsonArray partArray = (JsonArray) values.next().value;
-          for(int i = 0 ; i < aggs.length ; i++)
+          for(int i = lo ; i < hi ; i++)
           {
-            aggs[i].combine(partArray.get(i));
+            aggs[i].combine(partArray.get(i - lo));
           }
         }
         processAggs(keyHolder, output);
@@ -326,10 +563,11 @@ public class MRAggregate extends MapReduceBaseExpr
     protected void processAggs(JsonHolder keyHolder, OutputCollector<JsonHolder, JsonHolder> output)
        throws Exception
     {
-      for(int i = 0 ; i < aggs.length ; i++)
+      aggArray.resize(hi - lo);
+      for(int i = lo ; i < hi ; i++)
       {
         JsonValue part = aggs[i].getPartial();
-        aggArray.set(i, part);
+        aggArray.set(i - lo, part);
       }
 
       output.collect(keyHolder, aggArrayHolder);
@@ -380,10 +618,11 @@ public class MRAggregate extends MapReduceBaseExpr
     protected void processAggs(JsonHolder keyHolder, OutputCollector<JsonHolder, JsonHolder> output)
        throws Exception
     {
-      for(int i = 0 ; i < aggs.length ; i++)
+      aggArray.resize(hi - lo);
+      for(int i = lo ; i < hi ; i++)
       {
         JsonValue value = aggs[i].getFinal();
-        aggArray.set(i, value);
+        aggArray.set(i - lo, value);
       }
 
       finalArgs[0] = keyHolder.value;
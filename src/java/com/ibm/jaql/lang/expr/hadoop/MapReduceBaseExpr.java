@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.io.StringReader;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
 import java.util.Map;
 
 import org.apache.hadoop.mapred.JobConf;
@@ -45,7 +46,6 @@ import com.ibm.jaql.io.hadoop.MapOutputKeyComparator;
 import com.ibm.jaql.io.registry.RegistryUtil;
 import com.ibm.jaql.json.type.BufferedJsonArray;
 import com.ibm.jaql.json.type.JsonArray;
-import com.ibm.jaql.json.type.JsonLong;
 import com.ibm.jaql.json.type.JsonRecord;
 import com.ibm.jaql.json.type.JsonString;
 import com.ibm.jaql.json.type.JsonUtil;
@@ -54,10 +54,13 @@ import com.ibm.jaql.json.util.JsonIterator;
 import com.ibm.jaql.lang.core.Context;
 import com.ibm.jaql.lang.expr.core.ConstExpr;
 import com.ibm.jaql.lang.expr.core.Expr;
+import com.ibm.jaql.lang.expr.core.ExprCompiler;
 import com.ibm.jaql.lang.expr.core.ExprProperty;
+import com.ibm.jaql.lang.expr.core.NameValueBinding;
 import com.ibm.jaql.lang.expr.core.RecordExpr;
 import com.ibm.jaql.lang.expr.core.RegisterExceptionHandler;
 import com.ibm.jaql.lang.expr.function.Function;
+import com.ibm.jaql.lang.expr.function.JaqlFunction;
 import com.ibm.jaql.lang.parser.JaqlLexer;
 import com.ibm.jaql.lang.parser.JaqlParser;
 import com.ibm.jaql.lang.util.JaqlUtil;
@@ -78,6 +81,7 @@ public abstract class MapReduceBaseExpr extends Expr
   public final static String    NUM_INPUTS_NAME            = BASE_NAME + ".numInputs";
   public final static String    SCHEMA_NAME                = BASE_NAME + ".schema";
   public final static String    EXCEPTION_NAME			   = BASE_NAME + ".exceptions";
+  public final static String    CONSTANTS_NAME             = BASE_NAME + ".constants";
   
   // Argument keys
   public final static JsonString INPUT_KEY = new JsonString("input");
@@ -93,6 +97,7 @@ public abstract class MapReduceBaseExpr extends Expr
   protected int                 numInputs;
   protected JobConf             conf;
   protected JsonValue           outArgs;
+  protected ConstantPool        constants;
 
   /**
    * mapReduce( record args )
@@ -152,6 +157,38 @@ public abstract class MapReduceBaseExpr extends Expr
     }
     return null;
   }
+
+  /**
+   * Returns true if none of the arguments, except for the output descriptor, has the given
+   * property, e.g., side effects. Returns false if that cannot be determined at compile time.
+   */
+  public boolean argumentsNever(ExprProperty prop)
+  {
+    Expr expr = exprs[0];
+    if( expr instanceof ConstExpr )
+    {
+      return true;
+    }
+    if( !(expr instanceof RecordExpr) )
+    {
+      return false;
+    }
+    for( int i = 0 ; i < expr.numChildren() ; i++ )
+    {
+      if( !(expr.child(i) instanceof NameValueBinding) )
+      {
+        return false;
+      }
+      NameValueBinding nv = (NameValueBinding)expr.child(i);
+      boolean isOutput = nv.nameExpr() instanceof ConstExpr
+        && OUTPUT_KEY.equals(((ConstExpr)nv.nameExpr()).value);
+      if( !isOutput && !nv.valueExpr().getProperty(prop, true).never() )
+      {
+        return false;
+      }
+    }
+    return true;
+  }
   
   /**
    * @param context
@@ -166,6 +203,7 @@ public abstract class MapReduceBaseExpr extends Expr
     JsonRecord options = (JsonRecord) args.get(OPTIONS_KEY);
 
     conf = new JobConf(); // TODO: get from context?
+    constants = new ConstantPool();
     
     // set the default job name
     conf.setJobName("jaql job");
@@ -269,6 +307,12 @@ public abstract class MapReduceBaseExpr extends Expr
     }
     try
     {
+      // large constants are shipped once per job in binary form
+      if (fn instanceof JaqlFunction)
+      {
+        fn = constants.externalize((JaqlFunction)fn);
+        JobCache.addSideInputs(conf, ((JaqlFunction)fn).body());
+      }
       JsonUtil.print(out, fn);
     } catch (IOException e)
     {
@@ -276,6 +320,7 @@ public abstract class MapReduceBaseExpr extends Expr
     }
     String s = out.toString();
     conf.set(BASE_NAME + "." + fnName + "." + inId, s);
+    constants.writeConf(conf, CONSTANTS_NAME);
   }
 
   /**
@@ -283,9 +328,15 @@ public abstract class MapReduceBaseExpr extends Expr
    */
   public static abstract class RemoteEval
   {
-    protected Context context = new Context();
+    protected Context context = TaskCache.getContext();
     protected int     numInputs;
     protected boolean runningReduce;
+    protected ConstantPool constants;
+    protected TaskCache.Job cache;
+
+    /** functions checked out of the cache, and their texts */
+    private ArrayList<Function> cachedFns = new ArrayList<Function>();
+    private ArrayList<String> cachedTexts = new ArrayList<String>();
 
     public void configure(JobConf job)
     {
@@ -300,15 +351,27 @@ public abstract class MapReduceBaseExpr extends Expr
 
       // setup global variables
       Globals.setJobConf(job);
+      cache = TaskCache.getJob(job);
       try
       {
-        //AdapterManager.readRegistryFromConf(storeRegistryVarName, job);
-        RegistryUtil.readConf(job, HadoopAdapter.storeRegistryVarName, JaqlUtil
-            .getAdapterStore());
-        RegistryUtil.readConf(job, RNG_REGISTRY_VAR_NAME, JaqlUtil.getRNGStore());
-        RegisterExceptionHandler.readConf(EXCEPTION_NAME, job);
-        //FunctionStore.readRegistryFromConf(funcRegistryVarName, job);
-        //RNGStore.readFromConf(rngRegistryVarName, job);
+        // earlier tasks of this job in this JVM have already read the registries
+        if (cache == null)
+        {
+          readRegistries(job);
+          constants = ConstantPool.readConf(job, CONSTANTS_NAME);
+        }
+        else
+        {
+          synchronized (cache)
+          {
+            if (!cache.hasRegistries())
+            {
+              readRegistries(job);
+              cache.setRegistriesRead();
+            }
+          }
+          constants = cache.getConstants(job, CONSTANTS_NAME);
+        }
       }
       catch (Exception e)
       {
@@ -316,7 +379,27 @@ public abstract class MapReduceBaseExpr extends Expr
       }
     }
 
+    private static void readRegistries(JobConf job) throws Exception
+    {
+      //AdapterManager.readRegistryFromConf(storeRegistryVarName, job);
+      RegistryUtil.readConf(job, HadoopAdapter.storeRegistryVarName, JaqlUtil
+          .getAdapterStore());
+      RegistryUtil.readConf(job, RNG_REGISTRY_VAR_NAME, JaqlUtil.getRNGStore());
+      RegisterExceptionHandler.readConf(EXCEPTION_NAME, job);
+      //FunctionStore.readRegistryFromConf(funcRegistryVarName, job);
+      //RNGStore.readFromConf(rngRegistryVarName, job);
+    }
+
     public static Function compile(Context context, String exprText)
+    {
+      return compile(context, exprText, null);
+    }
+
+    /**
+     * Compiles the function in <code>exprText</code>, replacing its references into
+     * <code>constants</code> (if not null) by the constants they refer to.
+     */
+    public static Function compile(Context context, String exprText, ConstantPool constants)
     {
       try
       {
@@ -325,6 +408,14 @@ public abstract class MapReduceBaseExpr extends Expr
         JaqlParser parser = new JaqlParser(lexer);
         Expr expr = parser.parse();
         Function fn = JaqlUtil.enforceNonNull((Function) expr.eval(context));
+        if (fn instanceof JaqlFunction)
+        {
+          if (constants != null)
+          {
+            fn = constants.internalize((JaqlFunction)fn);
+          }
+          ExprCompiler.compileAll(((JaqlFunction)fn).body());
+        }
         return fn;
       }
       catch (Exception ex)
@@ -334,6 +425,17 @@ public abstract class MapReduceBaseExpr extends Expr
     }
 
     public static Function compile(JobConf job, String propName, Context context)
+    {
+      return compile(job, propName, context, null);
+    }
+
+    public static Function compile(JobConf job, String propName, Context context,
+        ConstantPool constants)
+    {
+      return compile(context, getFunctionText(job, propName), constants);
+    }
+
+    private static String getFunctionText(JobConf job, String propName)
     {
       String exprText = job.get(propName);
       // System.err.println("compiling: "+exprText);
@@ -341,7 +443,7 @@ public abstract class MapReduceBaseExpr extends Expr
       {
         throw new RuntimeException("function not found in job conf: " + propName);
       }
-      return compile(context, exprText);
+      return exprText;
     }
 
     /**
@@ -353,13 +455,38 @@ public abstract class MapReduceBaseExpr extends Expr
     public Function compile(JobConf job, String fnName, int inId)
     {
       String fullName = BASE_NAME + "." + fnName + "." + inId;
-      return compile(job, fullName, context);
+      if (cache == null)
+      {
+        return compile(job, fullName, context, constants);
+      }
+      // reuse a function compiled by an earlier task of this job
+      String text = getFunctionText(job, fullName);
+      Function fn = cache.acquire(text);
+      if (fn == null)
+      {
+        fn = compile(context, text, constants);
+      }
+      cachedFns.add(fn);
+      cachedTexts.add(text);
+      return fn;
     }
 
     public void close() throws IOException
     {
+      if (context == null)
+      {
+        return; // already closed
+      }
       // TODO: might want sub-query indicator
       context.reset(); // TODO: need to wrap up parse, eval, cleanup into one class and use everywhere
+      TaskCache.releaseContext(context);
+      context = null;
+      for (int i = 0; i < cachedFns.size(); i++)
+      {
+        cache.release(cachedTexts.get(i), cachedFns.get(i));
+      }
+      cachedFns.clear();
+      cachedTexts.clear();
     }
   }
 
@@ -373,10 +500,11 @@ public abstract class MapReduceBaseExpr extends Expr
   {
     int         inputId     = 0;
     Function   mapFn;
-    boolean     makePair    = false;
-    BufferedJsonArray outPair;
     JsonHolder outKey = null; 
     JsonHolder outValue = null;
+    BufferedJsonArray compositeKey; // [key, sortKey] if the values are sorted
+    ValueCombiner combiner;
+    OutputCollector<JsonHolder, JsonHolder> output;
 
     /*
      * (non-Javadoc)
@@ -394,16 +522,22 @@ public abstract class MapReduceBaseExpr extends Expr
       if (numInputs > 1)
       {
         inputId = CompositeInputAdapter.readCurrentIndex(job);
-        
-        makePair = runningReduce;
-        if (makePair)
+        if (runningReduce)
         {
-          // FIXME: ideally we could know which input was used to when reading map/combine output files without encoding it on every record
-          outPair = new BufferedJsonArray(2);
-          outPair.set(0, new JsonLong(inputId));
+          // every value of this task comes from the same input
+          ((JsonHolderMapOutputValue)outValue).tag = inputId;
         }
       }
+      if (runningReduce && SecondarySort.isEnabled(job))
+      {
+        compositeKey = new BufferedJsonArray(2);
+      }
       mapFn = compile(job, "map", inputId);
+      if (job.getCombinerClass() == MapReduceFn.CombineEval.class
+          && InMapperCombiner.isEnabled(job))
+      {
+        combiner = new ValueCombiner(job, compile(job, "combine", inputId));
+      }
     }
 
     @Override
@@ -414,24 +548,28 @@ public abstract class MapReduceBaseExpr extends Expr
     {
       try
       {
+        this.output = output;
         mapFn.setArguments(new RecordReaderValueIter(input));
         JsonIterator iter = mapFn.iter(context);
         for (JsonValue v : iter)
         {
           JsonArray inValue = (JsonArray)v;
-          assert inValue.count() == 2;
-            
-          outKey.value = inValue.get(0);
-          if (makePair)
+          assert inValue.count() == (compositeKey == null ? 2 : 3);
+          if (compositeKey != null)
           {
-            outPair.set(1, inValue.get(1));
-            outValue.value = outPair;
+            // [key, value, sortKey]
+            compositeKey.set(0, inValue.get(0));
+            compositeKey.set(1, inValue.get(2));
+            collect(compositeKey, inValue.get(1));
           }
-          else 
+          else if (combiner == null || !combiner.add(inValue.get(0), inValue.get(1)))
           {
-            outValue.value = inValue.get(1);
+            collect(inValue.get(0), inValue.get(1));
           }
-          output.collect(outKey, outValue);
+        }
+        if (combiner != null)
+        {
+          combiner.flush();
         }
       }
       catch (IOException ex)
@@ -447,5 +585,66 @@ public abstract class MapReduceBaseExpr extends Expr
         this.close();
       }
     }
+
+    /** Emits one map output pair. */
+    void collect(JsonValue key, JsonValue value) throws IOException
+    {
+      outKey.value = key;
+      outValue.value = value;
+      output.collect(outKey, outValue);
+    }
+
+    /**
+     * Buffers the map output values of each key and runs the combine function over them once
+     * {@link #BATCH_SIZE} values are buffered, and again whenever the number of buffered values
+     * has doubled since the last run.
+     */
+    class ValueCombiner extends InMapperCombiner
+    {
+      /** minimum number of values passed to the combine function */
+      static final int BATCH_SIZE = 64;
+
+      private final Function combineFn;
+
+      ValueCombiner(JobConf job, Function combineFn)
+      {
+        super(job);
+        this.combineFn = combineFn;
+      }
+
+      @Override
+      protected void accumulate(Group g, JsonValue value) throws Exception
+      {
+        g.state.addCopy(value);
+        g.bytes += sizeOf(value);
+        if (g.state.count() >= Math.max(BATCH_SIZE, g.limit))
+        {
+          BufferedJsonArray combined = new BufferedJsonArray();
+          combineFn.setArguments(g.key, g.state);
+          for (JsonValue v : combineFn.iter(context))
+          {
+            combined.addCopy(v);
+          }
+          g.state = combined;
+          g.bytes = sizeOf(combined);
+          g.limit = 2 * (int)combined.count();
+        }
+      }
+
+      @Override
+      protected void emit(Group g) throws Exception
+      {
+        if (g.state.count() == 1)
+        {
+          collect(g.key, g.state.get(0));
+          return;
+        }
+        combineFn.setArguments(g.key, g.state);
+        for (JsonValue v : combineFn.iter(context))
+        {
+          collect(g.key, v);
+        }
+      }
+    }
   }
 }
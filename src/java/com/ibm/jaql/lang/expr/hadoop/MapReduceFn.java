@@ -33,23 +33,23 @@ import com.ibm.jaql.io.hadoop.JsonHolderMapOutputKey;
 import com.ibm.jaql.io.hadoop.JsonHolderMapOutputValue;
 import com.ibm.jaql.json.schema.Schema;
 import com.ibm.jaql.json.schema.SchemaFactory;
-import com.ibm.jaql.json.type.BufferedJsonArray;
 import com.ibm.jaql.json.type.JsonArray;
 import com.ibm.jaql.json.type.JsonBool;
-import com.ibm.jaql.json.type.JsonLong;
 import com.ibm.jaql.json.type.JsonRecord;
 import com.ibm.jaql.json.type.JsonSchema;
 import com.ibm.jaql.json.type.JsonString;
+import com.ibm.jaql.json.type.JsonUtil;
 import com.ibm.jaql.json.type.JsonValue;
-import com.ibm.jaql.json.type.MutableJsonLong;
 import com.ibm.jaql.json.type.SpilledJsonArray;
 import com.ibm.jaql.json.util.JsonIterator;
 import com.ibm.jaql.json.util.UnwrapFromHolderIterator;
 import com.ibm.jaql.lang.core.Context;
+import com.ibm.jaql.lang.core.Var;
 import com.ibm.jaql.lang.expr.core.Expr;
 import com.ibm.jaql.lang.expr.function.BuiltInFunctionDescriptor;
 import com.ibm.jaql.lang.expr.function.DefaultBuiltInFunctionDescriptor;
 import com.ibm.jaql.lang.expr.function.Function;
+import com.ibm.jaql.lang.expr.function.JaqlFunction;
 import com.ibm.jaql.lang.expr.function.JsonValueParameter;
 import com.ibm.jaql.lang.expr.function.JsonValueParameters;
 import com.ibm.jaql.lang.expr.system.RFn;
@@ -63,6 +63,13 @@ public class MapReduceFn extends MapReduceBaseExpr
 	protected final static Logger STATUS_LOG = Logger.getLogger("com.ibm.jaql.status.MapReduce");
   public final static JsonString COMBINE_KEY = new JsonString("combine");
   public final static JsonString REDUCE_KEY = new JsonString("reduce");
+  /** optional array of booleans, one per component of the map output keys (true for
+   * ascending); if present, the output of the job is globally ordered by key */
+  public final static JsonString ORDER_KEY = new JsonString("order");
+  /** optional array of booleans, one per component of the sort keys of the values (true for
+   * ascending); if present, the map function produces [key, value, sortKey] triples and the
+   * reduce function receives the values of each key ordered by their sort keys */
+  public final static JsonString VALUE_ORDER_KEY = new JsonString("valueOrder");
   
   public static class Descriptor extends DefaultBuiltInFunctionDescriptor.Par11
   {
@@ -163,6 +170,8 @@ public class MapReduceFn extends MapReduceBaseExpr
     JsonValue map = JaqlUtil.enforceNonNull(args.getRequired(MAP_KEY));
     JsonValue combine = args.get(COMBINE_KEY, null);
     JsonValue reduce = args.get(REDUCE_KEY, null);
+    JsonArray order = (JsonArray)args.get(ORDER_KEY, null);
+    JsonArray valueOrder = (JsonArray)args.get(VALUE_ORDER_KEY, null);
 //    Function combine = (Function)exprs[INDEX_COMBINE].eval(context);
 //    Function reduce  = (Function)exprs[INDEX_REDUCE].eval(context);
 
@@ -189,6 +198,9 @@ public class MapReduceFn extends MapReduceBaseExpr
       // setup serialization (and propagate schema information, if present)
       setupSerialization(true);
       JsonValue schema = args.get(SCHEMA_KEY);
+      if (schema != null && valueOrder != null) {
+        schema = SecondarySort.compositeSchema((JsonRecord)schema);
+      }
       if (schema != null) {
         conf.set(SCHEMA_NAME, schema.toString());
       }      
@@ -256,9 +268,68 @@ public class MapReduceFn extends MapReduceBaseExpr
 //      }
 //    STATUS_LOG.info("MAP-REDUCE STOP");
 
-    Util.submitJob(new JsonString(MapReduceFn.class.getName()), conf);
+    if (order != null)
+    {
+      if (reduce == null || numInputs != 1)
+      {
+        throw new RuntimeException(
+            "ordered output requires a single input and a reduce function");
+      }
+      RangePartitioner.setup(conf, order, (Function) map, context);
+    }
+
+    if (valueOrder != null)
+    {
+      if (reduce == null || combine != null || order != null)
+      {
+        throw new RuntimeException(
+            "sorted values require a reduce function and no combine function or order");
+      }
+      SecondarySort.setup(conf, valueOrder);
+    }
+
+    // a cogroup of outputs that are partitioned and sorted by its key does not need a shuffle
+    boolean merging = false;
+    if (numInputs > 1 && reduce != null && combine == null && order == null
+        && valueOrder == null)
+    {
+      merging = MergeJoin.setup(conf, (JsonArray)args.get(INPUT_KEY), (JsonArray)map);
+    }
+
+    JsonString submitClassName = new JsonString(MapReduceFn.class.getName());
+    JobCache cache = JobCache.open(context, submitClassName, conf, this, outArgs);
+    if (cache != null)
+    {
+      JsonRecord cached = cache.lookup();
+      if (cached != null)
+      {
+        return cached;
+      }
+    }
+
+    // salting needs the combine function to merge the partial groups of a hot key
+    JsonArray hotKeys = null;
+    if (order == null && combine != null && numInputs == 1
+        && conf.getBoolean(SkewSampler.MAP_REDUCE_NAME, false))
+    {
+      hotKeys = SkewSampler.findHotKeys(conf, (Function) map, context);
+    }
+    if (hotKeys == null)
+    {
+      Util.submitJob(submitClassName, conf);
+    }
+    else
+    {
+      SaltedJob.submit(submitClassName, conf, hotKeys);
+    }
+
+    // the part files of a merge join are not numbered by partition
+    if (reduce != null && order == null && hotKeys == null && !merging)
+    {
+      MergeJoin.record(conf, outArgs, (Function)reduce);
+    }
     
-    return outArgs;
+    return cache == null ? outArgs : cache.store();
   }
 
   /**
@@ -267,6 +338,11 @@ public class MapReduceFn extends MapReduceBaseExpr
   public static abstract class CombineReduceEval extends RemoteEval
   {
     protected SpilledJsonArray[] valArrays;
+    protected InputValues[] inputValues;
+    protected boolean[] unused;
+    protected Iterator<? extends JsonHolder> values;
+    protected int streaming;   // the input whose values are read from values, or -1
+    protected boolean drained; // true once all values have been read
 
     /*
      * (non-Javadoc)
@@ -277,53 +353,116 @@ public class MapReduceFn extends MapReduceBaseExpr
     {
       super.configure(job);
       valArrays = new SpilledJsonArray[numInputs];
+      inputValues = new InputValues[numInputs];
+      unused = new boolean[numInputs];
       for (int i = 0; i < numInputs; i++)
       {
         valArrays[i] = new SpilledJsonArray();
+        inputValues[i] = new InputValues(i);
       }
     }
 
+    /** Returns true if parameter <code>i</code> of <code>fn</code> is never referenced. */
+    protected static boolean isUnused(Function fn, int i)
+    {
+      return fn instanceof JaqlFunction
+          && ((JaqlFunction)fn).getParameters().get(i).getVar().usage() == Var.Usage.UNUSED;
+    }
+
     /**
+     * Splits <code>values</code> by their input and returns one iterator per input. The values are
+     * not copied up front: the first input that is read streams its values from
+     * <code>values</code>, and the values of the other inputs that go by are copied into
+     * {@link #valArrays}. When another input is read, the remaining values are copied as well.
+     * The values of unused inputs are dropped. A function that reads each of its inputs once
+     * thus avoids the copy of one of them; functions that need an input as a whole copy it
+     * anyway.
+     * 
      * @param values
      * @throws IOException
      */
-    protected void splitValues(Iterator<? extends JsonHolder> values) throws IOException
+    protected InputValues[] splitValues(Iterator<? extends JsonHolder> values) throws IOException
     {
-      try {
-        // TODO: Would like values to be something that I can open an iterator on. 
-        // Until I do the analysis that says that we are going over the values just once,
-        // we need to copy the values...
-        // TODO: need to reduce copying, big time!
-        for (int i = 0; i < numInputs; i++)
-        {
-          valArrays[i].clear();
-        }
-        while (values.hasNext())
+      this.values = values;
+      streaming = -1;
+      drained = false;
+      for (int i = 0; i < numInputs; i++)
+      {
+        valArrays[i].clear();
+        inputValues[i].iter = null;
+      }
+      return inputValues;
+    }
+
+    /** Copies the remaining values into {@link #valArrays}. */
+    protected void drain() throws IOException
+    {
+      while (values.hasNext())
+      {
+        add(values.next());
+      }
+      drained = true;
+      for (int i = 0; i < numInputs; i++)
+      {
+        valArrays[i].freeze();
+      }
+    }
+
+    protected void add(JsonHolder holder) throws IOException
+    {
+      int i = ((JsonHolderMapOutputValue)holder).tag;
+      if (!unused[i])
+      {
+        valArrays[i].addCopy(holder.value);
+      }
+    }
+
+    /** The values of one input of the current key. */
+    protected class InputValues extends JsonIterator
+    {
+      protected int input;
+      protected JsonIterator iter; // over valArrays[input], once it is complete
+
+      public InputValues(int input)
+      {
+        this.input = input;
+      }
+
+      @Override
+      public boolean moveNext() throws Exception
+      {
+        if (iter == null)
         {
-          JsonValue value = values.next().value;
-          int i = 0;
-          if (numInputs > 1)
+          if (!drained && (streaming < 0 || streaming == input))
+          {
+            streaming = input;
+            while (values.hasNext())
+            {
+              JsonHolder holder = values.next();
+              if (((JsonHolderMapOutputValue)holder).tag == input)
+              {
+                // detach the value from the holder, which is reused for the next values; they
+                // might be read before the caller is done with this one
+                currentValue = holder.value;
+                holder.value = null;
+                return true;
+              }
+              add(holder);
+            }
+          }
+          if (!drained)
           {
-            JsonArray valRec = (JsonArray) value;
-            JsonLong id = (JsonLong) JaqlUtil.enforceNonNull(valRec.get(0));
-            i = (int) id.get();
-            value = valRec.get(1);
+            drain();
           }
-          valArrays[i].addCopy(value);
+          iter = valArrays[input].iter();
         }
-        for (int i = 0; i < numInputs; i++)
+        if (iter.moveNext())
         {
-        valArrays[i].freeze();
+          currentValue = iter.current();
+          return true;
         }
-      } 
-      catch (IOException e)
-      {
-        throw e;
+        return false;
       }
-      catch (Exception e)
-      {
-        throw new RuntimeException(e);
-      }      
     }
   }
 
@@ -334,10 +473,7 @@ public class MapReduceFn extends MapReduceBaseExpr
   implements Reducer<JsonHolder, JsonHolder, JsonHolder, JsonHolder>
   {
     protected Function[] combineFns;
-    protected JsonValue[]    fnArgs = new JsonValue[2];
-    protected MutableJsonLong       outId;
-    protected BufferedJsonArray outPair;
-    protected JsonHolder valueHolder;
+    protected JsonHolderMapOutputValue valueHolder;
     
     /*
      * (non-Javadoc)
@@ -351,15 +487,10 @@ public class MapReduceFn extends MapReduceBaseExpr
       for (int i = 0; i < numInputs; i++)
       {
         combineFns[i] = compile(job, "combine", i);
+        unused[i] = isUnused(combineFns[i], 1);
       }
-      if (numInputs > 1)
-      {
-        // FIXME: ideally we could know which input was used to when reading map/combine output files without encoding it on every record
-        outId = new MutableJsonLong();
-        outPair = new BufferedJsonArray(2);
-        outPair.set(0, outId);
-      }
-      valueHolder = (JsonHolder)ReflectionUtils.newInstance(job.getMapOutputValueClass(), job);
+      valueHolder = (JsonHolderMapOutputValue)ReflectionUtils.newInstance(
+          job.getMapOutputValueClass(), job);
     }
 
     /*
@@ -387,18 +518,15 @@ public class MapReduceFn extends MapReduceBaseExpr
         }
         else
         {
-          fnArgs[0] = key.value;
-          splitValues(values);
-          valueHolder.value = outPair;
+          InputValues[] inputs = splitValues(values);
           for (int i = 0; i < numInputs; i++)
           {
-            fnArgs[1] = valArrays[i];
-            combineFns[i].setArguments(fnArgs, 0, fnArgs.length);
+            combineFns[i].setArguments(key.value, inputs[i]);
             JsonIterator iter = combineFns[i].iter(context);
+            valueHolder.tag = i;
             for (JsonValue value : iter) 
             {
-              outId.set(i);
-              outPair.set(1, value);
+              valueHolder.value = value;
               output.collect(key, valueHolder);
             }
           }
@@ -423,9 +551,9 @@ public class MapReduceFn extends MapReduceBaseExpr
         Reducer<JsonHolderMapOutputKey, JsonHolderMapOutputValue, JsonHolder, JsonHolder>
   {
     protected Function reduceFn;
-    protected JsonValue[]  fnArgs;
     JsonHolder keyHolder; // set in configure
     JsonHolder valueHolder;
+    boolean    sortedValues; // map output keys are [key, sortKey]
 
     /*
      * (non-Javadoc)
@@ -436,11 +564,11 @@ public class MapReduceFn extends MapReduceBaseExpr
     {
       super.configure(job);
       reduceFn = compile(job, "reduce", 0);
-      fnArgs = new JsonValue[numInputs + 1];
       for (int i = 0; i < numInputs; i++)
       {
-        fnArgs[i + 1] = valArrays[i];
+        unused[i] = isUnused(reduceFn, i + 1);
       }
+      sortedValues = SecondarySort.isEnabled(job);
       
       Object kTmp = ReflectionUtils.newInstance(job.getOutputKeyClass(), job);
       if( kTmp instanceof JsonHolder )
@@ -468,20 +596,24 @@ public class MapReduceFn extends MapReduceBaseExpr
     {
       try
       {
+        JsonValue k = key.value;
+        if (sortedValues)
+        {
+          // the sort key in key.value changes with each value
+          k = JsonUtil.getCopy(SecondarySort.key(k), null);
+        }
         JsonIterator iter;
         if (numInputs == 1)
         {
-          reduceFn.setArguments(key.value, new UnwrapFromHolderIterator(values));
+          reduceFn.setArguments(k, new UnwrapFromHolderIterator(values));
           iter = reduceFn.iter(context);
         }
         else
         {
-          splitValues(values);
-          fnArgs[0] = key.value;
-          reduceFn.setArguments(fnArgs, 0, fnArgs.length);
+          reduceFn.setArguments(k, splitValues(values));
           iter = reduceFn.iter(context);
         }
-        keyHolder.value = key.value; // necessary (key has wrong JsonHolder impl)
+        keyHolder.value = k; // necessary (key has wrong JsonHolder impl)
         for (JsonValue value : iter)
         {
           valueHolder.value = value;
@@ -0,0 +1,505 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapRunnable;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.log4j.Logger;
+
+import com.ibm.jaql.io.Adapter;
+import com.ibm.jaql.io.hadoop.CompositeInputAdapter;
+import com.ibm.jaql.io.hadoop.JsonHolder;
+import com.ibm.jaql.io.hadoop.JsonHolderMapOutputKey;
+import com.ibm.jaql.io.hadoop.JsonHolderMapOutputValue;
+import com.ibm.jaql.json.parser.JsonParser;
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.BufferedJsonRecord;
+import com.ibm.jaql.json.type.JsonArray;
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.json.type.JsonNumber;
+import com.ibm.jaql.json.type.JsonRecord;
+import com.ibm.jaql.json.type.JsonString;
+import com.ibm.jaql.json.type.JsonUtil;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.lang.core.Var;
+import com.ibm.jaql.lang.expr.core.ArrayExpr;
+import com.ibm.jaql.lang.expr.core.ConstExpr;
+import com.ibm.jaql.lang.expr.core.Expr;
+import com.ibm.jaql.lang.expr.core.FieldValueExpr;
+import com.ibm.jaql.lang.expr.core.NameValueBinding;
+import com.ibm.jaql.lang.expr.core.RecordExpr;
+import com.ibm.jaql.lang.expr.core.TransformExpr;
+import com.ibm.jaql.lang.expr.core.VarExpr;
+import com.ibm.jaql.lang.expr.function.Function;
+import com.ibm.jaql.lang.expr.function.JaqlFunction;
+import com.ibm.jaql.lang.expr.path.PathExpr;
+import com.ibm.jaql.lang.expr.path.PathFieldValue;
+import com.ibm.jaql.lang.expr.path.PathReturn;
+import com.ibm.jaql.lang.expr.path.PathStep;
+
+/**
+ * Map-side merge join for {@link MapReduceFn}.
+ *
+ * A job that writes a temp output (see <code>TempHadoopOutputAdapter</code>) and whose reduce
+ * function builds records around its key, like the into clause <code>[{ key, ... }]</code> of a
+ * group, records the partitioning of the output in the file {@link #PARTITIONING_FILE} of the
+ * output directory: the path to the key in the records, the number of partitions (one part file
+ * each), the partitioner and the comparator. Every part file is then sorted by the key and holds
+ * the keys of one partition.
+ *
+ * A cogroup whose inputs are such outputs, with the same number of partitions, partitioner and
+ * comparator, and whose map functions pair each input record with the key at the recorded path,
+ * like those of a join, does not need a shuffle: a map-only job reads part <i>p</i> of every
+ * input, merged by key through {@link CompositeInputAdapter}, and calls the reduce function once
+ * per key.
+ *
+ * The key paths are derived from the functions of the jobs as they are submitted, after all
+ * rewrites, because only then have the expressions above a group been merged into its reduce
+ * function.
+ */
+public final class MergeJoin
+{
+  /** the file that describes the partitioning of an output directory */
+  public static final String PARTITIONING_FILE = "_jaql_partitioning";
+
+  static final JsonString KEY = new JsonString("key");
+  static final JsonString PARTITIONS = new JsonString("partitions");
+  static final JsonString PARTITIONER = new JsonString("partitioner");
+  static final JsonString COMPARATOR = new JsonString("comparator");
+
+  private static final Logger LOG = Logger.getLogger(MergeJoin.class.getName());
+
+  private MergeJoin()
+  {
+  }
+
+  /**
+   * Returns the directory of a temp descriptor, or null if <code>descriptor</code> is not a temp.
+   */
+  private static Path tempDir(JsonValue descriptor)
+  {
+    if (!(descriptor instanceof JsonRecord))
+    {
+      return null;
+    }
+    JsonRecord r = (JsonRecord)descriptor;
+    JsonValue type = r.get(Adapter.TYPE_NAME);
+    JsonValue location = r.get(Adapter.LOCATION_NAME);
+    if (type == null || !"jaqltemp".equals(type.toString()) || !(location instanceof JsonString))
+    {
+      return null;
+    }
+    return new Path(location.toString());
+  }
+
+  /**
+   * Returns the path (array of field names) at which <code>expr</code> accesses
+   * <code>var</code>, e.g., ["a", "b"] for <code>$.a.b</code>, or null if <code>expr</code> is
+   * not such an access.
+   */
+  static JsonArray fieldPath(Expr expr, Var var)
+  {
+    ArrayList<JsonValue> names = new ArrayList<JsonValue>();
+    while (true)
+    {
+      if (expr instanceof FieldValueExpr)
+      {
+        FieldValueExpr fe = (FieldValueExpr)expr;
+        if (!isName(fe.nameExpr()))
+        {
+          return null;
+        }
+        names.add(0, ((ConstExpr)fe.nameExpr()).value);
+        expr = fe.recExpr();
+      }
+      else if (expr instanceof PathExpr)
+      {
+        PathExpr pe = (PathExpr)expr;
+        int i = 0;
+        for (PathStep s = pe.firstStep(); !(s instanceof PathReturn); s = s.nextStep())
+        {
+          if (!(s instanceof PathFieldValue) || !isName(((PathFieldValue)s).nameExpr()))
+          {
+            return null;
+          }
+          names.add(i++, ((ConstExpr)((PathFieldValue)s).nameExpr()).value);
+        }
+        expr = pe.input();
+      }
+      else
+      {
+        break;
+      }
+    }
+    if (!(expr instanceof VarExpr) || ((VarExpr)expr).var() != var)
+    {
+      return null;
+    }
+    return new BufferedJsonArray(names.toArray(new JsonValue[names.size()]), false);
+  }
+
+  private static boolean isName(Expr expr)
+  {
+    return expr instanceof ConstExpr && ((ConstExpr)expr).value instanceof JsonString;
+  }
+
+  /**
+   * Returns the path (array of field names) at which the value of <code>expr</code> holds the
+   * value of <code>key</code>, or null if there is no such path.
+   */
+  static JsonArray recordKeyPath(Expr expr, Var key) throws Exception
+  {
+    if (expr instanceof VarExpr)
+    {
+      return ((VarExpr)expr).var() == key ? new BufferedJsonArray() : null;
+    }
+    if (!(expr instanceof RecordExpr))
+    {
+      return null;
+    }
+    for (int i = 0; i < expr.numChildren(); i++)
+    {
+      if (!(expr.child(i) instanceof NameValueBinding))
+      {
+        continue;
+      }
+      NameValueBinding nv = (NameValueBinding)expr.child(i);
+      if (!isName(nv.nameExpr()))
+      {
+        continue;
+      }
+      JsonArray p = recordKeyPath(nv.valueExpr(), key);
+      if (p != null)
+      {
+        BufferedJsonArray path = new BufferedJsonArray();
+        path.add(((ConstExpr)nv.nameExpr()).value);
+        for (JsonValue name : p)
+        {
+          path.add(name);
+        }
+        return path;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the path (array of field names) at which all records produced by a reduce function
+   * <code>fn(key, ...)</code> hold its key, or null if there is no such path. Only arrays of
+   * records that are built around the key are recognized.
+   */
+  static JsonArray keyPath(Function fn) throws Exception
+  {
+    if (!(fn instanceof JaqlFunction) || ((JaqlFunction)fn).getParameters().numParameters() == 0)
+    {
+      return null;
+    }
+    JaqlFunction f = (JaqlFunction)fn;
+    Var key = f.getParameters().get(0).getVar();
+    Expr body = f.body();
+    if (!(body instanceof ArrayExpr) || body.numChildren() == 0)
+    {
+      return null;
+    }
+    JsonArray path = null;
+    for (int i = 0; i < body.numChildren(); i++)
+    {
+      JsonArray p = recordKeyPath(body.child(i), key);
+      if (p == null || (path != null && !JsonUtil.equals(p, path)))
+      {
+        return null;
+      }
+      path = p;
+    }
+    return path;
+  }
+
+  /**
+   * Returns the path (array of field names) to the key of the input records of a map function
+   * <code>fn($in) ($in -> transform [$.path, $])</code>, or null if <code>fn</code> is not of
+   * this form.
+   */
+  static JsonArray mapKeyPath(Function fn)
+  {
+    if (!(fn instanceof JaqlFunction) || ((JaqlFunction)fn).getParameters().numParameters() != 1)
+    {
+      return null;
+    }
+    JaqlFunction f = (JaqlFunction)fn;
+    if (!(f.body() instanceof TransformExpr))
+    {
+      return null;
+    }
+    TransformExpr t = (TransformExpr)f.body();
+    Expr in = t.binding().inExpr();
+    Expr pair = t.projection();
+    if (!(in instanceof VarExpr) || ((VarExpr)in).var() != f.getParameters().get(0).getVar()
+        || !(pair instanceof ArrayExpr) || pair.numChildren() != 2
+        || !(pair.child(1) instanceof VarExpr) || ((VarExpr)pair.child(1)).var() != t.var())
+    {
+      return null;
+    }
+    return fieldPath(pair.child(0), t.var());
+  }
+
+  /**
+   * Records the partitioning of the output of the job of <code>conf</code>, which has just
+   * completed, if it is a temp and the records of <code>reduceFn</code> hold their key at a known
+   * path.
+   *
+   * @param outArgs the output descriptor of the job
+   * @param reduceFn the function that produced the output records from each key
+   */
+  public static void record(JobConf conf, JsonValue outArgs, Function reduceFn) throws Exception
+  {
+    Path dir = tempDir(outArgs);
+    if (dir == null || conf.getNumReduceTasks() == 0)
+    {
+      return;
+    }
+    JsonArray keyPath = keyPath(reduceFn);
+    if (keyPath == null)
+    {
+      return;
+    }
+    BufferedJsonRecord p = new BufferedJsonRecord();
+    p.add(KEY, keyPath);
+    p.add(PARTITIONS, new JsonLong(conf.getNumReduceTasks()));
+    p.add(PARTITIONER, new JsonString(conf.getPartitionerClass().getName()));
+    p.add(COMPARATOR, new JsonString(conf.getOutputKeyComparator().getClass().getName()));
+    FileSystem fs = dir.getFileSystem(conf);
+    PrintStream out = new PrintStream(fs.create(new Path(dir, PARTITIONING_FILE), true));
+    try
+    {
+      JsonUtil.print(out, p);
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  /**
+   * Returns the recorded partitioning of an input, or null if there is none.
+   */
+  private static JsonRecord read(JobConf conf, JsonValue inArgs) throws Exception
+  {
+    Path dir = tempDir(inArgs);
+    if (dir == null)
+    {
+      return null;
+    }
+    Path file = new Path(dir, PARTITIONING_FILE);
+    FileSystem fs = file.getFileSystem(conf);
+    if (!fs.exists(file))
+    {
+      return null;
+    }
+    InputStream in = fs.open(file);
+    try
+    {
+      JsonRecord p = (JsonRecord)new JsonParser(in).TopVal();
+      // the part files might have been changed since
+      FileStatus[] parts = fs.globStatus(new Path(dir, "part-*"));
+      long n = ((JsonNumber)p.get(PARTITIONS)).longValueExact();
+      return parts != null && parts.length == n ? p : null;
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * Sets up the job of <code>conf</code> as a map-side merge join if its inputs are partitioned
+   * and sorted alike by the keys of its map functions. Returns false and leaves <code>conf</code>
+   * unchanged otherwise.
+   *
+   * @param inArgs the input descriptors
+   * @param mapFns the map functions, one per input
+   */
+  public static boolean setup(JobConf conf, JsonArray inArgs, JsonArray mapFns)
+      throws Exception
+  {
+    int n = (int)inArgs.count();
+    BufferedJsonArray mergeKeys = new BufferedJsonArray(n);
+    for (int i = 0; i < n; i++)
+    {
+      JsonArray path = tempDir(inArgs.get(i)) == null ? null : mapKeyPath((Function)mapFns.get(i));
+      if (path == null)
+      {
+        return false;
+      }
+      mergeKeys.set(i, path);
+    }
+    JsonRecord first = null;
+    for (int i = 0; i < n; i++)
+    {
+      JsonRecord p = read(conf, inArgs.get(i));
+      if (p == null || !JsonUtil.equals(p.get(KEY), mergeKeys.get(i)))
+      {
+        return false;
+      }
+      if (first == null)
+      {
+        first = p;
+      }
+      else if (!JsonUtil.equals(p.get(PARTITIONS), first.get(PARTITIONS))
+          || !JsonUtil.equals(p.get(PARTITIONER), first.get(PARTITIONER))
+          || !JsonUtil.equals(p.get(COMPARATOR), first.get(COMPARATOR)))
+      {
+        return false;
+      }
+    }
+    int numParts = (int)((JsonNumber)first.get(PARTITIONS)).longValueExact();
+    LOG.info("running " + conf.getJobName() + " as a merge join over " + numParts + " partitions");
+    conf.setNumReduceTasks(0);
+    conf.setMapRunnerClass(JoinEval.class);
+    CompositeInputAdapter.setMerge(conf, numParts, mergeKeys);
+    return true;
+  }
+
+  /**
+   * Runs the reduce function over the merged parts of the inputs.
+   */
+  public static class JoinEval extends MapReduceFn.ReduceEval
+      implements MapRunnable<JsonHolder, JsonHolder, JsonHolder, JsonHolder>
+  {
+    public void run(RecordReader<JsonHolder, JsonHolder> input,
+        OutputCollector<JsonHolder, JsonHolder> output, Reporter reporter) throws IOException
+    {
+      try
+      {
+        Values values = new Values(input);
+        JsonHolderMapOutputKey key = new JsonHolderMapOutputKey();
+        while (values.nextKey())
+        {
+          key.value = values.key;
+          reduce(key, values, output, reporter);
+        }
+      }
+      finally
+      {
+        this.close();
+      }
+    }
+  }
+
+  /**
+   * The values of the current key of a merged input, tagged with their input.
+   */
+  static class Values implements Iterator<JsonHolderMapOutputValue>
+  {
+    private final RecordReader<JsonHolder, JsonHolder> input;
+    private final JsonHolder inKey;
+    private final JsonHolder inValue;
+    private final JsonHolderMapOutputValue value = new JsonHolderMapOutputValue();
+    JsonValue key;           // the current key
+    private boolean started; // true once key is set
+    private boolean ready;   // true if inKey and inValue hold a pair that has not been returned
+    private boolean eof;
+
+    Values(RecordReader<JsonHolder, JsonHolder> input)
+    {
+      this.input = input;
+      inKey = input.createKey();
+      inValue = input.createValue();
+    }
+
+    /** Skips the rest of the current key and moves to the next one. */
+    boolean nextKey() throws IOException
+    {
+      while (started && fill() && JsonUtil.compare(inKey.value, key) == 0)
+      {
+        ready = false;
+      }
+      if (!fill())
+      {
+        return false;
+      }
+      key = inKey.value;
+      started = true;
+      return true;
+    }
+
+    /** Reads the next pair unless there is one; returns false at the end of the input. */
+    private boolean fill() throws IOException
+    {
+      if (!ready && !eof)
+      {
+        ready = input.next(inKey, inValue);
+        eof = !ready;
+        if (ready && started && JsonUtil.compare(inKey.value, key) < 0)
+        {
+          throw new IOException("input of merge join is not sorted by its key");
+        }
+      }
+      return ready;
+    }
+
+    public boolean hasNext()
+    {
+      try
+      {
+        return started && fill() && JsonUtil.compare(inKey.value, key) == 0;
+      }
+      catch (IOException e)
+      {
+        throw new UndeclaredThrowableException(e);
+      }
+    }
+
+    public JsonHolderMapOutputValue next()
+    {
+      if (!hasNext())
+      {
+        throw new NoSuchElementException();
+      }
+      ready = false;
+      try
+      {
+        // [inputIndex, value]
+        JsonArray pair = (JsonArray)inValue.value;
+        value.tag = (int)((JsonNumber)pair.get(0)).longValueExact();
+        value.value = pair.get(1);
+      }
+      catch (Exception e)
+      {
+        throw new UndeclaredThrowableException(e);
+      }
+      return value;
+    }
+
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
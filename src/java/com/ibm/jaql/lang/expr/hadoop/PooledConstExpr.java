@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.lang.core.Context;
+import com.ibm.jaql.lang.expr.core.Expr;
+import com.ibm.jaql.lang.expr.function.DefaultBuiltInFunctionDescriptor;
+
+/**
+ * pooledConst(long index)
+ *
+ * Internal placeholder for entry <code>index</code> of the {@link ConstantPool} of a map-reduce
+ * job. The placeholders are replaced by the constants when the task compiles its functions, so
+ * this expression is never evaluated.
+ */
+public class PooledConstExpr extends Expr
+{
+  public static class Descriptor extends DefaultBuiltInFunctionDescriptor.Par11
+  {
+    public Descriptor()
+    {
+      super("pooledConst", PooledConstExpr.class);
+    }
+  }
+
+  /**
+   * @param exprs
+   */
+  public PooledConstExpr(Expr[] exprs)
+  {
+    super(exprs);
+  }
+
+  /**
+   * @param index
+   */
+  public PooledConstExpr(Expr index)
+  {
+    super(index);
+  }
+
+  @Override
+  public JsonValue eval(Context context) throws Exception
+  {
+    throw new IllegalStateException("pooledConst() can only be used in map-reduce functions");
+  }
+}
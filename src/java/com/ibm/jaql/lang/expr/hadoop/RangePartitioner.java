@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Partitioner;
+
+import com.ibm.jaql.io.hadoop.ConfUtil;
+import com.ibm.jaql.io.hadoop.JsonHolder;
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.JsonArray;
+import com.ibm.jaql.json.type.JsonUtil;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.json.util.JsonIterator;
+import com.ibm.jaql.lang.core.Context;
+import com.ibm.jaql.lang.expr.function.Function;
+import com.ibm.jaql.lang.util.JaqlUtil;
+
+/**
+ * Partitions map output by ranges of keys, so that the reducers, and hence the part files they
+ * write, are globally ordered. Map output keys are arrays that are compared component-wise,
+ * ascending or descending as given by the array of booleans in
+ * <code>com.ibm.jaql.mapred.order</code> (true for ascending). The split points between the
+ * ranges are computed before the job is submitted from a sample of the map output keys of
+ * <code>com.ibm.jaql.mapred.order.sampleSize</code> pairs (default 10000), taken from up to
+ * <code>com.ibm.jaql.mapred.order.sampleSplits</code> evenly spaced splits (default 10).
+ *
+ * Keys that are equal to a split point go to the range above it, so all values of a key end up
+ * in the same part file. The map output is sorted by a {@link SortKeyComparator} that uses the
+ * same order.
+ */
+public class RangePartitioner implements Partitioner<JsonHolder, JsonHolder>
+{
+  public static final String ORDER_NAME         = MapReduceBaseExpr.BASE_NAME + ".order";
+  public static final String SPLIT_POINTS_NAME  = ORDER_NAME + ".splitPoints";
+  public static final String SAMPLE_SIZE_NAME   = ORDER_NAME + ".sampleSize";
+  public static final String SAMPLE_SPLITS_NAME = ORDER_NAME + ".sampleSplits";
+
+  private boolean[] asc;
+  private JsonArray[] splitPoints;
+
+  /**
+   * Sets up the job of <code>conf</code> to produce globally ordered output: samples the map
+   * output keys, stores the order and the split points in <code>conf</code>, and installs this
+   * partitioner and a {@link SortKeyComparator}.
+   *
+   * @param order one boolean per component of the map output keys, true for ascending
+   * @param mapFn the map function of the job, which produces [key, value] pairs
+   */
+  public static void setup(JobConf conf, JsonArray order, Function mapFn, Context context)
+    throws Exception
+  {
+    ConfUtil.writeConfArray(conf, ORDER_NAME, order);
+    conf.setPartitionerClass(RangePartitioner.class);
+    conf.setOutputKeyComparatorClass(SortKeyComparator.class);
+
+    int numReducers = conf.getNumReduceTasks();
+    if (numReducers < 2)
+    {
+      return;
+    }
+    final boolean[] asc = readOrder(conf);
+    List<JsonValue> sample = SkewSampler.sampleKeys(conf, mapFn, context,
+        conf.getInt(SAMPLE_SIZE_NAME, 10000), conf.getInt(SAMPLE_SPLITS_NAME, 10));
+    JsonArray[] keys = sample.toArray(new JsonArray[sample.size()]);
+    Arrays.sort(keys, new Comparator<JsonArray>() {
+      public int compare(JsonArray x, JsonArray y)
+      {
+        return RangePartitioner.compare(x, y, asc);
+      }
+    });
+
+    // duplicate split points would only leave reducers without input
+    BufferedJsonArray points = new BufferedJsonArray();
+    JsonArray last = null;
+    for (int i = 1; i < numReducers && keys.length > 0; i++)
+    {
+      JsonArray p = keys[(int)((long)i * keys.length / numReducers)];
+      if (last == null || compare(last, p, asc) < 0)
+      {
+        points.add(p);
+        last = p;
+      }
+    }
+    ConfUtil.writeConfArray(conf, SPLIT_POINTS_NAME, points);
+  }
+
+  /** Returns the order stored in <code>conf</code>, or null if there is none. */
+  static boolean[] readOrder(Configuration conf)
+  {
+    return readOrder(conf, ORDER_NAME);
+  }
+
+  /** Returns the order stored in <code>conf</code> under <code>name</code>, or null if there is
+   * none. */
+  static boolean[] readOrder(Configuration conf, String name)
+  {
+    try
+    {
+      JsonArray order = ConfUtil.readConfArray(conf, name);
+      if (order == null)
+      {
+        return null;
+      }
+      boolean[] asc = new boolean[(int)order.count()];
+      JsonIterator iter = order.iter();
+      for (int i = 0; iter.moveNext(); i++)
+      {
+        asc[i] = JaqlUtil.ebv(iter.current());
+      }
+      return asc;
+    }
+    catch (Exception e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Compares two keys component-wise, ascending where <code>asc</code> is true. */
+  static int compare(JsonArray x, JsonArray y, boolean[] asc)
+  {
+    try
+    {
+      for (int i = 0; i < asc.length; i++)
+      {
+        int c = JsonUtil.compare(x.get(i), y.get(i));
+        if (c != 0)
+        {
+          return asc[i] ? c : -c;
+        }
+      }
+      return 0;
+    }
+    catch (Exception e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void configure(JobConf job)
+  {
+    asc = readOrder(job);
+    try
+    {
+      JsonArray points = ConfUtil.readConfArray(job, SPLIT_POINTS_NAME);
+      if (points == null)
+      {
+        splitPoints = new JsonArray[0];
+        return;
+      }
+      splitPoints = new JsonArray[(int)points.count()];
+      JsonIterator iter = points.iter();
+      for (int i = 0; iter.moveNext(); i++)
+      {
+        splitPoints[i] = (JsonArray)JsonUtil.getCopy(iter.current(), null);
+      }
+    }
+    catch (Exception e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public int getPartition(JsonHolder key, JsonHolder value, int numPartitions)
+  {
+    // number of split points that are less or equal to the key
+    JsonArray k = (JsonArray)key.value;
+    int lo = 0;
+    int hi = splitPoints.length;
+    while (lo < hi)
+    {
+      int mid = (lo + hi) >>> 1;
+      if (compare(splitPoints[mid], k, asc) <= 0)
+      {
+        lo = mid + 1;
+      }
+      else
+      {
+        hi = mid;
+      }
+    }
+    return Math.min(lo, numPartitions - 1);
+  }
+}
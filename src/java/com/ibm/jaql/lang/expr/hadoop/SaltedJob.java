@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapRunner;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.lib.IdentityMapper;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import com.ibm.jaql.io.hadoop.JsonHolder;
+import com.ibm.jaql.json.type.JsonArray;
+import com.ibm.jaql.json.type.JsonString;
+import com.ibm.jaql.json.type.JsonValue;
+
+/**
+ * Runs a map-reduce job whose map output has hot keys in two phases:
+ *
+ * <ol>
+ * <li>The map output is partitioned by a {@link SkewPartitioner}, which spreads the values of
+ * each hot key over several reducers. A {@link SaltedReducer} runs the reducer of the job for
+ * all other keys, which writes their results to the output of the job, and the combiner of the
+ * job for the hot keys, whose partial results go to a side file per reducer.</li>
+ * <li>A second job reads the side files back and merges the partial results per hot key with
+ * the combiner and reducer of the job. Its part files are moved to the output of the job.</li>
+ * </ol>
+ *
+ * Only the few partial results of the hot keys are shuffled twice. The job must have a combiner,
+ * which is what merges the partial results of a hot key, and it must write to a file output, so
+ * that the part files of both phases can be put into the same directory.
+ */
+public final class SaltedJob
+{
+  public static final String REDUCER_NAME     = SkewSampler.SKEW_NAME + ".reducer";
+  public static final String SALTED_PATH_NAME = SkewSampler.SKEW_NAME + ".saltedPath";
+
+  /** directories of the side files and the output of the second phase, in the output */
+  static final String SALTED_DIR = "_salted";
+  static final String HOT_DIR    = "_hot";
+
+  private SaltedJob()
+  {
+  }
+
+  /**
+   * Returns true if the job of <code>conf</code> can be run in two phases.
+   */
+  public static boolean canSalt(JobConf conf)
+  {
+    return conf.getCombinerClass() != null && FileOutputFormat.getOutputPath(conf) != null;
+  }
+
+  /**
+   * Runs the job of <code>conf</code> in two phases.
+   */
+  public static void submit(JsonString submitClassName, JobConf conf, JsonArray hotKeys)
+    throws Exception
+  {
+    Path outPath = FileOutputFormat.getOutputPath(conf);
+    FileSystem fs = outPath.getFileSystem(conf);
+    Path saltedPath = new Path(outPath, SALTED_DIR);
+    Path hotPath = new Path(outPath, HOT_DIR);
+
+    JobConf first = new JobConf(conf);
+    first.setPartitionerClass(SkewPartitioner.class);
+    SkewPartitioner.writeConf(first, hotKeys);
+    first.setClass(REDUCER_NAME, conf.getReducerClass(), Reducer.class);
+    first.setReducerClass(SaltedReducer.class);
+    first.set(SALTED_PATH_NAME, saltedPath.toString());
+    // the side file of a reducer is named after its partition; a second attempt would clobber it
+    first.setReduceSpeculativeExecution(false);
+    Util.submitJob(submitClassName, first);
+
+    try
+    {
+      if (!fs.exists(saltedPath))
+      {
+        return; // the sample was misleading; none of the hot keys occurred
+      }
+      JobConf second = new JobConf(conf);
+      second.setInputFormat(SequenceFileInputFormat.class);
+      FileInputFormat.setInputPaths(second, saltedPath);
+      second.setMapRunnerClass(MapRunner.class);
+      second.setMapperClass(IdentityMapper.class);
+      second.setNumReduceTasks((int)Math.min(conf.getNumReduceTasks(), hotKeys.count()));
+      FileOutputFormat.setOutputPath(second, hotPath);
+      Util.submitJob(submitClassName, second);
+
+      // number the part files of the second phase after those of the first
+      FileStatus[] parts = fs.listStatus(hotPath, new PathFilter() {
+        public boolean accept(Path path)
+        {
+          return path.getName().startsWith("part-");
+        }
+      });
+      Arrays.sort(parts);
+      int part = conf.getNumReduceTasks();
+      for (FileStatus p : parts)
+      {
+        Path dst = new Path(outPath, String.format("part-%05d", part++));
+        if (!fs.rename(p.getPath(), dst))
+        {
+          throw new IOException("could not move " + p.getPath() + " to " + dst);
+        }
+      }
+    }
+    finally
+    {
+      fs.delete(saltedPath, true);
+      fs.delete(hotPath, true);
+    }
+  }
+
+  /**
+   * Runs the reducer of a job for all keys but the hot ones, and its combiner for the hot keys.
+   * The partial results of the hot keys are written to a sequence file named after the
+   * partition of the reducer.
+   */
+  public static class SaltedReducer
+      implements Reducer<JsonHolder, JsonHolder, JsonHolder, JsonHolder>
+  {
+    protected HashSet<JsonValue> hotKeys;
+    protected Reducer<JsonHolder, JsonHolder, JsonHolder, JsonHolder> combiner;
+    protected Reducer<JsonHolder, JsonHolder, JsonHolder, JsonHolder> reducer;
+    protected JobConf job;
+    protected SequenceFile.Writer writer; // opened for the first hot key
+
+    protected OutputCollector<JsonHolder, JsonHolder> salted =
+      new OutputCollector<JsonHolder, JsonHolder>() {
+        public void collect(JsonHolder key, JsonHolder value) throws IOException
+        {
+          if (writer == null)
+          {
+            Path path = new Path(job.get(SALTED_PATH_NAME),
+                String.format("part-%05d", job.getInt("mapred.task.partition", 0)));
+            writer = SequenceFile.createWriter(path.getFileSystem(job), job, path,
+                job.getMapOutputKeyClass(), job.getMapOutputValueClass());
+          }
+          writer.append(key, value);
+        }
+      };
+
+    @SuppressWarnings("unchecked")
+    public void configure(JobConf job)
+    {
+      this.job = job;
+      hotKeys = SkewPartitioner.readHotKeys(job);
+      combiner = ReflectionUtils.newInstance(job.getCombinerClass(), job);
+      reducer = ReflectionUtils.newInstance(job.getClass(REDUCER_NAME, null, Reducer.class), job);
+    }
+
+    public void reduce(JsonHolder key, Iterator<JsonHolder> values,
+        OutputCollector<JsonHolder, JsonHolder> output, Reporter reporter)
+      throws IOException
+    {
+      if (hotKeys.contains(key.value))
+      {
+        combiner.reduce(key, values, salted, reporter);
+      }
+      else
+      {
+        reducer.reduce(key, values, output, reporter);
+      }
+    }
+
+    public void close() throws IOException
+    {
+      try
+      {
+        combiner.close();
+        reducer.close();
+      }
+      finally
+      {
+        if (writer != null)
+        {
+          writer.close();
+        }
+      }
+    }
+  }
+}
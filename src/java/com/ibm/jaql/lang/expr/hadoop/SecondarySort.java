@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Partitioner;
+
+import com.ibm.jaql.io.hadoop.ConfUtil;
+import com.ibm.jaql.io.hadoop.JsonHolder;
+import com.ibm.jaql.io.hadoop.MapOutputKeyComparator;
+import com.ibm.jaql.json.schema.ArraySchema;
+import com.ibm.jaql.json.schema.Schema;
+import com.ibm.jaql.json.schema.SchemaFactory;
+import com.ibm.jaql.json.type.BufferedJsonRecord;
+import com.ibm.jaql.json.type.JsonArray;
+import com.ibm.jaql.json.type.JsonRecord;
+import com.ibm.jaql.json.type.JsonSchema;
+import com.ibm.jaql.json.type.JsonString;
+import com.ibm.jaql.json.type.JsonUtil;
+import com.ibm.jaql.json.type.JsonValue;
+
+/**
+ * Secondary sort for {@link MapReduceFn}: the reducers receive the values of each key ordered by
+ * a sort key. The map function produces [key, value, sortKey] triples, where sortKey is an array
+ * that is compared component-wise in the order stored in
+ * <code>com.ibm.jaql.mapred.valueOrder</code> (true for ascending). The map output key is the
+ * composite [key, sortKey]; it is partitioned and grouped by key and sorted by key and sortKey.
+ * If all components are ascending, the composites are sorted without deserializing them.
+ */
+public final class SecondarySort
+{
+  public static final String VALUE_ORDER_NAME = MapReduceBaseExpr.BASE_NAME + ".valueOrder";
+
+  private static final JsonString KEY = new JsonString("key");
+
+  private SecondarySort()
+  {
+  }
+
+  /**
+   * Sets up the job of <code>conf</code> to sort the values of each key: stores the order in
+   * <code>conf</code> and installs the partitioner and comparators of this class.
+   *
+   * @param valueOrder one boolean per component of the sort keys, true for ascending
+   */
+  public static void setup(JobConf conf, JsonArray valueOrder) throws Exception
+  {
+    ConfUtil.writeConfArray(conf, VALUE_ORDER_NAME, valueOrder);
+    conf.setPartitionerClass(KeyPartitioner.class);
+    conf.setOutputKeyComparatorClass(CompositeKeyComparator.class);
+    conf.setOutputValueGroupingComparator(KeyComparator.class);
+  }
+
+  /** Returns true if the job of <code>conf</code> sorts the values of each key. */
+  public static boolean isEnabled(Configuration conf)
+  {
+    return conf.get(VALUE_ORDER_NAME) != null;
+  }
+
+  /**
+   * Returns the schema option of a job with the map output key schema replaced by the schema of
+   * the composite [key, sortKey].
+   */
+  public static JsonRecord compositeSchema(JsonRecord schema) throws Exception
+  {
+    BufferedJsonRecord result = new BufferedJsonRecord();
+    result.setCopy(schema);
+    Schema keySchema = ((JsonSchema)schema.getRequired(KEY)).get();
+    result.set(KEY, new JsonSchema(new ArraySchema(new Schema[] {
+        keySchema, SchemaFactory.arraySchema() })));
+    return result;
+  }
+
+  /** Returns the key of a composite [key, sortKey] map output key. */
+  public static JsonValue key(JsonValue composite)
+  {
+    try
+    {
+      return ((JsonArray)composite).get(0);
+    }
+    catch (Exception e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Partitions composite keys by the hash of their key. */
+  public static class KeyPartitioner implements Partitioner<JsonHolder, JsonHolder>
+  {
+    public void configure(JobConf job)
+    {
+    }
+
+    public int getPartition(JsonHolder key, JsonHolder value, int numPartitions)
+    {
+      return (JsonUtil.hashCode(key(key.value)) & Integer.MAX_VALUE) % numPartitions;
+    }
+  }
+
+  /**
+   * Compares composite keys by their key only. Used to group the values of the reducers.
+   *
+   * This class is not threadsafe.
+   */
+  public static class KeyComparator extends MapOutputKeyComparator
+  {
+    protected JsonValue value1;
+    protected JsonValue value2;
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2)
+    {
+      try
+      {
+        input1.reset(b1, s1, l1);
+        input2.reset(b2, s2, l2);
+        value1 = serializer.read(input1, value1);
+        value2 = serializer.read(input2, value2);
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(e);
+      }
+      return compare(value1, value2);
+    }
+
+    /** Compares the serialized values as a whole, like the default map output comparator. */
+    protected int compareSerialized(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2)
+    {
+      return super.compare(b1, s1, l1, b2, s2, l2);
+    }
+
+    @Override
+    public int compare(JsonHolder a, JsonHolder b)
+    {
+      return compare(a.value, b.value);
+    }
+
+    protected int compare(JsonValue x, JsonValue y)
+    {
+      return JsonUtil.compare(key(x), key(y));
+    }
+  }
+
+  /**
+   * Compares composite keys by their key and then by their sort key. Used to sort map output.
+   *
+   * This class is not threadsafe.
+   */
+  public static class CompositeKeyComparator extends KeyComparator
+  {
+    private boolean[] asc;
+    /** true if all components of the sort keys are ascending */
+    private boolean ascending;
+
+    @Override
+    public void setConf(Configuration conf)
+    {
+      super.setConf(conf);
+      asc = RangePartitioner.readOrder(conf, VALUE_ORDER_NAME);
+      ascending = true;
+      for (boolean a : asc)
+      {
+        ascending &= a;
+      }
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2)
+    {
+      if (ascending)
+      {
+        // arrays are compared element by element, and all sort keys have the same length
+        return compareSerialized(b1, s1, l1, b2, s2, l2);
+      }
+      return super.compare(b1, s1, l1, b2, s2, l2);
+    }
+
+    @Override
+    protected int compare(JsonValue x, JsonValue y)
+    {
+      int c = super.compare(x, y);
+      if (c != 0)
+      {
+        return c;
+      }
+      try
+      {
+        return RangePartitioner.compare((JsonArray)((JsonArray)x).get(1),
+            (JsonArray)((JsonArray)y).get(1), asc);
+      }
+      catch (Exception e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+}
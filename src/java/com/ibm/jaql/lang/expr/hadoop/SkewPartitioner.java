@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Partitioner;
+
+import com.ibm.jaql.io.hadoop.ConfUtil;
+import com.ibm.jaql.io.hadoop.JsonHolder;
+import com.ibm.jaql.json.type.JsonArray;
+import com.ibm.jaql.json.type.JsonUtil;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.json.util.JsonIterator;
+
+/**
+ * Partitions map output by the hash of the key, except for the hot keys listed in the job conf:
+ * the values of a hot key are dealt round-robin to <code>com.ibm.jaql.mapred.skew.salts</code>
+ * consecutive partitions (default: all partitions), starting at the partition of its hash.
+ */
+public class SkewPartitioner implements Partitioner<JsonHolder, JsonHolder>
+{
+  public static final String HOT_KEYS_NAME = SkewSampler.SKEW_NAME + ".hotKeys";
+  public static final String SALTS_NAME    = SkewSampler.SKEW_NAME + ".salts";
+
+  private HashSet<JsonValue> hotKeys;
+  private int[] hotHashes;
+  private int salts;
+  private int salt;
+
+  /** Stores the hot keys in <code>conf</code>. */
+  public static void writeConf(JobConf conf, JsonArray hotKeys) throws Exception
+  {
+    ConfUtil.writeConfArray(conf, HOT_KEYS_NAME, hotKeys);
+  }
+
+  /** Returns the hot keys stored in <code>conf</code>. */
+  public static HashSet<JsonValue> readHotKeys(JobConf conf)
+  {
+    HashSet<JsonValue> hotKeys = new HashSet<JsonValue>();
+    try
+    {
+      JsonArray keys = ConfUtil.readConfArray(conf, HOT_KEYS_NAME);
+      if (keys != null)
+      {
+        JsonIterator iter = keys.iter();
+        while (iter.moveNext())
+        {
+          hotKeys.add(JsonUtil.getCopy(iter.current(), null));
+        }
+      }
+    }
+    catch (Exception e)
+    {
+      throw new RuntimeException(e);
+    }
+    return hotKeys;
+  }
+
+  public void configure(JobConf job)
+  {
+    hotKeys = readHotKeys(job);
+    hotHashes = new int[hotKeys.size()];
+    int i = 0;
+    for (JsonValue k : hotKeys)
+    {
+      hotHashes[i++] = JsonUtil.hashCode(k);
+    }
+    Arrays.sort(hotHashes);
+    salts = job.getInt(SALTS_NAME, Integer.MAX_VALUE);
+  }
+
+  public int getPartition(JsonHolder key, JsonHolder value, int numPartitions)
+  {
+    int h = JsonUtil.hashCode(key.value);
+    int p = (h & Integer.MAX_VALUE) % numPartitions;
+    // most keys are not hot; avoid the set lookup for them
+    if (Arrays.binarySearch(hotHashes, h) < 0 || !hotKeys.contains(key.value))
+    {
+      return p;
+    }
+    salt = (salt + 1) % Math.min(salts, numPartitions);
+    return (p + salt) % numPartitions;
+  }
+}
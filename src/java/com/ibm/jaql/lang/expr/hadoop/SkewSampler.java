@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.log4j.Logger;
+
+import com.ibm.jaql.io.hadoop.JsonHolder;
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.JsonArray;
+import com.ibm.jaql.json.type.JsonUtil;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.lang.core.Context;
+import com.ibm.jaql.lang.expr.function.Function;
+
+/**
+ * Finds the heavy hitters among the map output keys of a job by running its map function over
+ * the first records of a few input splits. A key is hot if its share of the sample exceeds
+ * <code>com.ibm.jaql.mapred.skew.factor</code> (default 2) times the share of an average reducer,
+ * i.e., if a reducer that receives the key would get more than that many times its fair share
+ * of the data.
+ *
+ * Sampling reads input splits on the client before the job is submitted, so it is off unless
+ * <code>com.ibm.jaql.mapred.skew</code> is set to true. It is also skipped for jobs with fewer
+ * than two reducers and for jobs that {@link SaltedJob} cannot run. <code>mapReduce</code> jobs
+ * additionally have to set <code>com.ibm.jaql.mapred.skew.mapReduce</code>, and their reduce
+ * function is only salted if the job has a combine function to merge its partial groups.
+ *
+ * The sample consists of <code>com.ibm.jaql.mapred.skew.sampleSize</code> map output pairs
+ * (default 10000), taken from up to <code>com.ibm.jaql.mapred.skew.sampleSplits</code> evenly
+ * spaced splits (default 10).
+ */
+public final class SkewSampler
+{
+  public static final String SKEW_NAME          = MapReduceBaseExpr.BASE_NAME + ".skew";
+  public static final String FACTOR_NAME        = SKEW_NAME + ".factor";
+  public static final String SAMPLE_SIZE_NAME   = SKEW_NAME + ".sampleSize";
+  public static final String SAMPLE_SPLITS_NAME = SKEW_NAME + ".sampleSplits";
+  public static final String MAP_REDUCE_NAME    = SKEW_NAME + ".mapReduce";
+
+  /** minimum number of occurrences in the sample for a key to be hot */
+  static final int MIN_COUNT = 10;
+
+  private static final Logger LOG = Logger.getLogger(SkewSampler.class.getName());
+
+  private SkewSampler()
+  {
+  }
+
+  /**
+   * Returns the hot keys of the job of <code>conf</code>, or <code>null</code> if there are none
+   * or sampling is disabled or skipped.
+   *
+   * @param mapFn the map function of the job, which produces [key, value] pairs
+   */
+  public static JsonArray findHotKeys(JobConf conf, Function mapFn, Context context)
+    throws Exception
+  {
+    int numReducers = conf.getNumReduceTasks();
+    if (numReducers < 2 || !conf.getBoolean(SKEW_NAME, false) || !SaltedJob.canSalt(conf))
+    {
+      return null;
+    }
+    List<JsonValue> sample = sampleKeys(conf, mapFn, context,
+        conf.getInt(SAMPLE_SIZE_NAME, 10000), conf.getInt(SAMPLE_SPLITS_NAME, 10));
+    HashMap<JsonValue, long[]> counts = new HashMap<JsonValue, long[]>();
+    for (JsonValue k : sample)
+    {
+      long[] n = counts.get(k);
+      if (n == null)
+      {
+        n = new long[1];
+        counts.put(k, n);
+      }
+      n[0]++;
+    }
+    long total = sample.size();
+
+    double factor = conf.getFloat(FACTOR_NAME, 2);
+    long minCount = Math.max(MIN_COUNT, (long)Math.ceil(factor * total / numReducers));
+    BufferedJsonArray hot = new BufferedJsonArray();
+    for (Map.Entry<JsonValue, long[]> e : counts.entrySet())
+    {
+      if (e.getValue()[0] >= minCount)
+      {
+        hot.add(e.getKey());
+        LOG.info("hot key " + JsonUtil.printToString(e.getKey()) + ": " + e.getValue()[0] +
+            " of " + total + " sampled map output pairs");
+      }
+    }
+    return hot.isEmpty() ? null : hot;
+  }
+
+  /**
+   * Returns copies of the map output keys of the first <code>sampleSize</code> map output pairs
+   * of up to <code>maxSplits</code> evenly spaced input splits of the job of <code>conf</code>.
+   *
+   * @param mapFn the map function of the job, which produces [key, value] pairs
+   */
+  public static List<JsonValue> sampleKeys(JobConf conf, Function mapFn, Context context,
+      int sampleSize, int maxSplits) throws Exception
+  {
+    ArrayList<JsonValue> keys = new ArrayList<JsonValue>();
+    @SuppressWarnings("unchecked") // jaql input formats produce JsonHolder pairs
+    InputFormat<JsonHolder, JsonHolder> format = conf.getInputFormat();
+    InputSplit[] splits = format.getSplits(conf, conf.getNumMapTasks());
+    int numSampled = Math.min(splits.length, maxSplits);
+    JsonValue[] pair = new JsonValue[2];
+    for (int i = 0; i < numSampled; i++)
+    {
+      InputSplit split = splits[(int)((long)i * splits.length / numSampled)];
+      RecordReader<JsonHolder, JsonHolder> reader =
+        format.getRecordReader(split, conf, Reporter.NULL);
+      try
+      {
+        long limit = (long)(i + 1) * sampleSize / numSampled;
+        mapFn.setArguments(new RecordReaderValueIter(reader));
+        for (JsonValue v : mapFn.iter(context))
+        {
+          if (keys.size() >= limit)
+          {
+            break;
+          }
+          ((JsonArray)v).getAll(pair);
+          keys.add(JsonUtil.getCopy(pair[0], null));
+        }
+      }
+      finally
+      {
+        reader.close();
+      }
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.ibm.jaql.io.hadoop.JsonHolder;
+import com.ibm.jaql.io.hadoop.MapOutputKeyComparator;
+import com.ibm.jaql.json.type.JsonArray;
+import com.ibm.jaql.json.type.JsonValue;
+
+/**
+ * Sorts map output keys in the order used by the {@link RangePartitioner}. If all components of
+ * the keys are ascending, keys are compared like any other map output key; otherwise they are
+ * deserialized and compared component-wise.
+ *
+ * This class is not threadsafe.
+ */
+public class SortKeyComparator extends MapOutputKeyComparator
+{
+  /** null if all components are ascending */
+  private boolean[] asc;
+  private JsonValue value1;
+  private JsonValue value2;
+
+  @Override
+  public void setConf(Configuration conf)
+  {
+    super.setConf(conf);
+    asc = RangePartitioner.readOrder(conf);
+    if (asc != null)
+    {
+      boolean allAsc = true;
+      for (boolean a : asc)
+      {
+        allAsc &= a;
+      }
+      if (allAsc)
+      {
+        asc = null;
+      }
+    }
+  }
+
+  @Override
+  public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2)
+  {
+    if (asc == null)
+    {
+      return super.compare(b1, s1, l1, b2, s2, l2);
+    }
+    try
+    {
+      input1.reset(b1, s1, l1);
+      input2.reset(b2, s2, l2);
+      value1 = serializer.read(input1, value1);
+      value2 = serializer.read(input2, value2);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    return RangePartitioner.compare((JsonArray)value1, (JsonArray)value2, asc);
+  }
+
+  @Override
+  public int compare(JsonHolder a, JsonHolder b)
+  {
+    if (asc == null)
+    {
+      return super.compare(a, b);
+    }
+    return RangePartitioner.compare((JsonArray)a.value, (JsonArray)b.value, asc);
+  }
+}
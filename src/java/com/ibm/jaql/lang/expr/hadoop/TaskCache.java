@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.hadoop.mapred.JobConf;
+
+import com.ibm.jaql.lang.core.Context;
+import com.ibm.jaql.lang.expr.function.Function;
+
+/**
+ * Keeps what the tasks of a map-reduce job build from the job conf, so that later tasks of the
+ * same job in the same JVM skip that work. This pays off with JVM reuse, in local mode, and for
+ * combiners, which Hadoop instantiates once per spill.
+ *
+ * Compiled functions are keyed by the job id and their text. A function is used by one task at
+ * a time: tasks check functions out with {@link Job#acquire(String)} and return them with
+ * {@link Job#release(String, Function)} when they are closed. Only the most recent
+ * {@link #MAX_JOBS} jobs are kept.
+ */
+public final class TaskCache
+{
+  /** number of jobs whose state is kept */
+  public static final int MAX_JOBS = 4;
+
+  private static final JobMap jobs = new JobMap();
+
+  /** The jobs in least recently used order; holds at most {@link #MAX_JOBS} jobs. */
+  private static final class JobMap extends LinkedHashMap<String, Job>
+  {
+    private static final long serialVersionUID = 1L;
+
+    JobMap()
+    {
+      super(2 * MAX_JOBS, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Job> eldest)
+    {
+      return size() > MAX_JOBS;
+    }
+  }
+
+  /** contexts not currently used by a task */
+  private static final ConcurrentLinkedQueue<Context> contexts = new ConcurrentLinkedQueue<Context>();
+
+  private TaskCache()
+  {
+  }
+
+  /**
+   * Returns the cached state of the job of <code>conf</code>, or <code>null</code> if the conf
+   * has no job id or caching is disabled via <code>com.ibm.jaql.mapred.taskCache</code>.
+   */
+  public static synchronized Job getJob(JobConf conf)
+  {
+    String jobId = conf.get("mapred.job.id");
+    if (jobId == null || !conf.getBoolean(MapReduceBaseExpr.BASE_NAME + ".taskCache", true))
+    {
+      return null;
+    }
+    Job job = jobs.get(jobId);
+    if (job == null)
+    {
+      job = new Job();
+      jobs.put(jobId, job);
+    }
+    return job;
+  }
+
+  /** Returns an unused context; its previous user has reset it. */
+  public static Context getContext()
+  {
+    Context context = contexts.poll();
+    return context != null ? context : new Context();
+  }
+
+  /** Returns a context that has been reset. */
+  public static void releaseContext(Context context)
+  {
+    contexts.add(context);
+  }
+
+  /** The cached state of one job. */
+  public static final class Job
+  {
+    private boolean registriesRead;
+    private boolean constantsRead;
+    private ConstantPool constants;
+    private final HashMap<String, LinkedList<Function>> idle = new HashMap<String, LinkedList<Function>>();
+
+    /** Returns whether a task of this job has already read the registries into this JVM. Tasks
+     * hold the lock of the job while they check and read the registries. */
+    public boolean hasRegistries()
+    {
+      return registriesRead;
+    }
+
+    /** Records that the registries of this job have been read. */
+    public void setRegistriesRead()
+    {
+      registriesRead = true;
+    }
+
+    /** Returns the constant pool of the job, reading it on first use. */
+    public synchronized ConstantPool getConstants(JobConf conf, String name) throws IOException
+    {
+      if (!constantsRead)
+      {
+        constants = ConstantPool.readConf(conf, name);
+        constantsRead = true;
+      }
+      return constants;
+    }
+
+    /** Returns an unused compiled function with the given text, or <code>null</code>. */
+    public synchronized Function acquire(String text)
+    {
+      LinkedList<Function> fns = idle.get(text);
+      return fns == null || fns.isEmpty() ? null : fns.removeFirst();
+    }
+
+    /** Returns a function compiled from <code>text</code> that is no longer used. */
+    public synchronized void release(String text, Function fn)
+    {
+      LinkedList<Function> fns = idle.get(text);
+      if (fns == null)
+      {
+        fns = new LinkedList<Function>();
+        idle.put(text, fns);
+      }
+      fns.add(fn);
+    }
+  }
+}
@@ -0,0 +1,1057 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.mapred.ExposeJobContext;
+import org.apache.hadoop.mapred.ExposeTaskAttemptContext;
+import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobContext;
+import org.apache.hadoop.mapred.JobID;
+import org.apache.hadoop.mapred.MapRunnable;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.OutputCommitter;
+import org.apache.hadoop.mapred.Partitioner;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.TaskAttemptContext;
+import org.apache.hadoop.mapred.TaskAttemptID;
+import org.apache.hadoop.mapred.TaskID;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.log4j.Logger;
+
+import com.ibm.jaql.io.hadoop.Globals;
+import com.ibm.jaql.job.SharedExecutor;
+
+/**
+ * Runs map-reduce jobs in this JVM, like Hadoop's local job runner, but with up to
+ * <code>jaql.local.mapred.threads</code> map tasks and reduce tasks at a time. It is used instead
+ * of the local job runner when that property is greater than one. Both properties below are read
+ * from the job configuration, and default to the system properties of the same name. The
+ * threads of {@link com.ibm.jaql.lang.expr.core.ParallelMapExpr} are set separately, by
+ * <code>jaql.local.threads</code>.
+ *
+ * The map output is not written to disk unless it has to be: each map task sorts and combines
+ * its output in memory, in runs of up to a quarter of its share of
+ * <code>jaql.local.memory</code> bytes (default a quarter of the heap). The runs of all map tasks
+ * stay in memory as long as they take up at most half of <code>jaql.local.memory</code>; later
+ * runs are written to local files. Each reduce task then merges its partition of all runs. If
+ * there are more than <code>io.sort.factor</code> files, it first merges them into fewer files,
+ * so that it never opens more than that many at once.
+ *
+ * Each task thread holds its own {@link Globals} configuration. Only jobs that use the old
+ * map-reduce API are supported.
+ */
+public class ThreadedJobRunner
+{
+  private static final Logger LOG = Logger.getLogger(ThreadedJobRunner.class.getName());
+
+  /** maximum number of tasks that run at the same time */
+  public static final String THREADS_NAME = "jaql.local.mapred.threads";
+
+  /** number of bytes that the map output may take up in memory */
+  public static final String MEMORY_NAME = "jaql.local.memory";
+
+  private static final AtomicInteger jobCounter = new AtomicInteger();
+
+  protected JobConf conf;
+  protected int threads;
+  protected long memory;
+  protected JobID jobId;
+  protected int numReduces;
+  protected OutputCommitter committer;
+  protected FileSystem fs;
+
+  /** the sorted map output */
+  protected ArrayList<Run> runs = new ArrayList<Run>();
+  /** number of bytes of runs in memory */
+  protected long memoryUsed;
+  /** the first error of any task */
+  protected volatile Throwable failure;
+
+  protected ThreadedJobRunner(JobConf conf) throws IOException
+  {
+    this.conf = new JobConf(conf);
+    this.jobId = new JobID("jaqllocal", jobCounter.incrementAndGet());
+    this.numReduces = conf.getNumReduceTasks();
+    this.fs = FileSystem.get(conf);
+    this.threads = getThreads(conf);
+    this.memory = conf.getLong(MEMORY_NAME,
+        Long.getLong(MEMORY_NAME, Runtime.getRuntime().maxMemory() / 4));
+  }
+
+  protected static int getThreads(JobConf conf)
+  {
+    return conf.getInt(THREADS_NAME, Integer.getInteger(THREADS_NAME, 1));
+  }
+
+  /**
+   * Returns true if the job of <code>conf</code> runs locally and should be run by this class.
+   */
+  public static boolean accepts(JobConf conf)
+  {
+    return getThreads(conf) > 1 && "local".equals(conf.get("mapred.job.tracker"))
+        && !conf.getUseNewMapper() && !conf.getUseNewReducer();
+  }
+
+  /**
+   * Runs the job of <code>conf</code> and waits for it to complete. The exception of a failed task
+   * is thrown by this method.
+   */
+  public static void run(JobConf conf) throws Exception
+  {
+    new ThreadedJobRunner(conf).run();
+  }
+
+  protected void run() throws Exception
+  {
+    // tasks of the same job share compiled functions, see TaskCache
+    conf.set("mapred.job.id", jobId.toString());
+    InputFormat<?, ?> inFormat = conf.getInputFormat();
+    final InputSplit[] splits = inFormat.getSplits(conf, conf.getNumMapTasks());
+    conf.getOutputFormat().checkOutputSpecs(fs, conf);
+    committer = conf.getOutputCommitter();
+    JobContext jobContext = new ExposeJobContext(conf, jobId);
+    committer.setupJob(jobContext);
+    LOG.info("running job " + jobId + " with " + splits.length + " map tasks and "
+        + numReduces + " reduce tasks");
+    try
+    {
+      runTasks(splits.length, new Task() {
+        public void run(int i) throws Exception
+        {
+          runMap(i, splits[i]);
+        }
+      });
+      runTasks(numReduces, new Task() {
+        public void run(int i) throws Exception
+        {
+          runReduce(i);
+        }
+      });
+    }
+    finally
+    {
+      committer.cleanupJob(jobContext);
+      for (Run run : runs)
+      {
+        run.delete();
+      }
+    }
+  }
+
+  protected static interface Task
+  {
+    void run(int i) throws Exception;
+  }
+
+  /**
+   * Runs <code>task</code> for 0..n-1 on up to {@link #threads} threads, and waits for all of them
+   * to complete.
+   */
+  protected void runTasks(final int n, final Task task) throws Exception
+  {
+    final AtomicInteger next = new AtomicInteger();
+    int numThreads = Math.min(n, threads);
+    final CountDownLatch done = new CountDownLatch(numThreads);
+    for (int t = 0; t < numThreads; t++)
+    {
+      SharedExecutor.CALLER_RUNS_WHEN_BUSY.execute(new Runnable() {
+        public void run()
+        {
+          try
+          {
+            for (int i = next.getAndIncrement(); i < n && failure == null; i = next.getAndIncrement())
+            {
+              task.run(i);
+            }
+          }
+          catch (Throwable e)
+          {
+            fail(e);
+          }
+          finally
+          {
+            done.countDown();
+          }
+        }
+      });
+    }
+    boolean interrupted = false;
+    while (true)
+    {
+      try
+      {
+        done.await();
+        break;
+      }
+      catch (InterruptedException e)
+      {
+        // the remaining tasks are not started, but the running ones still write their output
+        fail(e);
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+    {
+      Thread.currentThread().interrupt();
+    }
+    if (failure != null)
+    {
+      // like JobClient.runJob; the error of the task has been logged
+      throw new IOException("Job failed!");
+    }
+  }
+
+  protected synchronized void fail(Throwable e)
+  {
+    if (failure == null)
+    {
+      LOG.error("job " + jobId + " failed", e);
+      failure = e;
+    }
+  }
+
+  /** Returns the configuration of a task of this job. */
+  protected JobConf taskConf(TaskAttemptID taskId, int partition)
+  {
+    JobConf taskConf = new JobConf(conf);
+    taskConf.set("mapred.tip.id", taskId.getTaskID().toString());
+    taskConf.set("mapred.task.id", taskId.toString());
+    taskConf.setBoolean("mapred.task.is.map", taskId.isMap());
+    taskConf.setInt("mapred.task.partition", partition);
+    return taskConf;
+  }
+
+  protected static String partName(int partition)
+  {
+    return String.format("part-%05d", partition);
+  }
+
+  protected void runMap(int i, InputSplit split) throws Exception
+  {
+    TaskAttemptID taskId = new TaskAttemptID(new TaskID(jobId, true, i), 0);
+    JobConf taskConf = taskConf(taskId, i);
+    TaskAttemptContext taskContext = new ExposeTaskAttemptContext(taskConf, taskId);
+    committer.setupTask(taskContext);
+    Globals.TaskConf outer = Globals.beginTask(taskConf);
+    RecordReader<Object, Object> reader = null;
+    try
+    {
+      reader = recordReader(taskConf, split);
+      MapRunnable<Object, Object, Object, Object> mapper =
+        newInstance(taskConf.getMapRunnerClass(), taskConf);
+      if (numReduces == 0)
+      {
+        RecordWriter<Object, Object> writer = recordWriter(taskConf, i);
+        try
+        {
+          mapper.run(reader, new WriterCollector(writer), Reporter.NULL);
+        }
+        finally
+        {
+          writer.close(Reporter.NULL);
+        }
+        commit(taskContext);
+      }
+      else
+      {
+        MapOutput output = new MapOutput(taskConf);
+        mapper.run(reader, output, Reporter.NULL);
+        output.flush();
+      }
+    }
+    catch (Throwable e)
+    {
+      committer.abortTask(taskContext);
+      throw e instanceof Exception ? (Exception)e : new RuntimeException(e);
+    }
+    finally
+    {
+      if (reader != null)
+      {
+        reader.close();
+      }
+      Globals.endTask(outer);
+    }
+  }
+
+  protected void runReduce(int r) throws Exception
+  {
+    TaskAttemptID taskId = new TaskAttemptID(new TaskID(jobId, false, r), 0);
+    JobConf taskConf = taskConf(taskId, r);
+    TaskAttemptContext taskContext = new ExposeTaskAttemptContext(taskConf, taskId);
+    committer.setupTask(taskContext);
+    Globals.TaskConf outer = Globals.beginTask(taskConf);
+    ArrayList<Segment> segments = new ArrayList<Segment>();
+    ArrayList<Run> merged = new ArrayList<Run>();
+    try
+    {
+      ArrayList<Run> fileRuns = new ArrayList<Run>();
+      for (Run run : runs)
+      {
+        if (run.isEmpty(r))
+        {
+          continue;
+        }
+        if (run.file == null)
+        {
+          segments.add(run.open(r));
+        }
+        else
+        {
+          fileRuns.add(run);
+        }
+      }
+      for (Run run : mergeFiles(taskConf, r, fileRuns, merged))
+      {
+        segments.add(run.open(r));
+      }
+      RecordWriter<Object, Object> writer = recordWriter(taskConf, r);
+      try
+      {
+        Reducer<Object, Object, Object, Object> reducer =
+          newInstance(taskConf.getReducerClass(), taskConf);
+        reduce(taskConf, new Merger(segments, taskConf.getOutputKeyComparator()),
+            taskConf.getOutputValueGroupingComparator(), reducer, new WriterCollector(writer));
+      }
+      finally
+      {
+        writer.close(Reporter.NULL);
+      }
+      commit(taskContext);
+    }
+    catch (Throwable e)
+    {
+      committer.abortTask(taskContext);
+      throw e instanceof Exception ? (Exception)e : new RuntimeException(e);
+    }
+    finally
+    {
+      for (Segment s : segments)
+      {
+        s.close();
+      }
+      for (Run run : merged)
+      {
+        run.delete();
+      }
+      Globals.endTask(outer);
+    }
+  }
+
+  /** Returns a new instance of <code>cls</code>, configured by <code>conf</code>. */
+  @SuppressWarnings("unchecked")
+  protected static <T> T newInstance(Class<?> cls, JobConf conf)
+  {
+    return (T)ReflectionUtils.newInstance(cls, conf);
+  }
+
+  @SuppressWarnings("unchecked")
+  protected static RecordReader<Object, Object> recordReader(JobConf taskConf, InputSplit split)
+    throws IOException
+  {
+    return taskConf.getInputFormat().getRecordReader(split, taskConf, Reporter.NULL);
+  }
+
+  /** Returns the writer of the output part <code>partition</code> of the job. */
+  @SuppressWarnings("unchecked")
+  protected RecordWriter<Object, Object> recordWriter(JobConf taskConf, int partition)
+    throws IOException
+  {
+    return taskConf.getOutputFormat().getRecordWriter(fs, taskConf, partName(partition),
+        Reporter.NULL);
+  }
+
+  @SuppressWarnings("unchecked")
+  protected static Serializer<Object> serializer(SerializationFactory factory, Class<?> cls)
+  {
+    return factory.getSerializer((Class<Object>)cls);
+  }
+
+  @SuppressWarnings("unchecked")
+  protected static Deserializer<Object> deserializer(SerializationFactory factory, Class<?> cls)
+  {
+    return factory.getDeserializer((Class<Object>)cls);
+  }
+
+  /**
+   * Merges the runs of partition <code>r</code> in local files, <code>io.sort.factor</code> at a
+   * time, until at most that many are left, and returns those. The runs that it writes are added
+   * to <code>merged</code>.
+   */
+  protected ArrayList<Run> mergeFiles(JobConf taskConf, int r, ArrayList<Run> fileRuns,
+      ArrayList<Run> merged) throws IOException
+  {
+    int factor = Math.max(2, taskConf.getInt("io.sort.factor", 10));
+    RawComparator<?> comparator = taskConf.getOutputKeyComparator();
+    LinkedList<Run> left = new LinkedList<Run>(fileRuns);
+    while (left.size() > factor)
+    {
+      Run run = new Run(new long[numReduces + 1]);
+      run.file = localFile();
+      merged.add(run);
+      ArrayList<Segment> segments = new ArrayList<Segment>(factor);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(run.file), 64 * 1024));
+      try
+      {
+        for (int i = 0; i < factor; i++)
+        {
+          segments.add(left.removeFirst().open(r));
+        }
+        Merger merger = new Merger(segments, comparator);
+        for (Segment s = merger.next(); s != null; s = merger.next())
+        {
+          writeRecord(out, s.buf, s.keyStart, s.valueStart, s.valueStart + s.valueLength);
+        }
+      }
+      finally
+      {
+        out.close();
+        for (Segment s : segments)
+        {
+          s.close();
+        }
+      }
+      Arrays.fill(run.starts, r + 1, run.starts.length, run.file.length());
+      left.addLast(run);
+    }
+    return new ArrayList<Run>(left);
+  }
+
+  /** Returns a new local file for a run. */
+  protected File localFile() throws IOException
+  {
+    return new File(conf.getLocalPath("jaqllocal/" + jobId + "/run"
+        + jobCounter.incrementAndGet()).toUri().getPath());
+  }
+
+  protected void commit(TaskAttemptContext taskContext) throws IOException
+  {
+    if (committer.needsTaskCommit(taskContext))
+    {
+      committer.commitTask(taskContext);
+    }
+  }
+
+  /**
+   * Calls <code>reducer</code> for each group of the sorted records of <code>input</code>, and
+   * closes it.
+   */
+  protected static void reduce(JobConf taskConf, Merger input, RawComparator<?> groupComparator,
+      Reducer<Object, Object, Object, Object> reducer, OutputCollector<Object, Object> output)
+    throws IOException
+  {
+    SerializationFactory factory = new SerializationFactory(taskConf);
+    Deserializer<Object> keyIn = deserializer(factory, taskConf.getMapOutputKeyClass());
+    Deserializer<Object> valueIn = deserializer(factory, taskConf.getMapOutputValueClass());
+    ValuesIterator values = new ValuesIterator(input, groupComparator, keyIn, valueIn);
+    try
+    {
+      while (values.nextGroup())
+      {
+        reducer.reduce(values.key, values, output, Reporter.NULL);
+        while (values.hasNext())
+        {
+          values.next(); // skip the values that the reducer did not read
+        }
+      }
+    }
+    finally
+    {
+      reducer.close();
+    }
+  }
+
+  /**
+   * Keeps <code>run</code> in memory if the memory limit allows, otherwise writes it to a local
+   * file, and adds it to the map output.
+   */
+  protected void addRun(DataOutputBuffer data, long[] starts) throws IOException
+  {
+    Run run = new Run(starts);
+    long size = data.getData().length;
+    boolean inMemory;
+    synchronized (this)
+    {
+      inMemory = memoryUsed + size <= memory / 2;
+      if (inMemory)
+      {
+        memoryUsed += size;
+      }
+    }
+    if (inMemory)
+    {
+      run.data = data.getData();
+    }
+    else
+    {
+      run.file = localFile();
+      FileOutputStream out = new FileOutputStream(run.file);
+      try
+      {
+        out.write(data.getData(), 0, data.getLength());
+      }
+      finally
+      {
+        out.close();
+      }
+    }
+    synchronized (runs)
+    {
+      runs.add(run);
+    }
+  }
+
+  /** Writes the records of a task to the output of the job. */
+  protected static class WriterCollector implements OutputCollector<Object, Object>
+  {
+    protected RecordWriter<Object, Object> writer;
+
+    public WriterCollector(RecordWriter<Object, Object> writer)
+    {
+      this.writer = writer;
+    }
+
+    public void collect(Object key, Object value) throws IOException
+    {
+      writer.write(key, value);
+    }
+  }
+
+  /**
+   * Collects the output of a map task in a buffer, which is sorted, combined and added as a run
+   * to the map output whenever it is full.
+   */
+  protected class MapOutput implements OutputCollector<Object, Object>, IndexedSortable
+  {
+    protected JobConf taskConf;
+    protected Partitioner<Object, Object> partitioner;
+    protected RawComparator<?> comparator;
+    protected Class<?> combinerClass;
+    protected Serializer<Object> keyOut;
+    protected Serializer<Object> valueOut;
+    protected int maxSize;
+
+    protected DataOutputBuffer data = new DataOutputBuffer();
+    /** partition, key start, value start and end of each record */
+    protected int[] meta = new int[4 * 1024];
+    /** the records in sort order */
+    protected int[] index = new int[1024];
+    protected int count;
+
+    public MapOutput(JobConf taskConf) throws IOException
+    {
+      this.taskConf = taskConf;
+      partitioner = newInstance(taskConf.getPartitionerClass(), taskConf);
+      comparator = taskConf.getOutputKeyComparator();
+      combinerClass = taskConf.getCombinerClass();
+      SerializationFactory factory = new SerializationFactory(taskConf);
+      keyOut = serializer(factory, taskConf.getMapOutputKeyClass());
+      valueOut = serializer(factory, taskConf.getMapOutputValueClass());
+      keyOut.open(data);
+      valueOut.open(data);
+      maxSize = (int)Math.min(Integer.MAX_VALUE / 2, memory / (4 * threads));
+    }
+
+    public void collect(Object key, Object value) throws IOException
+    {
+      int p = partitioner.getPartition(key, value, numReduces);
+      if (p < 0 || p >= numReduces)
+      {
+        throw new IOException("illegal partition " + p + " for key " + key);
+      }
+      if (4 * count == meta.length)
+      {
+        int[] m = new int[2 * meta.length];
+        System.arraycopy(meta, 0, m, 0, meta.length);
+        meta = m;
+        index = new int[2 * index.length];
+      }
+      int m = 4 * count++;
+      meta[m] = p;
+      meta[m + 1] = data.getLength();
+      keyOut.serialize(key);
+      meta[m + 2] = data.getLength();
+      valueOut.serialize(value);
+      meta[m + 3] = data.getLength();
+      if (data.getLength() >= maxSize)
+      {
+        flush();
+      }
+    }
+
+    public int compare(int i, int j)
+    {
+      int mi = 4 * index[i];
+      int mj = 4 * index[j];
+      if (meta[mi] != meta[mj])
+      {
+        return meta[mi] < meta[mj] ? -1 : 1;
+      }
+      return compareKeys(mi, mj);
+    }
+
+    protected int compareKeys(int mi, int mj)
+    {
+      byte[] b = data.getData();
+      return comparator.compare(b, meta[mi + 1], meta[mi + 2] - meta[mi + 1],
+          b, meta[mj + 1], meta[mj + 2] - meta[mj + 1]);
+    }
+
+    public void swap(int i, int j)
+    {
+      int t = index[i];
+      index[i] = index[j];
+      index[j] = t;
+    }
+
+    /** Sorts and combines the buffered records and adds them to the map output as a run. */
+    public void flush() throws IOException
+    {
+      if (count == 0)
+      {
+        return;
+      }
+      for (int i = 0; i < count; i++)
+      {
+        index[i] = i;
+      }
+      new QuickSort().sort(this, 0, count);
+
+      DataOutputBuffer out = new DataOutputBuffer(data.getLength() + 8 * count);
+      long[] starts = new long[numReduces + 1];
+      RunCollector combineOut = null;
+      Reducer<Object, Object, Object, Object> combiner = null;
+      if (combinerClass != null)
+      {
+        combineOut = new RunCollector(taskConf, out);
+        combiner = newInstance(combinerClass, taskConf);
+      }
+      int p = 0;
+      int i = 0;
+      try
+      {
+        while (i < count)
+        {
+          int mi = 4 * index[i];
+          while (p <= meta[mi])
+          {
+            starts[p++] = out.getLength();
+          }
+          if (combiner == null)
+          {
+            writeRecord(out, data.getData(), meta[mi + 1], meta[mi + 2], meta[mi + 3]);
+            i++;
+          }
+          else
+          {
+            // combine the records with equal keys
+            int j = i + 1;
+            while (j < count && meta[4 * index[j]] == meta[mi]
+                && compareKeys(mi, 4 * index[j]) == 0)
+            {
+              j++;
+            }
+            combine(combiner, combineOut, i, j);
+            i = j;
+          }
+        }
+      }
+      finally
+      {
+        if (combiner != null)
+        {
+          combiner.close();
+        }
+      }
+      while (p <= numReduces)
+      {
+        starts[p++] = out.getLength();
+      }
+      addRun(out, starts);
+      data.reset();
+      count = 0;
+    }
+
+    protected void combine(Reducer<Object, Object, Object, Object> combiner, RunCollector out,
+        int from, int to)
+      throws IOException
+    {
+      Segment s = new IndexSegment(from, to);
+      s.next();
+      ArrayList<Segment> one = new ArrayList<Segment>(1);
+      one.add(s);
+      ValuesIterator values = new ValuesIterator(new Merger(one, comparator), comparator,
+          out.keyIn, out.valueIn);
+      values.nextGroup();
+      combiner.reduce(values.key, values, out, Reporter.NULL);
+    }
+
+    /** The sorted records index[from..to) of this buffer. */
+    protected class IndexSegment extends Segment
+    {
+      protected int i;
+      protected int to;
+
+      public IndexSegment(int from, int to)
+      {
+        this.i = from - 1;
+        this.to = to;
+        this.buf = data.getData();
+      }
+
+      @Override
+      public boolean next()
+      {
+        if (++i >= to)
+        {
+          return false;
+        }
+        int m = 4 * index[i];
+        keyStart = meta[m + 1];
+        keyLength = meta[m + 2] - keyStart;
+        valueStart = meta[m + 2];
+        valueLength = meta[m + 3] - valueStart;
+        return true;
+      }
+    }
+  }
+
+  /** Writes a record to a run: the lengths of its key and value, followed by both. */
+  protected static void writeRecord(DataOutput out, byte[] b, int keyStart,
+      int valueStart, int end) throws IOException
+  {
+    WritableUtils.writeVInt(out, valueStart - keyStart);
+    WritableUtils.writeVInt(out, end - valueStart);
+    out.write(b, keyStart, end - keyStart);
+  }
+
+  /** Serializes the output of a combiner into a run. */
+  protected static class RunCollector implements OutputCollector<Object, Object>
+  {
+    protected DataOutputBuffer out;
+    protected DataOutputBuffer record = new DataOutputBuffer();
+    protected Serializer<Object> keyOut;
+    protected Serializer<Object> valueOut;
+    protected Deserializer<Object> keyIn;
+    protected Deserializer<Object> valueIn;
+
+    public RunCollector(JobConf conf, DataOutputBuffer out) throws IOException
+    {
+      this.out = out;
+      SerializationFactory factory = new SerializationFactory(conf);
+      keyOut = serializer(factory, conf.getMapOutputKeyClass());
+      valueOut = serializer(factory, conf.getMapOutputValueClass());
+      keyOut.open(record);
+      valueOut.open(record);
+      keyIn = deserializer(factory, conf.getMapOutputKeyClass());
+      valueIn = deserializer(factory, conf.getMapOutputValueClass());
+    }
+
+    public void collect(Object key, Object value) throws IOException
+    {
+      record.reset();
+      keyOut.serialize(key);
+      int valueStart = record.getLength();
+      valueOut.serialize(value);
+      writeRecord(out, record.getData(), 0, valueStart, record.getLength());
+    }
+  }
+
+  /**
+   * The sorted output of a map task, partitioned by reduce task, in memory or in a local file.
+   */
+  protected static class Run
+  {
+    /** the records of partition p are at starts[p]..starts[p+1] */
+    protected long[] starts;
+    protected byte[] data;
+    protected File file;
+
+    public Run(long[] starts)
+    {
+      this.starts = starts;
+    }
+
+    /** Returns true if there are no records of partition <code>p</code>. */
+    public boolean isEmpty(int p)
+    {
+      return starts[p] == starts[p + 1];
+    }
+
+    /** Returns the records of partition <code>p</code>, or null if there are none. */
+    public Segment open(int p) throws IOException
+    {
+      if (isEmpty(p))
+      {
+        return null;
+      }
+      Segment s = data != null ? new MemorySegment(data, (int)starts[p], (int)starts[p + 1])
+          : new FileSegment(file, starts[p], starts[p + 1]);
+      s.next();
+      return s;
+    }
+
+    public void delete()
+    {
+      if (file != null)
+      {
+        file.delete();
+        file.getParentFile().delete(); // once it is empty
+      }
+    }
+  }
+
+  /**
+   * A sorted sequence of records. The key and value of the current record are in
+   * <code>buf</code>.
+   */
+  protected static abstract class Segment
+  {
+    protected byte[] buf;
+    protected int keyStart;
+    protected int keyLength;
+    protected int valueStart;
+    protected int valueLength;
+
+    /** Moves to the next record and returns true, or returns false if there is none. */
+    public abstract boolean next() throws IOException;
+
+    public void close() throws IOException
+    {
+    }
+  }
+
+  protected static class MemorySegment extends Segment
+  {
+    protected int pos;
+    protected int end;
+
+    public MemorySegment(byte[] data, int start, int end)
+    {
+      this.buf = data;
+      this.pos = start;
+      this.end = end;
+    }
+
+    @Override
+    public boolean next() throws IOException
+    {
+      if (pos >= end)
+      {
+        return false;
+      }
+      keyLength = WritableComparator.readVInt(buf, pos);
+      pos += WritableUtils.decodeVIntSize(buf[pos]);
+      valueLength = WritableComparator.readVInt(buf, pos);
+      pos += WritableUtils.decodeVIntSize(buf[pos]);
+      keyStart = pos;
+      valueStart = pos + keyLength;
+      pos = valueStart + valueLength;
+      return true;
+    }
+  }
+
+  protected static class FileSegment extends Segment
+  {
+    protected DataInputStream in;
+    protected long remaining;
+
+    public FileSegment(File file, long start, long end) throws IOException
+    {
+      FileInputStream fin = new FileInputStream(file);
+      fin.getChannel().position(start);
+      in = new DataInputStream(new BufferedInputStream(fin, 64 * 1024));
+      remaining = end - start;
+      buf = new byte[1024];
+    }
+
+    @Override
+    public boolean next() throws IOException
+    {
+      if (remaining <= 0)
+      {
+        return false;
+      }
+      keyLength = WritableUtils.readVInt(in);
+      valueLength = WritableUtils.readVInt(in);
+      int n = keyLength + valueLength;
+      if (buf.length < n)
+      {
+        buf = new byte[Math.max(n, 2 * buf.length)];
+      }
+      in.readFully(buf, 0, n);
+      keyStart = 0;
+      valueStart = keyLength;
+      remaining -= WritableUtils.getVIntSize(keyLength) + WritableUtils.getVIntSize(valueLength) + n;
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      in.close();
+    }
+  }
+
+  /** Merges sorted segments, each of which is positioned on its first record. */
+  protected static class Merger
+  {
+    protected PriorityQueue<Segment> queue;
+    protected Segment current;
+
+    public Merger(ArrayList<Segment> segments, final RawComparator<?> comparator)
+    {
+      queue = new PriorityQueue<Segment>(Math.max(1, segments.size()), new Comparator<Segment>() {
+        public int compare(Segment x, Segment y)
+        {
+          return comparator.compare(x.buf, x.keyStart, x.keyLength, y.buf, y.keyStart, y.keyLength);
+        }
+      });
+      queue.addAll(segments);
+    }
+
+    /** Moves to the next record and returns its segment, or returns null at the end. */
+    public Segment next() throws IOException
+    {
+      if (current != null && current.next())
+      {
+        queue.add(current);
+      }
+      current = queue.poll();
+      return current;
+    }
+  }
+
+  /**
+   * Iterates over the values of a group of records with keys that are equal by the grouping
+   * comparator. As in Hadoop, the key and value objects are reused, and the key is updated with
+   * each value.
+   */
+  protected static class ValuesIterator implements Iterator<Object>
+  {
+    protected Merger input;
+    protected RawComparator<?> groupComparator;
+    protected Deserializer<Object> keyIn;
+    protected Deserializer<Object> valueIn;
+    protected DataInputBuffer keyBuffer = new DataInputBuffer();
+    protected DataInputBuffer valueBuffer = new DataInputBuffer();
+    protected DataOutputBuffer groupKey = new DataOutputBuffer();
+    protected Segment next;
+    protected boolean hasNext;
+    protected Object key;
+    protected Object value;
+
+    public ValuesIterator(Merger input, RawComparator<?> groupComparator,
+        Deserializer<Object> keyIn, Deserializer<Object> valueIn) throws IOException
+    {
+      this.input = input;
+      this.groupComparator = groupComparator;
+      this.keyIn = keyIn;
+      this.valueIn = valueIn;
+      keyIn.open(keyBuffer);
+      valueIn.open(valueBuffer);
+      next = input.next();
+    }
+
+    /** Moves to the next group, if any, and reads its first key. */
+    public boolean nextGroup() throws IOException
+    {
+      if (next == null)
+      {
+        return false;
+      }
+      groupKey.reset();
+      groupKey.write(next.buf, next.keyStart, next.keyLength);
+      readKey();
+      hasNext = true;
+      return true;
+    }
+
+    protected void readKey() throws IOException
+    {
+      keyBuffer.reset(next.buf, next.keyStart, next.keyLength);
+      key = keyIn.deserialize(key);
+    }
+
+    public boolean hasNext()
+    {
+      return hasNext;
+    }
+
+    public Object next()
+    {
+      if (!hasNext)
+      {
+        throw new NoSuchElementException();
+      }
+      try
+      {
+        readKey();
+        valueBuffer.reset(next.buf, next.valueStart, next.valueLength);
+        value = valueIn.deserialize(value);
+        next = input.next();
+        hasNext = next != null && groupComparator.compare(groupKey.getData(), 0,
+            groupKey.getLength(), next.buf, next.keyStart, next.keyLength) == 0;
+        return value;
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -66,9 +66,30 @@ public class Util {
 		STATUS_LOG.info(String.format(mapReduceInfoFmt, submitClassName, INFO, jobId, jobName, trackingUrl));
 	}
 	
+	/**
+	 * Submits the job of <code>conf</code> and waits for it to complete. If the waiting thread is
+	 * interrupted, e.g., because a concurrent job of the same {@link com.ibm.jaql.job.JobGraph}
+	 * failed, the job is killed. Local jobs are run by a {@link ThreadedJobRunner} if it accepts
+	 * them.
+	 */
 	public static void submitJob(JsonString submitClassName, JobConf conf) throws Exception {
-		JobClient jc = new JobClient(conf);
-		RunningJob rj = jc.submitJob(conf);
+		if (ThreadedJobRunner.accepts(conf)) {
+			String sc = JsonUtil.printToString(submitClassName);
+			mrStatusStart(sc);
+			try {
+				ThreadedJobRunner.run(conf);
+			} finally {
+				mrStatusStop(sc);
+			}
+			return;
+		}
+		JobClient jc;
+		RunningJob rj;
+		// the local job runner does not assign job ids atomically
+		synchronized (Util.class) {
+			jc = new JobClient(conf);
+			rj = jc.submitJob(conf);
+		}
 		String sc = JsonUtil.printToString(submitClassName);
 		
 		// log to status that a MR job is starting
@@ -88,6 +109,9 @@ public class Util {
 				//throw new IOException("Job failed!");
 			}
 		} catch (InterruptedException ie) {
+			LOG.info("killing job " + rj.getID());
+			rj.killJob();
+			failed = true;
 			Thread.currentThread().interrupt();
 		}
 
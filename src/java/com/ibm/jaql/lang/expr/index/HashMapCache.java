@@ -15,6 +15,7 @@
  */
 package com.ibm.jaql.lang.expr.index;
 
+import java.io.IOException;
 import java.util.HashMap;
 
 import com.ibm.jaql.io.serialization.binary.BinaryFullSerializer;
@@ -24,12 +25,13 @@ import com.ibm.jaql.json.schema.Schema;
 import com.ibm.jaql.json.type.JsonLong;
 import com.ibm.jaql.json.type.JsonSchema;
 import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.lang.util.MappedHashTable;
 
 //TODO: Make the server json-free?
 //table id => string
 //key => just hash code (so dups are ok)
 //value => binary string
-//TODO: Should the values live in large byte buffers?
+//keys and values live serialized in a MappedHashTable, off the heap
 
 class HashMapCache
 {
@@ -44,7 +46,7 @@ class HashMapCache
     protected long buildTime = 0;
     protected long lastUsed = System.currentTimeMillis();
     protected long lastReleased = lastUsed;
-    protected HashMap<JsonValue,byte[]> table = new HashMap<JsonValue, byte[]>();
+    protected MappedHashTable table; // created by setSchema
     protected BinaryFullSerializer keySerializer;
     protected BinaryFullSerializer valueSerializer;
     protected JsonValue schema;
@@ -59,7 +61,7 @@ class HashMapCache
       return buildTime > 0;
     }
 
-    public void setSchema(JsonSchema jschema)
+    public void setSchema(JsonSchema jschema) throws IOException
     {
       ArraySchema aschema = (ArraySchema)jschema.get();
       Schema keySchema = aschema.element(JsonLong.ZERO);
@@ -67,6 +69,17 @@ class HashMapCache
       this.schema = jschema;
       this.keySerializer = new TempBinaryFullSerializer(keySchema);
       this.valueSerializer = new TempBinaryFullSerializer(valueSchema);
+      this.table = new MappedHashTable(null);
+    }
+
+    /** Drops the entries of a table that was not completely built. */
+    protected void discard()
+    {
+      if( table != null )
+      {
+        table.close();
+        table = null;
+      }
     }
   }
 
@@ -108,7 +121,7 @@ class HashMapCache
         t.wait(buildTimeout); // could raise timeout exception
         if( ! t.isBuilt() ) // somebody failed to build the table, so we have to do it
         {
-          assert t.table.isEmpty();
+          assert t.table == null;
           return t;
         }
         t.lastUsed = System.currentTimeMillis();
@@ -142,7 +155,7 @@ class HashMapCache
       if( ! t.isBuilt() )
       {
         // This thread was building the table, but didn't finish the job
-        t.table.clear();
+        t.discard();
         if( t.pinCount == 0 )
         {
           // nobody is waiting, so remove the table from the cache
@@ -29,7 +29,6 @@ import org.apache.hadoop.io.DataOutputBuffer;
 import com.ibm.jaql.io.serialization.binary.BinaryFullSerializer;
 import com.ibm.jaql.json.type.JsonSchema;
 import com.ibm.jaql.json.type.JsonString;
-import com.ibm.jaql.json.type.JsonValue;
 import com.ibm.jaql.util.BaseUtil;
 
 
@@ -51,8 +50,8 @@ public class HashtableServer implements HashtableConstants, Runnable
   @Override
   public void run()
   {
-    JsonValue readKey = null;
-    JsonValue[] keys = new JsonValue[0];
+    DataOutputBuffer keyBuf = new DataOutputBuffer();
+    int[] keyEnds = new int[0];
     
     try
     {
@@ -64,16 +63,17 @@ public class HashtableServer implements HashtableConstants, Runnable
           // GET Key -> FOUND Value | NOT_FOUND
           case GET_CMD:
           {
-            readKey = table.keySerializer.read(in, readKey);
-            byte[] value = table.table.get(readKey);
-            if( value == null )
+            keyBuf.reset();
+            table.keySerializer.copy(in, keyBuf);
+            long pos = table.table.find(keyBuf.getData(), 0, keyBuf.getLength());
+            if( pos < 0 )
             {
               out.write( NOT_FOUND_CMD );
             }
             else
             {
               out.write( FOUND_CMD );
-              out.write(value);
+              table.table.writeValue(pos, out);
             }
             break;
           }
@@ -81,28 +81,30 @@ public class HashtableServer implements HashtableConstants, Runnable
           case GETN_CMD:
           {
             int n = BaseUtil.readVUInt(in);
-            if( n > keys.length ||    // bigger array required
-                3 * n < keys.length ) // array is way too big
+            if( n > keyEnds.length ||    // bigger array required
+                3 * n < keyEnds.length ) // array is way too big
             {
-              keys = new JsonValue[n];
+              keyEnds = new int[n];
             }
+            keyBuf.reset();
             for(int i = 0 ; i < n ; i++)
             {
-              keys[i] = table.keySerializer.read(in, keys[i]);
+              table.keySerializer.copy(in, keyBuf);
+              keyEnds[i] = keyBuf.getLength();
             }
             out.write( OK_CMD );
             BaseUtil.writeVUInt(out,n);
-            for(int i = 0 ; i < n ; i++)
+            for(int i = 0, start = 0 ; i < n ; start = keyEnds[i++])
             {
-              byte[] value = table.table.get(keys[i]);
-              if( value == null )
+              long pos = table.table.find(keyBuf.getData(), start, keyEnds[i] - start);
+              if( pos < 0 )
               {
                 out.write( NOT_FOUND_CMD );
               }
               else
               {
                 out.write( FOUND_CMD );
-                out.write(value);
+                table.table.writeValue(pos, out);
               }
             }
             out.write( OK_CMD );
@@ -153,14 +155,13 @@ public class HashtableServer implements HashtableConstants, Runnable
 
               while( (command = in.readByte()) == PUT_CMD )
               {
-                // TODO: we need to use a spilling hashtable to avoid memory overflows...
-                // TODO: we could at least pack the values more tightly 
+                // keys and values stay serialized; the table is off-heap and spills to disk
                 buf.reset();
-                JsonValue key = table.keySerializer.read(in, null); // Be sure NOT to reuse the key here!
+                table.keySerializer.copy(in, buf);
+                int keyLen = buf.getLength();
                 table.valueSerializer.copy(in, buf);
-                byte[] val = new byte[buf.getLength()];
-                System.arraycopy(buf.getData(), 0, val, 0, val.length);
-                table.table.put(key, val);
+                table.table.put(buf.getData(), 0, keyLen, 
+                                buf.getData(), keyLen, buf.getLength() - keyLen);
               }
               if( command != OK_CMD )
               {
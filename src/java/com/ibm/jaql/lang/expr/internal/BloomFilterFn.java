@@ -0,0 +1,71 @@
+package com.ibm.jaql.lang.expr.internal;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+
+import com.ibm.jaql.json.type.JsonBinary;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.json.util.JsonIterator;
+import com.ibm.jaql.lang.core.Context;
+import com.ibm.jaql.lang.expr.core.Expr;
+import com.ibm.jaql.lang.expr.function.DefaultBuiltInFunctionDescriptor;
+import com.ibm.jaql.lang.util.JsonBloomFilter;
+import com.ibm.jaql.util.LongArray;
+
+/**
+ * binary bloomFilter(array keys)
+ * 
+ * An internal function that returns a {@link JsonBloomFilter} over the given keys in 
+ * serialized form. Use {@link InBloomFilterFn} to test membership. 
+ */
+public class BloomFilterFn extends Expr
+{
+  public static class Descriptor extends DefaultBuiltInFunctionDescriptor.Par11
+  {
+    public Descriptor()
+    {
+      super("bloomFilter", BloomFilterFn.class);
+    }
+  }
+  
+  /**
+   * @param exprs
+   */
+  public BloomFilterFn(Expr[] exprs)
+  {
+    super(exprs);
+  }
+
+  /**
+   * @param keys
+   */
+  public BloomFilterFn(Expr keys)
+  {
+    super(new Expr[] {keys});
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see com.ibm.jaql.lang.expr.core.Expr#eval(com.ibm.jaql.lang.core.Context)
+   */
+  public JsonBinary eval(Context context) throws Exception
+  {
+    // the filter is sized by the number of keys, so only keep their hash codes until then
+    LongArray hashes = new LongArray();
+    JsonIterator iter = exprs[0].iter(context);
+    for (JsonValue key : iter)
+    {
+      hashes.add(JsonBloomFilter.hash(key));
+    }
+    
+    int n = hashes.size();
+    JsonBloomFilter filter = new JsonBloomFilter(n);
+    for (int i = 0; i < n; i++)
+    {
+      filter.addHash((int)hashes.get(i));
+    }
+    DataOutputBuffer out = new DataOutputBuffer();
+    filter.write(out);
+    return new JsonBinary(out.getData(), out.getLength());
+  }
+}
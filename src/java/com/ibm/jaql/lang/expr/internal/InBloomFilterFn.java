@@ -0,0 +1,72 @@
+package com.ibm.jaql.lang.expr.internal;
+
+import org.apache.hadoop.io.DataInputBuffer;
+
+import com.ibm.jaql.json.type.JsonBinary;
+import com.ibm.jaql.json.type.JsonBool;
+import com.ibm.jaql.lang.core.Context;
+import com.ibm.jaql.lang.expr.core.Expr;
+import com.ibm.jaql.lang.expr.function.DefaultBuiltInFunctionDescriptor;
+import com.ibm.jaql.lang.util.JsonBloomFilter;
+
+/**
+ * boolean inBloomFilter(binary filter, any key)
+ * 
+ * An internal function that returns false if the key was definitely not added to a filter 
+ * produced by {@link BloomFilterFn}, and true otherwise. If the filter is null, true is 
+ * returned.
+ */
+public class InBloomFilterFn extends Expr
+{
+  public static class Descriptor extends DefaultBuiltInFunctionDescriptor.Par22
+  {
+    public Descriptor()
+    {
+      super("inBloomFilter", InBloomFilterFn.class);
+    }
+  }
+  
+  // the most recently used filter; it is usually the same value on every call
+  private JsonBinary      lastBinary;
+  private JsonBloomFilter filter;
+  
+  /**
+   * @param exprs
+   */
+  public InBloomFilterFn(Expr[] exprs)
+  {
+    super(exprs);
+  }
+
+  /**
+   * @param filter
+   * @param key
+   */
+  public InBloomFilterFn(Expr filter, Expr key)
+  {
+    super(new Expr[] {filter, key});
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see com.ibm.jaql.lang.expr.core.Expr#eval(com.ibm.jaql.lang.core.Context)
+   */
+  public JsonBool eval(Context context) throws Exception
+  {
+    JsonBinary bin = (JsonBinary)exprs[0].eval(context);
+    if (bin == null)
+    {
+      return JsonBool.TRUE;
+    }
+    if (bin != lastBinary)
+    {
+      DataInputBuffer in = new DataInputBuffer();
+      in.reset(bin.getInternalBytes(), bin.bytesOffset(), bin.bytesLength());
+      filter = new JsonBloomFilter();
+      filter.readFields(in);
+      lastBinary = bin;
+    }
+    return JsonBool.make(filter.mightContain(exprs[1].eval(context)));
+  }
+}
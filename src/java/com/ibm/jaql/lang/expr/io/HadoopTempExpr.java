@@ -16,17 +16,20 @@
 package com.ibm.jaql.lang.expr.io;
 
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
 import com.ibm.jaql.io.Adapter;
+import com.ibm.jaql.io.hadoop.DefaultHadoopInputAdapter;
 import com.ibm.jaql.json.schema.RecordSchema;
 import com.ibm.jaql.json.schema.Schema;
 import com.ibm.jaql.json.schema.SchemaFactory;
 import com.ibm.jaql.json.schema.StringSchema;
 import com.ibm.jaql.json.type.BufferedJsonRecord;
+import com.ibm.jaql.json.type.JsonBool;
 import com.ibm.jaql.json.type.JsonRecord;
 import com.ibm.jaql.json.type.JsonSchema;
 import com.ibm.jaql.json.type.JsonString;
@@ -37,10 +40,12 @@ import com.ibm.jaql.lang.expr.core.ExprProperty;
 import com.ibm.jaql.lang.expr.function.DefaultBuiltInFunctionDescriptor;
 import com.ibm.jaql.lang.expr.function.JsonValueParameter;
 import com.ibm.jaql.lang.expr.function.JsonValueParameters;
+import com.ibm.jaql.lang.util.JaqlUtil;
 import com.ibm.jaql.util.DeleteFileTask;
 
 /** Creates a file descriptor for temporary files used by Jaql. Takes a schema argument that
- * describes the schema of the individual values written to the file. */
+ * describes the schema of the individual values written to the file, and an optional flag
+ * that makes reads of the file preserve the order of its part files. */
 public class HadoopTempExpr extends Expr
 {
   public static final class Descriptor extends DefaultBuiltInFunctionDescriptor
@@ -51,11 +56,14 @@ public class HadoopTempExpr extends Expr
           "HadoopTemp",
           HadoopTempExpr.class,
           new JsonValueParameters(
-              new JsonValueParameter("schema", SchemaFactory.schematypeSchema(), new JsonSchema(SchemaFactory.anySchema()))),
+              new JsonValueParameter("schema", SchemaFactory.schematypeSchema(), new JsonSchema(SchemaFactory.anySchema())),
+              new JsonValueParameter("ordered", SchemaFactory.booleanSchema(), JsonBool.FALSE)),
           SchemaFactory.recordSchema());
     }
   }
   
+  /** numbers the temps of this JVM; jobs of a block may create their temps in the same tick */
+  private static final AtomicLong tempCounter = new AtomicLong();
   
   /**
    * @param exprs
@@ -75,6 +83,11 @@ public class HadoopTempExpr extends Expr
     this(new JsonSchema(schema));
   }
 
+  public HadoopTempExpr(Schema schema, boolean ordered)
+  {
+    this(new ConstExpr(new JsonSchema(schema)), new ConstExpr(JsonBool.make(ordered)));
+  }
+
   public Map<ExprProperty, Boolean> getProperties()
   {
     Map<ExprProperty, Boolean> result = super.getProperties();
@@ -134,13 +147,17 @@ public class HadoopTempExpr extends Expr
    */
   public JsonRecord eval(Context context) throws Exception
   {
-    String filename = "jaqltemp_" + System.nanoTime();     // FIXME: figure out where this should go
+    String filename = "jaqltemp_" + System.nanoTime() + "_" + tempCounter.incrementAndGet();     // FIXME: figure out where this should go
     BufferedJsonRecord r = new BufferedJsonRecord();
     r.add(Adapter.TYPE_NAME, new JsonString("jaqltemp"));
     r.add(Adapter.LOCATION_NAME, new JsonString(filename));
     BufferedJsonRecord options = new BufferedJsonRecord();
     JsonSchema schema = (JsonSchema)exprs[0].eval(context);
     options.add(new JsonString("schema"), schema);
+    if (exprs.length > 1 && JaqlUtil.ebv(exprs[1].eval(context)))
+    {
+      options.add(DefaultHadoopInputAdapter.PRESERVE_ORDER_OPTION, JsonBool.TRUE);
+    }
     r.add(Adapter.OPTIONS_NAME, options);
     
     Configuration conf = new Configuration(); // TODO: where to get this from?
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.rewrite;
+
+import java.util.ArrayList;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+
+import com.ibm.jaql.io.Adapter;
+import com.ibm.jaql.json.type.BufferedJsonRecord;
+import com.ibm.jaql.json.type.JsonBool;
+import com.ibm.jaql.json.type.JsonRecord;
+import com.ibm.jaql.json.type.JsonString;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.lang.expr.core.BindingExpr;
+import com.ibm.jaql.lang.expr.core.ConstExpr;
+import com.ibm.jaql.lang.expr.core.Expr;
+import com.ibm.jaql.lang.expr.core.ExprProperty;
+import com.ibm.jaql.lang.expr.core.JoinExpr;
+import com.ibm.jaql.lang.expr.core.NameValueBinding;
+import com.ibm.jaql.lang.expr.core.RecordExpr;
+import com.ibm.jaql.lang.expr.io.ReadFn;
+
+/**
+ * Broadcasts the small input of a two-way join to the map tasks of its large input, so that the
+ * join needs no shuffle:
+ *
+ *   join $i in read(I) -> m, $j in S where ei($i) == ej($j) into er($i,$j)
+ * ==>
+ *   join $i in read(I) -> m, $j in S where ei($i) == ej($j) options { broadcast: true } into er($i,$j)
+ *
+ * The large input is put first. Such a join is mappable over its first input, so ToMapReduce
+ * makes it part of the map function over I, and every map task loads S into the hash table of
+ * the join (see {@link JoinExpr#buildInput()}) before it streams its split against it.
+ *
+ * An input is small if the files it reads are at most <code>jaql.join.broadcast.threshold</code>
+ * bytes long (default 32 MB; 0 turns the rewrite off), or if the join has the option
+ * <code>broadcast: true</code>, in which case its second input is broadcast, or its first one if
+ * only that one can be. <code>broadcast: false</code> always keeps the shuffle. The small input
+ * must not be preserved, and it must not have side effects, be non-deterministic, or contain
+ * map-reduce jobs, because every map task evaluates it.
+ */
+public class JoinToBroadcast extends Rewrite
+{
+  /** system property with the maximum size of a broadcast input, in bytes */
+  public static final String THRESHOLD_PROPERTY = "jaql.join.broadcast.threshold";
+  public static final long DEFAULT_THRESHOLD = 32L << 20;
+
+  public JoinToBroadcast(RewritePhase phase)
+  {
+    super(phase, JoinExpr.class);
+  }
+
+  @Override
+  public boolean rewrite(Expr expr) throws Exception
+  {
+    JoinExpr join = (JoinExpr) expr;
+    if( join.numBindings() != 2 )
+    {
+      return false;
+    }
+    JsonValue hint = join.option(JoinExpr.BROADCAST_OPTION);
+    boolean forced = JsonBool.TRUE.equals(hint);
+    if( JsonBool.FALSE.equals(hint) )
+    {
+      return false;
+    }
+    if( join.isBroadcast() && canBroadcast(join, 1) )
+    {
+      return false;
+    }
+
+    long threshold = Long.getLong(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD);
+    int small = -1;
+    long smallSize = -1;
+    for( int i = 1 ; i >= 0 ; i-- )
+    {
+      if( canBroadcast(join, i) )
+      {
+        long size = estimateSize(join.binding(i).inExpr());
+        if( size >= 0 ? (size <= threshold || forced) && (small < 0 || size < smallSize) 
+                      : forced && small < 0 )
+        {
+          small = i;
+          smallSize = size;
+        }
+      }
+    }
+
+    if( small < 0 )
+    {
+      if( forced )
+      {
+        // the hint cannot be followed, so keep the join from being treated as a broadcast
+        return setOption(join, JsonBool.FALSE);
+      }
+      return false;
+    }
+    // the option marks the join as rewritten; without it, the join would be swapped again
+    if( !canSetOption(join) )
+    {
+      return false;
+    }
+    if( small == 0 )
+    {
+      join = swapInputs(join);
+    }
+    return setOption(join, JsonBool.TRUE);
+  }
+
+  /**
+   * Returns true if input i of a two-way join can be broadcast to the map tasks of the other one.
+   */
+  private boolean canBroadcast(JoinExpr join, int i)
+  {
+    BindingExpr b = join.binding(i);
+    Expr in = b.inExpr();
+    if( b.preserve ||
+        in.getProperty(ExprProperty.HAS_SIDE_EFFECTS, true).maybe() ||
+        in.getProperty(ExprProperty.IS_NONDETERMINISTIC, true).maybe() ||
+        mightContainMapReduce(in) )
+    {
+      return false;
+    }
+    Expr source = getMappableSource(join.binding(1 - i).inExpr());
+    return source instanceof ReadFn && ((ReadFn)source).isMapReducible();
+  }
+
+  /**
+   * Returns the total length of the files read by the pipeline <code>expr</code>, or -1 if 
+   * it is not known at compile time. Filters and projections above the read are ignored.
+   */
+  static long estimateSize(Expr expr)
+  {
+    Expr source = getMappableSource(expr);
+    if( !(source instanceof ReadFn) )
+    {
+      return -1;
+    }
+    try
+    {
+      Expr desc = ((ReadFn)source).descriptor();
+      JsonValue val;
+      if( desc instanceof ConstExpr )
+      {
+        val = ((ConstExpr)desc).value;
+      }
+      else if( desc.isCompileTimeComputable().always() )
+      {
+        val = desc.getEnvExpr().getEnv().eval(desc);
+      }
+      else
+      {
+        return -1;
+      }
+      if( !(val instanceof JsonRecord) )
+      {
+        return -1;
+      }
+      JsonValue location = ((JsonRecord)val).get(Adapter.LOCATION_NAME);
+      if( !(location instanceof JsonString) )
+      {
+        return -1;
+      }
+      Path path = new Path(location.toString());
+      FileSystem fs = path.getFileSystem(new JobConf());
+      FileStatus[] stats = fs.globStatus(path);
+      if( stats == null || stats.length == 0 )
+      {
+        return -1;
+      }
+      long size = 0;
+      for( FileStatus s : stats )
+      {
+        size += fs.getContentSummary(s.getPath()).getLength();
+      }
+      return size;
+    }
+    catch( Exception e )
+    {
+      return -1; // not a file, or not there yet
+    }
+  }
+
+  /** Replaces the join by one with its inputs swapped. */
+  private JoinExpr swapInputs(JoinExpr join)
+  {
+    ArrayList<BindingExpr> bindings = new ArrayList<BindingExpr>(2);
+    ArrayList<Expr> ons = new ArrayList<Expr>(2);
+    for( int i = 1 ; i >= 0 ; i-- )
+    {
+      bindings.add(join.binding(i));
+      ons.add(join.onExpr(i));
+    }
+    JoinExpr swapped = new JoinExpr(bindings, ons, join.optionsExpr(), join.collectExpr());
+    join.replaceInParent(swapped);
+    return swapped;
+  }
+
+  /**
+   * Returns true if the options of the join are known at compile time, so that its broadcast
+   * option can be set.
+   */
+  private static boolean canSetOption(JoinExpr join)
+  {
+    Expr opts = join.optionsExpr();
+    if( opts instanceof RecordExpr )
+    {
+      return true;
+    }
+    if( !(opts instanceof ConstExpr) )
+    {
+      return false;
+    }
+    JsonValue val = ((ConstExpr)opts).value;
+    return val == null || val instanceof JsonRecord;
+  }
+
+  /**
+   * Sets the broadcast option of the join. Returns false if the options are not known at
+   * compile time.
+   */
+  private static boolean setOption(JoinExpr join, JsonBool value) throws Exception
+  {
+    if( !canSetOption(join) )
+    {
+      return false;
+    }
+    Expr opts = join.optionsExpr();
+    if( opts instanceof RecordExpr )
+    {
+      RecordExpr rec = (RecordExpr)opts;
+      Expr old = rec.findStaticFieldValue(JoinExpr.BROADCAST_OPTION);
+      if( old != null )
+      {
+        old.replaceInParent(new ConstExpr(value));
+      }
+      else
+      {
+        Expr[] fields = new Expr[rec.numChildren() + 1];
+        for( int i = 0 ; i < rec.numChildren() ; i++ )
+        {
+          fields[i] = rec.child(i);
+        }
+        fields[fields.length - 1] = new NameValueBinding(JoinExpr.BROADCAST_OPTION, new ConstExpr(value));
+        rec.replaceInParent(new RecordExpr(fields));
+      }
+      return true;
+    }
+    JsonValue val = ((ConstExpr)opts).value;
+    BufferedJsonRecord rec = new BufferedJsonRecord();
+    if( val != null )
+    {
+      rec.setCopy((JsonRecord)val);
+    }
+    rec.set(JoinExpr.BROADCAST_OPTION, value);
+    opts.replaceInParent(new ConstExpr(rec));
+    return true;
+  }
+}
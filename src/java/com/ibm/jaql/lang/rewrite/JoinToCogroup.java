@@ -15,19 +15,31 @@
  */
 package com.ibm.jaql.lang.rewrite;
 
+import com.ibm.jaql.json.type.JsonBool;
+import com.ibm.jaql.json.type.JsonString;
+import com.ibm.jaql.json.type.JsonValue;
 import com.ibm.jaql.lang.core.Env;
 import com.ibm.jaql.lang.core.Var;
 import com.ibm.jaql.lang.expr.array.UnionFn;
 import com.ibm.jaql.lang.expr.core.BindingExpr;
 import com.ibm.jaql.lang.expr.core.ConstExpr;
+import com.ibm.jaql.lang.expr.core.DoExpr;
 import com.ibm.jaql.lang.expr.core.Expr;
+import com.ibm.jaql.lang.expr.core.ExprProperty;
+import com.ibm.jaql.lang.expr.core.FilterExpr;
 import com.ibm.jaql.lang.expr.core.ForExpr;
 import com.ibm.jaql.lang.expr.core.GroupByExpr;
 import com.ibm.jaql.lang.expr.core.IfExpr;
 import com.ibm.jaql.lang.expr.core.JoinExpr;
 import com.ibm.jaql.lang.expr.core.NotExpr;
 import com.ibm.jaql.lang.expr.core.OrExpr;
+import com.ibm.jaql.lang.expr.core.TransformExpr;
 import com.ibm.jaql.lang.expr.core.VarExpr;
+import com.ibm.jaql.lang.expr.internal.BloomFilterFn;
+import com.ibm.jaql.lang.expr.internal.InBloomFilterFn;
+import com.ibm.jaql.lang.expr.function.FunctionCallExpr;
+import com.ibm.jaql.lang.expr.function.JavaFunctionCallExpr;
+import com.ibm.jaql.lang.expr.io.AbstractReadExpr;
 import com.ibm.jaql.lang.expr.nil.IsnullExpr;
 import com.ibm.jaql.lang.expr.nil.NullElementOnEmptyFn;
 
@@ -36,6 +48,9 @@ import com.ibm.jaql.lang.expr.nil.NullElementOnEmptyFn;
  */
 public class JoinToCogroup extends Rewrite
 {
+  /** join option that requests a Bloom filter on the keys of the build input */
+  public static final JsonString BLOOM_OPTION = new JsonString("bloom");
+  
   /**
    * @param phase
    */
@@ -67,7 +82,20 @@ public class JoinToCogroup extends Rewrite
     //        ...
     //    where not(isnull($tg))
     //    return er($ui, $uj)
+    //
+    // With options { bloom: true } on a two-way join, the keys of the smaller (build) input
+    // are collected first, and the other (probe) input is filtered before grouping:
+    //
+    // ( $bloom = bloomFilter(ej1 -> transform ej2($)),
+    //   group each $ in
+    //       ei1 -> filter inBloomFilter($bloom, ei2($)) by $tg=ei2($) as $is
+    //       ...
     JoinExpr join = (JoinExpr) expr;
+    if( join.isBroadcast() )
+    {
+      // becomes part of the map function over its first input
+      return false;
+    }
 
     int n = join.numBindings();
     assert n > 1;
@@ -180,14 +208,111 @@ public class JoinToCogroup extends Rewrite
     groupCollect = new IfExpr(new NotExpr(new IsnullExpr(new VarExpr(byVar))),
         groupCollect, onNullKey);
 
+    BindingExpr bloomBinding = null;
+    if( n == 2 && useBloomFilter(join) )
+    {
+      bloomBinding = addBloomFilter(join, inputs, bys, inVar);
+    }
+
     BindingExpr inBinding = new BindingExpr(BindingExpr.Type.IN, inVar, null, inputs);
     BindingExpr byBinding = new BindingExpr(BindingExpr.Type.EQ, byVar, null, bys);
     Expr using = null; // TODO: take using from join
     Expr groupBy = new GroupByExpr(inBinding, byBinding, asVars, using, join.optionsExpr(), groupCollect);
     // groupBy = new UnnestExpr( groupBy );
+    if( bloomBinding != null )
+    {
+      groupBy = new DoExpr(bloomBinding, groupBy);
+    }
 
     join.replaceInParent(groupBy);
 
     return true;
   }
+  
+  /**
+   * Returns true if the options of the join contain <code>bloom: true</code>.
+   */
+  static boolean useBloomFilter(JoinExpr join)
+  {
+    JsonValue val = join.option(BLOOM_OPTION);
+    return val instanceof JsonBool && ((JsonBool)val).get();
+  }
+  
+  /**
+   * Filters the probe input of a two-way join by a Bloom filter on the keys of its build 
+   * input, as chosen by {@link JoinExpr#buildInput()}. The build input is evaluated one more
+   * time to compute the filter, so nothing is done if the probe input is preserved or if the 
+   * build input is not cheap to re-read (see {@link #isCheapToReread(Expr)}).
+   * 
+   * @return The binding of the filter variable, or null if no filter was added
+   */
+  private BindingExpr addBloomFilter(JoinExpr join, Expr[] inputs, Expr[] bys, Var inVar)
+  {
+    int build = join.buildInput();
+    int probe = 1 - build;
+    if( join.binding(probe).preserve ||
+        !isCheapToReread(inputs[build]) ||
+        inputs[build].getProperty(ExprProperty.HAS_SIDE_EFFECTS, true).maybe() ||
+        inputs[build].getProperty(ExprProperty.IS_NONDETERMINISTIC, true).maybe() ||
+        bys[probe].getProperty(ExprProperty.HAS_SIDE_EFFECTS, true).maybe() )
+    {
+      return null;
+    }
+    
+    Env env = engine.env;
+    Var bloomVar = env.makeVar("$bloom");
+    Var keyVar = env.makeVar("$bloom_in");
+    Expr key = cloneExpr(bys[build]);
+    key.replaceVar(inVar, keyVar);
+    Expr keys = new TransformExpr(keyVar, cloneExpr(inputs[build]), key);
+    
+    Var probeVar = env.makeVar("$bloom_in");
+    key = cloneExpr(bys[probe]);
+    key.replaceVar(inVar, probeVar);
+    inputs[probe] = new FilterExpr(probeVar, inputs[probe], 
+        new InBloomFilterFn(new VarExpr(bloomVar), key));
+    
+    return new BindingExpr(BindingExpr.Type.EQ, bloomVar, null, new BloomFilterFn(keys));
+  }
+  
+  /**
+   * Returns true if evaluating <code>input</code> a second time only repeats a scan of data
+   * that is already materialized: a constant, a variable, or a read of stored data, followed 
+   * by transforms and filters that call no functions. Any other input, e.g., a grouping, 
+   * would be computed twice, once for the filter and once for the join.
+   */
+  static boolean isCheapToReread(Expr input)
+  {
+    while( input instanceof TransformExpr || input instanceof FilterExpr )
+    {
+      for( int i = 1 ; i < input.numChildren() ; i++ )
+      {
+        if( !isCheapPerItem(input.child(i)) )
+        {
+          return false;
+        }
+      }
+      input = ((BindingExpr)input.child(0)).inExpr();
+    }
+    return input instanceof ConstExpr || input instanceof VarExpr 
+      || input instanceof AbstractReadExpr;
+  }
+  
+  /** Returns true if <code>expr</code> calls no functions and reads no external data. */
+  private static boolean isCheapPerItem(Expr expr)
+  {
+    if( expr instanceof FunctionCallExpr || expr instanceof JavaFunctionCallExpr 
+        || expr.getProperty(ExprProperty.READS_EXTERNAL_DATA, true).maybe() )
+    {
+      return false;
+    }
+    for( int i = 0 ; i < expr.numChildren() ; i++ )
+    {
+      if( !isCheapPerItem(expr.child(i)) )
+      {
+        return false;
+      }
+    }
+    return true;
+  }
 }
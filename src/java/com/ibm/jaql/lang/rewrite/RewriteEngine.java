@@ -195,6 +195,7 @@ public class RewriteEngine
     //------------------------------------------------------------------------------
     phase = phases[++phaseId] = new RewritePhase(this, postOrderWalker, 10000);
     // new GroupToMapReduce(phase);
+    new JoinToBroadcast(phase);
     new JoinToCogroup(phase);
     // new TempSharedVariable(phase);
     new WriteAssignment(phase);
@@ -213,6 +214,7 @@ public class RewriteEngine
     // phase = phases[++phaseId] = new RewritePhase(this, rootWalker, 1);
     phase = phases[++phaseId] = new RewritePhase(this, postOrderWalker, 1000);
     new ToMapReduce(phase);
+    new SharedScan(phase);
     new WriteAssignment(phase);
     new LetInline(phase);
     new DoMerge(phase);
@@ -224,6 +226,7 @@ public class RewriteEngine
     new GroupElimination(phase);
     new PerPartitionElimination(phase);
     new PragmaElimination(phase);
+    new ToParallelMap(phase);
     
     phases[++phaseId] = phases[1];
   }
@@ -30,6 +30,7 @@ public class Segment
     GROUP, 
     COMBINE, 
     MAPREDUCE,
+    SORT,              // total-order sort: exactly one inline_map child
     MAP_GROUP,         // per group item: no children
     COMBINE_GROUP,     // combine of map group items: exactly one map_group child
     FINAL_GROUP,       // reduce of combines: 1 or more combine_group children
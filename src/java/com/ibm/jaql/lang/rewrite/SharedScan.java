@@ -0,0 +1,484 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.rewrite;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import com.ibm.jaql.json.schema.ArraySchema;
+import com.ibm.jaql.json.schema.LongSchema;
+import com.ibm.jaql.json.schema.OrSchema;
+import com.ibm.jaql.json.schema.Schema;
+import com.ibm.jaql.json.schema.SchemaFactory;
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.json.type.JsonSchema;
+import com.ibm.jaql.json.type.JsonString;
+import com.ibm.jaql.json.type.JsonUtil;
+import com.ibm.jaql.lang.core.Var;
+import com.ibm.jaql.lang.expr.array.UnionFn;
+import com.ibm.jaql.lang.expr.core.ArrayExpr;
+import com.ibm.jaql.lang.expr.core.BindingExpr;
+import com.ibm.jaql.lang.expr.core.CompareExpr;
+import com.ibm.jaql.lang.expr.core.ConstExpr;
+import com.ibm.jaql.lang.expr.core.DoExpr;
+import com.ibm.jaql.lang.expr.core.Expr;
+import com.ibm.jaql.lang.expr.core.ExprProperty;
+import com.ibm.jaql.lang.expr.core.FilterExpr;
+import com.ibm.jaql.lang.expr.core.ForExpr;
+import com.ibm.jaql.lang.expr.core.IfExpr;
+import com.ibm.jaql.lang.expr.core.IndexExpr;
+import com.ibm.jaql.lang.expr.core.NameValueBinding;
+import com.ibm.jaql.lang.expr.core.RecordExpr;
+import com.ibm.jaql.lang.expr.core.TagFn;
+import com.ibm.jaql.lang.expr.core.TransformExpr;
+import com.ibm.jaql.lang.expr.core.VarExpr;
+import com.ibm.jaql.lang.expr.function.DefineJaqlFunctionExpr;
+import com.ibm.jaql.lang.expr.function.FunctionCallExpr;
+import com.ibm.jaql.lang.expr.hadoop.MRAggregate;
+import com.ibm.jaql.lang.expr.hadoop.MapReduceBaseExpr;
+import com.ibm.jaql.lang.expr.hadoop.MapReduceFn;
+import com.ibm.jaql.lang.expr.io.HadoopTempExpr;
+import com.ibm.jaql.io.hadoop.CompositeOutputAdapter;
+
+/**
+ * Fuses the map-reduce jobs of a block that read the same input into one job, so that the input
+ * is scanned once:
+ *
+ *   ( ..., $a = mrAggregate({ input: I, output: HadoopTemp(s1), map: m1, aggregate: a1, final: f1 }),
+ *     ..., $b = mrAggregate({ input: I, output: HadoopTemp(s2), map: m2, aggregate: a2, final: f2 }), ... )
+ * ==>
+ *   ( ..., $a = HadoopTemp(s1), $b = HadoopTemp(s2),
+ *     mrAggregate({ input: I, output: composite([$a, $b]),
+ *       map: fn($in) $in -> expand each $r union( m1([$r]) -> transform [[0,$[0]],$[1]],
+ *                                                  m2([$r]) -> transform [[1,$[0]],$[1]] ),
+ *       aggregate: fn($k,$v) [ a1's aggregates, a2's aggregates ], tags: [ n1, n2 ],
+ *       final: fn($k,$v) if ($k[0] == 0) f1($k[1], [$v[0],...]) -> tag(0)
+ *                        else f2($k[1], [$v[0],...]) -> tag(1) }),
+ *     ... )
+ *
+ * where nt is the number of aggregates of job t. The tags argument makes mrAggregate evaluate
+ * only the aggregates of the tag of a key. The schema of the fused map output is the union of
+ * the schemata of the jobs, with the keys tagged.
+ *
+ * mapReduce jobs with a reduce function are fused likewise; their combine and reduce functions
+ * are picked by the tag of the key. Only jobs of the same kind are fused, and only if they write
+ * to temp files, have no options, and their map functions process each record on its own. The
+ * expressions between the jobs must not have side effects, other than jobs that write to temp
+ * files.
+ *
+ * The rewrite is only applied if the system property {@link #PROPERTY} is true.
+ */
+public class SharedScan extends Rewrite
+{
+  /** system property that enables this rewrite (default false) */
+  public static final String PROPERTY = "jaql.rewrite.sharedScan";
+
+  public SharedScan(RewritePhase phase)
+  {
+    super(phase, DoExpr.class);
+  }
+
+  @Override
+  public boolean rewrite(Expr expr) throws Exception
+  {
+    if( !Boolean.getBoolean(PROPERTY) )
+    {
+      return false;
+    }
+    DoExpr block = (DoExpr)expr;
+    int n = block.numChildren() - 1;
+    for( int i = 0 ; i < n ; i++ )
+    {
+      MapReduceBaseExpr first = fusible(block.child(i));
+      if( first == null )
+      {
+        continue;
+      }
+      ArrayList<Integer> group = new ArrayList<Integer>();
+      group.add(i);
+      for( int j = i + 1 ; j < n ; j++ )
+      {
+        MapReduceBaseExpr job = fusible(block.child(j));
+        if( job != null && job.getClass() == first.getClass()
+            && sameInput(first, job) && canMoveBefore(block, j, i, group) )
+        {
+          group.add(j);
+        }
+      }
+      if( group.size() > 1 )
+      {
+        fuse(block, group);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the job bound by <code>e</code> if it can be fused with others, or null.
+   */
+  protected MapReduceBaseExpr fusible(Expr e)
+  {
+    if( !(e instanceof BindingExpr) || !(e.child(0) instanceof MapReduceBaseExpr) )
+    {
+      return null;
+    }
+    MapReduceBaseExpr job = (MapReduceBaseExpr)e.child(0);
+    if( !(job.child(0) instanceof RecordExpr)
+        || !(job.findArgument(MapReduceBaseExpr.INPUT_KEY) instanceof ConstExpr)
+        || !(job.findArgument(MapReduceBaseExpr.OUTPUT_KEY) instanceof HadoopTempExpr)
+        || !job.argumentsNever(ExprProperty.HAS_SIDE_EFFECTS) )
+    {
+      return null;
+    }
+    Expr options = job.findArgument(MapReduceBaseExpr.OPTIONS_KEY);
+    if( options != null
+        && !(options instanceof ConstExpr && ((ConstExpr)options).value == null) )
+    {
+      return null;
+    }
+    if( !isPerRecord(job.findArgument(MapReduceBaseExpr.MAP_KEY)) )
+    {
+      return null;
+    }
+    if( job instanceof MRAggregate )
+    {
+      Expr agg = job.findArgument(MRAggregate.AGGREGATE_KEY);
+      if( !isFunction(agg, 2) || !(((DefineJaqlFunctionExpr)agg).body() instanceof ArrayExpr)
+          || !isFunction(job.findArgument(MRAggregate.FINAL_KEY), 2) )
+      {
+        return null;
+      }
+      return job;
+    }
+    if( job instanceof MapReduceFn )
+    {
+      Expr combine = job.findArgument(MapReduceFn.COMBINE_KEY);
+      if( !isFunction(job.findArgument(MapReduceFn.REDUCE_KEY), 2)
+          || (combine != null && !isFunction(combine, 2))
+          || job.findArgument(MapReduceFn.ORDER_KEY) != null
+          || job.findArgument(MapReduceFn.VALUE_ORDER_KEY) != null )
+      {
+        return null;
+      }
+      return job;
+    }
+    return null;
+  }
+
+  private static boolean isFunction(Expr e, int numParams)
+  {
+    return e instanceof DefineJaqlFunctionExpr
+      && ((DefineJaqlFunctionExpr)e).numParams() == numParams;
+  }
+
+  /**
+   * Returns true if <code>e</code> defines a function of one array that transforms, filters, or
+   * expands each of its elements independently of the others.
+   */
+  protected boolean isPerRecord(Expr e)
+  {
+    if( !isFunction(e, 1) )
+    {
+      return false;
+    }
+    DefineJaqlFunctionExpr fn = (DefineJaqlFunctionExpr)e;
+    Var param = fn.varOf(0);
+    Expr body = fn.body();
+    if( countVarUse(body, param) != 1 )
+    {
+      return false;
+    }
+    Expr use = findFirstVarUse(body, param);
+    while( use != body )
+    {
+      Expr b = use.parent();
+      if( use.getChildSlot() != 0 || !(b instanceof BindingExpr) || b.getChildSlot() != 0 )
+      {
+        return false;
+      }
+      Expr loop = b.parent();
+      if( !(loop instanceof ForExpr || loop instanceof TransformExpr || loop instanceof FilterExpr) )
+      {
+        return false;
+      }
+      use = loop;
+    }
+    return true;
+  }
+
+  private static boolean sameInput(MapReduceBaseExpr x, MapReduceBaseExpr y) throws Exception
+  {
+    ConstExpr a = (ConstExpr)x.findArgument(MapReduceBaseExpr.INPUT_KEY);
+    ConstExpr b = (ConstExpr)y.findArgument(MapReduceBaseExpr.INPUT_KEY);
+    return JsonUtil.equals(a.value, b.value);
+  }
+
+  /**
+   * Returns true if the job at <code>j</code> can run in place of the job at <code>i</code>, i.e.,
+   * if it does not use variables that are defined in between, and if the expressions in between
+   * that are not part of the <code>group</code> have no side effects other than writing temps.
+   */
+  private boolean canMoveBefore(DoExpr block, int j, int i, ArrayList<Integer> group)
+  {
+    HashSet<Var> captures = block.child(j).getCapturedVars();
+    for( int k = i ; k < j ; k++ )
+    {
+      Expr e = block.child(k);
+      if( e instanceof BindingExpr && captures.contains(((BindingExpr)e).var) )
+      {
+        return false;
+      }
+      if( group.contains(k) || e.getProperty(ExprProperty.HAS_SIDE_EFFECTS, true).never() )
+      {
+        continue;
+      }
+      if( !(e instanceof BindingExpr) || !(e.child(0) instanceof MapReduceBaseExpr) )
+      {
+        return false;
+      }
+      MapReduceBaseExpr job = (MapReduceBaseExpr)e.child(0);
+      if( !(job.findArgument(MapReduceBaseExpr.OUTPUT_KEY) instanceof HadoopTempExpr)
+          || !job.argumentsNever(ExprProperty.HAS_SIDE_EFFECTS) )
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Replaces the jobs at the positions of <code>group</code> by a single job.
+   */
+  protected void fuse(DoExpr block, ArrayList<Integer> group)
+  {
+    int n = group.size();
+    MapReduceBaseExpr[] jobs = new MapReduceBaseExpr[n];
+    BindingExpr[] bindings = new BindingExpr[n];
+    for( int t = 0 ; t < n ; t++ )
+    {
+      bindings[t] = (BindingExpr)block.child(group.get(t));
+      jobs[t] = (MapReduceBaseExpr)bindings[t].eqExpr();
+    }
+    boolean aggregating = jobs[0] instanceof MRAggregate;
+
+    // map: fn($in) $in -> expand each $r union( mt([$r]) -> transform [[t,$[0]],$[1]], ... )
+    Var inVar = engine.env.makeVar("$mapIn");
+    Var recVar = engine.env.makeVar("$r");
+    Expr[] legs = new Expr[n];
+    for( int t = 0 ; t < n ; t++ )
+    {
+      Var pairVar = engine.env.makeVar("$kv");
+      Expr call = new FunctionCallExpr(jobs[t].findArgument(MapReduceBaseExpr.MAP_KEY),
+          new ArrayExpr(new VarExpr(recVar)));
+      Expr key = new ArrayExpr(new ConstExpr(t), new IndexExpr(new VarExpr(pairVar), 0));
+      Expr pair = new ArrayExpr(key, new IndexExpr(new VarExpr(pairVar), 1));
+      legs[t] = new ForExpr(pairVar, call, new ArrayExpr(pair));
+    }
+    Expr map = new DefineJaqlFunctionExpr(new Var[]{inVar},
+        new ForExpr(recVar, new VarExpr(inVar), new UnionFn(legs)));
+
+    Expr[] outputs = new Expr[n];
+    for( int t = 0 ; t < n ; t++ )
+    {
+      outputs[t] = new VarExpr(bindings[t].var);
+    }
+
+    ArrayList<Expr> args = new ArrayList<Expr>();
+    args.add(new NameValueBinding(MapReduceBaseExpr.INPUT_KEY,
+        jobs[0].findArgument(MapReduceBaseExpr.INPUT_KEY)));
+    args.add(new NameValueBinding(MapReduceBaseExpr.OUTPUT_KEY,
+        CompositeOutputAdapter.makeDescriptor(outputs)));
+    args.add(new NameValueBinding(MapReduceBaseExpr.MAP_KEY, map));
+    if( aggregating )
+    {
+      fuseAggregates(jobs, args);
+    }
+    else
+    {
+      fuseReduces(jobs, args);
+    }
+    Schema[] keySchemata = new Schema[n];
+    Schema[] valueSchemata = new Schema[n];
+    for( int t = 0 ; t < n ; t++ )
+    {
+      keySchemata[t] = new ArraySchema(new Schema[] {
+          new LongSchema(new JsonLong(t)), schemaOf(jobs[t], KEY) });
+      valueSchemata[t] = schemaOf(jobs[t], VALUE);
+    }
+    args.add(new NameValueBinding(MapReduceBaseExpr.SCHEMA_KEY, new RecordExpr(
+        new NameValueBinding(KEY, new ConstExpr(new JsonSchema(OrSchema.make(keySchemata)))),
+        new NameValueBinding(VALUE, new ConstExpr(new JsonSchema(OrSchema.make(valueSchemata)))))));
+    RecordExpr argRec = new RecordExpr(args.toArray(new Expr[args.size()]));
+    Expr job = aggregating ? new MRAggregate(argRec) : new MapReduceFn(argRec);
+
+    // the outputs are bound first, then the fused job runs in place of the first job
+    int first = group.get(0);
+    ArrayList<Expr> children = new ArrayList<Expr>();
+    for( int k = 0 ; k < block.numChildren() ; k++ )
+    {
+      if( k == first )
+      {
+        for( int t = 0 ; t < n ; t++ )
+        {
+          Expr temp = jobs[t].findArgument(MapReduceBaseExpr.OUTPUT_KEY);
+          children.add(new BindingExpr(BindingExpr.Type.EQ, bindings[t].var, null, temp));
+        }
+        children.add(job);
+      }
+      else if( !group.contains(k) )
+      {
+        children.add(block.child(k));
+      }
+    }
+    block.setChildren(children.toArray(new Expr[children.size()]));
+  }
+
+  private static final JsonString KEY = new JsonString("key");
+  private static final JsonString VALUE = new JsonString("value");
+
+  /**
+   * Returns the schema of the map output <code>field</code> (key or value) of <code>job</code>,
+   * or any if it is not known at compile time.
+   */
+  private static Schema schemaOf(MapReduceBaseExpr job, JsonString field)
+  {
+    Expr schema = job.findArgument(MapReduceBaseExpr.SCHEMA_KEY);
+    if( schema instanceof RecordExpr )
+    {
+      Expr e = ((RecordExpr)schema).findStaticFieldValue(field);
+      if( e instanceof ConstExpr && ((ConstExpr)e).value instanceof JsonSchema )
+      {
+        return ((JsonSchema)((ConstExpr)e).value).get();
+      }
+    }
+    return SchemaFactory.anySchema();
+  }
+
+  /**
+   * Adds the aggregate, tags, and final functions of the fused mrAggregate to
+   * <code>args</code>.
+   */
+  private void fuseAggregates(MapReduceBaseExpr[] jobs, ArrayList<Expr> args)
+  {
+    int n = jobs.length;
+    Var keyVar = engine.env.makeVar("$key");
+    Var valVar = engine.env.makeVar("$toagg");
+    ArrayList<Expr> aggs = new ArrayList<Expr>();
+    int[] counts = new int[n];
+    Expr[] tags = new Expr[n];
+    for( int t = 0 ; t < n ; t++ )
+    {
+      DefineJaqlFunctionExpr agg =
+        (DefineJaqlFunctionExpr)jobs[t].findArgument(MRAggregate.AGGREGATE_KEY);
+      Expr body = agg.body();
+      counts[t] = body.numChildren();
+      for( int a = 0 ; a < counts[t] ; a++ )
+      {
+        // only evaluated for keys of tag t
+        Expr e = body.child(a);
+        replaceVarUses(agg.varOf(0), e, new IndexExpr(new VarExpr(keyVar), 1));
+        replaceVarUses(agg.varOf(1), e, new VarExpr(valVar));
+        aggs.add(body.child(a));
+      }
+      tags[t] = new ConstExpr(counts[t]);
+    }
+    args.add(new NameValueBinding(MRAggregate.AGGREGATE_KEY,
+        new DefineJaqlFunctionExpr(new Var[]{keyVar, valVar}, new ArrayExpr(aggs))));
+    args.add(new NameValueBinding(MRAggregate.TAGS_KEY, new ArrayExpr(tags)));
+
+    keyVar = engine.env.makeVar("$key");
+    valVar = engine.env.makeVar("$vals");
+    Expr[] finals = new Expr[n];
+    for( int t = 0 ; t < n ; t++ )
+    {
+      Expr[] vals = new Expr[counts[t]];
+      for( int a = 0 ; a < vals.length ; a++ )
+      {
+        vals[a] = new IndexExpr(new VarExpr(valVar), a);
+      }
+      finals[t] = new FunctionCallExpr(jobs[t].findArgument(MRAggregate.FINAL_KEY),
+          new IndexExpr(new VarExpr(keyVar), 1), new ArrayExpr(vals));
+    }
+    args.add(new NameValueBinding(MRAggregate.FINAL_KEY,
+        new DefineJaqlFunctionExpr(new Var[]{keyVar, valVar},
+            dispatch(keyVar, finals, true))));
+  }
+
+  /**
+   * Adds the combine and reduce functions of the fused mapReduce to <code>args</code>.
+   */
+  private void fuseReduces(MapReduceBaseExpr[] jobs, ArrayList<Expr> args)
+  {
+    int n = jobs.length;
+    boolean combining = false;
+    for( MapReduceBaseExpr job: jobs )
+    {
+      combining |= job.findArgument(MapReduceFn.COMBINE_KEY) != null;
+    }
+    if( combining )
+    {
+      Var keyVar = engine.env.makeVar("$key");
+      Var valVar = engine.env.makeVar("$vals");
+      Expr[] combines = new Expr[n];
+      for( int t = 0 ; t < n ; t++ )
+      {
+        Expr combine = jobs[t].findArgument(MapReduceFn.COMBINE_KEY);
+        combines[t] = combine == null
+          ? new VarExpr(valVar)
+          : new FunctionCallExpr(combine,
+              new IndexExpr(new VarExpr(keyVar), 1), new VarExpr(valVar));
+      }
+      args.add(new NameValueBinding(MapReduceFn.COMBINE_KEY,
+          new DefineJaqlFunctionExpr(new Var[]{keyVar, valVar},
+              dispatch(keyVar, combines, false))));
+    }
+
+    Var keyVar = engine.env.makeVar("$key");
+    Var valVar = engine.env.makeVar("$vals");
+    Expr[] reduces = new Expr[n];
+    for( int t = 0 ; t < n ; t++ )
+    {
+      reduces[t] = new FunctionCallExpr(jobs[t].findArgument(MapReduceFn.REDUCE_KEY),
+          new IndexExpr(new VarExpr(keyVar), 1), new VarExpr(valVar));
+    }
+    args.add(new NameValueBinding(MapReduceFn.REDUCE_KEY,
+        new DefineJaqlFunctionExpr(new Var[]{keyVar, valVar},
+            dispatch(keyVar, reduces, true))));
+  }
+
+  private static Expr isTag(Var keyVar, int t)
+  {
+    return new CompareExpr(CompareExpr.EQ,
+        new IndexExpr(new VarExpr(keyVar), 0), new ConstExpr(t));
+  }
+
+  /**
+   * Returns: if (key[0] == 0) exprs[0] else if ... else exprs[n-1], where each expression is
+   * tagged with its position if <code>tag</code> is true.
+   */
+  private static Expr dispatch(Var keyVar, Expr[] exprs, boolean tag)
+  {
+    int n = exprs.length;
+    Expr e = tag ? new TagFn(exprs[n - 1], new ConstExpr(n - 1)) : exprs[n - 1];
+    for( int t = n - 2 ; t >= 0 ; t-- )
+    {
+      Expr branch = tag ? new TagFn(exprs[t], new ConstExpr(t)) : exprs[t];
+      e = new IfExpr(isTag(keyVar, t), branch, e);
+    }
+    return e;
+  }
+}
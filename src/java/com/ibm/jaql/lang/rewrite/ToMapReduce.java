@@ -16,11 +16,14 @@
 package com.ibm.jaql.lang.rewrite;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 
 import com.ibm.jaql.json.schema.ArraySchema;
 import com.ibm.jaql.json.schema.OrSchema;
 import com.ibm.jaql.json.schema.Schema;
 import com.ibm.jaql.json.schema.SchemaFactory;
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.JsonBool;
 import com.ibm.jaql.json.type.JsonLong;
 import com.ibm.jaql.json.type.JsonSchema;
 import com.ibm.jaql.json.type.JsonString;
@@ -31,6 +34,10 @@ import com.ibm.jaql.lang.expr.array.DeemptyFn;
 import com.ibm.jaql.lang.expr.core.AggregateFullExpr;
 import com.ibm.jaql.lang.expr.core.ArrayExpr;
 import com.ibm.jaql.lang.expr.core.BindingExpr;
+import com.ibm.jaql.lang.expr.core.CmpArray;
+import com.ibm.jaql.lang.expr.core.CmpExpr;
+import com.ibm.jaql.lang.expr.core.CmpSingle;
+import com.ibm.jaql.lang.expr.core.CmpSpec;
 import com.ibm.jaql.lang.expr.core.ConstExpr;
 import com.ibm.jaql.lang.expr.core.DoExpr;
 import com.ibm.jaql.lang.expr.core.Expr;
@@ -38,6 +45,7 @@ import com.ibm.jaql.lang.expr.core.ForExpr;
 import com.ibm.jaql.lang.expr.core.GroupByExpr;
 import com.ibm.jaql.lang.expr.core.NameValueBinding;
 import com.ibm.jaql.lang.expr.core.RecordExpr;
+import com.ibm.jaql.lang.expr.core.SortExpr;
 import com.ibm.jaql.lang.expr.core.TransformExpr;
 import com.ibm.jaql.lang.expr.core.VarExpr;
 import com.ibm.jaql.lang.expr.function.DefineJaqlFunctionExpr;
@@ -55,6 +63,13 @@ import com.ibm.jaql.lang.rewrite.Segment.Type;
  */
 public class ToMapReduce extends Rewrite
 {
+  /** system property that compiles sorts of map-reducible input to map-reduce jobs with
+   * globally ordered output */
+  public static final String SORT_MAP_REDUCE_PROPERTY = "jaql.sort.mapReduce";
+  /** system property that lets the shuffle sort the values of a group instead of a sort in its
+   * into clause (default false) */
+  public static final String SORT_VALUES_PROPERTY = "jaql.group.sortValues";
+
   boolean modified;
 
   /**
@@ -81,6 +96,7 @@ public class ToMapReduce extends Rewrite
     //        |- ... )
     //        |- ( *
     //        |- ( ...
+    // sort <- smap => MR (range partitioned) + ordered temp
     // combine <- smap => MR
     // combine => MR + temp
     // seq -> run local
@@ -131,6 +147,10 @@ public class ToMapReduce extends Rewrite
 //        combineToMapReduce(seg);
 //        break;
 //      }
+      case SORT : {
+        sortToMapReduce(seg);
+        break;
+      }
       case INLINE_MAP : {
         // handled by parent
         break;
@@ -393,6 +413,15 @@ public class ToMapReduce extends Rewrite
       combineFns = new Expr[n];
     }
 
+    // let the shuffle sort the values of each group if the reduce function sorts them
+    SortExpr valueSort = null;
+    BufferedJsonArray valueOrder = null;
+    if (n == 1 && !combining
+        && Boolean.getBoolean(SORT_VALUES_PROPERTY))
+    {
+      valueSort = valueSort(group);
+    }
+
     // build the map/init functions
     Expr[] mapFns = new Expr[n];
     Schema[] mapOutputKeySchemata = new Schema[n];
@@ -405,7 +434,27 @@ public class ToMapReduce extends Rewrite
       Expr byExpr = byBinding.byExpr(i);
       Var v = engine.env.makeVar("$i"+i, b.var.getSchema());
       byExpr.replaceVar(b.var, v);
-      Expr keyValPair = new ArrayExpr(byExpr, new VarExpr(v));
+      Expr keyValPair;
+      if (valueSort == null)
+      {
+        keyValPair = new ArrayExpr(byExpr, new VarExpr(v));
+      }
+      else
+      {
+        // [key, value, [<sort key0>, <sort key1>, ...]]
+        CmpSpec[] specs = sortKeys(valueSort);
+        Expr[] keys = new Expr[specs.length];
+        valueOrder = new BufferedJsonArray(specs.length);
+        for (int j = 0; j < specs.length; j++)
+        {
+          keys[j] = specs[j].orderExpr();
+          valueOrder.set(j, JsonBool.make(specs[j].getOrder() != CmpSpec.Order.DESC));
+        }
+        Expr sortKey = new ArrayExpr(keys);
+        sortKey.replaceVar(((DefineJaqlFunctionExpr) valueSort.cmpExpr()).varOf(0), v);
+        keyValPair = new ArrayExpr(byExpr, new VarExpr(v), sortKey);
+        valueSort.replaceInParent(valueSort.inputExpr());
+      }
       Expr forExpr = new ForExpr(v, inExpr, new ArrayExpr(keyValPair));
       mapFns[i] = new DefineJaqlFunctionExpr(new Var[]{inputState.mapIn}, forExpr);
       mapOutputKeySchemata[i] = byExpr.getSchema();
@@ -422,11 +471,8 @@ public class ToMapReduce extends Rewrite
     else
     {
       mapOutputKeySchema = new ConstExpr(new JsonSchema(OrSchema.make(mapOutputKeySchemata)));
-      mapOutputValueSchema = new ConstExpr(new JsonSchema(
-          new ArraySchema(new Schema[] {
-              SchemaFactory.longSchema(),         // input id
-              OrSchema.make(mapOutputValueSchemata) // value
-          })));
+      // the input id is a tag of the map output value, not part of it
+      mapOutputValueSchema = new ConstExpr(new JsonSchema(OrSchema.make(mapOutputValueSchemata)));
     }
     
     // Make the output
@@ -496,6 +542,10 @@ public class ToMapReduce extends Rewrite
       fnArgs.add( new NameValueBinding(MRAggregate.AGGREGATE_KEY, combine) ); // FIXME: was "combine"
     }
     fnArgs.add( new NameValueBinding(reduceName, reduce) );
+    if (valueOrder != null)
+    {
+      fnArgs.add( new NameValueBinding(MapReduceFn.VALUE_ORDER_KEY, new ConstExpr(valueOrder)) );
+    }
     fnArgs.add(
         new NameValueBinding(MapReduceFn.SCHEMA_KEY, new RecordExpr(new Expr[] {
           new NameValueBinding("key", mapOutputKeySchema),
@@ -619,6 +669,151 @@ public class ToMapReduce extends Rewrite
     modified = true;
   }
 
+  /**
+   * Returns the CmpSpecs of the comparator of <code>sort</code>, or null if it does not use a
+   * plain <code>by [ ... ]</code> comparator.
+   */
+  protected static CmpSpec[] sortKeys(SortExpr sort)
+  {
+    if (!(sort.cmpExpr() instanceof DefineJaqlFunctionExpr))
+    {
+      return null;
+    }
+    DefineJaqlFunctionExpr cmpFn = (DefineJaqlFunctionExpr) sort.cmpExpr();
+    if (cmpFn.numParams() != 1)
+    {
+      return null;
+    }
+    Expr cmp = cmpFn.body();
+    if (!(cmp instanceof CmpArray || cmp instanceof CmpSingle))
+    {
+      return null;
+    }
+    CmpSpec[] specs = new CmpSpec[cmp.numChildren()];
+    for (int i = 0; i < specs.length; i++)
+    {
+      if (!(cmp.child(i) instanceof CmpSpec))
+      {
+        return null;
+      }
+      specs[i] = (CmpSpec) cmp.child(i);
+    }
+    return specs;
+  }
+
+  /**
+   * Returns a sort of the values of the only input of <code>group</code> in its into clause that
+   * uses a plain <code>by [ ... ]</code> comparator of the values alone, or null if there is none.
+   * The values of a group have no particular order, so the sort can be done by the shuffle.
+   */
+  private static SortExpr valueSort(GroupByExpr group)
+  {
+    ArrayList<Expr> uses = new ArrayList<Expr>();
+    group.collectExpr().getVarUses(group.getAsVar(0), uses);
+    for (Expr use : uses)
+    {
+      if (use.parent() instanceof SortExpr)
+      {
+        SortExpr sort = (SortExpr) use.parent();
+        if (sort.inputExpr() == use && sortKeys(sort) != null)
+        {
+          DefineJaqlFunctionExpr cmpFn = (DefineJaqlFunctionExpr) sort.cmpExpr();
+          HashSet<Var> ignored = new HashSet<Var>();
+          ignored.add(cmpFn.varOf(0));
+          if (!cmpFn.body().hasCaptures(ignored))
+          {
+            return sort;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param sortSeg
+   */
+  private void sortToMapReduce(Segment sortSeg)
+  {
+    Expr topParent = sortSeg.root.parent();
+    int topSlot = sortSeg.root.getChildSlot();
+
+    SortExpr sort = (SortExpr) sortSeg.primaryExpr;
+    DefineJaqlFunctionExpr cmpFn = (DefineJaqlFunctionExpr) sort.cmpExpr();
+    CmpSpec[] specs = sortKeys(sort);
+
+    // replace the reader with $mapIn
+    Segment mapSeg = sortSeg.firstChild;
+    assert mapSeg.type == Segment.Type.INLINE_MAP;
+    ReadFn reader = (ReadFn) mapSeg.primaryExpr;
+    Expr input = reader.descriptor();
+    Var mapIn = engine.env.makeVar("$mapIn", reader.getSchema());
+    reader.replaceInParent(new VarExpr(mapIn));
+
+    // the map output key is the array of the sort keys of an item:
+    //   for $sv in <sort input> collect [[ [<key0>, <key1>, ...], $sv ]]
+    Var forVar = engine.env.makeVar("$sv");
+    Expr[] keys = new Expr[specs.length];
+    BufferedJsonArray order = new BufferedJsonArray(specs.length);
+    for (int i = 0; i < specs.length; i++)
+    {
+      keys[i] = specs[i].orderExpr();
+      order.set(i, JsonBool.make(specs[i].getOrder() != CmpSpec.Order.DESC));
+    }
+    Expr key = new ArrayExpr(keys);
+    key.replaceVar(cmpFn.varOf(0), forVar);
+    Schema mapOutputKeySchema = key.getSchema();
+    Expr sortInput = sort.inputExpr();
+    Schema mapOutputValueSchema = sortInput.getSchema().elements();
+    if (mapOutputValueSchema == null) mapOutputValueSchema = SchemaFactory.anySchema();
+    Expr expr = new ArrayExpr(new ArrayExpr(key, new VarExpr(forVar)));
+    expr = new ForExpr(forVar, sortInput, expr);
+    Expr mapFn = new DefineJaqlFunctionExpr(new Var[]{mapIn}, expr);
+
+    // the reducers write the items of each key in order of the keys
+    Var keyVar = engine.env.makeVar("$key", mapOutputKeySchema);
+    Var valVar = engine.env.makeVar("$vals", new ArraySchema(null, mapOutputValueSchema));
+    Expr reduceFn = new DefineJaqlFunctionExpr(new Var[]{keyVar, valVar}, new VarExpr(valVar));
+
+    Expr output;
+    boolean writing = sortSeg.root instanceof WriteFn;
+    if (writing)
+    {
+      WriteFn writer = (WriteFn) sortSeg.root;
+      assert writer.isMapReducible();
+      output = writer.descriptor();
+    }
+    else
+    {
+      output = new HadoopTempExpr(mapOutputValueSchema, true);
+    }
+
+    expr = new MapReduceFn(new RecordExpr(
+        new NameValueBinding(MapReduceFn.INPUT_KEY, input),
+        new NameValueBinding(MapReduceFn.MAP_KEY, mapFn),
+        new NameValueBinding(MapReduceFn.REDUCE_KEY, reduceFn),
+        new NameValueBinding(MapReduceFn.ORDER_KEY, new ConstExpr(order)),
+        new NameValueBinding(MapReduceFn.SCHEMA_KEY, 
+            new RecordExpr(
+                new NameValueBinding("key", new ConstExpr(new JsonSchema(mapOutputKeySchema))),
+                new NameValueBinding("value", new ConstExpr(new JsonSchema(mapOutputValueSchema)))
+            )
+        ),
+        new NameValueBinding(MapReduceFn.OUTPUT_KEY, output)
+    ));
+
+    sortSeg.type = Segment.Type.MAPREDUCE;
+    sortSeg.root = expr;
+
+    if (!writing)
+    {
+      expr = new ReadFn(expr);
+    }
+
+    topParent.setChild(topSlot, expr);
+    modified = true;
+  }
+
   /*
    * (non-Javadoc)
    * 
@@ -717,6 +912,26 @@ public class ToMapReduce extends Rewrite
         seg.mergeSequential();
       }
     }
+    else if (expr instanceof SortExpr && Boolean.getBoolean(SORT_MAP_REDUCE_PROPERTY)
+        && sortKeys((SortExpr) expr) != null)
+    {
+      SortExpr sort = (SortExpr) expr;
+      Segment s = segment(sort.inputExpr());
+      if (s.type == Segment.Type.GROUP || s.type == Segment.Type.COMBINE)
+      {
+        s = makeMapSegment(s);
+      }
+      if (s.type == Segment.Type.MAP)
+      {
+        s.type = Segment.Type.INLINE_MAP;
+        seg = new Segment(Segment.Type.SORT, s);
+        seg.primaryExpr = sort;
+      }
+      else
+      {
+        seg = new Segment(Segment.Type.SEQUENTIAL, s);
+      }
+    }
     else if (expr instanceof ReadFn)
     {
       ReadFn reader = (ReadFn) expr;
@@ -744,6 +959,7 @@ public class ToMapReduce extends Rewrite
         case MAP :
         case GROUP :
         case COMBINE :
+        case SORT :
           if (writer.isMapReducible())
           {
             // merge into map reduce
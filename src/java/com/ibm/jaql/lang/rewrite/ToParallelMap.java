@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.rewrite;
+
+import com.ibm.jaql.json.type.JsonBool;
+import com.ibm.jaql.lang.core.Var;
+import com.ibm.jaql.lang.expr.agg.AnyAgg;
+import com.ibm.jaql.lang.expr.agg.CountAgg;
+import com.ibm.jaql.lang.expr.agg.MaxAgg;
+import com.ibm.jaql.lang.expr.agg.MinAgg;
+import com.ibm.jaql.lang.expr.agg.SumAgg;
+import com.ibm.jaql.lang.expr.core.BindingExpr;
+import com.ibm.jaql.lang.expr.core.ConstExpr;
+import com.ibm.jaql.lang.expr.core.Expr;
+import com.ibm.jaql.lang.expr.core.ExprProperty;
+import com.ibm.jaql.lang.expr.core.FilterExpr;
+import com.ibm.jaql.lang.expr.core.ForExpr;
+import com.ibm.jaql.lang.expr.core.ParallelMapExpr;
+import com.ibm.jaql.lang.expr.core.TransformExpr;
+import com.ibm.jaql.lang.expr.core.VarExpr;
+import com.ibm.jaql.lang.expr.function.DefineJaqlFunctionExpr;
+
+/**
+ * Evaluates pipelines of for, filter, and transform expressions on several threads if
+ * <code>jaql.local.threads</code> is larger than 1:
+ *
+ *   e -> m1 -> ... -> mn
+ * ==>
+ *   parallelMap(e, fn($in) $in -> m1 -> ... -> mn, ordered)
+ *
+ * where the mi have no side-effects and are deterministic. The result is unordered only if it is
+ * consumed by an aggregate that does not depend on the order. Pipelines in function bodies or in
+ * the per-value expressions of other iterations are left alone, as are pipelines over constants.
+ */
+public class ToParallelMap extends Rewrite
+{
+  @SuppressWarnings("unchecked")
+  public ToParallelMap(RewritePhase phase)
+  {
+    super(phase, (Class<? extends Expr>[])
+        new Class<?>[]{ ForExpr.class, FilterExpr.class, TransformExpr.class });
+  }
+
+  @Override
+  public boolean rewrite(Expr expr) throws Exception
+  {
+    if( ParallelMapExpr.THREADS <= 1 || !isParallel(expr) )
+    {
+      return false;
+    }
+
+    // only fire on the top of the pipeline
+    Expr parent = expr.parent();
+    if( parent instanceof BindingExpr && expr.getChildSlot() == 0 &&
+        isParallel(parent.parent()) )
+    {
+      return false;
+    }
+
+    // stay out of functions and per-value expressions
+    for( Expr e = expr, p = parent ; p != null ; e = p, p = p.parent() )
+    {
+      if( p instanceof DefineJaqlFunctionExpr ||
+          (p.numChildren() > 0 && p.child(0) instanceof BindingExpr &&
+           ((BindingExpr)p.child(0)).type != BindingExpr.Type.EQ && e.getChildSlot() != 0) )
+      {
+        return false;
+      }
+    }
+
+    // find the input of the pipeline
+    Expr bottom = expr;
+    Expr input = bottom.child(0).child(0);
+    while( isParallel(input) )
+    {
+      bottom = input;
+      input = bottom.child(0).child(0);
+    }
+    if( input instanceof ConstExpr )
+    {
+      return false;
+    }
+
+    boolean ordered = !( parent instanceof CountAgg || parent instanceof SumAgg ||
+                         parent instanceof MinAgg || parent instanceof MaxAgg ||
+                         parent instanceof AnyAgg );
+
+    Expr topParent = parent;
+    int topSlot = expr.getChildSlot();
+    Var in = engine.env.makeVar("$in", input.getSchema());
+    input.replaceInParent(new VarExpr(in));
+    Expr fn = new DefineJaqlFunctionExpr(new Var[]{ in }, expr);
+    topParent.setChild(topSlot,
+        new ParallelMapExpr(input, fn, new ConstExpr(JsonBool.make(ordered))));
+    return true;
+  }
+
+  /** Returns true if <code>expr</code> maps each value of its input independently of the other
+   * values and can safely be evaluated on another thread. */
+  private static boolean isParallel(Expr expr)
+  {
+    if( !(expr instanceof ForExpr || expr instanceof FilterExpr || expr instanceof TransformExpr) )
+    {
+      return false;
+    }
+    if( ((BindingExpr)expr.child(0)).var2 != null )
+    {
+      return false;
+    }
+    for( int i = 1 ; i < expr.numChildren() ; i++ )
+    {
+      Expr e = expr.child(i);
+      if( e.getProperty(ExprProperty.HAS_SIDE_EFFECTS, true).maybe() ||
+          e.getProperty(ExprProperty.IS_NONDETERMINISTIC, true).maybe() )
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.util.BaseUtil;
+
+/**
+ * A Bloom filter over the hash codes of JSON values. A value that was added is always 
+ * reported as possibly contained; a value that was not added is reported as possibly 
+ * contained with a small probability only. 
+ * 
+ * The filter works on {@link JsonValue#hashCode()}, so values that are equal according to
+ * {@link com.ibm.jaql.json.type.JsonUtil#equals(JsonValue, JsonValue)} are treated alike, 
+ * and no value is ever serialized.
+ */
+public class JsonBloomFilter
+{
+  /** number of bits per expected value */
+  public static final int BITS_PER_VALUE = 8;
+  
+  /** number of probes per value; close to optimal for {@link #BITS_PER_VALUE} */
+  public static final int NUM_PROBES = 5;
+  
+  protected long[] bits;
+  protected int    mask;     // number of bits - 1; the number of bits is a power of two
+
+  /**
+   * Creates a filter sized for the expected number of values.
+   * 
+   * @param expectedValues
+   */
+  public JsonBloomFilter(long expectedValues)
+  {
+    long n = Math.max(64, expectedValues * BITS_PER_VALUE);
+    int numBits = 64;
+    while( numBits < n && numBits < (1 << 30) )
+    {
+      numBits <<= 1;
+    }
+    bits = new long[numBits >>> 6];
+    mask = numBits - 1;
+  }
+  
+  /**
+   * Creates a filter that is read using {@link #readFields(DataInput)}.
+   */
+  public JsonBloomFilter()
+  {
+    this(0);
+  }
+  
+  /** Adds a value. */
+  public void add(JsonValue value)
+  {
+    addHash(hash(value));
+  }
+  
+  /** Returns false if the value was definitely not added. */
+  public boolean mightContain(JsonValue value)
+  {
+    return mightContainHash(hash(value));
+  }
+  
+  /** Returns the hash code used for <code>value</code> by this filter. */
+  public static int hash(JsonValue value)
+  {
+    return value == null ? 0 : value.hashCode();
+  }
+  
+  /** Adds a value given by its hash code, as computed by {@link #hash(JsonValue)}. */
+  public void addHash(int h)
+  {
+    long x = (long)h * BaseUtil.GOLDEN_RATIO_64;
+    int h1 = (int)(x >>> 32);
+    int h2 = (int)x | 1;
+    for( int i = 0 ; i < NUM_PROBES ; i++ )
+    {
+      int b = (h1 + i * h2) & mask;
+      bits[b >>> 6] |= 1L << b;
+    }
+  }
+  
+  /** Returns false if no value with the given hash code was added. */
+  public boolean mightContainHash(int h)
+  {
+    long x = (long)h * BaseUtil.GOLDEN_RATIO_64;
+    int h1 = (int)(x >>> 32);
+    int h2 = (int)x | 1;
+    for( int i = 0 ; i < NUM_PROBES ; i++ )
+    {
+      int b = (h1 + i * h2) & mask;
+      if( (bits[b >>> 6] & (1L << b)) == 0 )
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /** Returns the size of the filter in bits. */
+  public int numBits()
+  {
+    return mask + 1;
+  }
+
+  /**
+   * @param out
+   * @throws IOException
+   */
+  public void write(DataOutput out) throws IOException
+  {
+    BaseUtil.writeVUInt(out, bits.length);
+    for( long b: bits )
+    {
+      out.writeLong(b);
+    }
+  }
+  
+  /**
+   * @param in
+   * @throws IOException
+   */
+  public void readFields(DataInput in) throws IOException
+  {
+    int n = BaseUtil.readVUInt(in);
+    bits = new long[n];
+    for( int i = 0 ; i < n ; i++ )
+    {
+      bits[i] = in.readLong();
+    }
+    mask = (n << 6) - 1;
+  }
+  
+  /**
+   * A Bloom filter for an unknown number of values. Values are added to the last of a list of
+   * filters; whenever it holds as many values as it was sized for, a filter of twice the size
+   * is started. Once the filters would exceed a memory limit, the values are no longer 
+   * recorded and every value is reported as possibly contained.
+   */
+  public static class Scalable
+  {
+    protected ArrayList<JsonBloomFilter> filters = new ArrayList<JsonBloomFilter>();
+    protected long capacity;  // number of values the last filter is sized for
+    protected long count;     // number of values in the last filter
+    protected long numBytes;  // size of all filters
+    protected long maxBytes;
+    protected boolean full;   // true once the memory limit was reached
+    
+    /**
+     * @param initialCapacity number of values that the first filter is sized for
+     * @param maxBytes maximum size of all filters 
+     */
+    public Scalable(long initialCapacity, long maxBytes)
+    {
+      this.capacity = Math.max(64, initialCapacity) / 2;
+      this.count = capacity;
+      this.maxBytes = maxBytes;
+    }
+    
+    /** Adds a value given by its hash code, as computed by {@link JsonBloomFilter#hash}. */
+    public void addHash(int h)
+    {
+      if( full )
+      {
+        return;
+      }
+      if( count >= capacity )
+      {
+        capacity *= 2;
+        long bytes = capacity * BITS_PER_VALUE / 8;
+        if( numBytes + bytes > maxBytes )
+        {
+          full = true;
+          filters = null;
+          return;
+        }
+        filters.add(new JsonBloomFilter(capacity));
+        numBytes += bytes;
+        count = 0;
+      }
+      filters.get(filters.size() - 1).addHash(h);
+      count++;
+    }
+    
+    /** Returns false if no value with the given hash code was added. */
+    public boolean mightContainHash(int h)
+    {
+      if( full )
+      {
+        return true;
+      }
+      for( JsonBloomFilter f: filters )
+      {
+        if( f.mightContainHash(h) )
+        {
+          return true;
+        }
+      }
+      return false;
+    }
+    
+    /** Returns true if the filter can exclude values, i.e., its memory limit was not reached. */
+    public boolean isUseful()
+    {
+      return !full;
+    }
+  }
+}
@@ -15,6 +15,7 @@
  */
 package com.ibm.jaql.lang.util;
 
+import java.io.Closeable;
 import java.io.DataOutput;
 import java.io.IOException;
 
@@ -22,19 +23,53 @@ import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.DataOutputBuffer;
 
 import com.ibm.jaql.io.serialization.binary.BinaryFullSerializer;
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.JsonArray;
+import com.ibm.jaql.json.type.JsonEncoding;
 import com.ibm.jaql.json.type.JsonUtil;
 import com.ibm.jaql.json.type.JsonValue;
 import com.ibm.jaql.json.type.SpilledJsonArray;
+import com.ibm.jaql.json.util.JsonIterator;
 import com.ibm.jaql.util.BaseUtil;
 import com.ibm.jaql.util.LongArray;
+import com.ibm.jaql.util.PagedFile;
+import com.ibm.jaql.util.SpillFile;
 
 /**
+ * A hash table that groups tagged values by key. Keys and values are stored in serialized 
+ * form in a single buffer. The bucket array is a power of two and doubles whenever the 
+ * load factor is exceeded.
  * 
+ * If a memory limit is given, the table switches to grace-style partitioning once its 
+ * estimated memory usage exceeds the limit: the buffered entries and all subsequently 
+ * added entries are written to one of {@link #NUM_PARTITIONS} spill files, chosen by 
+ * hash code. Iteration then processes one partition at a time, building a new table for 
+ * each, which may in turn partition on the next hash bits. 
+ * 
+ * The default memory limit can be set using the <code>jaql.hashtable.memory</code> system
+ * property (in bytes). The partitions are released by {@link #close()}, which is called when 
+ * the groups have been read completely.
  */
-public class JsonHashTable
+public class JsonHashTable implements Closeable
 {
   private static final BinaryFullSerializer SERIALIZER = BinaryFullSerializer.getDefault();
   
+  /** default memory limit for tables that spill */
+  public static final long DEFAULT_MEMORY_LIMIT 
+    = Long.getLong("jaql.hashtable.memory", 64 * 1024 * 1024);
+  
+  /** number of partitions used when the table spills; must be a power of two */
+  public static final int NUM_PARTITIONS = 16;
+  
+  static final int PARTITION_BITS = 4;
+  static final int MAX_LEVEL = 32 / PARTITION_BITS - 1;
+  static final int INITIAL_CAPACITY = 1024;
+  
+  // estimated number of bytes used for an Entry, a LongArray, and one value of an entry
+  static final int ENTRY_OVERHEAD = 48;
+  static final int LONG_ARRAY_OVERHEAD = 32 + (2 + 8) * 8;
+  static final int VALUE_OVERHEAD = 2 * 8;
+  
   /**
    * 
    */
@@ -45,6 +80,7 @@ public class JsonHashTable
     long        keyLength;
     LongArray[] values;   // offset of each value with this key, partitioned by tag
     Entry       next;
+    boolean     matched;  // set by find()
 
     /**
      * @param numTags
@@ -59,7 +95,7 @@ public class JsonHashTable
     }
   }
 
-  Entry[]          table  = new Entry[1000];       // TODO: make dynamic
+  Entry[]          table  = new Entry[INITIAL_CAPACITY];
   JsonValue           key2   = null;
   DataOutputBuffer outbuf = new DataOutputBuffer();
   DataInputBuffer  inbuf  = new DataInputBuffer();
@@ -67,12 +103,42 @@ public class JsonHashTable
   long             numKeys;
   long             numValues;
   
+  long             memoryLimit;
+  PagedFile        pagedFile;
+  int              level;        // partitioning depth of this table
+  SpillFile[]      partitions;   // null until the table spills
+  long[]           partitionSizes;
+  JsonHashTable    loaded;       // the partition that is currently iterated
+  
   /**
+   * Creates a table that is kept in memory entirely.
+   * 
    * @param numTags
    */
   public JsonHashTable(int numTags)
+  {
+    this(numTags, Long.MAX_VALUE, PagedFile.get(), 0);
+  }
+  
+  /**
+   * Creates a table that spills to the given paged file once its estimated memory usage 
+   * exceeds <code>memoryLimit</code>.
+   * 
+   * @param numTags
+   * @param memoryLimit
+   * @param pagedFile
+   */
+  public JsonHashTable(int numTags, long memoryLimit, PagedFile pagedFile)
+  {
+    this(numTags, memoryLimit, pagedFile, 0);
+  }
+  
+  private JsonHashTable(int numTags, long memoryLimit, PagedFile pagedFile, int level)
   {
     this.numTags = numTags;
+    this.memoryLimit = memoryLimit;
+    this.pagedFile = pagedFile;
+    this.level = level;
   }
 
   public long numKeys()
@@ -85,12 +151,24 @@ public class JsonHashTable
     return numValues;
     }
 
+  /** 
+   * Returns the estimated number of bytes used by this table. The buffer size is an int, but
+   * the table spills long before the buffer could overflow. 
+   */
   public long getMemoryUsage()
   {
-    return outbuf.size() + numKeys * (5*8) + numValues * 8; // TODO: why is size() an int??
+    return outbuf.getLength() + table.length * 8L 
+      + numKeys * (ENTRY_OVERHEAD + numTags * LONG_ARRAY_OVERHEAD) 
+      + numValues * VALUE_OVERHEAD;
+  }
+  
+  /** Returns true iff this table has been partitioned to disk. */
+  public boolean isSpilled()
+  {
+    return partitions != null;
   }
 
-  public void reset()
+  public void reset() throws IOException
   {
     for(int i = 0 ; i < table.length ; i++)
     {
@@ -99,6 +177,58 @@ public class JsonHashTable
     outbuf.reset();
     numKeys = 0;
     numValues = 0;
+    if( partitions != null )
+    {
+      for( SpillFile p: partitions )
+      {
+        if( !p.isFrozen() )
+        {
+          p.freeze(); // terminates the chain of pages, which clear() follows
+        }
+        p.clear();
+      }
+      partitions = null;
+      partitionSizes = null;
+    }
+  }
+  
+  /**
+   * Releases the pages of all partitions that have not been read yet, including those of the
+   * partition that is currently iterated, and the memory of the table. It is safe to call 
+   * this method more than once.
+   * 
+   * @throws IOException
+   */
+  public void close() throws IOException
+  {
+    if( loaded != null )
+    {
+      loaded.close();
+      loaded = null;
+    }
+    reset();
+    table = new Entry[INITIAL_CAPACITY];
+    outbuf = new DataOutputBuffer();
+  }
+  
+  /** Scrambles the hash code of a key. */
+  private static int mix(int h)
+  {
+    h *= BaseUtil.GOLDEN_RATIO_32;
+    return h ^ (h >>> 16);
+  }
+  
+  /** Returns the bucket of hash code h in a table of the given (power of two) length. */
+  private static int bucket(int h, int length)
+  {
+    return mix(h) & (length - 1);
+  }
+  
+  /** Returns the partition of hash code h at this table's level. */ 
+  private int partition(int h)
+  {
+    int shift = 32 - (level + 1) * PARTITION_BITS;
+    return ((h * BaseUtil.GOLDEN_RATIO_32) >>> shift) & (NUM_PARTITIONS - 1);
   }
   
   /**
@@ -111,24 +241,41 @@ public class JsonHashTable
    */
   public void add(int tag, JsonValue key, JsonValue value) throws IOException
   {
-    int h = (key == null) ? 0 : key.hashCode();
-    int i = (h & 0x7fffffff) % table.length; // TODO: use fast mod (pow 2?)
-    Entry e;
-    for (e = table[i]; e != null; e = e.next)
+    add(tag, hash(key), key, value);
+  }
+  
+  /** Returns the hash code of <code>key</code> used by this table. */
+  public static int hash(JsonValue key)
+  {
+    return (key == null) ? 0 : key.hashCode();
+  }
+  
+  /**
+   * Adds a value for a key whose hash code, as computed by {@link #hash(JsonValue)}, is known.
+   * 
+   * @param tag
+   * @param h
+   * @param key
+   * @param value
+   * @throws IOException
+   */
+  public void add(int tag, int h, JsonValue key, JsonValue value) throws IOException
+  {
+    if( partitions != null )
     {
-      if (e.hashCode == h)
-      {
-        inbuf.reset(outbuf.getData(), (int) e.keyOffset, outbuf.getLength());
-        key2 = SERIALIZER.read(inbuf, key2);
-        if (JsonUtil.equals(key, key2)) // TODO: use RawComparator or keep deserialized
-        {
-          break;
-        }
-      }
+      int p = partition(h);
+      SpillFile out = partitions[p];
+      BaseUtil.writeVUInt(out, tag);
+      SERIALIZER.write(out, key);
+      SERIALIZER.write(out, value);
+      partitionSizes[p]++;
+      return;
     }
-
+    
+    Entry e = findEntry(h, key);
     if (e == null)
     {
+      int i = bucket(h, table.length);
       numKeys++;
       e = new Entry(numTags);
       e.hashCode = h;
@@ -137,16 +284,187 @@ public class JsonHashTable
       e.keyOffset = outbuf.getLength();
       SERIALIZER.write(outbuf, key);
       e.keyLength = outbuf.getLength() - e.keyOffset;
+      if( numKeys > (table.length >> 2) * 3 && table.length < (1 << 30) )
+      {
+        grow();
+      }
     }
     numValues++;
     long offset = outbuf.getLength();    
     e.values[tag].add(offset);
     SERIALIZER.write(outbuf, value);
     e.values[tag].add(outbuf.getLength() - offset);
+    
+    if( getMemoryUsage() >= memoryLimit && level < MAX_LEVEL )
+    {
+      spill();
+    }
+  }
+  
+  /** Returns the entry of key, which has hash code h, or null if there is none. */
+  private Entry findEntry(int h, JsonValue key) throws IOException
+  {
+    for (Entry e = table[bucket(h, table.length)]; e != null; e = e.next)
+    {
+      if (e.hashCode == h)
+      {
+        inbuf.reset(outbuf.getData(), (int) e.keyOffset, (int) e.keyLength);
+        key2 = SERIALIZER.read(inbuf, key2);
+        // keys are compared as values: equal numbers may have different encodings
+        if (JsonUtil.equals(key, key2))
+        {
+          return e;
+        }
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Looks up a key and marks it as matched. The table must not have spilled.
+   * 
+   * @param tag
+   * @param key
+   * @param target the view to reuse
+   * @return The values of the key with the given tag as a view into the table, or null if 
+   *         the key is not in the table
+   * @throws IOException
+   */
+  public ValueArray find(int tag, JsonValue key, ValueArray target) throws IOException
+  {
+    return find(tag, hash(key), key, target);
+  }
+  
+  /**
+   * Looks up a key whose hash code, as computed by {@link #hash(JsonValue)}, is known.
+   * 
+   * @see #find(int, JsonValue, ValueArray)
+   */
+  public ValueArray find(int tag, int h, JsonValue key, ValueArray target) throws IOException
+  {
+    assert partitions == null;
+    Entry e = findEntry(h, key);
+    if( e == null )
+    {
+      return null;
+    }
+    e.matched = true;
+    if( target == null )
+    {
+      target = new ValueArray();
+    }
+    target.set(outbuf.getData(), e.values[tag]);
+    return target;
+  }
+  
+  /**
+   * Adds the hash codes of all keys in this table to the given filter, without deserializing
+   * the keys. The table must not have spilled.
+   * 
+   * @param filter
+   */
+  public void addKeysTo(JsonBloomFilter filter)
+  {
+    assert partitions == null;
+    for( Entry e1: table )
+    {
+      for( Entry e = e1 ; e != null ; e = e.next )
+      {
+        filter.addHash(e.hashCode);
+      }
+    }
+  }
+  
+  /** Doubles the number of buckets. */
+  private void grow()
+  {
+    Entry[] newTable = new Entry[table.length * 2];
+    for( Entry e1: table )
+    {
+      Entry e = e1;
+      while( e != null )
+      {
+        Entry next = e.next;
+        int i = bucket(e.hashCode, newTable.length);
+        e.next = newTable[i];
+        newTable[i] = e;
+        e = next;
+      }
+    }
+    table = newTable;
+  }
+  
+  /**
+   * Moves all entries into partitions on disk. All subsequent adds go directly to the
+   * partitions.
+   * 
+   * @throws IOException
+   */
+  private void spill() throws IOException
+  {
+    partitions = new SpillFile[NUM_PARTITIONS];
+    partitionSizes = new long[NUM_PARTITIONS];
+    for( int p = 0 ; p < NUM_PARTITIONS ; p++ )
+    {
+      partitions[p] = new SpillFile(pagedFile);
+    }
+    
+    byte[] data = outbuf.getData();
+    for( Entry e1: table )
+    {
+      for( Entry e = e1 ; e != null ; e = e.next )
+      {
+        int p = partition(e.hashCode);
+        SpillFile out = partitions[p];
+        for( int tag = 0 ; tag < numTags ; tag++ )
+        {
+          LongArray la = e.values[tag];
+          int n = la.size();
+          for( int i = 0 ; i < n ; i += 2 )
+          {
+            BaseUtil.writeVUInt(out, tag);
+            out.write(data, (int)e.keyOffset, (int)e.keyLength);
+            out.write(data, (int)la.get(i), (int)la.get(i+1));
+            partitionSizes[p]++;
+          }
+        }
+      }
+    }
+    
+    table = new Entry[INITIAL_CAPACITY];
+    outbuf = new DataOutputBuffer();
+    numKeys = 0;
+    numValues = 0;
+  }
+  
+  /**
+   * Reads partition p into a new table at the next level and releases its pages.
+   * 
+   * @param p
+   * @throws IOException
+   */
+  private JsonHashTable loadPartition(int p) throws IOException
+  {
+    JsonHashTable sub = new JsonHashTable(numTags, memoryLimit, pagedFile, level + 1);
+    SpillFile file = partitions[p];
+    file.freeze();
+    SpillFile.SFDataInput in = file.getInput();
+    JsonValue key = null;
+    JsonValue value = null;
+    for( long n = partitionSizes[p] ; n > 0 ; n-- )
+    {
+      int tag = BaseUtil.readVUInt(in);
+      key = SERIALIZER.read(in, key);
+      value = SERIALIZER.read(in, value);
+      sub.add(tag, key, value);
+    }
+    file.clear();
+    return sub;
   }
 
   public void write(DataOutput out, int tag) throws IOException
   {
+    assert partitions == null;
     //   this needs to write the keys on one chain in a well-defined order so we can merge them!
     for( Entry e1: table )
     {
@@ -171,19 +489,37 @@ public class JsonHashTable
   {
     protected int         index = 0;
     protected Entry       entry = null;
-    protected SpilledJsonArray values[];
+    protected ValueArray  values[];
     protected JsonValue      value = null;
     protected JsonValue      key   = null;
+    
+    // only used when the table has spilled
+    protected int         partition = 0;
+    protected Iterator    partitionIter = null;
+    
+    protected boolean     unmatchedOnly;
 
     /**
      * 
      */
     public Iterator()
     {
-      values = new SpilledJsonArray[numTags];
-      for (int i = 0; i < numTags; i++)
+      this(false);
+    }
+    
+    /**
+     * @param unmatchedOnly if true, skip the keys that were marked by {@link JsonHashTable#find}
+     */
+    public Iterator(boolean unmatchedOnly)
+    {
+      this.unmatchedOnly = unmatchedOnly;
+      if( partitions == null )
       {
-        values[i] = new SpilledJsonArray();
+        values = new ValueArray[numTags];
+        for (int i = 0; i < numTags; i++)
+        {
+          values[i] = new ValueArray();
+        }
       }
     }
 
@@ -193,37 +529,64 @@ public class JsonHashTable
      */
     public boolean next() throws IOException
     {
-      if (entry != null)
+      if (partitions != null)
       {
-        entry = entry.next;
+        return nextSpilled();
       }
-      while (entry == null)
+      if (values == null) // closed while spilled
       {
-        if (index == table.length)
+        partitionIter = null;
+        return false;
+      }
+      
+      do
+      {
+        if (entry != null)
         {
-          return false;
+          entry = entry.next;
         }
-        entry = table[index];
-        index++;
-      }
+        while (entry == null)
+        {
+          if (index == table.length)
+          {
+            return false;
+          }
+          entry = table[index];
+          index++;
+        }
+      } while (unmatchedOnly && entry.matched);
 
       inbuf.reset(outbuf.getData(), (int) entry.keyOffset, (int) entry.keyLength);
       key = SERIALIZER.read(inbuf, key);
 
-      // It's sad to copy all the values... I could create a new Table type, but it has to be JaqlType.
+      // the values are not copied; they are deserialized from outbuf when accessed
       for (int i = 0; i < numTags; i++)
       {
-        SpilledJsonArray va = values[i];
-        va.clear();
-        LongArray voffsets = entry.values[i];
-        for (int j = 0; j < voffsets.size(); j+=2)
+        values[i].set(outbuf.getData(), entry.values[i]);
+      }
+
+      return true;
+    }
+    
+    /** Moves to the next key of the current partition, loading partitions as needed. */
+    private boolean nextSpilled() throws IOException
+    {
+      while( partitionIter == null || !partitionIter.next() )
+      {
+        if( loaded != null )
         {
-          va.addCopySerialized(outbuf.getData(), (int) voffsets.get(j), (int) voffsets.get(j+1),
-              SERIALIZER);
+          loaded.close();
+          loaded = null;
         }
-        va.freeze();
+        if( partition == NUM_PARTITIONS )
+        {
+          partitionIter = null;
+          return false;
+        }
+        loaded = loadPartition(partition);
+        partitionIter = loaded.iter();
+        partition++;
       }
-
       return true;
     }
 
@@ -232,19 +595,153 @@ public class JsonHashTable
      */
     public JsonValue key()
     {
+      if( partitionIter != null )
+      {
+        return partitionIter.key();
+      }
       return key;
     }
 
     /**
+     * Returns the values of the current key with the given tag. The returned array is a 
+     * view into the table that is only valid until the next call to {@link #next()}.
+     * 
      * @param tag
      * @return
      */
     public JsonValue values(int tag)
     {
+      if( partitionIter != null )
+      {
+        return partitionIter.values(tag);
+      }
       return values[tag];
     }
   }
 
+  /**
+   * A read-only view of the values of one key and tag. The values are deserialized from
+   * the table's buffer only when they are accessed.
+   */
+  public static class ValueArray extends JsonArray
+  {
+    protected byte[]          data;
+    protected LongArray       offsets; // (offset, length) pairs into data
+    protected DataInputBuffer input = new DataInputBuffer();
+    
+    /**
+     * @param data
+     * @param offsets
+     */
+    protected void set(byte[] data, LongArray offsets)
+    {
+      this.data = data;
+      this.offsets = offsets;
+    }
+    
+    /* @see com.ibm.jaql.json.type.JsonArray#count() */
+    @Override
+    public long count()
+    {
+      return offsets.size() / 2;
+    }
+
+    /* @see com.ibm.jaql.json.type.JsonArray#iter() */
+    @Override
+    public JsonIterator iter() throws Exception
+    {
+      final int n = offsets.size();
+      if( n == 0 )
+      {
+        return JsonIterator.EMPTY;
+      }
+      return new JsonIterator() {
+        int i = 0;
+        DataInputBuffer in = new DataInputBuffer();
+        
+        @Override
+        public boolean moveNext() throws IOException
+        {
+          if( i >= n )
+          {
+            return false;
+          }
+          in.reset(data, (int)offsets.get(i), (int)offsets.get(i+1));
+          currentValue = SERIALIZER.read(in, currentValue);
+          i += 2;
+          return true;
+        }
+      };
+    }
+
+    /* @see com.ibm.jaql.json.type.JsonArray#get(long) */
+    @Override
+    public JsonValue get(long n) throws Exception
+    {
+      if( n < 0 || n >= count() )
+      {
+        return null;
+      }
+      int i = (int)(2 * n);
+      input.reset(data, (int)offsets.get(i), (int)offsets.get(i+1));
+      return SERIALIZER.read(input, null);
+    }
+
+    /* @see com.ibm.jaql.json.type.JsonArray#getAll(com.ibm.jaql.json.type.JsonValue[]) */
+    @Override
+    public void getAll(JsonValue[] target) throws Exception
+    {
+      assert target.length == count();
+      for( int i = 0 ; i < target.length ; i++ )
+      {
+        input.reset(data, (int)offsets.get(2*i), (int)offsets.get(2*i+1));
+        target[i] = SERIALIZER.read(input, null);
+      }
+    }
+
+    /** Returns a {@link SpilledJsonArray} with copies of the values. */
+    @Override
+    public SpilledJsonArray getCopy(JsonValue target) throws Exception
+    {
+      SpilledJsonArray t;
+      if( target instanceof SpilledJsonArray )
+      {
+        t = (SpilledJsonArray)target;
+        t.clear();
+      }
+      else
+      {
+        t = new SpilledJsonArray();
+      }
+      for( int i = 0 ; i < offsets.size() ; i += 2 )
+      {
+        t.addCopySerialized(data, (int)offsets.get(i), (int)offsets.get(i+1), SERIALIZER);
+      }
+      t.freeze();
+      return t;
+    }
+
+    /** Returns a {@link BufferedJsonArray} with immutable copies of the values. */
+    @Override
+    public JsonArray getImmutableCopy() throws Exception
+    {
+      JsonValue[] values = new JsonValue[(int)count()];
+      getAll(values);
+      for( int i = 0 ; i < values.length ; i++ )
+      {
+        values[i] = JsonUtil.getImmutableCopy(values[i]);
+      }
+      return new BufferedJsonArray(values, false);
+    }
+
+    /** Returns {@link JsonEncoding#ARRAY_SPILLED}; the view is serialized like a spilled array. */
+    @Override
+    public JsonEncoding getEncoding()
+    {
+      return JsonEncoding.ARRAY_SPILLED;
+    }
+  }
+
   /**
    * @return
    */
@@ -252,4 +749,16 @@ public class JsonHashTable
   {
     return new Iterator();
   }
+  
+  /**
+   * Returns an iterator over the keys that were not marked by {@link #find}. The table 
+   * must not have spilled.
+   * 
+   * @return
+   */
+  public Iterator unmatchedIter()
+  {
+    assert partitions == null;
+    return new Iterator(true);
+  }
 }
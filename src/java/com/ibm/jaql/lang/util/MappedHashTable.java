@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.util;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * An open-addressing hash table of serialized keys and values that is kept off the Java heap, in
+ * memory-mapped temp files. The operating system pages the files in and out, so the table can 
+ * be larger than both the heap and the physical memory.
+ * 
+ * Entries are appended to a data file as <code>[hash, key length, value length, key, 
+ * value]</code>, aligned to 16 bytes. The index file holds one long per slot: the top 24 bits of
+ * the hash and the position of the entry. It is linearly probed and doubles whenever it is more
+ * than half full. Keys are compared by their bytes, so equal keys must have equal 
+ * serializations; nothing is deserialized by a lookup.
+ * 
+ * Once all entries are put, {@link #find}, {@link #valueLength} and {@link #writeValue} may be
+ * called by several threads at once, provided the table was handed to them under a lock; none 
+ * of them may run concurrently with {@link #put}, {@link #clear} or {@link #close}. The files
+ * are deleted as soon as they are opened, or by {@link #close()} where the operating system 
+ * does not allow that.
+ */
+public class MappedHashTable
+{
+  static final int CHUNK_BITS = 26;  // at most 64 MB per mapped buffer
+  static final int HEADER_SIZE = 16;
+  static final int INITIAL_CAPACITY = 1 << 12;
+  static final int MAX_COPY_SIZE = 1 << 16;
+  
+  static final int POS_BITS = 40;
+  static final long POS_MASK = (1L << POS_BITS) - 1;
+
+  protected final File dir;
+  protected Region data;
+  protected Region index;
+  protected long dataEnd;
+  protected long capacity;
+  protected long size;
+
+  /**
+   * @param dir the directory of the temp files, or null for the default temp directory
+   */
+  public MappedHashTable(File dir) throws IOException
+  {
+    this.dir = dir;
+    data = new Region(dir);
+    index = new Region(dir);
+    capacity = INITIAL_CAPACITY;
+    index.map(capacity * 8);
+  }
+
+  /** Returns the number of keys in the table. */
+  public long size()
+  {
+    return size;
+  }
+
+  public boolean isEmpty()
+  {
+    return size == 0;
+  }
+
+  /** Returns the number of bytes used by the entries. */
+  public long dataSize()
+  {
+    return dataEnd;
+  }
+
+  /** Returns the hash code of a serialized key. */
+  public static int hash(byte[] key, int off, int len)
+  {
+    int h = 0;
+    for (int i = off ; i < off + len ; i++)
+    {
+      h = 31 * h + key[i];
+    }
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  /**
+   * Adds a key with its value, replacing the value of an equal key. The bytes of a replaced 
+   * value are not reclaimed.
+   */
+  public void put(byte[] key, int keyOff, int keyLen, byte[] value, int valOff, int valLen) 
+    throws IOException
+  {
+    if (2 * (size + 1) > capacity)
+    {
+      grow();
+    }
+    int h = hash(key, keyOff, keyLen);
+    long slot = findSlot(h, key, keyOff, keyLen);
+    long pos = dataEnd;
+    data.putInt(pos, h);
+    data.putInt(pos + 4, keyLen);
+    data.putInt(pos + 8, valLen);
+    data.put(pos + HEADER_SIZE, key, keyOff, keyLen);
+    data.put(pos + HEADER_SIZE + keyLen, value, valOff, valLen);
+    dataEnd = (pos + HEADER_SIZE + keyLen + valLen + 15) & ~15L;
+    if (index.getLong(slot * 8) == 0)
+    {
+      size++;
+    }
+    index.putLong(slot * 8, entry(h, pos));
+  }
+
+  /**
+   * Returns the position of the entry with the given key, or -1 if there is none.
+   */
+  public long find(byte[] key, int off, int len) throws IOException
+  {
+    long slot = findSlot(hash(key, off, len), key, off, len);
+    long e = index.getLong(slot * 8);
+    return e == 0 ? -1 : position(e);
+  }
+
+  /** Returns the length of the value of the entry at <code>pos</code>. */
+  public int valueLength(long pos) throws IOException
+  {
+    return data.getInt(pos + 8);
+  }
+
+  /** 
+   * Writes the value of the entry at <code>pos</code>. Every call copies through its own buffer,
+   * so concurrent lookups do not share one.
+   */
+  public void writeValue(long pos, DataOutput out) throws IOException
+  {
+    int len = valueLength(pos);
+    byte[] buf = new byte[Math.min(len, MAX_COPY_SIZE)];
+    long p = pos + HEADER_SIZE + data.getInt(pos + 4);
+    while (len > 0)
+    {
+      int n = Math.min(len, buf.length);
+      data.get(p, buf, 0, n);
+      out.write(buf, 0, n);
+      p += n;
+      len -= n;
+    }
+  }
+
+  /** Removes all entries. */
+  public void clear() throws IOException
+  {
+    close();
+    data = new Region(dir);
+    index = new Region(dir);
+    capacity = INITIAL_CAPACITY;
+    index.map(capacity * 8);
+    dataEnd = 0;
+    size = 0;
+  }
+
+  /** Releases the table and deletes its files. */
+  public void close()
+  {
+    data.close();
+    index.close();
+  }
+
+  private static long entry(int hash, long pos)
+  {
+    return ((long)(hash >>> 8) << POS_BITS) | (pos / HEADER_SIZE + 1);
+  }
+
+  private static long position(long entry)
+  {
+    return ((entry & POS_MASK) - 1) * HEADER_SIZE;
+  }
+
+  /**
+   * Returns the slot of the key: the slot of its entry, or the empty slot where the probe for 
+   * it ended.
+   */
+  private long findSlot(int h, byte[] key, int off, int len) throws IOException
+  {
+    long mask = capacity - 1;
+    long tag = (long)(h >>> 8) << POS_BITS;
+    for (long slot = h & mask ; ; slot = (slot + 1) & mask)
+    {
+      long e = index.getLong(slot * 8);
+      if (e == 0)
+      {
+        return slot;
+      }
+      if ((e & ~POS_MASK) == tag)
+      {
+        long pos = position(e);
+        if (data.getInt(pos + 4) == len && data.equals(pos + HEADER_SIZE, key, off, len))
+        {
+          return slot;
+        }
+      }
+    }
+  }
+
+  /** Doubles the index. */
+  private void grow() throws IOException
+  {
+    Region old = index;
+    long oldCapacity = capacity;
+    index = new Region(dir);
+    capacity *= 2;
+    index.map(capacity * 8);
+    long mask = capacity - 1;
+    for (long i = 0 ; i < oldCapacity ; i++)
+    {
+      long e = old.getLong(i * 8);
+      if (e != 0)
+      {
+        int h = data.getInt(position(e));
+        long slot = h & mask;
+        while (index.getLong(slot * 8) != 0)
+        {
+          slot = (slot + 1) & mask;
+        }
+        index.putLong(slot * 8, e);
+      }
+    }
+    old.close();
+  }
+
+  /**
+   * A temp file that is mapped into memory in chunks of at most 2^{@link #CHUNK_BITS} bytes. The
+   * mapped length doubles as the file grows, so a small table maps little; the mappings it
+   * replaces are unmapped once they are garbage collected. Ints and longs must not cross a chunk
+   * boundary. Reads of bytes that were written or passed to {@link #map} do not map anything, so
+   * they can run concurrently.
+   */
+  protected static class Region
+  {
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    static final int MIN_MAP_SIZE = 1 << 16;
+
+    protected File file;
+    protected RandomAccessFile raf;
+    protected ArrayList<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+    protected long mapped; // number of bytes mapped
+
+    Region(File dir) throws IOException
+    {
+      file = File.createTempFile("jaql-hashtable", ".dat", dir);
+      try
+      {
+        raf = new RandomAccessFile(file, "rw");
+      }
+      finally
+      {
+        // the open file stays usable; if it cannot be deleted yet, close() deletes it
+        if (file.delete())
+        {
+          file = null;
+        }
+      }
+    }
+
+    /** 
+     * Maps at least the first <code>length</code> bytes, and at least twice as many as before 
+     * if more are needed.
+     */
+    void map(long length) throws IOException
+    {
+      if (length <= mapped)
+      {
+        return;
+      }
+      long target = Math.max(length, Math.max(2 * mapped, MIN_MAP_SIZE));
+      int last = (int)((target - 1) >>> CHUNK_BITS);
+      for (int c = Math.max(chunks.size() - 1, 0) ; c <= last ; c++)
+      {
+        long start = (long)c << CHUNK_BITS;
+        long size = Math.min(CHUNK_SIZE, target - start);
+        if (c == chunks.size())
+        {
+          chunks.add(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, start, size));
+        }
+        else if (chunks.get(c).capacity() < size)
+        {
+          chunks.set(c, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, start, size));
+        }
+      }
+      mapped = target;
+    }
+
+    /** Returns the chunk that holds <code>pos</code>, mapping the long at it if necessary. */
+    private MappedByteBuffer chunk(long pos) throws IOException
+    {
+      map(pos + 8);
+      return chunks.get((int)(pos >>> CHUNK_BITS));
+    }
+
+    /** Returns a view of <code>n</code> bytes of chunk <code>c</code> from <code>p</code>. */
+    private static ByteBuffer slice(MappedByteBuffer c, int p, int n)
+    {
+      ByteBuffer b = c.duplicate();
+      b.limit(p + n);
+      b.position(p);
+      return b;
+    }
+
+    int getInt(long pos) throws IOException
+    {
+      return chunk(pos).getInt((int)(pos & CHUNK_MASK));
+    }
+
+    void putInt(long pos, int v) throws IOException
+    {
+      chunk(pos).putInt((int)(pos & CHUNK_MASK), v);
+    }
+
+    long getLong(long pos) throws IOException
+    {
+      return chunk(pos).getLong((int)(pos & CHUNK_MASK));
+    }
+
+    void putLong(long pos, long v) throws IOException
+    {
+      chunk(pos).putLong((int)(pos & CHUNK_MASK), v);
+    }
+
+    void put(long pos, byte[] b, int off, int len) throws IOException
+    {
+      map(pos + len);
+      for (int i = 0 ; i < len ; )
+      {
+        int p = (int)((pos + i) & CHUNK_MASK);
+        int n = Math.min(len - i, CHUNK_SIZE - p);
+        slice(chunks.get((int)((pos + i) >>> CHUNK_BITS)), p, n).put(b, off + i, n);
+        i += n;
+      }
+    }
+
+    void get(long pos, byte[] b, int off, int len) throws IOException
+    {
+      for (int i = 0 ; i < len ; )
+      {
+        int p = (int)((pos + i) & CHUNK_MASK);
+        int n = Math.min(len - i, CHUNK_SIZE - p);
+        slice(chunk(pos + i), p, n).get(b, off + i, n);
+        i += n;
+      }
+    }
+
+    /** Returns true if the bytes at <code>pos</code> equal <code>b[off..off+len)</code>. */
+    boolean equals(long pos, byte[] b, int off, int len) throws IOException
+    {
+      for (int i = 0 ; i < len ; )
+      {
+        int p = (int)((pos + i) & CHUNK_MASK);
+        int n = Math.min(len - i, CHUNK_SIZE - p);
+        if (!slice(chunk(pos + i), p, n).equals(ByteBuffer.wrap(b, off + i, n)))
+        {
+          return false;
+        }
+        i += n;
+      }
+      return true;
+    }
+
+    /** Drops the mapped chunks and deletes the file. The memory is unmapped once the chunks are
+     * garbage collected. */
+    void close()
+    {
+      chunks.clear();
+      try
+      {
+        raf.close();
+      }
+      catch (IOException e)
+      {
+        // ignored
+      }
+      if (file != null)
+      {
+        file.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+import com.ibm.jaql.lang.rewrite.SharedScan;
+
+/** Runs the shared scan queries with the rewrite enabled. */
+public class TestSharedScan extends JaqlScriptTestCase
+{
+  @BeforeClass
+  public static void enable()
+  {
+    System.setProperty(SharedScan.PROPERTY, "true");
+  }
+
+  @AfterClass
+  public static void disable()
+  {
+    System.clearProperty(SharedScan.PROPERTY);
+  }
+}
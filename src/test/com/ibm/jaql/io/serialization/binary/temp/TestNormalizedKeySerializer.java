@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.io.serialization.binary.temp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+import org.junit.Test;
+
+import com.ibm.jaql.io.serialization.binary.BinaryFullSerializer;
+import com.ibm.jaql.json.parser.JsonParser;
+import com.ibm.jaql.json.schema.ArraySchema;
+import com.ibm.jaql.json.schema.Schema;
+import com.ibm.jaql.json.schema.SchemaFactory;
+import com.ibm.jaql.json.type.JsonBinary;
+import com.ibm.jaql.json.type.JsonDate;
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.json.type.JsonString;
+import com.ibm.jaql.json.type.JsonUtil;
+import com.ibm.jaql.json.type.JsonValue;
+
+/**
+ * Tests {@link NormalizedKeySerializer}.
+ */
+public class TestNormalizedKeySerializer
+{
+  private static final String[] VALUES = {
+    "null", "false", "true", 
+    "''", "'a'", "'ab'", "'b'", "'ä'",
+    "-1", "0", "1", "255", "256", "-256",
+    "[]", "[null]", "[null, 1]", "[1]", "[1, 2]", "[2]", "['a']", "['a', 'b']", "[[]]", "[[1]]",
+    "{}", "{a: 1}", "{a: 1, b: 2}", "{a: 2}", "{b: 0}", "{ab: 0}", "{a: [1, 'x']}", "{a: {}}"
+  };
+  
+  private List<JsonValue> values() throws Exception
+  {
+    List<JsonValue> values = new ArrayList<JsonValue>();
+    JsonParser parser = new JsonParser();
+    for (String s : VALUES)
+    {
+      values.add(parser.parse(s));
+    }
+    values.add(new JsonLong(Long.MIN_VALUE));
+    values.add(new JsonLong(Long.MAX_VALUE));
+    values.add(new JsonString(new byte[] { 'a', 0 }));
+    values.add(new JsonString(new byte[] { 'a', 0, 0 }));
+    values.add(new JsonString(new byte[] { 'a', 1 }));
+    values.add(new JsonBinary(new byte[0]));
+    values.add(new JsonBinary(new byte[] { 0 }));
+    values.add(new JsonBinary(new byte[] { (byte)0xff }));
+    values.add(new JsonBinary(new byte[] { 0, 0, 1 }));
+    values.add(new JsonDate(-1000));
+    values.add(new JsonDate(0));
+    values.add(new JsonDate(1000));
+    return values;
+  }
+  
+  private static List<byte[]> encode(BinaryFullSerializer serializer, List<JsonValue> values)
+  throws Exception
+  {
+    List<byte[]> encoded = new ArrayList<byte[]>();
+    for (JsonValue v : values)
+    {
+      DataOutputBuffer out = new DataOutputBuffer();
+      serializer.write(out, v);
+      byte[] bytes = new byte[out.getLength()];
+      System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+      encoded.add(bytes);
+    }
+    return encoded;
+  }
+  
+  /** The order has to agree with the one used so far to sort map outputs. */
+  @Test
+  public void testOrder() throws Exception
+  {
+    NormalizedKeySerializer serializer = new NormalizedKeySerializer();
+    BinaryFullSerializer reference = BinaryFullSerializer.getDefault();
+    List<JsonValue> values = values();
+    List<byte[]> encoded = encode(serializer, values);
+    List<byte[]> referenceEncoded = encode(reference, values);
+    
+    DataInputBuffer in1 = new DataInputBuffer();
+    DataInputBuffer in2 = new DataInputBuffer();
+    for (int i = 0; i < values.size(); i++)
+    {
+      byte[] b1 = encoded.get(i);
+      for (int j = 0; j < values.size(); j++)
+      {
+        byte[] b2 = encoded.get(j);
+        String msg = values.get(i) + " vs. " + values.get(j);
+        in1.reset(referenceEncoded.get(i), referenceEncoded.get(i).length);
+        in2.reset(referenceEncoded.get(j), referenceEncoded.get(j).length);
+        int expected = Integer.signum(reference.compare(in1, in2));
+        assertEquals(msg, expected, 
+            Integer.signum(WritableComparator.compareBytes(b1, 0, b1.length, b2, 0, b2.length)));
+        
+        in1.reset(b1, b1.length);
+        in2.reset(b2, b2.length);
+        assertEquals(msg, expected, Integer.signum(serializer.compare(in1, in2)));
+        if (expected == 0)
+        {
+          // equal values are consumed entirely
+          assertEquals(b1.length, in1.getPosition());
+          assertEquals(b2.length, in2.getPosition());
+        }
+      }
+    }
+  }
+  
+  @Test
+  public void testRoundTrip() throws Exception
+  {
+    NormalizedKeySerializer serializer = new NormalizedKeySerializer();
+    DataOutputBuffer out = new DataOutputBuffer();
+    List<JsonValue> values = values();
+    for (JsonValue v : values)
+    {
+      serializer.write(out, v);
+    }
+    
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    JsonValue target = null;
+    for (JsonValue v : values)
+    {
+      target = serializer.read(in, target);
+      assertEquals(0, JsonUtil.compare(v, target));
+    }
+    assertEquals(out.getLength(), in.getPosition());
+  }
+  
+  @Test
+  public void testSupports()
+  {
+    assertTrue(NormalizedKeySerializer.supports(SchemaFactory.longSchema()));
+    assertTrue(NormalizedKeySerializer.supports(SchemaFactory.nullSchema()));
+    assertTrue(NormalizedKeySerializer.supports(SchemaFactory.longOrNullSchema()));
+    assertTrue(NormalizedKeySerializer.supports(new ArraySchema(
+        new Schema[] { SchemaFactory.stringSchema(), SchemaFactory.dateSchema() })));
+    
+    assertFalse(NormalizedKeySerializer.supports(SchemaFactory.anySchema()));
+    assertFalse(NormalizedKeySerializer.supports(SchemaFactory.doubleSchema()));
+    assertFalse(NormalizedKeySerializer.supports(SchemaFactory.numberSchema()));
+    assertFalse(NormalizedKeySerializer.supports(SchemaFactory.arraySchema()));
+    assertFalse(NormalizedKeySerializer.supports(new ArraySchema(
+        new Schema[] { SchemaFactory.longSchema(), SchemaFactory.decfloatSchema() })));
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.job;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.ibm.jaql.io.Adapter;
+import com.ibm.jaql.json.schema.SchemaFactory;
+import com.ibm.jaql.json.type.BufferedJsonRecord;
+import com.ibm.jaql.json.type.JsonRecord;
+import com.ibm.jaql.json.type.JsonString;
+import com.ibm.jaql.lang.core.Context;
+import com.ibm.jaql.lang.core.Var;
+import com.ibm.jaql.lang.expr.core.BindingExpr;
+import com.ibm.jaql.lang.expr.core.ConstExpr;
+import com.ibm.jaql.lang.expr.core.DoExpr;
+import com.ibm.jaql.lang.expr.core.Expr;
+import com.ibm.jaql.lang.expr.core.NameValueBinding;
+import com.ibm.jaql.lang.expr.core.RecordExpr;
+import com.ibm.jaql.lang.expr.core.VarExpr;
+import com.ibm.jaql.lang.expr.hadoop.MapReduceBaseExpr;
+import com.ibm.jaql.lang.expr.hadoop.MapReduceFn;
+import com.ibm.jaql.lang.expr.io.HadoopTempExpr;
+import com.ibm.jaql.lang.expr.io.ReadFn;
+
+/**
+ * Tests which map-reduce jobs of a block {@link JobBlock} considers independent.
+ */
+public class TestJobBlock
+{
+  @Test
+  public void testIndependentJobs() throws Exception
+  {
+    JobBlock b = JobBlock.make(block(
+        job(hdfs("in1"), hdfs("out1")),
+        job(hdfs("in2"), hdfs("out2"))));
+    assertNotNull(b);
+    assertEquals(0, b.before[0].length);
+    assertEquals(0, b.before[1].length);
+  }
+
+  @Test
+  public void testSameLocation() throws Exception
+  {
+    // the second job reads the output of the first
+    assertNull(JobBlock.make(block(
+        job(hdfs("in1"), hdfs("out1")),
+        job(hdfs("out1"), hdfs("out2")))));
+
+    // ... spelled differently
+    assertNull(JobBlock.make(block(
+        job(hdfs("in1"), hdfs("out1")),
+        job(hdfs(new File("out1").getAbsolutePath()), hdfs("out2")))));
+
+    // both jobs write the same location
+    assertNull(JobBlock.make(block(
+        job(hdfs("in1"), hdfs("dir/out")),
+        job(hdfs("in2"), hdfs("dir/./out")))));
+  }
+
+  @Test
+  public void testSameNameInOtherDirectory() throws Exception
+  {
+    assertNotNull(JobBlock.make(block(
+        job(hdfs("in1"), hdfs("dir1/out")),
+        job(hdfs("in2"), hdfs("dir2/out")))));
+  }
+
+  @Test
+  public void testUnknownLocation() throws Exception
+  {
+    // the read might read the output of either job
+    Var outside = new Var("outside");
+    assertNull(JobBlock.make(block(
+        job(hdfs("in1"), hdfs("out1")),
+        job(hdfs("in2"), hdfs("out2")),
+        read(outside))));
+
+    // ... but not their temp files
+    JobBlock b = JobBlock.make(block(
+        job(hdfs("in1"), temp()),
+        job(hdfs("in2"), temp()),
+        read(outside)));
+    assertNotNull(b);
+    assertEquals(0, b.before[0].length);
+  }
+
+  @Test
+  public void testDependency() throws Exception
+  {
+    BindingExpr first = job(hdfs("in1"), temp());
+    JobBlock b = JobBlock.make(block(
+        first,
+        job(hdfs("in2"), temp()),
+        job(new VarExpr(first.var), temp())));
+    assertNotNull(b);
+    assertEquals(1, b.before[0].length);
+    assertEquals(2, b.before[0][0]);
+    assertEquals(0, b.before[1].length);
+  }
+
+  @Test
+  public void testTempNames() throws Exception
+  {
+    // the stages of a block create their temps at the same time
+    final int n = 1000;
+    final Set<String> names = new HashSet<String>();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++)
+    {
+      threads[t] = new Thread() {
+        public void run()
+        {
+          try
+          {
+            Context context = new Context();
+            for (int i = 0; i < n; i++)
+            {
+              JsonRecord r = (JsonRecord)temp().eval(context);
+              synchronized (names)
+              {
+                names.add(r.get(Adapter.LOCATION_NAME).toString());
+              }
+            }
+          }
+          catch (Exception e)
+          {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads)
+    {
+      t.join();
+    }
+    assertEquals(threads.length * n, names.size());
+  }
+
+  private static DoExpr block(Expr... exprs)
+  {
+    Expr[] all = new Expr[exprs.length + 1];
+    System.arraycopy(exprs, 0, all, 0, exprs.length);
+    all[exprs.length] = new ConstExpr(null);
+    return new DoExpr(all);
+  }
+
+  private static BindingExpr job(Expr input, Expr output)
+  {
+    RecordExpr args = new RecordExpr(
+        new NameValueBinding(MapReduceBaseExpr.INPUT_KEY, input),
+        new NameValueBinding(MapReduceBaseExpr.OUTPUT_KEY, output));
+    return new BindingExpr(BindingExpr.Type.EQ, new Var("job"), null, new MapReduceFn(args));
+  }
+
+  private static BindingExpr read(Var descriptor)
+  {
+    return new BindingExpr(BindingExpr.Type.EQ, new Var("r"), null,
+        new ReadFn(new VarExpr(descriptor)));
+  }
+
+  private static Expr temp()
+  {
+    return new HadoopTempExpr(SchemaFactory.anySchema());
+  }
+
+  private static ConstExpr hdfs(String location)
+  {
+    BufferedJsonRecord r = new BufferedJsonRecord();
+    r.add(Adapter.TYPE_NAME, new JsonString("hdfs"));
+    r.add(Adapter.LOCATION_NAME, new JsonString(location));
+    return new ConstExpr(r);
+  }
+}
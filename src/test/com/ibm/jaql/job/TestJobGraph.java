@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.job;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the scheduling and cancellation of the stages of a {@link JobGraph}.
+ */
+public class TestJobGraph
+{
+  private ExecutorService executor;
+  private List<String> log;
+  private int numRunning;
+  private int maxRunning;
+
+  @Before
+  public void setUp()
+  {
+    executor = Executors.newCachedThreadPool();
+    log = new ArrayList<String>();
+    numRunning = maxRunning = 0;
+  }
+
+  @After
+  public void tearDown()
+  {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testDependencies() throws Exception
+  {
+    JobGraph g = new JobGraph();
+    Stage a = new LogStage(g, "a");
+    Stage b = new LogStage(g, "b");
+    Stage ab = new LogStage(g, "ab");
+    Stage abc = new LogStage(g, "abc");
+    Stage c = new LogStage(g, "c");
+    a.before(ab);
+    b.before(ab);
+    ab.before(abc);
+    c.before(abc);
+    a.before(abc); // redundant
+
+    g.run(executor);
+    assertEquals(5, log.size());
+    assertTrue(log.indexOf("a") < log.indexOf("ab"));
+    assertTrue(log.indexOf("b") < log.indexOf("ab"));
+    assertTrue(log.indexOf("ab") < log.indexOf("abc"));
+    assertTrue(log.indexOf("c") < log.indexOf("abc"));
+
+    // a graph can be run again
+    log.clear();
+    g.run(executor);
+    assertEquals(5, log.size());
+  }
+
+  @Test
+  public void testMaxRunning() throws Exception
+  {
+    JobGraph g = new JobGraph(2);
+    for (int i = 0; i < 6; i++)
+    {
+      new LogStage(g, "s" + i);
+    }
+    g.run(executor);
+    assertEquals(6, log.size());
+    assertTrue(maxRunning <= 2);
+  }
+
+  @Test
+  public void testCycle() throws Exception
+  {
+    JobGraph g = new JobGraph();
+    Stage a = new LogStage(g, "a");
+    Stage b = new LogStage(g, "b");
+    a.before(b);
+    b.before(a);
+    try
+    {
+      g.run(executor);
+      fail("cycle not detected");
+    }
+    catch (RuntimeException e)
+    {
+      assertTrue(e.getMessage().contains("cycles"));
+    }
+    assertTrue(log.isEmpty());
+  }
+
+  @Test
+  public void testCancel() throws Exception
+  {
+    JobGraph g = new JobGraph();
+    final CountDownLatch started = new CountDownLatch(1);
+    final boolean[] interrupted = new boolean[1];
+    Stage slow = new Stage(g) {
+      @Override
+      public void runStage() throws Exception
+      {
+        started.countDown();
+        try
+        {
+          Thread.sleep(60000);
+        }
+        catch (InterruptedException e)
+        {
+          interrupted[0] = true;
+          throw e;
+        }
+      }
+    };
+    Stage failing = new Stage(g) {
+      @Override
+      public void runStage() throws Exception
+      {
+        started.await(10, TimeUnit.SECONDS);
+        throw new IllegalStateException("failed");
+      }
+    };
+    Stage after = new LogStage(g, "after");
+    failing.before(after);
+    slow.before(new LogStage(g, "afterSlow"));
+
+    long start = System.currentTimeMillis();
+    try
+    {
+      g.run(executor);
+      fail("error not thrown");
+    }
+    catch (RuntimeException e)
+    {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    // the running stage was interrupted, and no other stage was started
+    assertTrue(interrupted[0]);
+    assertTrue(System.currentTimeMillis() - start < 30000);
+    assertTrue(log.isEmpty());
+    assertFalse(Thread.currentThread().isInterrupted());
+  }
+
+  /** Logs its name when it is done. */
+  private class LogStage extends Stage
+  {
+    private String name;
+
+    LogStage(JobGraph graph, String name)
+    {
+      super(graph);
+      this.name = name;
+    }
+
+    @Override
+    public void runStage() throws Exception
+    {
+      synchronized (TestJobGraph.this)
+      {
+        maxRunning = Math.max(maxRunning, ++numRunning);
+      }
+      Thread.sleep(20);
+      synchronized (TestJobGraph.this)
+      {
+        numRunning--;
+        log.add(name);
+      }
+    }
+  }
+}
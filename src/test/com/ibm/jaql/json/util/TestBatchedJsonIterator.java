@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.json.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.ibm.jaql.json.type.JsonBool;
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.lang.core.Context;
+import com.ibm.jaql.lang.core.Var;
+import com.ibm.jaql.lang.expr.core.ConstExpr;
+import com.ibm.jaql.lang.expr.core.Expr;
+import com.ibm.jaql.lang.expr.core.FilterExpr;
+import com.ibm.jaql.lang.expr.core.RangeExpr;
+import com.ibm.jaql.lang.expr.core.TransformExpr;
+import com.ibm.jaql.lang.expr.core.VarExpr;
+
+public class TestBatchedJsonIterator {
+
+	/** Produces the numbers 0 to n-1 in batches of at most 3 values */
+	private static class Numbers extends BatchedJsonIterator {
+		private final long n;
+		private long next;
+
+		Numbers(long n) {
+			this.n = n;
+		}
+
+		@Override
+		protected int fillBatch(JsonValue[] out) {
+			int k = 0;
+			while (k < out.length && k < 3 && next < n) {
+				out[k++] = new JsonLong(next++);
+			}
+			return k;
+		}
+	}
+
+	@Test
+	/*
+	 * Tests whether range, filter and transform evaluate row-wise unless
+	 * jaql.batch.size is set: batches measured slower than row-wise evaluation
+	 * on cheap pipelines
+	 */
+	public void testDisabledByDefault() throws Exception {
+		// range(10) -> filter true -> transform $
+		Context context = new Context();
+		Expr range = new RangeExpr(new ConstExpr(new JsonLong(10)),
+				new ConstExpr(null), new ConstExpr(new JsonLong(1)));
+		Var f = new Var("$f");
+		Expr filter = new FilterExpr(f, range, new ConstExpr(JsonBool.TRUE));
+		Var t = new Var("$t");
+		Expr transform = new TransformExpr(t, filter, new VarExpr(t));
+
+		for (Expr e : new Expr[] { range, filter, transform }) {
+			assertFalse(e.iter(context) instanceof BatchedJsonIterator);
+		}
+		JsonIterator iter = transform.iter(context);
+		JsonValue[] batch = new JsonValue[8];
+		long expected = 0;
+		int n;
+		while ((n = iter.nextBatch(batch)) > 0) {
+			assertEquals(1, n);
+			assertEquals(new JsonLong(expected++), batch[0]);
+		}
+		assertEquals(10L, expected);
+	}
+
+	@Test
+	/*
+	 * Tests whether moveNext() returns all values of all batches
+	 */
+	public void testMoveNext() throws Exception {
+		JsonIterator iter = new Numbers(10);
+		for (long i = 0; i < 10; i++) {
+			assertTrue(iter.moveNext());
+			assertEquals(new JsonLong(i), iter.current());
+		}
+		assertFalse(iter.moveNext());
+		assertFalse(iter.moveNext());
+	}
+
+	@Test
+	/*
+	 * Tests whether nextBatch() continues after the values already returned
+	 * by moveNext()
+	 */
+	public void testMixed() throws Exception {
+		JsonIterator iter = new Numbers(10);
+		JsonValue[] batch = new JsonValue[2];
+		assertTrue(iter.moveNext());
+		assertEquals(new JsonLong(0), iter.current());
+		assertEquals(2, iter.nextBatch(batch));
+		assertEquals(new JsonLong(1), batch[0]);
+		assertEquals(new JsonLong(2), batch[1]);
+		assertEquals(2, iter.nextBatch(batch));
+		assertEquals(new JsonLong(3), batch[0]);
+		assertEquals(new JsonLong(4), batch[1]);
+		assertTrue(iter.moveNext());
+		assertEquals(new JsonLong(5), iter.current());
+
+		long expected = 6;
+		int n;
+		while ((n = iter.nextBatch(batch)) > 0) {
+			for (int i = 0; i < n; i++) {
+				assertEquals(new JsonLong(expected++), batch[i]);
+			}
+		}
+		assertTrue(expected == 10);
+		assertFalse(iter.moveNext());
+	}
+
+	@Test
+	/*
+	 * Tests whether row iterators return one value per batch
+	 */
+	public void testRowIterator() throws Exception {
+		final JsonValue[] values = new JsonValue[] { new JsonLong(1), new JsonLong(2) };
+		JsonIterator iter = new JsonIterator() {
+			int i;
+
+			@Override
+			public boolean moveNext() {
+				if (i < values.length) {
+					currentValue = values[i++];
+					return true;
+				}
+				return false;
+			}
+		};
+		JsonValue[] batch = new JsonValue[4];
+		assertEquals(1, iter.nextBatch(batch));
+		assertSame(values[0], batch[0]);
+		assertEquals(1, iter.nextBatch(batch));
+		assertSame(values[1], batch[0]);
+		assertEquals(0, iter.nextBatch(batch));
+	}
+}
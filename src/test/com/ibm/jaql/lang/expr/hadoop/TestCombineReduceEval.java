@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Iterator;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.junit.Test;
+
+import com.ibm.jaql.io.hadoop.HadoopAdapter;
+import com.ibm.jaql.io.hadoop.JsonHolder;
+import com.ibm.jaql.io.hadoop.JsonHolderMapOutputKey;
+import com.ibm.jaql.io.hadoop.JsonHolderMapOutputValue;
+import com.ibm.jaql.io.registry.RegistryUtil;
+import com.ibm.jaql.json.parser.JsonParser;
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.json.type.JsonString;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.json.util.JsonIterator;
+import com.ibm.jaql.lang.core.Context;
+import com.ibm.jaql.lang.expr.core.RegisterExceptionHandler;
+import com.ibm.jaql.lang.expr.function.Function;
+import com.ibm.jaql.lang.util.JaqlUtil;
+
+/**
+ * Tests how the reducer of {@link MapReduceFn} passes the values of several inputs to the reduce
+ * function: lazily, one iterator per input.
+ */
+public class TestCombineReduceEval
+{
+  /** the values of key 1 of inputs 0 (a) and 1 (b), in the order of the shuffle */
+  private static final String[][] VALUES = {
+    { "0", "a1" }, { "1", "b1" }, { "0", "a2" }, { "1", "b2" }, { "0", "a3" } };
+
+  @Test
+  public void testAllInputs() throws Exception
+  {
+    MapReduceFn.ReduceEval r = reducer("fn(k, a, b) [ { k, a: a, b: b } ]");
+    assertEquals(parse("[ { k: 1, a: ['a1', 'a2', 'a3'], b: ['b1', 'b2'] } ]"),
+        reduce(r, 1, VALUES));
+  }
+
+  @Test
+  public void testUnusedInput() throws Exception
+  {
+    MapReduceFn.ReduceEval r = reducer("fn(k, a, b) [ { k, a: a } ]");
+    assertEquals(parse("[ { k: 1, a: ['a1', 'a2', 'a3'] } ]"), reduce(r, 1, VALUES));
+    // the values of b are dropped
+    assertEquals(0L, r.valArrays[1].count());
+  }
+
+  @Test
+  public void testAbandonedInput() throws Exception
+  {
+    // a is left after its first value, so the rest of it goes by while b is read
+    MapReduceFn.ReduceEval r = reducer("fn(k, a, b) [ { k, a: a -> top 1, b: b } ]");
+    assertEquals(parse("[ { k: 1, a: ['a1'], b: ['b1', 'b2'] } ]"), reduce(r, 1, VALUES));
+
+    // ... and does not show up for the next key
+    String[][] next = { { "1", "b3" }, { "0", "a4" }, { "0", "a5" } };
+    assertEquals(parse("[ { k: 2, a: ['a4'], b: ['b3'] } ]"), reduce(r, 2, next));
+  }
+
+  @Test
+  public void testNoValues() throws Exception
+  {
+    MapReduceFn.ReduceEval r = reducer("fn(k, a, b) [ { k, a: a, b: b } ]");
+    String[][] onlyB = { { "1", "b1" } };
+    assertEquals(parse("[ { k: 1, a: [], b: ['b1'] } ]"), reduce(r, 1, onlyB));
+  }
+
+  @Test
+  public void testSetArguments() throws Exception
+  {
+    Function fn = MapReduceBaseExpr.RemoteEval.compile(new Context(),
+        "fn(k, a, b, c = 3) [ k, count(a), count(b), c ]");
+    fn.setArguments(new JsonLong(1), new JsonIterator[] { iter("x", "y"), iter() });
+    assertEquals(parse("[ 1, 2, 0, 3 ]"), toArray(fn.iter(new Context())));
+
+    try
+    {
+      fn.setArguments(new JsonLong(1), new JsonIterator[0]);
+      fail("missing argument not detected");
+    }
+    catch (IllegalArgumentException e)
+    {
+      // expected
+    }
+  }
+
+  private static MapReduceFn.ReduceEval reducer(String fn) throws Exception
+  {
+    JobConf conf = new JobConf();
+    RegistryUtil.writeConf(conf, HadoopAdapter.storeRegistryVarName, JaqlUtil.getAdapterStore());
+    RegistryUtil.writeConf(conf, MapReduceBaseExpr.RNG_REGISTRY_VAR_NAME, JaqlUtil.getRNGStore());
+    RegisterExceptionHandler.writeConf(MapReduceBaseExpr.EXCEPTION_NAME, conf);
+    conf.setInt(MapReduceBaseExpr.NUM_INPUTS_NAME, 2);
+    conf.set(MapReduceBaseExpr.BASE_NAME + ".reduce.0", fn);
+    MapReduceFn.ReduceEval r = new MapReduceFn.ReduceEval();
+    r.configure(conf);
+    return r;
+  }
+
+  /**
+   * Reduces <code>values</code>, pairs of input and value, of <code>key</code>. Like Hadoop,
+   * the same holder is used for all values.
+   */
+  private static JsonValue reduce(MapReduceFn.ReduceEval r, long key, final String[][] values)
+    throws Exception
+  {
+    final JsonHolderMapOutputValue holder = new JsonHolderMapOutputValue();
+    Iterator<JsonHolderMapOutputValue> iter = new Iterator<JsonHolderMapOutputValue>() {
+      int i = 0;
+
+      public boolean hasNext()
+      {
+        return i < values.length;
+      }
+
+      public JsonHolderMapOutputValue next()
+      {
+        holder.tag = Integer.parseInt(values[i][0]);
+        holder.value = new JsonString(values[i][1]);
+        i++;
+        return holder;
+      }
+
+      public void remove()
+      {
+        throw new UnsupportedOperationException();
+      }
+    };
+    final BufferedJsonArray output = new BufferedJsonArray();
+    r.reduce(new JsonHolderMapOutputKey(new JsonLong(key)), iter,
+        new OutputCollector<JsonHolder, JsonHolder>() {
+          public void collect(JsonHolder k, JsonHolder v)
+          {
+            output.addCopy(v.value);
+          }
+        }, Reporter.NULL);
+    return output;
+  }
+
+  private static JsonIterator iter(String... values)
+  {
+    BufferedJsonArray a = new BufferedJsonArray();
+    for (String v : values)
+    {
+      a.add(new JsonString(v));
+    }
+    return a.iter();
+  }
+
+  private static JsonValue toArray(JsonIterator iter) throws Exception
+  {
+    BufferedJsonArray a = new BufferedJsonArray();
+    for (JsonValue v : iter)
+    {
+      a.addCopy(v);
+    }
+    return a;
+  }
+
+  private static JsonValue parse(String json) throws Exception
+  {
+    return new JsonParser().parse(json);
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.lang.core.Context;
+import com.ibm.jaql.lang.core.Var;
+import com.ibm.jaql.lang.expr.core.ArrayExpr;
+import com.ibm.jaql.lang.expr.core.ConstExpr;
+import com.ibm.jaql.lang.expr.core.VarExpr;
+import com.ibm.jaql.lang.expr.function.Function;
+import com.ibm.jaql.lang.expr.function.JaqlFunction;
+import com.ibm.jaql.lang.expr.function.VarParameter;
+import com.ibm.jaql.lang.expr.function.VarParameters;
+
+/**
+ * Tests that {@link ConstantPool} ships the large constants of a function, including those of
+ * default values, and restores them in the task.
+ */
+public class TestConstantPool
+{
+  @Test
+  public void testDefaultValue() throws Exception
+  {
+    // fn(x, y = <large constant>) [x, y]
+    JsonValue big = bigArray();
+    Var x = new Var("x");
+    Var y = new Var("y");
+    JaqlFunction fn = new JaqlFunction(
+        new VarParameters(new VarParameter(x), new VarParameter(y, new ConstExpr(big))),
+        new ArrayExpr(new VarExpr(x), new VarExpr(y)));
+    
+    ConstantPool pool = new ConstantPool();
+    JaqlFunction shipped = pool.externalize(fn);
+    String text = shipped.getText();
+    assertTrue(text.contains("pooledConst"));
+    assertTrue(text.length() < 200); // the constant is not in the text
+    
+    JobConf conf = new JobConf();
+    pool.writeConf(conf, "test.constants");
+    ConstantPool taskPool = ConstantPool.readConf(conf, "test.constants");
+    Context context = new Context();
+    Function task = MapReduceBaseExpr.RemoteEval.compile(context, text, taskPool);
+    task.setArguments(new ConstExpr(new JsonLong(1))); // applies the default
+    BufferedJsonArray expected = new BufferedJsonArray(2);
+    expected.set(0, new JsonLong(1));
+    expected.set(1, big);
+    assertEquals(0, expected.compareTo(task.eval(context)));
+  }
+
+  @Test
+  public void testSmallConstants() throws Exception
+  {
+    // small constants stay in the text
+    Var x = new Var("x");
+    JaqlFunction fn = new JaqlFunction(
+        new VarParameters(new VarParameter(x, new ConstExpr(new JsonLong(42)))),
+        new VarExpr(x));
+    ConstantPool pool = new ConstantPool();
+    assertTrue(pool.externalize(fn) == fn);
+    JobConf conf = new JobConf();
+    pool.writeConf(conf, "test.constants");
+    assertEquals(null, ConstantPool.readConf(conf, "test.constants"));
+  }
+
+  private static JsonValue bigArray()
+  {
+    BufferedJsonArray a = new BufferedJsonArray(1000);
+    for (int i = 0; i < 1000; i++)
+    {
+      a.set(i, new JsonLong(i));
+    }
+    return a;
+  }
+}
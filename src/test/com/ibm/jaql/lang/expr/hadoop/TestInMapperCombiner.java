@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.json.type.JsonNumber;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.json.type.MutableJsonLong;
+
+/**
+ * Tests {@link InMapperCombiner}.
+ */
+public class TestInMapperCombiner
+{
+  /** Sums the values of each key; records what is emitted. */
+  static class Summer extends InMapperCombiner
+  {
+    HashMap<JsonValue, Long> sums = new HashMap<JsonValue, Long>();
+    int numEmitted;
+
+    Summer(JobConf conf)
+    {
+      super(conf);
+    }
+
+    @Override
+    protected void accumulate(Group g, JsonValue value) throws Exception
+    {
+      long v = ((JsonNumber)value).longValueExact();
+      if (g.state.count() == 0)
+      {
+        g.state.add(new MutableJsonLong(v));
+        g.bytes = sizeOf(g.state);
+      }
+      else
+      {
+        MutableJsonLong sum = (MutableJsonLong)g.state.get(0);
+        sum.set(sum.get() + v);
+      }
+    }
+
+    @Override
+    protected void emit(Group g) throws Exception
+    {
+      long v = ((JsonLong)g.state.get(0)).get();
+      Long sum = sums.get(g.key);
+      sums.put(g.key, sum == null ? v : sum + v);
+      numEmitted++;
+    }
+
+    void add(long key, long value) throws Exception
+    {
+      assertTrue(add(new JsonLong(key), new JsonLong(value)));
+    }
+  }
+
+  @Test
+  public void testCombine() throws Exception
+  {
+    Summer s = new Summer(new JobConf());
+    MutableJsonLong key = new MutableJsonLong();
+    for (int i = 0; i < 10000; i++)
+    {
+      key.set(i % 10); // the table must copy the key
+      s.add(key, new JsonLong(i));
+    }
+    assertEquals(0, s.numEmitted);
+    s.flush();
+    assertEquals(10, s.numEmitted);
+    for (int k = 0; k < 10; k++)
+    {
+      assertTrue(s.sums.get(new JsonLong(k)) == 1000 * k + 1000 * 999 / 2 * 10);
+    }
+  }
+
+  @Test
+  public void testMemoryLimit() throws Exception
+  {
+    JobConf conf = new JobConf();
+    conf.setLong(InMapperCombiner.MEMORY_NAME, 100 * InMapperCombiner.ENTRY_OVERHEAD);
+    Summer s = new Summer(conf);
+    for (int i = 0; i < 20000; i++)
+    {
+      s.add(i % 1000, 1);
+    }
+    s.flush();
+    assertTrue(s.numEmitted > 1000);
+    assertEquals(1000, s.sums.size());
+    for (long sum : s.sums.values())
+    {
+      assertTrue(sum == 20);
+    }
+  }
+
+  @Test
+  public void testStopOnDistinctKeys() throws Exception
+  {
+    Summer s = new Summer(new JobConf());
+    long n = InMapperCombiner.SAMPLE_SIZE;
+    for (long i = 0; i < n - 1; i++)
+    {
+      s.add(i, 1);
+    }
+    assertFalse(s.add(new JsonLong(n), new JsonLong(1)));
+    assertTrue(s.numEmitted == n - 1);
+    assertFalse(s.add(new JsonLong(0), new JsonLong(1)));
+    s.flush();
+    assertTrue(s.numEmitted == n - 1);
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.jaql.io.Adapter;
+import com.ibm.jaql.json.type.BufferedJsonRecord;
+import com.ibm.jaql.json.type.JsonRecord;
+import com.ibm.jaql.json.type.JsonString;
+import com.ibm.jaql.lang.core.Context;
+import com.ibm.jaql.lang.core.Var;
+import com.ibm.jaql.lang.expr.core.ConstExpr;
+import com.ibm.jaql.lang.expr.core.VarExpr;
+import com.ibm.jaql.lang.expr.function.FunctionCallExpr;
+import com.ibm.jaql.lang.expr.io.ReadFn;
+
+/**
+ * Tests hits, misses, invalidation and eviction of {@link JobCache} entries.
+ */
+public class TestJobCache
+{
+  private static final JsonString SUBMIT = new JsonString(MapReduceFn.class.getName());
+
+  private File dir;
+  private File in;
+  private File side;
+  private Context context;
+  private int numTemps;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = new File(System.getProperty("test.build.data", "/tmp"), "jobCache");
+    FileUtil.fullyDelete(dir);
+    dir.mkdirs();
+    in = new File(dir, "in");
+    write(in, "input");
+    side = new File(dir, "side");
+    write(side, "side input");
+    context = new Context();
+  }
+
+  @After
+  public void tearDown()
+  {
+    context.reset();
+  }
+
+  @Test
+  public void testHitAndMiss() throws Exception
+  {
+    JobCache cache = open(conf("fn(x) x"));
+    assertNull(cache.lookup());
+    JsonRecord stored = store(cache);
+    assertFalse(temp(numTemps).exists());
+
+    // the same job is a hit, even though its temp output has a different name
+    JsonRecord cached = open(conf("fn(x) x")).lookup();
+    assertNotNull(cached);
+    assertEquals(stored.get(Adapter.LOCATION_NAME), cached.get(Adapter.LOCATION_NAME));
+
+    // another job is a miss
+    assertNull(open(conf("fn(x) x+1")).lookup());
+  }
+
+  @Test
+  public void testInvalidation() throws Exception
+  {
+    JobConf conf = conf("fn(x) x");
+    conf.setStrings(JobCache.SIDE_INPUTS_NAME, side.getAbsolutePath());
+    store(open(conf));
+    assertNotNull(open(conf).lookup());
+
+    // a changed side input invalidates the entry
+    write(side, "changed side input");
+    assertNull(open(conf).lookup());
+    store(open(conf));
+    assertNotNull(open(conf).lookup());
+
+    // ... and so does a changed input
+    write(in, "changed input");
+    assertNull(open(conf).lookup());
+  }
+
+  @Test
+  public void testSideInputs() throws Exception
+  {
+    JobConf conf = conf("fn(x) x");
+    String location = side.getAbsolutePath();
+    JobCache.addSideInputs(conf, new ReadFn(new ConstExpr(descriptor("hdfs", location))));
+    assertEquals(location, conf.get(JobCache.SIDE_INPUTS_NAME));
+    assertNotNull(open(conf));
+
+    // a function that reads from a location that is not known is not cached
+    JobCache.addSideInputs(conf, new ReadFn(new VarExpr(new Var("loc"))));
+    assertNull(open(conf));
+  }
+
+  @Test
+  public void testMightReadExternalData() throws Exception
+  {
+    // a call of an unknown function might read anything
+    JobConf conf = conf("fn(x) x");
+    JobCache.addSideInputs(conf, new FunctionCallExpr(new VarExpr(new Var("f"))));
+    assertNull(open(conf));
+  }
+
+  @Test
+  public void testEviction() throws Exception
+  {
+    Context other = new Context();
+    JobConf a = conf("fn(x) a");
+    a.setLong(JobCache.SIZE_NAME, 1);
+    JobCache cacheA = open(a);
+    cacheA.context = other;
+    store(cacheA);
+    assertNotNull(open(a).lookup());
+
+    // an entry that another query uses is not evicted
+    JobConf b = conf("fn(x) b");
+    b.setLong(JobCache.SIZE_NAME, 1);
+    store(open(b));
+    assertNotNull(open(a).lookup());
+
+    // once it is released, it is
+    other.reset();
+    context.reset();
+    JobConf c = conf("fn(x) c");
+    c.setLong(JobCache.SIZE_NAME, 1);
+    store(open(c));
+    assertNull(open(a).lookup());
+    assertNull(open(b).lookup());
+    assertNotNull(open(c).lookup());
+  }
+
+  private JobConf conf(String fn)
+  {
+    JobConf conf = new JobConf();
+    conf.set(JobCache.DIR_NAME, new File(dir, "cache").getAbsolutePath());
+    conf.set(MapReduceBaseExpr.BASE_NAME + ".map", fn);
+    FileInputFormat.setInputPaths(conf, new Path(in.getAbsolutePath()));
+    return conf;
+  }
+
+  /** Opens the cache for a job with a new temp output. */
+  private JobCache open(JobConf conf) throws Exception
+  {
+    MapReduceFn job = new MapReduceFn(new ConstExpr(new BufferedJsonRecord()));
+    JsonRecord out = descriptor("jaqltemp", temp(++numTemps).getAbsolutePath());
+    return JobCache.open(context, SUBMIT, new JobConf(conf), job, out);
+  }
+
+  /** Writes the output of the job of <code>cache</code> and stores it in the cache. */
+  private JsonRecord store(JobCache cache) throws Exception
+  {
+    File temp = temp(numTemps);
+    temp.mkdirs();
+    write(new File(temp, "part-00000"), "output of job " + numTemps);
+    JsonRecord stored = cache.store();
+    assertTrue(stored.get(Adapter.LOCATION_NAME).toString().contains("cache"));
+    return stored;
+  }
+
+  private File temp(int i)
+  {
+    return new File(dir, "temp" + i);
+  }
+
+  private static JsonRecord descriptor(String type, String location)
+  {
+    BufferedJsonRecord r = new BufferedJsonRecord();
+    r.add(Adapter.TYPE_NAME, new JsonString(type));
+    r.add(Adapter.LOCATION_NAME, new JsonString(location));
+    return r;
+  }
+
+  private static void write(File file, String text) throws IOException
+  {
+    FileWriter w = new FileWriter(file);
+    w.write(text);
+    w.close();
+  }
+}
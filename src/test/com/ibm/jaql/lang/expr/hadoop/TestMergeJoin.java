@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.mapred.RecordReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.jaql.io.Adapter;
+import com.ibm.jaql.io.hadoop.JsonHolder;
+import com.ibm.jaql.io.hadoop.JsonHolderMapOutputValue;
+import com.ibm.jaql.json.parser.JsonParser;
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.json.type.JsonNumber;
+import com.ibm.jaql.json.type.JsonRecord;
+import com.ibm.jaql.json.type.JsonUtil;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.lang.Jaql;
+import com.ibm.jaql.lang.core.Context;
+
+/**
+ * Tests how {@link MergeJoin} groups the merged pairs of its inputs by key, and that joins of
+ * partitioned temp outputs are merged, or shuffled if the outputs do not match.
+ */
+public class TestMergeJoin
+{
+  /** the conf of every job: several reducers, which the threaded local job runner supports */
+  private static final String CONF = "{ 'jaql.local.mapred.threads': 3, 'mapred.reduce.tasks': %d }";
+
+  /** counts of the records of a and b per k, joined by k */
+  private static final String JOINED = "["
+      + "{ k: 1, a: [2], b: [] }, { k: 2, a: [1], b: [1] }, { k: 3, a: [3], b: [2] },"
+      + "{ k: 4, a: [1], b: [] }, { k: 5, a: [1], b: [1] }, { k: 6, a: [2], b: [] },"
+      + "{ k: 7, a: [], b: [3] } ]";
+
+  private File dir;
+  private Context context; // temps are deleted when it is reset
+
+  @Before
+  public void setUp() throws Exception
+  {
+    dir = new File(System.getProperty("test.build.data", "/tmp"), "mergeJoin");
+    FileUtil.fullyDelete(dir);
+    dir.mkdirs();
+    context = new Context();
+    eval("[1, 1, 2, 3, 3, 3, 4, 5, 6, 6] -> transform { k: $ } -> write(hdfs('"
+        + new File(dir, "a") + "'))");
+    eval("[2, 3, 3, 5, 7, 7, 7] -> transform { k: $ } -> write(hdfs('"
+        + new File(dir, "b") + "'))");
+  }
+
+  @After
+  public void tearDown()
+  {
+    context.reset();
+  }
+
+  @Test
+  public void testMerge() throws Exception
+  {
+    JsonValue a = count("a", "HadoopTemp()", "{ k, n: count(vals) }", 3);
+    JsonValue b = count("b", "HadoopTemp()", "{ k, n: count(vals) }", 3);
+    assertTrue(isPartitioned(a));
+    assertTrue(isPartitioned(b));
+
+    // the output of a merge join is not partitioned by reducers; that of a shuffle is
+    JsonValue merged = join(a, b, "$.k");
+    assertFalse(isPartitioned(merged));
+    assertEquals(parse(JOINED), read(merged));
+
+    // outputs that are not temps are shuffled
+    JsonValue shuffled = join(
+        count("a", "hdfs('" + new File(dir, "countA") + "')", "{ k, n: count(vals) }", 3),
+        count("b", "hdfs('" + new File(dir, "countB") + "')", "{ k, n: count(vals) }", 3),
+        "$.k");
+    assertTrue(isPartitioned(shuffled));
+    assertEquals(read(merged), read(shuffled));
+  }
+
+  @Test
+  public void testPartitionMismatch() throws Exception
+  {
+    JsonValue a = count("a", "HadoopTemp()", "{ k, n: count(vals) }", 3);
+    JsonValue b = count("b", "HadoopTemp()", "{ k, n: count(vals) }", 2);
+    JsonValue joined = join(a, b, "$.k");
+    assertTrue(isPartitioned(joined));
+    assertEquals(parse(JOINED), read(joined));
+  }
+
+  @Test
+  public void testKeyMismatch() throws Exception
+  {
+    // b is recorded as partitioned by k, but joined by k2
+    JsonValue a = count("a", "HadoopTemp()", "{ k, n: count(vals) }", 3);
+    JsonValue b = count("b", "HadoopTemp()", "{ k, k2: k, n: count(vals) }", 3);
+    JsonValue joined = join(a, b, "$.k2");
+    assertTrue(isPartitioned(joined));
+    assertEquals(parse(JOINED), read(joined));
+  }
+
+  /**
+   * Counts the records of input <code>in</code> per key k with <code>numReducers</code>
+   * reducers and returns the output descriptor.
+   */
+  private JsonValue count(String in, String out, String record, int numReducers)
+    throws Exception
+  {
+    return eval("mapReduce({ input: hdfs('" + new File(dir, in) + "'), output: " + out + ","
+        + " map: fn($in) ($in -> transform [$.k, $]),"
+        + " reduce: fn(k, vals) [" + record + "],"
+        + " options: { conf: " + String.format(CONF, numReducers) + " } })");
+  }
+
+  /** Joins counts a and b by k, with the key of b at <code>bKey</code>. */
+  private JsonValue join(JsonValue a, JsonValue b, String bKey) throws Exception
+  {
+    return eval("mapReduce({ input: [" + JsonUtil.printToString(a) + ", "
+        + JsonUtil.printToString(b) + "], output: HadoopTemp(),"
+        + " map: [ fn($in) ($in -> transform [$.k, $]),"
+        + "        fn($in) ($in -> transform [" + bKey + ", $]) ],"
+        + " reduce: fn(k, as, bs) [{ k, a: as -> transform $.n, b: bs -> transform $.n }],"
+        + " options: { conf: " + String.format(CONF, 2) + " } })");
+  }
+
+  private JsonValue read(JsonValue descriptor) throws Exception
+  {
+    return eval("read(" + JsonUtil.printToString(descriptor) + ") -> sort by [$.k]");
+  }
+
+  private static boolean isPartitioned(JsonValue descriptor)
+  {
+    String location = ((JsonRecord)descriptor).get(Adapter.LOCATION_NAME).toString();
+    return new File(location, MergeJoin.PARTITIONING_FILE).exists();
+  }
+
+  private JsonValue eval(String query) throws Exception
+  {
+    Jaql jaql = new Jaql(query + ";");
+    try
+    {
+      return jaql.prepareNext().eval(context).getCopy(null);
+    }
+    finally
+    {
+      jaql.close();
+    }
+  }
+
+  private static JsonValue parse(String json) throws Exception
+  {
+    return new JsonParser().parse(json);
+  }
+
+  /** Returns the given keys with [input, value] pairs, like the merge reader. */
+  private static RecordReader<JsonHolder, JsonHolder> input(final Long[] keys, final long[] inputs)
+  {
+    return new RecordReader<JsonHolder, JsonHolder>() {
+      int i = 0;
+
+      public boolean next(JsonHolder key, JsonHolder value)
+      {
+        if (i == keys.length)
+        {
+          return false;
+        }
+        key.value = keys[i] == null ? null : new JsonLong(keys[i]);
+        BufferedJsonArray pair = new BufferedJsonArray(2);
+        pair.set(0, new JsonLong(inputs[i]));
+        pair.set(1, new JsonLong(i));
+        value.value = pair;
+        i++;
+        return true;
+      }
+
+      public JsonHolder createKey()
+      {
+        return new JsonHolder();
+      }
+
+      public JsonHolder createValue()
+      {
+        return new JsonHolder();
+      }
+
+      public long getPos()
+      {
+        return i;
+      }
+
+      public float getProgress()
+      {
+        return (float)i / keys.length;
+      }
+
+      public void close()
+      {
+      }
+    };
+  }
+
+  private static long get(JsonValue v) throws Exception
+  {
+    return ((JsonNumber)v).longValueExact();
+  }
+
+  @Test
+  public void testGroups() throws Exception
+  {
+    Long[] keys = { null, null, 1L, 1L, 1L, 4L, 7L, 7L };
+    long[] inputs = { 0, 1, 0, 1, 1, 1, 0, 1 };
+    MergeJoin.Values values = new MergeJoin.Values(input(keys, inputs));
+
+    // a group that is only partly read is skipped
+    assertTrue(values.nextKey());
+    assertNull(values.key);
+    JsonHolderMapOutputValue v = values.next();
+    assertEquals(0, v.tag);
+    assertEquals(0L, get(v.value));
+
+    assertTrue(values.nextKey());
+    assertEquals(1L, get(values.key));
+    int n = 0;
+    while (values.hasNext())
+    {
+      v = values.next();
+      assertEquals((int)inputs[2 + n], v.tag);
+      assertEquals(2L + n, get(v.value));
+      n++;
+    }
+    assertEquals(3, n);
+
+    assertTrue(values.nextKey());
+    assertEquals(4L, get(values.key));
+    assertTrue(values.nextKey());
+    assertEquals(7L, get(values.key));
+    assertTrue(values.hasNext());
+    assertFalse(values.nextKey());
+  }
+
+  @Test
+  public void testUnsorted() throws Exception
+  {
+    MergeJoin.Values values = new MergeJoin.Values(input(new Long[] { 2L, 1L }, new long[] { 0, 1 }));
+    assertTrue(values.nextKey());
+    try
+    {
+      values.nextKey();
+      fail("unsorted input was accepted");
+    }
+    catch (IOException e)
+    {
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import com.ibm.jaql.io.hadoop.ConfUtil;
+import com.ibm.jaql.io.hadoop.JsonHolder;
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.JsonBool;
+import com.ibm.jaql.json.type.JsonLong;
+
+/**
+ * Tests {@link RangePartitioner} and {@link SortKeyComparator}.
+ */
+public class TestRangePartitioner
+{
+  private static BufferedJsonArray key(long a, long b)
+  {
+    BufferedJsonArray k = new BufferedJsonArray(2);
+    k.set(0, new JsonLong(a));
+    k.set(1, new JsonLong(b));
+    return k;
+  }
+
+  /** order by [a asc, b desc], split at [10, 5] and [20, 0] */
+  private static JobConf conf() throws Exception
+  {
+    JobConf conf = new JobConf();
+    BufferedJsonArray order = new BufferedJsonArray(2);
+    order.set(0, JsonBool.TRUE);
+    order.set(1, JsonBool.FALSE);
+    ConfUtil.writeConfArray(conf, RangePartitioner.ORDER_NAME, order);
+    BufferedJsonArray points = new BufferedJsonArray();
+    points.add(key(10, 5));
+    points.add(key(20, 0));
+    ConfUtil.writeConfArray(conf, RangePartitioner.SPLIT_POINTS_NAME, points);
+    return conf;
+  }
+
+  @Test
+  public void testPartition() throws Exception
+  {
+    RangePartitioner p = new RangePartitioner();
+    p.configure(conf());
+    JsonHolder value = new JsonHolder();
+    assertEquals(0, p.getPartition(new JsonHolder(key(5, 0)), value, 3));
+    assertEquals(0, p.getPartition(new JsonHolder(key(10, 9)), value, 3));
+    assertEquals(1, p.getPartition(new JsonHolder(key(10, 5)), value, 3));
+    assertEquals(1, p.getPartition(new JsonHolder(key(10, 1)), value, 3));
+    assertEquals(2, p.getPartition(new JsonHolder(key(20, 0)), value, 3));
+    assertEquals(2, p.getPartition(new JsonHolder(key(30, 7)), value, 3));
+  }
+
+  @Test
+  public void testOrder() throws Exception
+  {
+    final SortKeyComparator cmp = new SortKeyComparator();
+    cmp.setConf(conf());
+    RangePartitioner p = new RangePartitioner();
+    p.configure(conf());
+
+    JsonHolder[] keys = new JsonHolder[900];
+    for (int i = 0; i < keys.length; i++)
+    {
+      keys[i] = new JsonHolder(key((i * 7919) % 30, i % 11));
+    }
+    Arrays.sort(keys, new Comparator<JsonHolder>() {
+      public int compare(JsonHolder a, JsonHolder b)
+      {
+        return cmp.compare(a, b);
+      }
+    });
+
+    // the partitions of the sorted keys are ascending, so the part files are ordered
+    JsonHolder value = new JsonHolder();
+    int last = 0;
+    for (int i = 0; i < keys.length; i++)
+    {
+      BufferedJsonArray k = (BufferedJsonArray)keys[i].value;
+      if (i > 0)
+      {
+        BufferedJsonArray prev = (BufferedJsonArray)keys[i - 1].value;
+        int c = prev.get(0).compareTo(k.get(0));
+        assertTrue(c < 0 || (c == 0 && prev.get(1).compareTo(k.get(1)) >= 0));
+      }
+      int partition = p.getPartition(keys[i], value, 3);
+      assertTrue(partition >= last);
+      last = partition;
+    }
+    assertEquals(2, last);
+  }
+}
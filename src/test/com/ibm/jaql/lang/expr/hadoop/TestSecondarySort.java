@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import com.ibm.jaql.io.hadoop.JsonHolder;
+import com.ibm.jaql.io.serialization.binary.temp.TempBinaryFullSerializer;
+import com.ibm.jaql.json.schema.SchemaFactory;
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.JsonBool;
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.json.type.JsonNumber;
+
+/**
+ * Tests the partitioner and comparators of {@link SecondarySort}.
+ */
+public class TestSecondarySort
+{
+  /** [key, [sortKey]] */
+  private static BufferedJsonArray composite(long key, long sortKey)
+  {
+    BufferedJsonArray s = new BufferedJsonArray(1);
+    s.set(0, new JsonLong(sortKey));
+    BufferedJsonArray k = new BufferedJsonArray(2);
+    k.set(0, new JsonLong(key));
+    k.set(1, s);
+    return k;
+  }
+
+  private static JobConf conf(boolean ascending) throws Exception
+  {
+    JobConf conf = new JobConf();
+    BufferedJsonArray order = new BufferedJsonArray(1);
+    order.set(0, JsonBool.make(ascending));
+    SecondarySort.setup(conf, order);
+    return conf;
+  }
+
+  private static long get(BufferedJsonArray composite, int i) throws Exception
+  {
+    if (i == 1)
+    {
+      composite = (BufferedJsonArray)composite.get(1);
+      i = 0;
+    }
+    return ((JsonNumber)composite.get(i)).longValueExact();
+  }
+
+  @Test
+  public void testDescending() throws Exception
+  {
+    checkOrder(false);
+  }
+
+  @Test
+  public void testAscending() throws Exception
+  {
+    // compares the serialized composites as a whole
+    checkOrder(true);
+  }
+
+  private void checkOrder(boolean ascending) throws Exception
+  {
+    final SecondarySort.CompositeKeyComparator cmp = new SecondarySort.CompositeKeyComparator();
+    cmp.setConf(conf(ascending));
+    SecondarySort.KeyComparator group = new SecondarySort.KeyComparator();
+    group.setConf(conf(ascending));
+    SecondarySort.KeyPartitioner p = new SecondarySort.KeyPartitioner();
+    p.configure(conf(ascending));
+
+    // compare serialized keys, like the shuffle
+    TempBinaryFullSerializer serializer = new TempBinaryFullSerializer(SchemaFactory.anySchema());
+    final byte[][] bytes = new byte[300][];
+    BufferedJsonArray[] keys = new BufferedJsonArray[bytes.length];
+    Integer[] index = new Integer[bytes.length];
+    for (int i = 0; i < bytes.length; i++)
+    {
+      keys[i] = composite((i * 7919) % 7, i % 13);
+      DataOutputBuffer out = new DataOutputBuffer();
+      serializer.write(out, keys[i]);
+      bytes[i] = Arrays.copyOf(out.getData(), out.getLength());
+      index[i] = i;
+    }
+    Arrays.sort(index, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b)
+      {
+        return cmp.compare(bytes[a], 0, bytes[a].length, bytes[b], 0, bytes[b].length);
+      }
+    });
+
+    JsonHolder value = new JsonHolder();
+    int groups = 1;
+    for (int i = 1; i < index.length; i++)
+    {
+      BufferedJsonArray prev = keys[index[i - 1]];
+      BufferedJsonArray k = keys[index[i]];
+      int c = group.compare(bytes[index[i - 1]], 0, bytes[index[i - 1]].length,
+          bytes[index[i]], 0, bytes[index[i]].length);
+      assertEquals(Long.signum(get(prev, 0) - get(k, 0)), Integer.signum(c));
+      assertTrue(c < 0 || (ascending ? get(prev, 1) <= get(k, 1) : get(prev, 1) >= get(k, 1)));
+      if (c == 0)
+      {
+        assertEquals(p.getPartition(new JsonHolder(prev), value, 5),
+            p.getPartition(new JsonHolder(k), value, 5));
+      }
+      else
+      {
+        groups++;
+      }
+    }
+    assertEquals(7, groups);
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.lib.HashPartitioner;
+import org.junit.Test;
+
+import com.ibm.jaql.io.hadoop.HadoopSerializationMapOutput;
+import com.ibm.jaql.io.hadoop.JsonHolder;
+import com.ibm.jaql.io.hadoop.JsonHolderMapOutputKey;
+import com.ibm.jaql.io.hadoop.JsonHolderMapOutputValue;
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.json.type.JsonString;
+import com.ibm.jaql.json.type.JsonValue;
+
+/**
+ * Tests {@link SkewPartitioner} and the routing of keys by {@link SaltedJob.SaltedReducer}.
+ */
+public class TestSkewPartitioner
+{
+  @Test
+  public void testPartition() throws Exception
+  {
+    JobConf conf = new JobConf();
+    BufferedJsonArray hot = new BufferedJsonArray();
+    hot.add(new JsonString("hot"));
+    hot.add(null);
+    SkewPartitioner.writeConf(conf, hot);
+    conf.setInt(SkewPartitioner.SALTS_NAME, 3);
+    SkewPartitioner p = new SkewPartitioner();
+    p.configure(conf);
+    HashPartitioner<JsonHolder, JsonHolder> hash = new HashPartitioner<JsonHolder, JsonHolder>();
+    JsonHolder value = new JsonHolder();
+
+    // other keys are partitioned by hash
+    for (int i = 0; i < 1000; i++)
+    {
+      JsonHolder key = new JsonHolder(new JsonLong(i));
+      assertEquals(hash.getPartition(key, value, 8), p.getPartition(key, value, 8));
+    }
+
+    // hot keys go to as many partitions as there are salts
+    JsonValue[] keys = { new JsonString("hot"), null };
+    for (JsonValue k : keys)
+    {
+      HashSet<Integer> partitions = new HashSet<Integer>();
+      JsonHolder key = new JsonHolder(k);
+      for (int i = 0; i < 100; i++)
+      {
+        partitions.add(p.getPartition(key, value, 8));
+      }
+      assertEquals(3, partitions.size());
+    }
+  }
+
+  @Test
+  public void testSaltedReducer() throws Exception
+  {
+    File dir = new File(System.getProperty("test.build.data", "/tmp"), "salted");
+    JobConf conf = new JobConf();
+    HadoopSerializationMapOutput.register(conf);
+    conf.setMapOutputKeyClass(JsonHolderMapOutputKey.class);
+    conf.setMapOutputValueClass(JsonHolderMapOutputValue.class);
+    conf.setCombinerClass(Tag.Combine.class);
+    conf.setClass(SaltedJob.REDUCER_NAME, Tag.Reduce.class, Reducer.class);
+    conf.set(SaltedJob.SALTED_PATH_NAME, dir.getAbsolutePath());
+    conf.setInt("mapred.task.partition", 3);
+    BufferedJsonArray hot = new BufferedJsonArray();
+    hot.add(new JsonString("hot"));
+    SkewPartitioner.writeConf(conf, hot);
+    Path path = new Path(dir.getAbsolutePath(), "part-00003");
+    FileSystem fs = path.getFileSystem(conf);
+    fs.delete(path, false);
+
+    // keys that are not hot are reduced and go to the output
+    SaltedJob.SaltedReducer r = new SaltedJob.SaltedReducer();
+    r.configure(conf);
+    final ArrayList<JsonValue> output = new ArrayList<JsonValue>();
+    OutputCollector<JsonHolder, JsonHolder> collector = new OutputCollector<JsonHolder, JsonHolder>() {
+      public void collect(JsonHolder key, JsonHolder value)
+      {
+        output.add(value.value);
+      }
+    };
+    r.reduce(new JsonHolderMapOutputKey(new JsonLong(1)), values(), collector, Reporter.NULL);
+    assertEquals(Arrays.asList(new JsonValue[] { Tag.REDUCE }), output);
+    assertFalse(fs.exists(path));
+
+    // hot keys are combined and go to the side file of the partition
+    r.reduce(new JsonHolderMapOutputKey(new JsonString("hot")), values(), collector, Reporter.NULL);
+    r.close();
+    assertEquals(1, output.size());
+    assertTrue(fs.exists(path));
+    SequenceFile.Reader reader = new SequenceFile.Reader(fs, path, conf);
+    JsonHolder key = (JsonHolder)reader.next((Object)null);
+    assertEquals(new JsonString("hot"), key.value);
+    JsonHolder value = (JsonHolder)reader.getCurrentValue((Object)null);
+    assertEquals(Tag.COMBINE, value.value);
+    assertEquals(null, reader.next((Object)null));
+    reader.close();
+    fs.delete(path, false);
+  }
+
+  private static Iterator<JsonHolder> values()
+  {
+    JsonHolder v = new JsonHolderMapOutputValue(new JsonLong(0));
+    return Arrays.asList(new JsonHolder[] { v }).iterator();
+  }
+
+  /** Replaces the values of a key by a tag that tells which reducer ran. */
+  public static class Tag
+  {
+    static final JsonString COMBINE = new JsonString("combine");
+    static final JsonString REDUCE = new JsonString("reduce");
+
+    public static class Combine extends TagReducer
+    {
+      public Combine()
+      {
+        super(COMBINE);
+      }
+    }
+
+    public static class Reduce extends TagReducer
+    {
+      public Reduce()
+      {
+        super(REDUCE);
+      }
+    }
+  }
+
+  static class TagReducer implements Reducer<JsonHolder, JsonHolder, JsonHolder, JsonHolder>
+  {
+    private JsonHolder tag;
+
+    TagReducer(JsonString tag)
+    {
+      this.tag = new JsonHolderMapOutputValue(tag);
+    }
+
+    public void configure(JobConf job)
+    {
+    }
+
+    public void reduce(JsonHolder key, Iterator<JsonHolder> values,
+        OutputCollector<JsonHolder, JsonHolder> output, Reporter reporter) throws IOException
+    {
+      output.collect(key, tag);
+    }
+
+    public void close()
+    {
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.lang.core.Context;
+import com.ibm.jaql.lang.core.Var;
+import com.ibm.jaql.lang.expr.core.ConstExpr;
+import com.ibm.jaql.lang.expr.core.VarExpr;
+import com.ibm.jaql.lang.expr.function.Function;
+import com.ibm.jaql.lang.expr.function.JaqlFunction;
+import com.ibm.jaql.lang.expr.function.VarParameter;
+import com.ibm.jaql.lang.expr.function.VarParameters;
+
+/**
+ * Tests the reuse of compiled functions, constants and contexts by the tasks of a job, and
+ * the eviction of old jobs in {@link TaskCache}.
+ */
+public class TestTaskCache
+{
+  @Test
+  public void testReuseWithinJob() throws Exception
+  {
+    JobConf conf = conf("job_reuse");
+    TaskCache.Job job = TaskCache.getJob(conf);
+    assertNotNull(job);
+    assertTrue(job == TaskCache.getJob(conf));
+
+    // a released function is handed to the next task, but only once
+    Function fn = fn();
+    assertEquals(null, job.acquire("fn(x) x"));
+    job.release("fn(x) x", fn);
+    assertEquals(null, job.acquire("fn(y) y"));
+    assertTrue(fn == job.acquire("fn(x) x"));
+    assertEquals(null, job.acquire("fn(x) x"));
+
+    // the constants are read from the conf of the first task only
+    ConstantPool pool = new ConstantPool();
+    Var y = new Var("y");
+    pool.externalize(new JaqlFunction(
+        new VarParameters(new VarParameter(y, bigArray())), new VarExpr(y)));
+    pool.writeConf(conf, "test.constants");
+    ConstantPool constants = job.getConstants(conf, "test.constants");
+    assertNotNull(constants);
+    assertTrue(constants == job.getConstants(new JobConf(), "test.constants"));
+
+    assertFalse(job.hasRegistries());
+    job.setRegistriesRead();
+    assertTrue(TaskCache.getJob(conf).hasRegistries());
+
+    // contexts are reused by the tasks of all jobs
+    Context context = TaskCache.getContext();
+    TaskCache.releaseContext(context);
+    assertTrue(context == TaskCache.getContext());
+  }
+
+  @Test
+  public void testNoJob() throws Exception
+  {
+    assertEquals(null, TaskCache.getJob(new JobConf()));
+    JobConf conf = conf("job_disabled");
+    conf.setBoolean(MapReduceBaseExpr.BASE_NAME + ".taskCache", false);
+    assertEquals(null, TaskCache.getJob(conf));
+  }
+
+  @Test
+  public void testEviction() throws Exception
+  {
+    JobConf conf = conf("job_evicted");
+    TaskCache.Job job = TaskCache.getJob(conf);
+    job.release("fn(x) x", fn());
+
+    // using the job keeps it
+    for (int i = 0; i < TaskCache.MAX_JOBS - 1; i++)
+    {
+      TaskCache.getJob(conf("job_kept_" + i));
+    }
+    assertTrue(job == TaskCache.getJob(conf));
+
+    // once more than MAX_JOBS newer jobs are used, its state is dropped
+    for (int i = 0; i < TaskCache.MAX_JOBS; i++)
+    {
+      TaskCache.getJob(conf("job_new_" + i));
+    }
+    TaskCache.Job again = TaskCache.getJob(conf);
+    assertFalse(job == again);
+    assertEquals(null, again.acquire("fn(x) x"));
+  }
+
+  private static JobConf conf(String jobId)
+  {
+    JobConf conf = new JobConf();
+    conf.set("mapred.job.id", jobId);
+    return conf;
+  }
+
+  private static Function fn()
+  {
+    Var x = new Var("x");
+    return new JaqlFunction(new VarParameters(new VarParameter(x)), new VarExpr(x));
+  }
+
+  private static ConstExpr bigArray()
+  {
+    BufferedJsonArray a = new BufferedJsonArray(1000);
+    for (int i = 0; i < 1000; i++)
+    {
+      a.set(i, new JsonLong(i));
+    }
+    return new ConstExpr(a);
+  }
+}
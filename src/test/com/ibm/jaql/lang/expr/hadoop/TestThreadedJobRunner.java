@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.expr.hadoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.lib.IdentityMapper;
+import org.apache.hadoop.mapred.lib.LongSumReducer;
+import org.apache.hadoop.mapred.lib.TokenCountMapper;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.jaql.io.hadoop.Globals;
+
+/**
+ * Tests {@link ThreadedJobRunner} with Hadoop's word count classes.
+ */
+public class TestThreadedJobRunner
+{
+  private File dir;
+  private File in;
+  private File out;
+  private HashMap<String, Long> counts = new HashMap<String, Long>();
+  private int numLines;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = new File(System.getProperty("test.build.data", "/tmp"), "threadedJobRunner");
+    FileUtil.fullyDelete(dir);
+    in = new File(dir, "in");
+    out = new File(dir, "out");
+    in.mkdirs();
+    for (int f = 0; f < 3; f++)
+    {
+      FileWriter w = new FileWriter(new File(in, "file" + f));
+      for (int i = 0; i < 1000; i++)
+      {
+        String word = "w" + (i * (f + 1)) % 37;
+        w.write(word + " x" + f + "\n");
+        add(word);
+        add("x" + f);
+        numLines++;
+      }
+      w.close();
+    }
+  }
+
+  private void add(String word)
+  {
+    Long c = counts.get(word);
+    counts.put(word, c == null ? 1 : c + 1);
+  }
+
+  private JobConf makeConf()
+  {
+    JobConf conf = new JobConf();
+    conf.set("mapred.job.tracker", "local");
+    conf.set("fs.default.name", "file:///");
+    conf.set("mapred.local.dir", new File(dir, "local").getAbsolutePath());
+    conf.setInt(ThreadedJobRunner.THREADS_NAME, 3);
+    FileInputFormat.setInputPaths(conf, new Path(in.getAbsolutePath()));
+    FileOutputFormat.setOutputPath(conf, new Path(out.getAbsolutePath()));
+    return conf;
+  }
+
+  private JobConf makeWordCountConf()
+  {
+    JobConf conf = makeConf();
+    conf.setMapperClass(TokenCountMapper.class);
+    conf.setCombinerClass(LongSumReducer.class);
+    conf.setReducerClass(LongSumReducer.class);
+    conf.setOutputKeyClass(Text.class);
+    conf.setOutputValueClass(LongWritable.class);
+    conf.setNumReduceTasks(3);
+    return conf;
+  }
+
+  @Test
+  public void testWordCount() throws Exception
+  {
+    JobConf conf = makeWordCountConf();
+    ThreadedJobRunner.run(conf);
+    assertNull("the configuration of the caller is not changed", conf.get("mapred.job.id"));
+    checkWordCount();
+  }
+
+  @Test
+  public void testSpill() throws Exception
+  {
+    // all runs but the first are written to files, which are merged two at a time
+    JobConf conf = makeWordCountConf();
+    conf.setLong(ThreadedJobRunner.MEMORY_NAME, 4096);
+    conf.setInt("io.sort.factor", 2);
+    ThreadedJobRunner.run(conf);
+    checkWordCount();
+    assertTrue("no runs are left", list(new File(dir, "local")).length == 0);
+  }
+
+  private static File[] list(File d)
+  {
+    File[] files = new File(d, "jaqllocal").listFiles();
+    return files == null ? new File[0] : files;
+  }
+
+  private void checkWordCount() throws IOException
+  {
+    HashMap<String, Long> result = new HashMap<String, Long>();
+    for (int r = 0; r < 3; r++)
+    {
+      BufferedReader reader = new BufferedReader(new FileReader(new File(out,
+          ThreadedJobRunner.partName(r))));
+      String prev = null;
+      for (String line = reader.readLine(); line != null; line = reader.readLine())
+      {
+        String[] kv = line.split("\t");
+        assertNull("each word is reduced once", result.put(kv[0], Long.parseLong(kv[1])));
+        if (prev != null)
+        {
+          assertEquals("sorted", -1, Integer.signum(prev.compareTo(kv[0])));
+        }
+        prev = kv[0];
+      }
+      reader.close();
+    }
+    assertEquals(counts, result);
+  }
+
+  @Test
+  public void testMapOnly() throws Exception
+  {
+    JobConf conf = makeConf();
+    conf.setMapperClass(IdentityMapper.class);
+    conf.setOutputKeyClass(LongWritable.class);
+    conf.setOutputValueClass(Text.class);
+    conf.setNumReduceTasks(0);
+    ThreadedJobRunner.run(conf);
+
+    int n = 0;
+    for (File f : out.listFiles())
+    {
+      if (f.getName().startsWith("part-"))
+      {
+        BufferedReader reader = new BufferedReader(new FileReader(f));
+        while (reader.readLine() != null)
+        {
+          n++;
+        }
+        reader.close();
+      }
+    }
+    assertEquals(numLines, n);
+  }
+
+  @Test
+  public void testGlobals() throws Exception
+  {
+    JobConf mine = new JobConf();
+    Globals.setJobConf(mine);
+    JobConf conf = makeConf();
+    conf.setMapperClass(GlobalsMapper.class);
+    conf.setOutputKeyClass(LongWritable.class);
+    conf.setOutputValueClass(Text.class);
+    conf.setNumReduceTasks(0);
+    ThreadedJobRunner.run(conf);
+    assertSame(mine, Globals.getJobConf());
+  }
+
+  @Test
+  public void testNestedTasks() throws Exception
+  {
+    // a task that runs a job in the task thread, e.g., when the shared pool is busy
+    JobConf shared = new JobConf();
+    Globals.setJobConf(shared);
+    JobConf outer = new JobConf();
+    JobConf inner = new JobConf();
+    Globals.TaskConf none = Globals.beginTask(outer);
+    assertNull(none);
+    Globals.TaskConf outerTask = Globals.beginTask(inner);
+    assertSame(inner, Globals.getJobConf());
+    Globals.endTask(outerTask);
+    assertSame(outer, Globals.getJobConf());
+    Globals.endTask(none);
+    assertSame(shared, Globals.getJobConf());
+  }
+
+  @Test
+  public void testInterrupt() throws Exception
+  {
+    JobConf conf = makeWordCountConf();
+    conf.setMapperClass(SlowMapper.class);
+    SlowMapper.running.set(0);
+    final JobConf c = conf;
+    final Throwable[] error = new Throwable[1];
+    Thread runner = new Thread() {
+      public void run()
+      {
+        try
+        {
+          ThreadedJobRunner.run(c);
+        }
+        catch (Throwable e)
+        {
+          error[0] = e;
+        }
+      }
+    };
+    runner.start();
+    while (SlowMapper.running.get() == 0)
+    {
+      Thread.sleep(10);
+    }
+    runner.interrupt();
+    runner.join();
+    assertTrue(error[0] instanceof IOException);
+    assertEquals("all tasks are done when the job fails", 0, SlowMapper.running.get());
+    assertFalse(new File(out, ThreadedJobRunner.partName(0)).exists());
+  }
+
+  /** Checks that the configuration it sets in {@link Globals} is not changed by other tasks. */
+  public static class GlobalsMapper extends IdentityMapper<LongWritable, Text>
+  {
+    private JobConf job;
+
+    @Override
+    public void configure(JobConf job)
+    {
+      this.job = job;
+      Globals.setJobConf(job);
+    }
+
+    @Override
+    public void map(LongWritable key, Text val, OutputCollector<LongWritable, Text> output,
+        Reporter reporter) throws IOException
+    {
+      Thread.yield();
+      if (Globals.getJobConf() != job)
+      {
+        throw new IOException("configuration changed by another task");
+      }
+      output.collect(key, val);
+    }
+  }
+
+  /** Counts words, slowly. */
+  public static class SlowMapper extends TokenCountMapper<LongWritable>
+  {
+    static final AtomicInteger running = new AtomicInteger();
+    private boolean started;
+
+    @Override
+    public void map(LongWritable key, Text value, OutputCollector<Text, LongWritable> output,
+        Reporter reporter) throws IOException
+    {
+      if (!started)
+      {
+        started = true;
+        running.incrementAndGet();
+        try
+        {
+          Thread.sleep(500);
+        }
+        catch (InterruptedException e)
+        {
+          throw new IOException("interrupted");
+        }
+      }
+      super.map(key, value, output, reporter);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      if (started)
+      {
+        try
+        {
+          Thread.sleep(100);
+        }
+        catch (InterruptedException e)
+        {
+          // done anyway
+        }
+        running.decrementAndGet();
+      }
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.rewrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.jaql.json.type.JsonBool;
+import com.ibm.jaql.lang.Jaql;
+import com.ibm.jaql.lang.expr.core.Expr;
+import com.ibm.jaql.lang.expr.core.JoinExpr;
+import com.ibm.jaql.lang.walk.PostOrderExprWalker;
+
+/**
+ * Tests which input of a join {@link JoinToBroadcast} broadcasts, and when it keeps the shuffle.
+ */
+public class TestJoinToBroadcast
+{
+  private File dir;
+  private String big;
+  private String small;
+  private Expr root;
+  private JoinToBroadcast rewrite;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    dir = new File(System.getProperty("test.build.data", "/tmp"), "joinToBroadcast");
+    FileUtil.fullyDelete(dir);
+    dir.mkdirs();
+    big = write("big", 1000);
+    small = write("small", 10);
+    rewrite = new JoinToBroadcast(
+        new RewritePhase(new RewriteEngine(), new PostOrderExprWalker(), 100));
+  }
+
+  @After
+  public void tearDown()
+  {
+    System.clearProperty(JoinToBroadcast.THRESHOLD_PROPERTY);
+  }
+
+  @Test
+  public void testSmallSecond() throws Exception
+  {
+    JoinExpr join = join(big, small, null);
+    assertTrue(rewrite.rewrite(join));
+    join = find();
+    assertTrue(join.isBroadcast());
+    assertTrue(reads(join, 1, small));
+  }
+
+  @Test
+  public void testSwap() throws Exception
+  {
+    JoinExpr join = join(small, big, null);
+    Expr smallOn = join.onExpr(0);
+    assertTrue(rewrite.rewrite(join));
+    join = find();
+    assertTrue(join.isBroadcast());
+    assertTrue(reads(join, 0, big));
+    assertTrue(reads(join, 1, small));
+    // the on expressions move with their inputs
+    assertSame(smallOn, join.onExpr(1));
+
+    // a broadcast join is left alone
+    assertFalse(rewrite.rewrite(join));
+  }
+
+  @Test
+  public void testThreshold() throws Exception
+  {
+    System.setProperty(JoinToBroadcast.THRESHOLD_PROPERTY, "5");
+    JoinExpr join = join(big, small, null);
+    assertFalse(rewrite.rewrite(join));
+    assertFalse(find().isBroadcast());
+  }
+
+  @Test
+  public void testUnknownSize() throws Exception
+  {
+    String missing = new File(dir, "missing").getAbsolutePath();
+    JoinExpr join = join(missing, missing + "2", null);
+    assertFalse(rewrite.rewrite(join));
+    assertFalse(find().isBroadcast());
+  }
+
+  @Test
+  public void testForced() throws Exception
+  {
+    // the second input is broadcast, however large
+    System.setProperty(JoinToBroadcast.THRESHOLD_PROPERTY, "5");
+    JoinExpr join = join(small, big, "{ broadcast: true }");
+    assertFalse(rewrite.rewrite(join));
+    join = find();
+    assertTrue(join.isBroadcast());
+    assertTrue(reads(join, 1, big));
+
+    // ... or the first one if the second one is evaluated differently by every map task
+    join = parse("join s in read(hdfs('" + small + "')), "
+        + "b in (read(hdfs('" + big + "')) -> transform { $.k, r: randomLong() }) "
+        + "where s.k == b.k options { broadcast: true } into { s, b }");
+    assertTrue(rewrite.rewrite(join));
+    join = find();
+    assertTrue(join.isBroadcast());
+    assertTrue(reads(join, 1, small));
+  }
+
+  @Test
+  public void testForcedNotPossible() throws Exception
+  {
+    // preserved inputs cannot be broadcast, so the hint is turned off
+    JoinExpr join = parse("join preserve b in read(hdfs('" + big + "')), "
+        + "preserve s in read(hdfs('" + small + "')) where b.k == s.k "
+        + "options { broadcast: true } into { b, s }");
+    assertTrue(rewrite.rewrite(join));
+    join = find();
+    assertEquals(JsonBool.FALSE, join.option(JoinExpr.BROADCAST_OPTION));
+    assertFalse(rewrite.rewrite(join));
+  }
+
+  @Test
+  public void testNoBroadcast() throws Exception
+  {
+    JoinExpr join = join(big, small, "{ broadcast: false }");
+    assertFalse(rewrite.rewrite(join));
+    assertFalse(find().isBroadcast());
+  }
+
+  @Test
+  public void testUnknownOptions() throws Exception
+  {
+    // the options cannot be set, so the inputs are not swapped either
+    JoinExpr join = join(small, big, "(if (true) {} else null)");
+    assertFalse(rewrite.rewrite(join));
+    join = find();
+    assertTrue(reads(join, 0, small));
+    assertNull(join.option(JoinExpr.BROADCAST_OPTION));
+  }
+
+  /** Parses a join of the files <code>loc1</code> and <code>loc2</code>, without rewrites. */
+  private JoinExpr join(String loc1, String loc2, String options) throws Exception
+  {
+    return parse("join i in read(hdfs('" + loc1 + "')), j in read(hdfs('" + loc2 + "')) "
+        + "where i.k == j.k "
+        + (options == null ? "" : "options " + options + " ")
+        + "into { i, j }");
+  }
+
+  /** Returns true if input <code>i</code> of the join reads the file <code>loc</code>. */
+  private static boolean reads(JoinExpr join, int i, String loc)
+  {
+    return join.binding(i).inExpr().toString().contains("\"" + loc + "\"");
+  }
+
+  private JoinExpr parse(String query) throws Exception
+  {
+    Jaql jaql = new Jaql(query + ";");
+    jaql.enableRewrite(false);
+    root = jaql.prepareNext();
+    return find();
+  }
+
+  /** Returns the join of the query, which the rewrite might have replaced. */
+  private JoinExpr find()
+  {
+    PostOrderExprWalker walker = new PostOrderExprWalker(root);
+    Expr expr;
+    while ((expr = walker.next()) != null)
+    {
+      if (expr instanceof JoinExpr)
+      {
+        return (JoinExpr)expr;
+      }
+    }
+    return null;
+  }
+
+  private String write(String name, int length) throws IOException
+  {
+    File file = new File(dir, name);
+    FileWriter w = new FileWriter(file);
+    for (int i = 0; i < length; i++)
+    {
+      w.write('x');
+    }
+    w.close();
+    return file.getAbsolutePath();
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Test;
+
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.json.type.JsonString;
+
+/**
+ * Tests {@link JsonBloomFilter}.
+ */
+public class TestJsonBloomFilter
+{
+  @Test
+  public void testContains() throws Exception
+  {
+    JsonBloomFilter filter = new JsonBloomFilter(10000);
+    for (int i = 0; i < 10000; i++)
+    {
+      filter.add(new JsonLong(2 * i));
+    }
+    filter.add(new JsonString("abc"));
+    filter.add(null);
+    
+    // no false negatives
+    for (int i = 0; i < 10000; i++)
+    {
+      assertTrue(filter.mightContain(new JsonLong(2 * i)));
+    }
+    assertTrue(filter.mightContain(new JsonString("abc")));
+    assertTrue(filter.mightContain(null));
+    
+    // few false positives
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++)
+    {
+      if (filter.mightContain(new JsonLong(2 * i + 1)))
+      {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < 500);
+  }
+
+  @Test
+  public void testScalable() throws Exception
+  {
+    // starts far too small, so several filters are needed
+    JsonBloomFilter.Scalable filter = new JsonBloomFilter.Scalable(64, 1 << 20);
+    for (int i = 0; i < 10000; i++)
+    {
+      filter.addHash(JsonBloomFilter.hash(new JsonLong(2 * i)));
+    }
+    assertTrue(filter.isUseful());
+    for (int i = 0; i < 10000; i++)
+    {
+      assertTrue(filter.mightContainHash(JsonBloomFilter.hash(new JsonLong(2 * i))));
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++)
+    {
+      if (filter.mightContainHash(JsonBloomFilter.hash(new JsonLong(2 * i + 1))))
+      {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < 2000);
+    
+    // past its memory limit, the filter excludes nothing
+    JsonBloomFilter.Scalable small = new JsonBloomFilter.Scalable(64, 1024);
+    for (int i = 0; i < 10000; i++)
+    {
+      small.addHash(i);
+    }
+    assertFalse(small.isUseful());
+    assertTrue(small.mightContainHash(-1));
+  }
+
+  @Test
+  public void testSerialize() throws Exception
+  {
+    JsonBloomFilter filter = new JsonBloomFilter(100);
+    for (int i = 0; i < 100; i++)
+    {
+      filter.add(new JsonLong(i));
+    }
+    DataOutputBuffer out = new DataOutputBuffer();
+    filter.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    JsonBloomFilter copy = new JsonBloomFilter();
+    copy.readFields(in);
+    assertEquals(filter.numBits(), copy.numBits());
+    for (int i = 0; i < 100; i++)
+    {
+      assertTrue(copy.mightContain(new JsonLong(i)));
+    }
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) IBM Corp. 2008.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.jaql.io.serialization.binary.BinaryFullSerializer;
+import com.ibm.jaql.json.type.BufferedJsonArray;
+import com.ibm.jaql.json.type.JsonArray;
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.util.PagedFile;
+
+/**
+ * Tests growing and spilling of {@link JsonHashTable}.
+ */
+public class TestJsonHashTable
+{
+  String           filename = System.getProperty("test.cache.data") + File.separator + "hashfile.dat";
+  RandomAccessFile file;
+  PagedFile        pfile;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    File f = new File(filename);
+    f.deleteOnExit();
+    file = new RandomAccessFile(f, "rw");
+    file.setLength(0);
+    pfile = new PagedFile(file.getChannel(), 1024);
+  }
+
+  @After
+  public void tearDown() throws Exception
+  {
+    file.close();
+  }
+
+  @Test
+  public void testInMemory() throws Exception
+  {
+    JsonHashTable table = check(10000, 1000, Long.MAX_VALUE);
+    assertFalse(table.isSpilled());
+  }
+
+  @Test
+  public void testSpill() throws Exception
+  {
+    JsonHashTable table = check(20000, 5000, 64 * 1024);
+    assertTrue(table.isSpilled());
+  }
+
+  @Test
+  public void testSpillNullKey() throws Exception
+  {
+    // a single key cannot be partitioned; the table must still produce one group
+    JsonHashTable table = new JsonHashTable(1, 1024, pfile);
+    for (int i = 0; i < 1000; i++)
+    {
+      table.add(0, null, new JsonLong(i));
+    }
+    JsonHashTable.Iterator iter = table.iter();
+    assertTrue(iter.next());
+    assertEquals(null, iter.key());
+    assertEquals(1000L, ((JsonArray)iter.values(0)).count());
+    assertFalse(iter.next());
+  }
+
+  @Test
+  public void testCloseAbandoned() throws Exception
+  {
+    // the pages of a table whose groups are not read to the end are reused after close
+    long length = 0;
+    for (int round = 0; round < 3; round++)
+    {
+      JsonHashTable table = new JsonHashTable(1, 16 * 1024, pfile);
+      for (int i = 0; i < 20000; i++)
+      {
+        table.add(0, new JsonLong(i % 5000), new JsonLong(i));
+      }
+      assertTrue(table.isSpilled());
+      JsonHashTable.Iterator iter = table.iter();
+      assertTrue(iter.next());
+      assertEquals(4L, ((JsonArray)iter.values(0)).count());
+      table.close();
+      assertFalse(table.isSpilled());
+      assertFalse(iter.next());
+      if (round == 0)
+      {
+        length = file.length();
+      }
+      assertTrue(file.length() < length + length / 10); // a leak would double the file
+    }
+  }
+
+  @Test
+  public void testValueArray() throws Exception
+  {
+    JsonHashTable table = new JsonHashTable(1);
+    for (int i = 0; i < 500; i++)
+    {
+      table.add(0, new JsonLong(1), new JsonLong(i));
+    }
+    JsonHashTable.Iterator iter = table.iter();
+    assertTrue(iter.next());
+    JsonArray values = (JsonArray)iter.values(0);
+    assertEquals(500L, values.count());
+    assertEquals(new JsonLong(42), values.get(42));
+    assertEquals(null, values.get(500));
+    
+    // copies and serialized forms must contain the same values as the view
+    assertEquals(0, values.compareTo(values.getCopy(null)));
+    DataOutputBuffer out = new DataOutputBuffer();
+    BinaryFullSerializer serializer = BinaryFullSerializer.getDefault();
+    serializer.write(out, values);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    assertEquals(0, values.compareTo(serializer.read(in, null)));
+    
+    // the immutable copy holds its own values
+    JsonArray copy = (JsonArray)values.getImmutableCopy();
+    assertTrue(copy instanceof BufferedJsonArray);
+    assertEquals(0, values.compareTo(copy));
+    assertEquals(500L, copy.count());
+    assertEquals(new JsonLong(499), copy.get(499));
+    assertFalse(iter.next());
+  }
+
+  @Test
+  public void testFind() throws Exception
+  {
+    JsonHashTable table = new JsonHashTable(1);
+    for (int i = 0; i < 100; i++)
+    {
+      table.add(0, new JsonLong(i % 10), new JsonLong(i));
+    }
+    JsonBloomFilter filter = new JsonBloomFilter(table.numKeys());
+    table.addKeysTo(filter);
+    JsonHashTable.ValueArray group = new JsonHashTable.ValueArray();
+    for (int i = 0; i < 5; i++)
+    {
+      assertTrue(filter.mightContain(new JsonLong(i)));
+      assertTrue(table.find(0, new JsonLong(i), group) == group);
+      assertEquals(10L, group.count());
+    }
+    assertEquals(null, table.find(0, new JsonLong(10), group));
+    
+    // only the keys that were not found remain
+    int n = 0;
+    JsonHashTable.Iterator iter = table.unmatchedIter();
+    while (iter.next())
+    {
+      assertTrue(((JsonLong)iter.key()).get() >= 5);
+      n++;
+    }
+    assertEquals(5, n);
+  }
+
+  /** Adds n values for k keys on two tags and verifies the groups. */
+  private JsonHashTable check(int n, int k, long memoryLimit) throws Exception
+  {
+    JsonHashTable table = new JsonHashTable(2, memoryLimit, pfile);
+    for (int i = 0; i < n; i++)
+    {
+      table.add(i % 2, new JsonLong(i % k), new JsonLong(i));
+    }
+    
+    boolean[] seen = new boolean[k];
+    int numKeys = 0;
+    int numValues = 0;
+    JsonHashTable.Iterator iter = table.iter();
+    while (iter.next())
+    {
+      int key = (int)((JsonLong)iter.key()).get();
+      assertFalse(seen[key]);
+      seen[key] = true;
+      numKeys++;
+      for (int tag = 0; tag < 2; tag++)
+      {
+        for (JsonValue v : ((JsonArray)iter.values(tag)).iter())
+        {
+          long i = ((JsonLong)v).get();
+          assertEquals((long)key, i % k);
+          assertEquals((long)tag, i % 2);
+          numValues++;
+        }
+      }
+    }
+    assertEquals(k, numKeys);
+    assertEquals(n, numValues);
+    return table;
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) IBM Corp. 2008.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.jaql.json.type.JsonLong;
+import com.ibm.jaql.json.type.JsonValue;
+import com.ibm.jaql.json.util.JsonIterator;
+import com.ibm.jaql.util.PagedFile;
+
+/**
+ * Tests in-memory and external sorting of {@link JsonSorter}.
+ */
+public class TestJsonSorter
+{
+  String           filename = System.getProperty("test.cache.data") + File.separator + "sortfile.dat";
+  RandomAccessFile file;
+  PagedFile        pfile;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    File f = new File(filename);
+    f.deleteOnExit();
+    file = new RandomAccessFile(f, "rw");
+    file.setLength(0);
+    pfile = new PagedFile(file.getChannel(), 1024);
+  }
+
+  @After
+  public void tearDown() throws Exception
+  {
+    file.close();
+  }
+
+  @Test
+  public void testEmpty() throws Exception
+  {
+    JsonSorter sorter = new JsonSorter(null, 1024, pfile);
+    sorter.sort();
+    assertFalse(sorter.iter().moveNext());
+  }
+
+  @Test
+  public void testInMemory() throws Exception
+  {
+    check(1000, 1024 * 1024);
+  }
+
+  @Test
+  public void testSpill() throws Exception
+  {
+    // forces many runs and at least one intermediate merge
+    check(50000, 4 * 1024);
+  }
+
+  @Test
+  public void testCloseAbandoned() throws Exception
+  {
+    // the pages of a sort that is not read to the end are reused after close
+    long length = 0;
+    for (int round = 0; round < 3; round++)
+    {
+      JsonSorter sorter = new JsonSorter(null, 4 * 1024, pfile);
+      for (int i = 0; i < 10000; i++)
+      {
+        sorter.add(new JsonLong(10000 - i), new JsonLong(i));
+      }
+      sorter.sort();
+      assertTrue(sorter.isSpilled());
+      JsonIterator iter = sorter.iter();
+      assertTrue(iter.moveNext());
+      assertEquals(9999L, ((JsonLong)iter.current()).get());
+      sorter.close();
+      assertFalse(sorter.isSpilled());
+      assertFalse(iter.moveNext());
+      if (round == 0)
+      {
+        length = file.length();
+      }
+      assertTrue(file.length() < length + length / 10); // a leak would double the file
+    }
+  }
+
+  /** Sorts n random keys with the given memory limit; values record the input order. */
+  private void check(int n, long memoryLimit) throws Exception
+  {
+    Random rng = new Random(42);
+    JsonSorter sorter = new JsonSorter(null, memoryLimit, pfile);
+    for (int i = 0; i < n; i++)
+    {
+      sorter.add(new JsonLong(rng.nextInt(n / 10 + 1)), new JsonLong(i));
+    }
+    sorter.sort();
+
+    // recompute the keys to verify the order; equal keys must keep their input order
+    rng = new Random(42);
+    long[] keys = new long[n];
+    for (int i = 0; i < n; i++)
+    {
+      keys[i] = rng.nextInt(n / 10 + 1);
+    }
+    
+    JsonIterator iter = sorter.iter();
+    int count = 0;
+    long prevKey = Long.MIN_VALUE;
+    long prevPos = -1;
+    while (iter.moveNext())
+    {
+      JsonValue v = iter.current();
+      int pos = (int)((JsonLong)v).get();
+      long key = keys[pos];
+      assertTrue(key >= prevKey);
+      if (key == prevKey)
+      {
+        assertTrue(pos > prevPos);
+      }
+      prevKey = key;
+      prevPos = pos;
+      count++;
+    }
+    assertEquals(n, count);
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) IBM Corp. 2010.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ibm.jaql.lang.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests lookups, replacement and growing of {@link MappedHashTable}.
+ */
+public class TestMappedHashTable
+{
+  File dir;
+  MappedHashTable table;
+
+  @Before
+  public void setUp() throws Exception
+  {
+    dir = new File(System.getProperty("java.io.tmpdir"), "mappedHashTable");
+    FileUtil.fullyDelete(dir);
+    dir.mkdirs();
+    table = new MappedHashTable(dir);
+  }
+
+  @After
+  public void tearDown() throws Exception
+  {
+    table.close();
+  }
+
+  @Test
+  public void testGrow() throws Exception
+  {
+    // a new table maps little
+    assertEquals((long)MappedHashTable.Region.MIN_MAP_SIZE, table.index.mapped);
+    assertEquals(0L, table.data.mapped);
+
+    int n = 50000; // many times the initial capacity
+    for (int i = 0; i < n; i++)
+    {
+      put("key" + i, "value" + i);
+    }
+    assertEquals(n, (int)table.size());
+    // the mappings grow with the table
+    assertEquals(table.capacity * 8, table.index.mapped);
+    assertTrue(table.data.mapped < 2 * table.dataSize());
+    for (int i = 0; i < n; i++)
+    {
+      assertEquals("value" + i, get("key" + i));
+    }
+    assertEquals(null, get("key" + n));
+    assertEquals(null, get("key"));
+  }
+
+  @Test
+  public void testReplace() throws Exception
+  {
+    put("a", "1");
+    put("b", "2");
+    put("a", "333");
+    assertEquals(2, (int)table.size());
+    assertEquals("333", get("a"));
+    assertEquals("2", get("b"));
+  }
+
+  @Test
+  public void testEmptyAndLarge() throws Exception
+  {
+    StringBuilder big = new StringBuilder();
+    for (int i = 0; i < 100000; i++)
+    {
+      big.append((char)('a' + i % 26));
+    }
+    put("", "");
+    put("big", big.toString());
+    assertEquals("", get(""));
+    assertEquals(big.toString(), get("big"));
+    assertTrue(table.dataSize() > big.length());
+  }
+
+  @Test
+  public void testClear() throws Exception
+  {
+    put("a", "1");
+    table.clear();
+    assertTrue(table.isEmpty());
+    assertEquals(null, get("a"));
+    put("a", "2");
+    assertEquals("2", get("a"));
+  }
+
+  @Test
+  public void testConcurrentLookups() throws Exception
+  {
+    // values longer than the copy buffer of a lookup are copied in several pieces
+    final int n = 2000;
+    for (int i = 0; i < n; i++)
+    {
+      put("key" + i, value(i));
+    }
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++)
+    {
+      final int first = t;
+      threads[t] = new Thread() {
+        public void run()
+        {
+          try
+          {
+            for (int r = 0; r < 3; r++)
+            {
+              for (int i = first; i < n; i += 3)
+              {
+                assertEquals(value(i), get("key" + i));
+              }
+            }
+          }
+          catch (Throwable e)
+          {
+            synchronized (errors)
+            {
+              errors.add(e);
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads)
+    {
+      t.join();
+    }
+    assertEquals(new ArrayList<Throwable>(), errors);
+  }
+
+  @Test
+  public void testFilesDeleted() throws Exception
+  {
+    for (int i = 0; i < 5000; i++)
+    {
+      put("key" + i, "value" + i);
+    }
+    table.clear();
+    put("a", "1");
+    table.close();
+    assertEquals(0, dir.list().length);
+    table = new MappedHashTable(dir);
+  }
+
+  /** Returns a value of key i, some of them longer than {@link MappedHashTable#MAX_COPY_SIZE}. */
+  private static String value(int i)
+  {
+    StringBuilder v = new StringBuilder("value" + i);
+    int len = i % 100 == 0 ? MappedHashTable.MAX_COPY_SIZE * 2 + i : i % 300;
+    for (int j = 0; j < len; j++)
+    {
+      v.append((char)('a' + (i + j) % 26));
+    }
+    return v.toString();
+  }
+
+  private void put(String key, String value) throws Exception
+  {
+    byte[] k = key.getBytes("UTF-8");
+    byte[] v = value.getBytes("UTF-8");
+    table.put(k, 0, k.length, v, 0, v.length);
+  }
+
+  private String get(String key) throws Exception
+  {
+    // look the key up at an offset to check that only its bytes are compared
+    byte[] k = ("xx" + key + "yy").getBytes("UTF-8");
+    long pos = table.find(k, 2, k.length - 4);
+    if (pos < 0)
+    {
+      return null;
+    }
+    DataOutputBuffer out = new DataOutputBuffer();
+    table.writeValue(pos, out);
+    assertEquals(out.getLength(), table.valueLength(pos));
+    return new String(out.getData(), 0, out.getLength(), "UTF-8");
+  }
+}